@@ -57,9 +57,10 @@ pacoApp.controller('HomeCtrl', ['$scope', '$http', '$location',
 
 
 pacoApp.controller('ExperimentCtrl', ['$scope', '$mdDialog', '$filter',
-  'config', 'template', '$routeParams', '$location', 'experimentService',
+  'config', 'template', '$routeParams', '$location', '$timeout',
+  'experimentService',
   function($scope, $mdDialog, $filter, config, template, $routeParams,
-    $location, experimentService) {
+    $location, $timeout, experimentService) {
     $scope.ace = {};
     $scope.feedbackTypes = config.feedbackTypes;
     $scope.ringtones = config.ringtones;
@@ -263,6 +264,12 @@ pacoApp.controller('ExperimentCtrl', ['$scope', '$mdDialog', '$filter',
 
               $scope.experiment0 = angular.copy($scope.experiment);
 
+              // Access for the published audience is written after the save
+              if ($scope.experiment.published &&
+                  $scope.experiment.publishedUsers.length > 0) {
+                $scope.pollAclStatus(data[0].experimentId);
+              }
+
               if ($scope.newExperiment) {
                 $location.path('/edit/' + data[0].experimentId);
               }
@@ -280,6 +287,17 @@ pacoApp.controller('ExperimentCtrl', ['$scope', '$mdDialog', '$filter',
         });
     };
 
+    $scope.pollAclStatus = function(id) {
+      experimentService.getAclStatus(id).then(function(response) {
+        $scope.aclStatus = response.data;
+        if ($scope.aclStatus && $scope.aclStatus.status === 'pending') {
+          $timeout(function() {
+            $scope.pollAclStatus(id);
+          }, 3000);
+        }
+      });
+    };
+
     $scope.addGroup = function() {
       $scope.experiment.groups.push(angular.copy(template.group));
     };
@@ -8,6 +8,7 @@ pacoApp.service('experimentService', ['$http', '$cacheFactory', 'util', 'config'
 
     return ({
       deleteExperiment: deleteExperiment,
+      getAclStatus: getAclStatus,
       getExperimentList: getExperimentList,
       invalidateCachedList: invalidateCachedList,
       invalidateCachedLists: invalidateCachedLists,
@@ -17,11 +18,7 @@ pacoApp.service('experimentService', ['$http', '$cacheFactory', 'util', 'config'
     });
 
     function getExperimentList(listType, limit, cursor) {
-      var endpoint = '/experiments?' + listType;
-
-      if (limit) {
-        endpoint += '&limit=' + config.listPageSize;
-      }
+      var endpoint = getListEndpoint(listType, limit);
 
       if (cursor !== undefined && cursor !== null) {
         endpoint += '&cursor=' + cursor;
@@ -39,13 +36,22 @@ pacoApp.service('experimentService', ['$http', '$cacheFactory', 'util', 'config'
     }
 
     function invalidateCachedList(listType, limit) {
+      cache.remove(getListEndpoint(listType, limit));
+    }
+
+    function getListEndpoint(listType, limit) {
       var endpoint = '/experiments?' + listType;
 
+      // The joined list only shows ids, titles and organizations
+      if (listType === 'joined') {
+        endpoint += '&summary';
+      }
+
       if (limit) {
         endpoint += '&limit=' + config.listPageSize;
       }
 
-      cache.remove(endpoint);
+      return endpoint;
     }
 
     function getExperiment(id) {
@@ -92,6 +98,10 @@ pacoApp.service('experimentService', ['$http', '$cacheFactory', 'util', 'config'
       return $http.post('/experiments', experiment);
     }
 
+    function getAclStatus(id) {
+      return $http.get('/experiments?aclStatus=' + id);
+    }
+
     function deleteExperiment(id) {
       invalidateCachedLists();
       return $http.post('/experiments?delete=1&id=' + id);
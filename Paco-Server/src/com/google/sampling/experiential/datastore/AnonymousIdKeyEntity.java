@@ -0,0 +1,71 @@
+package com.google.sampling.experiential.datastore;
+
+import java.security.SecureRandom;
+import java.util.ConcurrentModificationException;
+import java.util.Date;
+import java.util.logging.Logger;
+
+import com.google.appengine.api.datastore.Blob;
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.EntityNotFoundException;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.Transaction;
+import com.google.sampling.experiential.server.metrics.MeteredDatastoreService;
+
+/**
+ * Holds the secret an experiment's keyed anonymous ids are computed with.
+ *
+ * The secret is created on the first anonymized export and never changes, so
+ * participants keep their ids across exports.
+ */
+public class AnonymousIdKeyEntity {
+  private static final String KEY_COLUMN = "key";
+  private static final String CREATION_DATE_COLUMN = "creationTime";
+  private static final String ENTITY_KIND = "anonymous_id_key";
+  private static final int KEY_BYTES = 32;
+
+  public static final Logger log = Logger.getLogger(AnonymousIdKeyEntity.class.getName());
+
+  /**
+   * @param experimentId
+   * @return the secret of the experiment, created if it has none yet
+   */
+  public static byte[] getOrCreateKey(String experimentId) {
+    DatastoreService ds = MeteredDatastoreService.getDatastoreService();
+    Key key = keyFor(experimentId);
+    Transaction tx = ds.beginTransaction();
+    try {
+      try {
+        return ((Blob) ds.get(tx, key).getProperty(KEY_COLUMN)).getBytes();
+      } catch (EntityNotFoundException e) {
+        byte[] secret = new byte[KEY_BYTES];
+        new SecureRandom().nextBytes(secret);
+        Entity entity = new Entity(key);
+        entity.setUnindexedProperty(KEY_COLUMN, new Blob(secret));
+        entity.setUnindexedProperty(CREATION_DATE_COLUMN, new Date());
+        ds.put(tx, entity);
+        tx.commit();
+        log.info("Created anonymous id key for experiment " + experimentId);
+        return secret;
+      }
+    } catch (ConcurrentModificationException e) {
+      // another export created it first
+      try {
+        return ((Blob) ds.get(key).getProperty(KEY_COLUMN)).getBytes();
+      } catch (EntityNotFoundException e1) {
+        throw new IllegalStateException("Could not create anonymous id key for experiment " + experimentId, e);
+      }
+    } finally {
+      if (tx.isActive()) {
+        tx.rollback();
+      }
+    }
+  }
+
+  private static Key keyFor(String experimentId) {
+    return KeyFactory.createKey(ENTITY_KIND, experimentId);
+  }
+
+}
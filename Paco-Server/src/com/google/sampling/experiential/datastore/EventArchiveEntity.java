@@ -0,0 +1,84 @@
+package com.google.sampling.experiential.datastore;
+
+import java.util.Date;
+import java.util.logging.Logger;
+
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.EntityNotFoundException;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.sampling.experiential.server.metrics.MeteredDatastoreService;
+
+/**
+ * Points at the current columnar event archive of an experiment in cloud storage.
+ *
+ * The archive holds every event with a when before the watermark. Later events
+ * are read from the datastore.
+ */
+public class EventArchiveEntity {
+  private static final String OBJECT_NAME_COLUMN = "objectName";
+  private static final String WATERMARK_COLUMN = "watermark";
+  private static final String EVENT_COUNT_COLUMN = "eventCount";
+  private static final String CREATION_DATE_COLUMN = "creationTime";
+  private static final String ENTITY_KIND = "event_archive";
+
+  public static final Logger log = Logger.getLogger(EventArchiveEntity.class.getName());
+
+  public static class EventArchiveInfo {
+    private Entity archiveEntity;
+
+    EventArchiveInfo(Entity archiveEntity) {
+      this.archiveEntity = archiveEntity;
+    }
+
+    public String objectName() {
+      return (String) archiveEntity.getProperty(OBJECT_NAME_COLUMN);
+    }
+
+    /**
+     * @return the time before which the archive holds every event
+     */
+    public Date watermark() {
+      return (Date) archiveEntity.getProperty(WATERMARK_COLUMN);
+    }
+
+    public Long eventCount() {
+      return (Long) archiveEntity.getProperty(EVENT_COUNT_COLUMN);
+    }
+  }
+
+  /**
+   * @param experimentId
+   * @return the archive of the experiment, or null if it has not been compacted
+   */
+  public static EventArchiveInfo getArchive(String experimentId) {
+    DatastoreService ds = MeteredDatastoreService.getDatastoreService();
+    try {
+      return new EventArchiveInfo(ds.get(keyFor(experimentId)));
+    } catch (EntityNotFoundException e) {
+      return null;
+    }
+  }
+
+  /**
+   * Switches the experiment to a newly written archive.
+   *
+   * @return the replaced archive, or null if there was none
+   */
+  public static EventArchiveInfo putArchive(String experimentId, String objectName, Date watermark, long eventCount) {
+    EventArchiveInfo previous = getArchive(experimentId);
+    Entity entity = new Entity(keyFor(experimentId));
+    entity.setUnindexedProperty(OBJECT_NAME_COLUMN, objectName);
+    entity.setUnindexedProperty(WATERMARK_COLUMN, watermark);
+    entity.setUnindexedProperty(EVENT_COUNT_COLUMN, eventCount);
+    entity.setUnindexedProperty(CREATION_DATE_COLUMN, new Date());
+    MeteredDatastoreService.getDatastoreService().put(entity);
+    return previous;
+  }
+
+  private static Key keyFor(String experimentId) {
+    return KeyFactory.createKey(ENTITY_KIND, experimentId);
+  }
+
+}
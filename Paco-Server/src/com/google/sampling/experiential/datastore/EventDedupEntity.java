@@ -0,0 +1,79 @@
+package com.google.sampling.experiential.datastore;
+
+import java.util.Date;
+import java.util.List;
+import java.util.logging.Logger;
+
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.EntityNotFoundException;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.datastore.Query.FilterOperator;
+import com.google.appengine.api.datastore.Query.FilterPredicate;
+import com.google.common.collect.Lists;
+import com.google.sampling.experiential.server.metrics.MeteredDatastoreService;
+
+/**
+ * Marker entities recording which uploaded events have already been stored.
+ *
+ * The dedup key is the key name, so checking for a duplicate is a single
+ * get by key rather than a query over events. A marker is only written once
+ * its event has been stored, and is deleted again after a while by
+ * deleteRecordedBefore.
+ */
+public class EventDedupEntity {
+  private static final String CREATION_DATE_COLUMN = "creationTime";
+  private static final String ENTITY_KIND = "event_dedup";
+
+  public static final Logger log = Logger.getLogger(EventDedupEntity.class.getName());
+
+  /**
+   * @param dedupKey
+   * @return true if an event with this key has been stored
+   */
+  public static boolean isRecorded(String dedupKey) {
+    DatastoreService ds = MeteredDatastoreService.getDatastoreService();
+    try {
+      ds.get(KeyFactory.createKey(ENTITY_KIND, dedupKey));
+      return true;
+    } catch (EntityNotFoundException e) {
+      return false;
+    }
+  }
+
+  /**
+   * Records that the event with this key has been stored.
+   *
+   * @param dedupKey
+   */
+  public static void record(String dedupKey) {
+    DatastoreService ds = MeteredDatastoreService.getDatastoreService();
+    Entity entity = new Entity(KeyFactory.createKey(ENTITY_KIND, dedupKey));
+    entity.setProperty(CREATION_DATE_COLUMN, new Date());
+    ds.put(entity);
+  }
+
+  /**
+   * Deletes up to limit markers recorded before the cutoff.
+   *
+   * @param cutoff
+   * @param limit
+   * @return the number of markers deleted; less than limit once there are no more
+   */
+  public static int deleteRecordedBefore(Date cutoff, int limit) {
+    DatastoreService ds = MeteredDatastoreService.getDatastoreService();
+    Query query = new Query(ENTITY_KIND);
+    query.setFilter(new FilterPredicate(CREATION_DATE_COLUMN, FilterOperator.LESS_THAN, cutoff));
+    query.setKeysOnly();
+    List<Key> keys = Lists.newArrayList();
+    for (Entity entity : ds.prepare(query).asIterable(FetchOptions.Builder.withLimit(limit))) {
+      keys.add(entity.getKey());
+    }
+    ds.delete(keys);
+    return keys.size();
+  }
+
+}
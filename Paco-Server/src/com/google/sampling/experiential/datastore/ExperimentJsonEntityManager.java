@@ -7,7 +7,6 @@ import java.util.logging.Logger;
 
 import com.google.appengine.api.datastore.Cursor;
 import com.google.appengine.api.datastore.DatastoreService;
-import com.google.appengine.api.datastore.DatastoreServiceFactory;
 import com.google.appengine.api.datastore.Entity;
 import com.google.appengine.api.datastore.EntityNotFoundException;
 import com.google.appengine.api.datastore.FetchOptions;
@@ -20,6 +19,8 @@ import com.google.appengine.api.datastore.Text;
 import com.google.appengine.api.datastore.Transaction;
 import com.google.common.base.Strings;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.sampling.experiential.server.metrics.MeteredDatastoreService;
 import com.pacoapp.paco.shared.model2.ExperimentDAO;
 import com.pacoapp.paco.shared.model2.JsonConverter;
 import com.pacoapp.paco.shared.util.ExperimentHelper.Pair;
@@ -36,7 +37,7 @@ public class ExperimentJsonEntityManager {
 //  public static Key saveExperiment(String experimentJson, Long experimentId, String experimentTitle, Integer version) {
 //    System.out.println("JSON experiment received:\n " + experimentJson);
 //
-//    DatastoreService ds = DatastoreServiceFactory.getDatastoreService();
+//    DatastoreService ds = MeteredDatastoreService.getDatastoreService();
 //    Entity entity = new Entity(EXPERIMENT_KIND);
 //    if (experimentId != null) {
 //      entity.setProperty("id", experimentId);
@@ -86,7 +87,7 @@ public class ExperimentJsonEntityManager {
 
 
   public static String getExperiment(Key experimentKey) {
-    DatastoreService ds = DatastoreServiceFactory.getDatastoreService();
+    DatastoreService ds = MeteredDatastoreService.getDatastoreService();
     try {
       Entity experiment;
 
@@ -125,7 +126,7 @@ public class ExperimentJsonEntityManager {
 
   public static List<String> getExperimentsById(List<Long> experimentIds) {
     List<Key> experimentKeys = createKeysForIds(experimentIds);
-    DatastoreService ds = DatastoreServiceFactory.getDatastoreService();
+    DatastoreService ds = MeteredDatastoreService.getDatastoreService();
     List<String> experimentJsons = Lists.newArrayList();
     Map<Key, Entity> experiments = ds.get(experimentKeys);
     if (experiments == null) {
@@ -145,9 +146,33 @@ public class ExperimentJsonEntityManager {
     return experimentJsons;
   }
 
+  /**
+   * Look up the stored version of each experiment without parsing its definition.
+   *
+   * @param experimentIds
+   * @return map of experiment id to version for the experiments that exist. Experiments
+   * saved before versions were recorded map to null.
+   */
+  public static Map<Long, Integer> getExperimentVersions(List<Long> experimentIds) {
+    Map<Long, Integer> versions = Maps.newHashMap();
+    if (experimentIds == null || experimentIds.isEmpty()) {
+      return versions;
+    }
+    DatastoreService ds = MeteredDatastoreService.getDatastoreService();
+    Map<Key, Entity> experiments = ds.get(createKeysForIds(experimentIds));
+    if (experiments == null) {
+      return versions;
+    }
+    for (Entry<Key, Entity> entry : experiments.entrySet()) {
+      Object version = entry.getValue().getProperty(VERSION_COLUMN);
+      versions.put(entry.getKey().getId(), version != null ? ((Number) version).intValue() : null);
+    }
+    return versions;
+  }
+
   public static Pair<String, List<String>> getAllExperiments(String cursor) {
     List<String> entities = Lists.newArrayList();
-    DatastoreService ds = DatastoreServiceFactory.getDatastoreService();
+    DatastoreService ds = MeteredDatastoreService.getDatastoreService();
     Query query = new Query(EXPERIMENT_KIND);
     PreparedQuery preparedQuery = ds.prepare(query);
     FetchOptions options = null;
@@ -0,0 +1,153 @@
+package com.google.sampling.experiential.datastore;
+
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.Text;
+import com.google.appengine.api.datastore.Transaction;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.sampling.experiential.server.metrics.MeteredDatastoreService;
+import com.pacoapp.paco.shared.model2.ExperimentDAO;
+import com.pacoapp.paco.shared.model2.ExperimentDAOCore;
+import com.pacoapp.paco.shared.model2.JsonConverter;
+
+/**
+ * The part of an experiment shown in experiment lists, stored next to its
+ * definition so that lists can be served without parsing the full json.
+ *
+ * A summary is a child of its Experiment entity. It is written whenever the
+ * experiment is saved and deleted with it.
+ */
+public class ExperimentSummaryEntity {
+  private static final String ENTITY_KIND = "experiment_summary";
+  private static final long SUMMARY_ID = 1;
+
+  private static final String TITLE_COLUMN = "title";
+  private static final String DESCRIPTION_COLUMN = "description";
+  private static final String INFORMED_CONSENT_COLUMN = "informedConsentForm";
+  private static final String CREATOR_COLUMN = "creator";
+  private static final String ORGANIZATION_COLUMN = "organization";
+  private static final String CONTACT_EMAIL_COLUMN = "contactEmail";
+  private static final String CONTACT_PHONE_COLUMN = "contactPhone";
+  private static final String RECORD_PHONE_DETAILS_COLUMN = "recordPhoneDetails";
+  private static final String DELETED_COLUMN = "deleted";
+  private static final String EXTRA_DATA_COLUMN = "extraDataCollectionDeclarations";
+  private static final String EARLIEST_START_COLUMN = "earliestStartDate";
+  private static final String LATEST_END_COLUMN = "latestEndDate";
+
+  public static final Logger log = Logger.getLogger(ExperimentSummaryEntity.class.getName());
+
+  /**
+   * Writes the summary of a saved experiment. Like the experiment definition,
+   * it is not part of the save transaction.
+   */
+  public static void saveSummary(DatastoreService ds, ExperimentDAO experiment) {
+    ds.put(toEntity(JsonConverter.experimentDAOCoreFromExperimentDAO(experiment)));
+  }
+
+  public static void saveSummaries(List<ExperimentDAOCore> summaries) {
+    if (summaries.isEmpty()) {
+      return;
+    }
+    List<Entity> entities = Lists.newArrayList();
+    for (ExperimentDAOCore summary : summaries) {
+      entities.add(toEntity(summary));
+    }
+    MeteredDatastoreService.getDatastoreService().put(entities);
+  }
+
+  /**
+   * @param experimentIds
+   * @return the summaries found, by experiment id. Experiments saved before
+   * summaries were kept have none.
+   */
+  public static Map<Long, ExperimentDAOCore> getSummaries(List<Long> experimentIds) {
+    Map<Long, ExperimentDAOCore> summaries = Maps.newHashMap();
+    if (experimentIds == null || experimentIds.isEmpty()) {
+      return summaries;
+    }
+    DatastoreService ds = MeteredDatastoreService.getDatastoreService();
+    Map<Key, Entity> entities = ds.get(createKeysForIds(experimentIds));
+    if (entities == null) {
+      return summaries;
+    }
+    for (Entity entity : entities.values()) {
+      ExperimentDAOCore summary = fromEntity(entity);
+      summaries.put(summary.getId(), summary);
+    }
+    return summaries;
+  }
+
+  public static void delete(DatastoreService ds, Transaction tx, List<Long> experimentIds) {
+    ds.delete(tx, createKeysForIds(experimentIds));
+  }
+
+  private static Entity toEntity(ExperimentDAOCore summary) {
+    Entity entity = new Entity(createKeyForId(summary.getId()));
+    entity.setUnindexedProperty(TITLE_COLUMN, summary.getTitle());
+    entity.setUnindexedProperty(DESCRIPTION_COLUMN, toText(summary.getDescription()));
+    entity.setUnindexedProperty(INFORMED_CONSENT_COLUMN, toText(summary.getInformedConsentForm()));
+    entity.setUnindexedProperty(CREATOR_COLUMN, summary.getCreator());
+    entity.setUnindexedProperty(ORGANIZATION_COLUMN, summary.getOrganization());
+    entity.setUnindexedProperty(CONTACT_EMAIL_COLUMN, summary.getContactEmail());
+    entity.setUnindexedProperty(CONTACT_PHONE_COLUMN, summary.getContactPhone());
+    entity.setUnindexedProperty(RECORD_PHONE_DETAILS_COLUMN, summary.getRecordPhoneDetails());
+    entity.setUnindexedProperty(DELETED_COLUMN, summary.getDeleted());
+    entity.setUnindexedProperty(EXTRA_DATA_COLUMN, summary.getExtraDataCollectionDeclarations());
+    entity.setUnindexedProperty(EARLIEST_START_COLUMN, summary.getEarliestStartDate());
+    entity.setUnindexedProperty(LATEST_END_COLUMN, summary.getLatestEndDate());
+    return entity;
+  }
+
+  private static ExperimentDAOCore fromEntity(Entity entity) {
+    List<Integer> extraDataCollectionDeclarations = Lists.newArrayList();
+    List<?> storedDeclarations = (List<?>) entity.getProperty(EXTRA_DATA_COLUMN);
+    if (storedDeclarations != null) {
+      for (Object declaration : storedDeclarations) {
+        extraDataCollectionDeclarations.add(((Number) declaration).intValue());
+      }
+    }
+    return new ExperimentDAOCore(entity.getKey().getParent().getId(),
+                                 (String) entity.getProperty(TITLE_COLUMN),
+                                 fromText(entity.getProperty(DESCRIPTION_COLUMN)),
+                                 fromText(entity.getProperty(INFORMED_CONSENT_COLUMN)),
+                                 (String) entity.getProperty(CREATOR_COLUMN),
+                                 null,
+                                 (Boolean) entity.getProperty(RECORD_PHONE_DETAILS_COLUMN),
+                                 (Boolean) entity.getProperty(DELETED_COLUMN),
+                                 extraDataCollectionDeclarations,
+                                 (String) entity.getProperty(ORGANIZATION_COLUMN),
+                                 (String) entity.getProperty(CONTACT_PHONE_COLUMN),
+                                 (String) entity.getProperty(CONTACT_EMAIL_COLUMN),
+                                 (Date) entity.getProperty(EARLIEST_START_COLUMN),
+                                 (Date) entity.getProperty(LATEST_END_COLUMN));
+  }
+
+  private static Text toText(String value) {
+    return value != null ? new Text(value) : null;
+  }
+
+  private static String fromText(Object value) {
+    return value != null ? ((Text) value).getValue() : null;
+  }
+
+  private static Key createKeyForId(Long experimentId) {
+    return KeyFactory.createKey(ExperimentJsonEntityManager.createkeyForId(experimentId), ENTITY_KIND, SUMMARY_ID);
+  }
+
+  private static List<Key> createKeysForIds(List<Long> experimentIds) {
+    List<Key> keys = Lists.newArrayList();
+    for (Long experimentId : experimentIds) {
+      keys.add(createKeyForId(experimentId));
+    }
+    return keys;
+  }
+
+}
@@ -13,7 +13,6 @@ import org.codehaus.jackson.map.ObjectMapper;
 import org.codehaus.jackson.type.TypeReference;
 
 import com.google.appengine.api.datastore.DatastoreService;
-import com.google.appengine.api.datastore.DatastoreServiceFactory;
 import com.google.appengine.api.datastore.Entity;
 import com.google.appengine.api.datastore.Query;
 import com.google.appengine.api.datastore.Query.FilterOperator;
@@ -22,6 +21,7 @@ import com.google.common.collect.Lists;
 import com.google.sampling.experiential.model.Experiment;
 import com.google.sampling.experiential.server.AuthUtil;
 import com.google.sampling.experiential.server.DAOConverterOld;
+import com.google.sampling.experiential.server.metrics.MeteredDatastoreService;
 import com.pacoapp.paco.shared.model.ExperimentDAO;
 import com.pacoapp.paco.shared.model.SignalScheduleDAO;
 import com.pacoapp.paco.shared.model.SignalingMechanismDAO;
@@ -41,7 +41,7 @@ public class ExperimentVersionEntity {
   public static String EXPERIMENT_VERSION_KIND = "experiment_version";
 
 //  public static Key saveExperimentVersionAsEntity(ExperimentDAO experiment) {
-//    DatastoreService ds = DatastoreServiceFactory.getDatastoreService();
+//    DatastoreService ds = MeteredDatastoreService.getDatastoreService();
 //    //Key key = KeyFactory.createKey(EXPERIMENT_KIND, experiment.getTitle());
 //
 //    if (experiment.getId() == null) {
@@ -58,7 +58,7 @@ public class ExperimentVersionEntity {
 //  }
 
   public static List<Experiment> getExperiments() {
-    DatastoreService ds = DatastoreServiceFactory.getDatastoreService();
+    DatastoreService ds = MeteredDatastoreService.getDatastoreService();
     Query query = new Query(EXPERIMENT_VERSION_KIND);
     QueryResultIterable<Entity> result = ds.prepare(query).asQueryResultIterable();
     List<Experiment> experiments = Lists.newArrayList();
@@ -105,7 +105,7 @@ public class ExperimentVersionEntity {
 
 
   public static Experiment getExperimentVersion(Long jdoExperimentId, Integer version) {
-    DatastoreService ds = DatastoreServiceFactory.getDatastoreService();
+    DatastoreService ds = MeteredDatastoreService.getDatastoreService();
     Query query = new Query(EXPERIMENT_VERSION_KIND);
     query.addFilter(JDO_EXPERIMENT_ID_COLUMN, FilterOperator.EQUAL, jdoExperimentId);
     query.addFilter(VERSION_COLUMN, FilterOperator.EQUAL, version);
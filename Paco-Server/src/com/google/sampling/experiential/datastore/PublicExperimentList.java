@@ -9,7 +9,6 @@ import org.joda.time.DateTimeZone;
 
 import com.google.appengine.api.datastore.Cursor;
 import com.google.appengine.api.datastore.DatastoreService;
-import com.google.appengine.api.datastore.DatastoreServiceFactory;
 import com.google.appengine.api.datastore.Entity;
 import com.google.appengine.api.datastore.EntityNotFoundException;
 import com.google.appengine.api.datastore.FetchOptions;
@@ -24,6 +23,7 @@ import com.google.common.base.Strings;
 import com.google.common.collect.Lists;
 import com.google.sampling.experiential.model.Experiment;
 import com.google.sampling.experiential.server.TimeUtil;
+import com.google.sampling.experiential.server.metrics.MeteredDatastoreService;
 import com.pacoapp.paco.shared.model2.ExperimentDAO;
 import com.pacoapp.paco.shared.scheduling.ActionScheduleGenerator;
 
@@ -79,7 +79,7 @@ public class PublicExperimentList {
 
   @Deprecated
   public static void updatePublicExperimentsList(Experiment experiment, DateTime dateTime) {
-    DatastoreService ds = DatastoreServiceFactory.getDatastoreService();
+    DatastoreService ds = MeteredDatastoreService.getDatastoreService();
 
     if (experiment.getId() == null) {
       log.severe("Experiment must have an id to be published publicly.");
@@ -98,7 +98,7 @@ public class PublicExperimentList {
   }
 
   public static void updatePublicExperimentsList(List<Experiment> experiments, DateTime dateTime) {
-    DatastoreService ds = DatastoreServiceFactory.getDatastoreService();
+    DatastoreService ds = MeteredDatastoreService.getDatastoreService();
 
     for (Experiment experiment : experiments) {
       if (experiment.getId() == null) {
@@ -141,7 +141,7 @@ public class PublicExperimentList {
   }
 
   public static CursorExerimentIdListPair getPublicExperiments(String timezone, Integer limit, String cursor) {
-    DatastoreService ds = DatastoreServiceFactory.getDatastoreService();
+    DatastoreService ds = MeteredDatastoreService.getDatastoreService();
     Query query = new Query(PUBLIC_EXPERIMENT_KIND);
 
     DateTime nowInUserTimezone = TimeUtil.getNowInUserTimezone(DateTimeZone.forID(timezone));
@@ -170,7 +170,7 @@ public class PublicExperimentList {
 
   public static boolean isPublicExperiment(Long experimentId) {
     Key key = KeyFactory.createKey(PUBLIC_EXPERIMENT_KIND, experimentId);
-    DatastoreService ds = DatastoreServiceFactory.getDatastoreService();
+    DatastoreService ds = MeteredDatastoreService.getDatastoreService();
     Query query = new Query(PUBLIC_EXPERIMENT_KIND);
     Entity result;
     try {
@@ -197,7 +197,7 @@ public class PublicExperimentList {
   }
 
   public static void deletePublicExperiment(Experiment experiment) {
-    DatastoreService ds = DatastoreServiceFactory.getDatastoreService();
+    DatastoreService ds = MeteredDatastoreService.getDatastoreService();
     Key key = KeyFactory.createKey(PUBLIC_EXPERIMENT_KIND, experiment.getId());
     ds.delete(key);
   }
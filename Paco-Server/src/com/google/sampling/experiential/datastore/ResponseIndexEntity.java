@@ -0,0 +1,161 @@
+package com.google.sampling.experiential.datastore;
+
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Logger;
+
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.EntityNotFoundException;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.PreparedQuery;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.datastore.Query.FilterOperator;
+import com.google.appengine.api.datastore.Query.FilterPredicate;
+import com.google.common.collect.Lists;
+import com.google.sampling.experiential.server.metrics.MeteredDatastoreService;
+
+/**
+ * Records which experiments keep a response index on their events.
+ *
+ * An experiment is enabled when it is saved with indexResponses on. From then
+ * on new events are indexed at ingest. It becomes queryable once the backfill
+ * job has indexed the events stored before it was enabled.
+ *
+ * Lookups are cached per instance for CACHE_MILLIS because every posted
+ * event checks whether its experiment is enabled.
+ */
+public class ResponseIndexEntity {
+  private static final String ENABLED_DATE_COLUMN = "enabledTime";
+  private static final String BACKFILLED_COLUMN = "backfilled";
+  private static final String ENTITY_KIND = "response_index";
+
+  public static final long CACHE_MILLIS = 5 * 60 * 1000;
+
+  public static final Logger log = Logger.getLogger(ResponseIndexEntity.class.getName());
+
+  private static final Map<String, CachedState> cache = new ConcurrentHashMap<String, CachedState>();
+
+  private static class CachedState {
+    final boolean enabled;
+    final boolean backfilled;
+    final long readTime;
+
+    CachedState(boolean enabled, boolean backfilled) {
+      this.enabled = enabled;
+      this.backfilled = backfilled;
+      this.readTime = System.currentTimeMillis();
+    }
+  }
+
+  /**
+   * @param experimentId
+   * @return true if new events for this experiment should be indexed
+   */
+  public static boolean isEnabled(String experimentId) {
+    if (experimentId == null) {
+      return false;
+    }
+    return getState(experimentId).enabled;
+  }
+
+  /**
+   * @param experimentId
+   * @return true if every event for this experiment is indexed, so queries can use the index
+   */
+  public static boolean isQueryable(String experimentId) {
+    if (experimentId == null) {
+      return false;
+    }
+    return getState(experimentId).backfilled;
+  }
+
+  private static CachedState getState(String experimentId) {
+    CachedState state = cache.get(experimentId);
+    if (state == null || System.currentTimeMillis() - state.readTime > CACHE_MILLIS) {
+      state = readState(experimentId);
+      cache.put(experimentId, state);
+    }
+    return state;
+  }
+
+  private static CachedState readState(String experimentId) {
+    DatastoreService ds = MeteredDatastoreService.getDatastoreService();
+    try {
+      Entity entity = ds.get(keyFor(experimentId));
+      return new CachedState(true, Boolean.TRUE.equals(entity.getProperty(BACKFILLED_COLUMN)));
+    } catch (EntityNotFoundException e) {
+      return new CachedState(false, false);
+    }
+  }
+
+  private static Key keyFor(String experimentId) {
+    return KeyFactory.createKey(ENTITY_KIND, experimentId);
+  }
+
+  /**
+   * Turns the index on or off for an experiment. Turning it on again
+   * keeps the existing backfill state.
+   *
+   * @param experimentId
+   * @param enabled
+   */
+  public static void setEnabled(String experimentId, boolean enabled) {
+    DatastoreService ds = MeteredDatastoreService.getDatastoreService();
+    Key key = keyFor(experimentId);
+    if (!enabled) {
+      ds.delete(key);
+    } else {
+      try {
+        ds.get(key);
+      } catch (EntityNotFoundException e) {
+        Entity entity = new Entity(key);
+        entity.setUnindexedProperty(ENABLED_DATE_COLUMN, new Date());
+        entity.setProperty(BACKFILLED_COLUMN, false);
+        ds.put(entity);
+        log.info("Response index enabled for experiment " + experimentId);
+      }
+    }
+    cache.remove(experimentId);
+  }
+
+  /**
+   * Finds the experiments that still need a backfill and were enabled long
+   * enough ago that every instance is indexing their new events.
+   *
+   * @return experiment ids
+   */
+  public static List<String> getExperimentsReadyForBackfill() {
+    DatastoreService ds = MeteredDatastoreService.getDatastoreService();
+    Query q = new Query(ENTITY_KIND).setFilter(new FilterPredicate(BACKFILLED_COLUMN, FilterOperator.EQUAL, false));
+    PreparedQuery pq = ds.prepare(q);
+
+    long enabledBefore = System.currentTimeMillis() - CACHE_MILLIS;
+    List<String> experimentIds = Lists.newArrayList();
+    for (Entity entity : pq.asIterable()) {
+      Date enabledTime = (Date) entity.getProperty(ENABLED_DATE_COLUMN);
+      if (enabledTime == null || enabledTime.getTime() < enabledBefore) {
+        experimentIds.add(entity.getKey().getName());
+      } else {
+        log.info("Experiment " + entity.getKey().getName() + " was enabled too recently to backfill");
+      }
+    }
+    return experimentIds;
+  }
+
+  public static void markBackfilled(String experimentId) {
+    DatastoreService ds = MeteredDatastoreService.getDatastoreService();
+    try {
+      Entity entity = ds.get(keyFor(experimentId));
+      entity.setProperty(BACKFILLED_COLUMN, true);
+      ds.put(entity);
+    } catch (EntityNotFoundException e) {
+      log.info("Response index was turned off during backfill of experiment " + experimentId);
+    }
+    cache.remove(experimentId);
+  }
+
+}
@@ -17,7 +17,6 @@ import org.json.JSONException;
 
 import com.google.appengine.api.datastore.DatastoreFailureException;
 import com.google.appengine.api.datastore.DatastoreService;
-import com.google.appengine.api.datastore.DatastoreServiceFactory;
 import com.google.appengine.api.datastore.Entity;
 import com.google.appengine.api.datastore.EntityNotFoundException;
 import com.google.appengine.api.datastore.Key;
@@ -26,6 +25,7 @@ import com.google.appengine.api.datastore.PreparedQuery;
 import com.google.appengine.api.datastore.Query;
 import com.google.appengine.api.datastore.Text;
 import com.google.common.collect.Lists;
+import com.google.sampling.experiential.server.metrics.MeteredDatastoreService;
 
 public class SimonConfigEntity {
   private static final String CONFIG_COLUMN = "config";
@@ -184,7 +184,7 @@ public class SimonConfigEntity {
                                                                           EntityNotFoundException,
                                                                           UnauthorizedException {
     Key requestorKey = KeyFactory.createKey(ENTITY_KIND, getValidEmailAddress(requestorEmail));
-    DatastoreService ds = DatastoreServiceFactory.getDatastoreService();
+    DatastoreService ds = MeteredDatastoreService.getDatastoreService();
     Entity simonConfigEntity = ds.get(key);
     Boolean isPublic = (Boolean) simonConfigEntity.getProperty(IS_PUBLIC_COLUMN);
 
@@ -205,7 +205,7 @@ public class SimonConfigEntity {
   public static List<SimonConfig> getSimonConfigs(String creatorEmail) throws AddressException {
     Key parent = KeyFactory.createKey(ENTITY_KIND, getValidEmailAddress(creatorEmail));
 
-    DatastoreService ds = DatastoreServiceFactory.getDatastoreService();
+    DatastoreService ds = MeteredDatastoreService.getDatastoreService();
     Query q = new Query(ENTITY_KIND).setAncestor(parent);
 
     PreparedQuery pq = ds.prepare(q);
@@ -264,7 +264,7 @@ public class SimonConfigEntity {
     entity.setProperty(CREATION_DATE_COLUMN, now);
     updateConfigEntity(entity, configTitle, config, isPublic, now);
 
-    DatastoreService ds = DatastoreServiceFactory.getDatastoreService();
+    DatastoreService ds = MeteredDatastoreService.getDatastoreService();
     ds.put(entity);
 
     return new SimonConfigEntity.SimonConfig(entity);
@@ -324,7 +324,7 @@ public class SimonConfigEntity {
                                                                           UnauthorizedException {
     Key requestorKey = KeyFactory.createKey(ENTITY_KIND, getValidEmailAddress(requestorEmail));
 
-    DatastoreService ds = DatastoreServiceFactory.getDatastoreService();
+    DatastoreService ds = MeteredDatastoreService.getDatastoreService();
     Entity simonConfigEntity = ds.get(key);
     if (!simonConfigEntity.getParent().equals(requestorKey)) {
       throw new UnauthorizedException("Not authorized to delete config.");
@@ -355,7 +355,7 @@ public class SimonConfigEntity {
                                                                UnauthorizedException {
     Key requestorKey = KeyFactory.createKey(ENTITY_KIND, getValidEmailAddress(requestorEmail));
 
-    DatastoreService ds = DatastoreServiceFactory.getDatastoreService();
+    DatastoreService ds = MeteredDatastoreService.getDatastoreService();
     Entity simonConfigEntity = ds.get(key);
     if (!simonConfigEntity.getParent().equals(requestorKey)) {
       throw new UnauthorizedException("Not authorized to edit config.");
@@ -19,6 +19,7 @@ package com.google.sampling.experiential.model;
 import java.nio.charset.Charset;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
 import java.util.Date;
 import java.util.List;
 import java.util.Map;
@@ -27,6 +28,7 @@ import java.util.Set;
 import javax.jdo.annotations.Extension;
 import javax.jdo.annotations.IdGeneratorStrategy;
 import javax.jdo.annotations.IdentityType;
+import javax.jdo.annotations.NotPersistent;
 import javax.jdo.annotations.PersistenceCapable;
 import javax.jdo.annotations.Persistent;
 import javax.jdo.annotations.PrimaryKey;
@@ -56,6 +58,20 @@ public class Event {
 
   public static final String SALT = "zyzzyfoo";
 
+  private static final Charset UTF8 = Charset.forName("UTF8");
+
+  // MessageDigest.getInstance is slow and digests are not thread safe
+  private static final ThreadLocal<MessageDigest> MD5 = new ThreadLocal<MessageDigest>() {
+    @Override
+    protected MessageDigest initialValue() {
+      try {
+        return MessageDigest.getInstance("MD5");
+      } catch (NoSuchAlgorithmException e) {
+        throw new IllegalStateException(e);
+      }
+    }
+  };
+
   public static final List<String> eventProperties = Lists.newArrayList("who",
       "lat", "lon", "when", "appId", "experimentId", "experimentName", "responseTime",
       "scheduledTime", "experimentGroupName", "actionTriggerId", "actionTriggerSpecId", "actionId");
@@ -123,6 +139,16 @@ public class Event {
   @Extension(vendorName="datanucleus", key="gae.unindexed", value="true")
   private List<String> valuesList;
 
+  /**
+   * Indexed "inputName" and "inputName=value" tokens, only written for
+   * experiments with indexResponses on. See ResponseIndex.
+   */
+  @Persistent
+  private List<String> responseIndex;
+
+  @NotPersistent
+  private transient Map<String, String> whatView;
+
   @Persistent
   private Boolean shared = false;
 
@@ -176,6 +202,7 @@ public class Event {
   }
 
   private void setWhatMap(Set<What> whats) {
+    this.whatView = null;
     this.keysList = Lists.newArrayList();
     this.valuesList = Lists.newArrayList();
     for (What what : whats) {
@@ -184,6 +211,18 @@ public class Event {
     }
   }
 
+  /**
+   * Sets the response tokens so that queries can filter on input values.
+   * They are not updated by setWhat.
+   */
+  public void setResponseIndex(List<String> responseIndex) {
+    this.responseIndex = responseIndex;
+  }
+
+  public List<String> getResponseIndex() {
+    return responseIndex;
+  }
+
 
   public Long getId() {
     return id;
@@ -299,6 +338,10 @@ public class Event {
     return keysList;
   }
 
+  public List<String> getWhatValues() {
+    return valuesList;
+  }
+
 
   public List<PhotoBlob> getBlobs() {
     return blobs;
@@ -323,6 +366,17 @@ public class Event {
     return map;
   }
 
+  /**
+   * Same entries as getWhatMap, but built once per event and read-only.
+   * Use this when only reading the responses, e.g. when exporting.
+   */
+  public Map<String, String> getWhatView() {
+    if (whatView == null) {
+      whatView = Collections.unmodifiableMap(getWhatMap());
+    }
+    return whatView;
+  }
+
   public String[] toCSV(List<String> columnNames, boolean anon) {
     DateTimeFormatter jodaTimeFormatter = DateTimeFormat.forPattern(TimeUtil.DATETIME_FORMAT);
     int csvIndex = 0;
@@ -343,7 +397,7 @@ public class Event {
     parts[csvIndex++] = scheduledTime != null ? jodaTimeFormatter.print(getScheduledTimeWithTimeZone(null)) : null;
     parts[csvIndex++] = timeZone;
 
-    Map<String, String> whatMap = getWhatMap();
+    Map<String, String> whatMap = getWhatView();
     for (String key : columnNames) {
       String value = whatMap.get(key);
       parts[csvIndex++] = value;
@@ -362,7 +416,7 @@ public class Event {
     buf.append(experimentName).append("\n");
     buf.append(responseTime != null ? simpleDateFormat.format(getResponseTimeWithTimeZone(null)) : null).append("\n");
     buf.append(scheduledTime != null ? simpleDateFormat.format(getScheduledTimeWithTimeZone(null)) : null).append("\n");
-    Map<String, String> whatMap = getWhatMap();
+    Map<String, String> whatMap = getWhatView();
     for (String key : whatMap.keySet()) {
       String value = whatMap.get(key);
       buf.append(key).append("=").append(value).append("\n");
@@ -374,18 +428,13 @@ public class Event {
     return getWhatByKey("joined") != null;
   }
 
+  /**
+   * @return the hex md5 of who
+   */
   public static String getAnonymousId(String who) {
-    MessageDigest messageDigest = null;
-    try {
-      messageDigest = MessageDigest.getInstance("MD5");
-    } catch (NoSuchAlgorithmException e) {
-      //Log.info("Could not get MD5 algorithm");
-      return null;
-    }
+    MessageDigest messageDigest = MD5.get();
     messageDigest.reset();
-    messageDigest.update(who.getBytes(Charset.forName("UTF8")));
-    byte[] resultByte = messageDigest.digest();
-    return new String(Hex.encodeHex(resultByte));
+    return new String(Hex.encodeHex(messageDigest.digest(who.getBytes(UTF8))));
   }
 
   public Integer getExperimentVersion() {
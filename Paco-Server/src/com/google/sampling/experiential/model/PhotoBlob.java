@@ -27,6 +27,9 @@ import com.google.appengine.api.datastore.Key;
 
 /**
  * Storage for a photo Input.
+ *
+ * Either holds the bytes inline or, when they live in the PhotoStore,
+ * only the content hash they are stored under.
  * 
  * @author Bob Evans
  *
@@ -44,6 +47,9 @@ public class PhotoBlob implements Comparable<PhotoBlob> {
   @Persistent
   private Blob value;
 
+  @Persistent
+  private String contentHash;
+
 
   public PhotoBlob(String name, byte[] value) {
     super();
@@ -51,6 +57,16 @@ public class PhotoBlob implements Comparable<PhotoBlob> {
     this.value = new Blob(value);
   }
 
+  private PhotoBlob() {
+  }
+
+  public static PhotoBlob withContentHash(String name, String contentHash) {
+    PhotoBlob photoBlob = new PhotoBlob();
+    photoBlob.name = name;
+    photoBlob.contentHash = contentHash;
+    return photoBlob;
+  }
+
   public String getName() {
     return name;
   }
@@ -59,12 +75,33 @@ public class PhotoBlob implements Comparable<PhotoBlob> {
     this.name = name;
   }
 
+  /**
+   * @return the inline bytes, or null if the bytes are stored elsewhere under
+   *         the content hash
+   */
   public byte[] getValue() {
-    return value.getBytes();
+    return value != null ? value.getBytes() : null;
   }
 
   public void setValue(byte[] value) {
     this.value = new Blob(value);
+    this.contentHash = null;
+  }
+
+  public String getContentHash() {
+    return contentHash;
+  }
+
+  public boolean isInline() {
+    return value != null;
+  }
+
+  /**
+   * Drops the inline bytes once they have been stored under contentHash.
+   */
+  public void replaceValueWithContentHash(String contentHash) {
+    this.contentHash = contentHash;
+    this.value = null;
   }
 
   @Override
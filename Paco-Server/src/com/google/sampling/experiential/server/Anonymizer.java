@@ -0,0 +1,133 @@
+package com.google.sampling.experiential.server;
+
+import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Logger;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.apache.commons.codec.binary.Hex;
+
+import com.google.common.collect.Maps;
+import com.google.sampling.experiential.datastore.AnonymousIdKeyEntity;
+import com.google.sampling.experiential.model.Event;
+import com.pacoapp.paco.shared.model2.ExperimentDAO;
+
+/**
+ * Turns participant emails into the ids shown in anonymized exports.
+ *
+ * Use one instance per export. It remembers the id of each participant, so an
+ * export hashes each participant once instead of once per row.
+ *
+ * By default an id is the hex md5 of the email. csv and photo exports append
+ * Event.SALT to the email first. Experiments with keyedAnonymousIds on use an
+ * HMAC-SHA256 keyed with a random secret kept for the experiment, so ids cannot
+ * be recomputed from a list of emails. Keyed ids are the same in every format
+ * and on every worker.
+ */
+public class Anonymizer {
+
+  private static final Logger log = Logger.getLogger(Anonymizer.class.getName());
+
+  private static final Charset UTF8 = Charset.forName("UTF8");
+  private static final String HMAC_ALGORITHM = "HmacSHA256";
+
+  private final ThreadLocal<Mac> mac;
+  private final ConcurrentMap<String, String> ids = Maps.newConcurrentMap();
+  private final ConcurrentMap<String, String> saltedIds = Maps.newConcurrentMap();
+
+  private Anonymizer(final byte[] key) {
+    if (key == null) {
+      mac = null;
+      return;
+    }
+    mac = new ThreadLocal<Mac>() {
+      @Override
+      protected Mac initialValue() {
+        try {
+          Mac mac = Mac.getInstance(HMAC_ALGORITHM);
+          mac.init(new SecretKeySpec(key, HMAC_ALGORITHM));
+          return mac;
+        } catch (GeneralSecurityException e) {
+          throw new IllegalStateException(e);
+        }
+      }
+    };
+  }
+
+  /**
+   * @return an anonymizer using the plain md5 ids
+   */
+  public static Anonymizer md5() {
+    return new Anonymizer(null);
+  }
+
+  /**
+   * @param key the secret of the experiment
+   * @return an anonymizer using ids keyed with the secret
+   */
+  public static Anonymizer keyed(byte[] key) {
+    return new Anonymizer(key);
+  }
+
+  /**
+   * @param experimentId the exported experiment, or null
+   * @return an anonymizer using the ids the experiment is configured for
+   */
+  public static Anonymizer forExperiment(String experimentId) {
+    if (experimentId == null) {
+      return md5();
+    }
+    ExperimentDAO experiment;
+    try {
+      experiment = ExperimentServiceFactory.getExperimentService().getExperiment(Long.parseLong(experimentId));
+    } catch (NumberFormatException e) {
+      log.warning("Not an experiment id: " + experimentId + ", using md5 anonymous ids");
+      return md5();
+    }
+    if (experiment == null || !Boolean.TRUE.equals(experiment.getKeyedAnonymousIds())) {
+      return md5();
+    }
+    return keyed(AnonymousIdKeyEntity.getOrCreateKey(experimentId));
+  }
+
+  /**
+   * @return the id used in json, html and the user id mapping
+   */
+  public String getAnonymousId(String who) {
+    if (who == null) {
+      return null;
+    }
+    String id = ids.get(who);
+    if (id == null) {
+      id = mac != null ? hmacHex(who) : Event.getAnonymousId(who);
+      ids.put(who, id);
+    }
+    return id;
+  }
+
+  /**
+   * @return the id used in csv and photo exports
+   */
+  public String getSaltedAnonymousId(String who) {
+    if (mac != null) {
+      return getAnonymousId(who);
+    }
+    if (who == null) {
+      return Event.getAnonymousId(who + Event.SALT);
+    }
+    String id = saltedIds.get(who);
+    if (id == null) {
+      id = Event.getAnonymousId(who + Event.SALT);
+      saltedIds.put(who, id);
+    }
+    return id;
+  }
+
+  private String hmacHex(String who) {
+    return new String(Hex.encodeHex(mac.get().doFinal(who.getBytes(UTF8))));
+  }
+
+}
@@ -80,6 +80,10 @@ public class BaseJDOQuery {
 
   }
 
+  public void setOrdering(String ordering) {
+    query.setOrdering(ordering);
+  }
+
   public Query getQuery() {
     if (parameterDecls.size() > 0) {
       String params = Joiner.on(", ").join(parameterDecls);
@@ -29,6 +29,7 @@ import com.google.appengine.tools.cloudstorage.GcsServiceFactory;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Sets;
 import com.google.sampling.experiential.model.Event;
+import com.google.sampling.experiential.server.metrics.MetricsRegistry;
 import com.google.sampling.experiential.shared.EventDAO;
 import com.google.sampling.experiential.shared.TimeUtil;
 
@@ -41,7 +42,7 @@ public class CSVBlobWriter {
   public CSVBlobWriter() {
   }
 
-  public String writeEndOfDayExperimentEventsAsCSV(boolean anon, List<EventDAO> events,
+  public String writeEndOfDayExperimentEventsAsCSV(Anonymizer anonymizer, List<EventDAO> events,
                                                    String jobId, String clientTimezone) throws IOException {
    sortEventDAOs(events);
    List<String[]> eventsCSV = Lists.newArrayList();
@@ -54,10 +55,11 @@ public class CSVBlobWriter {
    List<String> columns = Lists.newArrayList();
    columns.addAll(foundColumnNames);
    Collections.sort(columns);
+   MetricsRegistry.Timer timer = MetricsRegistry.getInstance().startTimer("report.csv.toCsv");
    for (EventDAO event : events) {
-     eventsCSV.add(toCSV(event, columns, anon, clientTimezone));
+     eventsCSV.add(toCSV(event, columns, anonymizer, clientTimezone));
    }
-   TimeLogger.logTimestamp("T8:");
+   timer.stop();
    // add back in the standard pacot event columns
    columns.add(0, "who");
    columns.add(1, "when");
@@ -117,13 +119,13 @@ public class CSVBlobWriter {
   }
 
 
- private String[] toCSV(EventDAO event, List<String> columnNames, boolean anon,
+ private String[] toCSV(EventDAO event, List<String> columnNames, Anonymizer anonymizer,
                         String clientTimezone) {
 //   log.info("converting to csv. event: " + getTimeString(event, event.getResponseTime(), clientTimezone));
      int csvIndex = 0;
      String[] parts = new String[14 + columnNames.size()];
-     if (anon) {
-       parts[csvIndex++] = Event.getAnonymousId(event.getWho() + Event.SALT);
+     if (anonymizer != null) {
+       parts[csvIndex++] = anonymizer.getSaltedAnonymousId(event.getWho());
      } else {
        parts[csvIndex++] = event.getWho();
      }
@@ -150,7 +152,7 @@ public class CSVBlobWriter {
 
  }
 
- String writeNormalExperimentEventsAsCSV(boolean anon, List<EventDAO> eodEventDAOs, String jobId, String clientTimezone) throws IOException {
+ String writeNormalExperimentEventsAsCSV(Anonymizer anonymizer, List<EventDAO> eodEventDAOs, String jobId, String clientTimezone) throws IOException {
    List<String[]> eventsCSV = Lists.newArrayList();
 
    Set<String> foundColumnNames = Sets.newHashSet();
@@ -162,7 +164,7 @@ public class CSVBlobWriter {
    columns.addAll(foundColumnNames);
    Collections.sort(columns);
    for (EventDAO event : eodEventDAOs) {
-     eventsCSV.add(toCSV(event, columns, anon, clientTimezone));
+     eventsCSV.add(toCSV(event, columns, anonymizer, clientTimezone));
    }
    // add back in the standard pacot event columns
    columns.add(0, "who");
@@ -11,7 +11,6 @@ import org.joda.time.DateTime;
 import org.joda.time.DateTimeZone;
 
 import com.google.appengine.api.datastore.DatastoreService;
-import com.google.appengine.api.datastore.DatastoreServiceFactory;
 import com.google.appengine.api.datastore.Key;
 import com.google.appengine.api.datastore.Transaction;
 import com.google.appengine.api.datastore.TransactionOptions;
@@ -21,16 +20,22 @@ import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
 import com.google.sampling.experiential.datastore.ExperimentJsonEntityManager;
+import com.google.sampling.experiential.datastore.ExperimentSummaryEntity;
 import com.google.sampling.experiential.datastore.PublicExperimentList;
 import com.google.sampling.experiential.datastore.PublicExperimentList.CursorExerimentIdListPair;
+import com.google.sampling.experiential.datastore.ResponseIndexEntity;
 import com.google.sampling.experiential.model.Event;
+import com.google.sampling.experiential.server.metrics.MeteredDatastoreService;
+import com.google.sampling.experiential.server.stats.participation.ParticipantSummaryEntityManager;
 import com.pacoapp.paco.shared.model.SignalTimeDAO;
 import com.pacoapp.paco.shared.model2.ActionTrigger;
 import com.pacoapp.paco.shared.model2.ExperimentDAO;
+import com.pacoapp.paco.shared.model2.ExperimentDAOCore;
 import com.pacoapp.paco.shared.model2.ExperimentGroup;
 import com.pacoapp.paco.shared.model2.ExperimentIdQueryResult;
 import com.pacoapp.paco.shared.model2.ExperimentJoinQueryResult;
 import com.pacoapp.paco.shared.model2.ExperimentQueryResult;
+import com.pacoapp.paco.shared.model2.ExperimentSummaryQueryResult;
 import com.pacoapp.paco.shared.model2.ExperimentValidator;
 import com.pacoapp.paco.shared.model2.InterruptCue;
 import com.pacoapp.paco.shared.model2.InterruptTrigger;
@@ -104,6 +109,40 @@ class DefaultExperimentService implements ExperimentService {
   }
 
 
+  /**
+   * Summaries of the experiments, in the order of the ids. Experiments saved
+   * before summaries were kept are loaded in full once and get their summary
+   * written then.
+   */
+  protected List<ExperimentDAOCore> getExperimentSummariesById(List<Long> experimentIds, DateTimeZone timezone) {
+    Set<Long> uniqueIds = Sets.newLinkedHashSet(experimentIds);
+    Map<Long, ExperimentDAOCore> summaries = ExperimentSummaryEntity.getSummaries(Lists.newArrayList(uniqueIds));
+    List<Long> missingIds = Lists.newArrayList();
+    for (Long experimentId : uniqueIds) {
+      if (!summaries.containsKey(experimentId)) {
+        missingIds.add(experimentId);
+      }
+    }
+    if (!missingIds.isEmpty()) {
+      List<ExperimentDAOCore> newSummaries = Lists.newArrayList();
+      for (ExperimentDAO experiment : getExperimentsByIdInternal(missingIds, null, timezone)) {
+        ExperimentDAOCore summary = JsonConverter.experimentDAOCoreFromExperimentDAO(experiment);
+        summaries.put(summary.getId(), summary);
+        newSummaries.add(summary);
+      }
+      ExperimentSummaryEntity.saveSummaries(newSummaries);
+    }
+
+    List<ExperimentDAOCore> result = Lists.newArrayList();
+    for (Long experimentId : uniqueIds) {
+      ExperimentDAOCore summary = summaries.get(experimentId);
+      if (summary != null) {
+        result.add(summary);
+      }
+    }
+    return result;
+  }
+
   protected List<String> getExperimentsByIdAsJson(List<Long> experimentIds, String email, DateTimeZone timezone) {
  //   TODO who can access this call and in what role?
     // is email a participant or an admin?
@@ -128,11 +167,12 @@ class DefaultExperimentService implements ExperimentService {
         return results;
       }
 
-      DatastoreService ds = DatastoreServiceFactory.getDatastoreService();
+      DatastoreService ds = MeteredDatastoreService.getDatastoreService();
       TransactionOptions options = TransactionOptions.Builder.withXG(true);
       Transaction tx = ds.beginTransaction(options);
+      boolean isNewExperiment = experiment.getId() == null;
       try {
-        if (experiment.getId() == null) {
+        if (isNewExperiment) {
           experiment.setCreator(loggedInUserEmail);
         }
         if (!experiment.getAdmins().contains(loggedInUserEmail)) {
@@ -155,8 +195,16 @@ class DefaultExperimentService implements ExperimentService {
                                                                        experiment.getVersion());
 
         experiment.setId(experimentKey.getId());
+        ExperimentSummaryEntity.saveSummary(ds, experiment);
         ExperimentAccessManager.updateAccessControlEntities(ds, tx, experiment, experimentKey, timezone);
         tx.commit();
+        ExperimentJsonCache.invalidate(experiment.getId());
+        ResponseIndexEntity.setEnabled(experiment.getId().toString(),
+                                       Boolean.TRUE.equals(experiment.getIndexResponses()));
+        if (isNewExperiment) {
+          // nothing to backfill, count participation in summaries from the first response
+          new ParticipantSummaryEntityManager().markReady(experiment.getId());
+        }
         return null;
       } catch (Exception e) {
         e.printStackTrace();
@@ -236,13 +284,15 @@ class DefaultExperimentService implements ExperimentService {
       throw new IllegalArgumentException("Cannot delete experiment: " + experimentId + " because it does not exist");
     }
     if (ExperimentAccessManager.isUserAllowedToDeleteExperiment(experimentId, loggedInUserEmail)) {
-      DatastoreService ds = DatastoreServiceFactory.getDatastoreService();
+      DatastoreService ds = MeteredDatastoreService.getDatastoreService();
       TransactionOptions options = TransactionOptions.Builder.withXG(true);
       Transaction tx = ds.beginTransaction(options);
       try {
         ExperimentJsonEntityManager.delete(ds, tx, experimentId);
+        ExperimentSummaryEntity.delete(ds, tx, Lists.newArrayList(experimentId));
         ExperimentAccessManager.deleteAccessControlEntitiesFor(ds, tx, experimentId);
         tx.commit();
+        ExperimentJsonCache.invalidate(experimentId);
         return true;
       } catch (Exception e) {
         e.printStackTrace();
@@ -267,13 +317,17 @@ class DefaultExperimentService implements ExperimentService {
       throw new IllegalArgumentException("No ids specified for deletion");
     }
     if (ExperimentAccessManager.isUserAllowedToDeleteExperiments(experimentIds, email)) {
-      DatastoreService ds = DatastoreServiceFactory.getDatastoreService();
+      DatastoreService ds = MeteredDatastoreService.getDatastoreService();
       TransactionOptions options = TransactionOptions.Builder.withXG(true);
       Transaction tx = ds.beginTransaction(options);
       try {
         ExperimentJsonEntityManager.delete(ds, tx, experimentIds);
+        ExperimentSummaryEntity.delete(ds, tx, experimentIds);
         ExperimentAccessManager.deleteAccessControlEntitiesFor(ds, tx, experimentIds);
         tx.commit();
+        for (Long experimentId : experimentIds) {
+          ExperimentJsonCache.invalidate(experimentId);
+        }
         return true;
       } catch (Exception e) {
         e.printStackTrace();
@@ -290,6 +344,23 @@ class DefaultExperimentService implements ExperimentService {
   @Override
   public ExperimentQueryResult getMyJoinableExperiments(String email, DateTimeZone timeZoneForClient,
                                                         Integer limit, String cursor) {
+    List<ExperimentDAO> experiments = getExperimentsByIdInternal(getMyJoinableExperimentIds(email), email, timeZoneForClient);
+    experiments = removeEnded(experiments, timeZoneForClient);
+    removeNonAdminData(email, experiments);
+    Pair<String, List<ExperimentDAO>> page = pageByOffset(experiments, limit, cursor);
+    return new ExperimentQueryResult(page.first, page.second);
+  }
+
+  @Override
+  public ExperimentSummaryQueryResult getMyJoinableExperimentSummaries(String email, DateTimeZone timeZoneForClient,
+                                                                       Integer limit, String cursor) {
+    List<ExperimentDAOCore> summaries = getExperimentSummariesById(getMyJoinableExperimentIds(email), timeZoneForClient);
+    summaries = removeEndedSummaries(summaries, timeZoneForClient);
+    Pair<String, List<ExperimentDAOCore>> page = pageByOffset(summaries, limit, cursor);
+    return new ExperimentSummaryQueryResult(page.first, page.second);
+  }
+
+  private List<Long> getMyJoinableExperimentIds(String email) {
     // TODO figure out what to do about getting a paginated result over two tables. Right now, return everything.
     // Actually, the experiment hub will get rid of this broad query
     ExperimentIdQueryResult adminExperimentIdQueryResult = ExperimentAccessManager.getExistingExperimentIdsForAdmin(email, 0, null);
@@ -298,11 +369,10 @@ class DefaultExperimentService implements ExperimentService {
 
     ExperimentIdQueryResult existingPublishedExperimentIdsForUser = ExperimentAccessManager.getExistingPublishedExperimentIdsForUser(email, 0, null);
     experimentIds.addAll(existingPublishedExperimentIdsForUser.getExperiments());
+    return experimentIds;
+  }
 
-    List<ExperimentDAO> experiments = getExperimentsByIdInternal(experimentIds, email, timeZoneForClient);
-    experiments = removeEnded(experiments, timeZoneForClient);
-    removeNonAdminData(email, experiments);
-
+  private static <T> Pair<String, List<T>> pageByOffset(List<T> experiments, Integer limit, String cursor) {
     // for now, use the cursor as an offset to return the requested subset.
     int offset = 0;
     if (!Strings.isNullOrEmpty(cursor)) {
@@ -314,17 +384,16 @@ class DefaultExperimentService implements ExperimentService {
     }
     if (limit != null && limit > 0) {
       int end = Math.min(offset + limit, experiments.size());
-      List<ExperimentDAO> experimentSubset = experiments.subList(offset, end);
+      List<T> experimentSubset = experiments.subList(offset, end);
       if (end < experiments.size()) {
         cursor = Integer.toString(end);
       } else {
         cursor = null;
       }
-      return new ExperimentQueryResult(cursor, experimentSubset);
+      return new Pair<String, List<T>>(cursor, experimentSubset);
     } else {
-      return new ExperimentQueryResult(null, experiments);
+      return new Pair<String, List<T>>(null, experiments);
     }
-
   }
 
   private List<ExperimentDAO> removeEnded(List<ExperimentDAO> experiments, DateTimeZone timeZoneForClient) {
@@ -340,6 +409,19 @@ class DefaultExperimentService implements ExperimentService {
   }
 
 
+  private List<ExperimentDAOCore> removeEndedSummaries(List<ExperimentDAOCore> summaries,
+                                                       DateTimeZone timeZoneForClient) {
+    List<ExperimentDAOCore> keepers = Lists.newArrayList();
+    DateMidnight now = DateTime.now().withZone(timeZoneForClient).toDateMidnight();
+    for (ExperimentDAOCore summary : summaries) {
+      final Date latestEndDate = summary.getLatestEndDate();
+      if (latestEndDate == null || !now.isAfter(latestEndDate.getTime())) {
+        keepers.add(summary);
+      }
+    }
+    return keepers;
+  }
+
   private DateTime getLatestEndDate(ExperimentDAO experimentDAO) {
     return ActionScheduleGenerator.getLastEndTime(experimentDAO);
   }
@@ -348,6 +430,35 @@ class DefaultExperimentService implements ExperimentService {
   @Override
   public ExperimentQueryResult getMyJoinedExperiments(String email, DateTimeZone timeZoneForClient,
                                                         Integer limit, String cursor) {
+    ExperimentJoinQueryResult experimentIdJoinDatePairs = getJoinedExperimentIds(email, timeZoneForClient, limit, cursor);
+    List<ExperimentDAO> experimentDAOs = Lists.newArrayList();
+    if (experimentIdJoinDatePairs.getExperiments().size() == 0) {
+      return new ExperimentQueryResult(null, experimentDAOs);
+    }
+
+    Map<Long, Date> experimentIds = getJoinDatesById(experimentIdJoinDatePairs);
+    List<ExperimentDAO> experiments = getExperimentsByIdInternal(Lists.newArrayList(experimentIds.keySet()), email, timeZoneForClient);
+    removeNonAdminData(email, experiments);
+    addJoinDate(experiments, experimentIds);
+    return new ExperimentQueryResult(experimentIdJoinDatePairs.getCursor(), experiments); // TODO honor the limit and cursor
+  }
+
+  @Override
+  public ExperimentSummaryQueryResult getMyJoinedExperimentSummaries(String email, DateTimeZone timeZoneForClient,
+                                                                     Integer limit, String cursor) {
+    ExperimentJoinQueryResult experimentIdJoinDatePairs = getJoinedExperimentIds(email, timeZoneForClient, limit, cursor);
+    if (experimentIdJoinDatePairs.getExperiments().size() == 0) {
+      return new ExperimentSummaryQueryResult(null, Lists.<ExperimentDAOCore>newArrayList());
+    }
+
+    Map<Long, Date> experimentIds = getJoinDatesById(experimentIdJoinDatePairs);
+    List<ExperimentDAOCore> summaries = getExperimentSummariesById(Lists.newArrayList(experimentIds.keySet()), timeZoneForClient);
+    addJoinDate(summaries, experimentIds);
+    return new ExperimentSummaryQueryResult(experimentIdJoinDatePairs.getCursor(), summaries);
+  }
+
+  private ExperimentJoinQueryResult getJoinedExperimentIds(String email, DateTimeZone timeZoneForClient,
+                                                           Integer limit, String cursor) {
     ExperimentJoinQueryResult experimentIdJoinDatePairs = ExperimentAccessManager.getJoinedExperimentsFor(email, limit == null ? 1000 : limit, cursor);
 
     if (experimentIdJoinDatePairs.getExperiments() == null ||
@@ -360,27 +471,22 @@ class DefaultExperimentService implements ExperimentService {
       }
       experimentIdJoinDatePairs.setExperiments(uniqueExperimentIdJoinDatePairs);
     }
+    return experimentIdJoinDatePairs;
+  }
 
-    List<ExperimentDAO> experimentDAOs = Lists.newArrayList();
-    if (experimentIdJoinDatePairs.getExperiments().size() == 0) {
-      return new ExperimentQueryResult(null, experimentDAOs);
-    }
-
+  private Map<Long, Date> getJoinDatesById(ExperimentJoinQueryResult experimentIdJoinDatePairs) {
     Map<Long, Date> experimentIds = Maps.newHashMap();
 
     for (Pair<Long,Date> pair: experimentIdJoinDatePairs.getExperiments()) {
       experimentIds.put(pair.first, pair.second);
     }
-    List<ExperimentDAO> experiments = getExperimentsByIdInternal(Lists.newArrayList(experimentIds.keySet()), email, timeZoneForClient);
-    removeNonAdminData(email, experiments);
-    addJoinDate(experiments, experimentIds);
-    return new ExperimentQueryResult(experimentIdJoinDatePairs.getCursor(), experiments); // TODO honor the limit and cursor
+    return experimentIds;
   }
 
-  private void addJoinDate(List<ExperimentDAO> experiments, Map<Long, Date> experimentIds) {
+  private void addJoinDate(List<? extends ExperimentDAOCore> experiments, Map<Long, Date> experimentIds) {
     // Are the experiments returned in the order the ids were sent?
     // Can't say for sure so n^2 it is
-    for (ExperimentDAO experiment : experiments) {
+    for (ExperimentDAOCore experiment : experiments) {
       Date date = experimentIds.get(experiment.getId());
       experiment.setJoinDate(com.pacoapp.paco.shared.util.TimeUtil.formatDate(date.getTime()));
     }
@@ -446,6 +552,13 @@ class DefaultExperimentService implements ExperimentService {
     return new ExperimentQueryResult(cursorIdPair.cursor, experiments);
   }
 
+  @Override
+  public ExperimentSummaryQueryResult getExperimentSummariesPublishedPublicly(DateTimeZone timezone, Integer limit,
+                                                                              String cursor) {
+    CursorExerimentIdListPair cursorIdPair = PublicExperimentList.getPublicExperiments(timezone.getID(), limit, cursor);
+    return new ExperimentSummaryQueryResult(cursorIdPair.cursor, getExperimentSummariesById(cursorIdPair.ids, timezone));
+  }
+
   public void removeNonAdminData(String email, List<ExperimentDAO> experiments) {
     removeOtherPublished(experiments, email);
     removeAdmins(experiments, email);
@@ -1,9 +1,9 @@
 package com.google.sampling.experiential.server;
 
-import java.util.Collections;
 import java.util.Date;
 import java.util.List;
 import java.util.Map;
+import java.util.SortedMap;
 import java.util.logging.Logger;
 
 import org.joda.time.format.DateTimeFormat;
@@ -12,9 +12,21 @@ import org.joda.time.format.DateTimeFormatter;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.sampling.experiential.model.Event;
+import com.google.sampling.experiential.model.What;
+import com.google.sampling.experiential.server.metrics.MetricsRegistry;
 import com.google.sampling.experiential.shared.EventDAO;
 import com.google.sampling.experiential.shared.TimeUtil;
 
+/**
+ * Pivots end of day events into one response per daily event they refer to.
+ *
+ * The pivot is computed at export, not stored at ingest or cached. It is a
+ * single pass over each event's own responses, a few microseconds per event
+ * (see EndOfDayEventProcessorBenchmark), and the events are already in memory
+ * for the export. A stored or cached pivot would still have to be fetched per
+ * event, from the datastore or memcache, which costs far more than computing
+ * it. Storing it would also write every end of day response a second time.
+ */
 public class EndOfDayEventProcessor {
 
   private static final Logger log = Logger.getLogger(EndOfDayEventProcessor.class.getName());
@@ -48,57 +60,85 @@ public class EndOfDayEventProcessor {
 
   public List<EventDAO> breakEodResponsesIntoIndividualDailyEventResponses(List<EventDAO> eodEvents) {
     List<EventDAO> rawListOfSingleEodEvents = Lists.newArrayList();
-    TimeLogger.logTimestamp("breakEventsIntoDaily start");
+    MetricsRegistry.Timer timer = MetricsRegistry.getInstance().startTimer("report.eod.breakIntoDaily");
     int eodEventCounter = 0;
     for (EventDAO eodEvent : eodEvents) {
-      EventDAO currentEodEvent = null;
-
-      Map<String, String> outputs = eodEvent.getWhat();
-      List<String> itemNames = Lists.newArrayList(outputs.keySet());
-      Collections.sort(itemNames);
-
-      for (String itemName : itemNames) {
-        if (itemName.equals(EventDAO.REFERRED_EXPERIMENT_INPUT_ITEM_KEY)) {
-          continue;
-        }
-        String itemValue = outputs.get(itemName);
-
-        int date_itemNameSeparatorIndex = itemName.indexOf("_");
-        if (date_itemNameSeparatorIndex == -1) {
-          continue;
-        }
-
-        String dateStr = itemName.substring(0, date_itemNameSeparatorIndex);
-        String inputName = itemName.substring(date_itemNameSeparatorIndex + 1);
-
-        if (currentEodEvent == null || !currentEodEvent.getWhat().get("daily_event").equals(dateStr) ) {
-//          if (currentEodEvent != null) {
-//            log.info("currentDailyEventTime: " + currentEodEvent.getWhat().get("daily_event") + ", date = " + dateStr);
-//          } else {
-//            log.info("new currentEODEvent because last was null. dateStr = " + dateStr);
-//          }
-          Map<String, String> newWhat = Maps.newHashMap();
-          newWhat.put("daily_event", dateStr);
-          currentEodEvent = new EventDAO(eodEvent.getWho(), eodEvent.getWhen(), eodEvent.getExperimentName(), eodEvent.getLat(), eodEvent.getLon(),
+      SortedMap<String, Map<String, String>> responsesByDailyEvent = Maps.newTreeMap();
+      for (Map.Entry<String, String> output : eodEvent.getWhat().entrySet()) {
+        addResponse(responsesByDailyEvent, output.getKey(), output.getValue());
+      }
+      for (Map<String, String> newWhat : responsesByDailyEvent.values()) {
+        rawListOfSingleEodEvents.add(new EventDAO(eodEvent.getWho(), eodEvent.getWhen(), eodEvent.getExperimentName(), eodEvent.getLat(), eodEvent.getLon(),
                                   eodEvent.getAppId(), eodEvent.getPacoVersion(), newWhat, eodEvent.isShared(), eodEvent.getResponseTime(),
                                   eodEvent.getScheduledTime(), eodEvent.getBlobs(), eodEvent.getExperimentId(), eodEvent.getExperimentVersion(),
                                   eodEvent.getTimezone(),
                                   eodEvent.getExperimentGroupName(), eodEvent.getActionTriggerId(), eodEvent.getActionTriggerSpecId(),
-                                  eodEvent.getActionId());
-          rawListOfSingleEodEvents.add(currentEodEvent);
-        }
-        currentEodEvent.getWhat().put(inputName, itemValue);
-      }
-      if (eodEventCounter % 1000 == 0) {
-        TimeLogger.logTimestamp("EodEvents: " + eodEventCounter + ": ");
+                                  eodEvent.getActionId()));
       }
       eodEventCounter++;
     }
+    timer.stop();
     log.info("# of new Events for EOD: " + rawListOfSingleEodEvents.size());
     log.info("# of eodEvents traversed: " + eodEventCounter);
     return rawListOfSingleEodEvents;
   }
 
+  /**
+   * Version for Events instead of EventDAOs. It reads the responses straight
+   * from the Events, so only the pivoted EventDAOs are built.
+   *
+   * @param eodEvents
+   * @return a new eventdao per daily event referred to by each end of day event
+   */
+  public List<EventDAO> breakEventsIntoIndividualDailyEventResponses(List<Event> eodEvents) {
+    List<EventDAO> rawListOfSingleEodEvents = Lists.newArrayList();
+    for (Event eodEvent : eodEvents) {
+      SortedMap<String, Map<String, String>> responsesByDailyEvent = Maps.newTreeMap();
+      for (What output : eodEvent.getWhat()) {
+        addResponse(responsesByDailyEvent, output.getName(), output.getValue());
+      }
+      if (responsesByDailyEvent.isEmpty()) {
+        continue;
+      }
+      String[] blobs = EventRetriever.toBase64StringArray(eodEvent.getBlobs());
+      Long experimentId = Long.parseLong(eodEvent.getExperimentId());
+      for (Map<String, String> newWhat : responsesByDailyEvent.values()) {
+        rawListOfSingleEodEvents.add(new EventDAO(eodEvent.getWho(), eodEvent.getWhen(), eodEvent.getExperimentName(), eodEvent.getLat(), eodEvent.getLon(),
+                                  eodEvent.getAppId(), eodEvent.getPacoVersion(), newWhat, eodEvent.isShared(), eodEvent.getResponseTime(),
+                                  eodEvent.getScheduledTime(), blobs, experimentId, eodEvent.getExperimentVersion(),
+                                  eodEvent.getTimeZone(),
+                                  eodEvent.getExperimentGroupName(), eodEvent.getActionTriggerId(), eodEvent.getActionTriggerSpecId(),
+                                  eodEvent.getActionId()));
+      }
+    }
+    log.info("# of new Events for EOD: " + rawListOfSingleEodEvents.size() + " from " + eodEvents.size());
+    return rawListOfSingleEodEvents;
+  }
+
+  /**
+   * Files one end of day response under the daily event it refers to, keyed
+   * by the daily event's idForTime so the daily events come out in the same
+   * order as sorting the item names would give.
+   */
+  private void addResponse(SortedMap<String, Map<String, String>> responsesByDailyEvent, String itemName,
+                           String itemValue) {
+    if (itemName == null || itemName.equals(EventDAO.REFERRED_EXPERIMENT_INPUT_ITEM_KEY)) {
+      return;
+    }
+    int date_itemNameSeparatorIndex = itemName.indexOf("_");
+    if (date_itemNameSeparatorIndex == -1) {
+      return;
+    }
+    String dateStr = itemName.substring(0, date_itemNameSeparatorIndex);
+    Map<String, String> newWhat = responsesByDailyEvent.get(dateStr);
+    if (newWhat == null) {
+      newWhat = Maps.newHashMap();
+      newWhat.put("daily_event", dateStr);
+      responsesByDailyEvent.put(dateStr, newWhat);
+    }
+    newWhat.put(itemName.substring(date_itemNameSeparatorIndex + 1), itemValue);
+  }
+
   /**
    * Version for Events instead of EventDAOs
    * TODO - Unify these two with a common type.
@@ -106,8 +146,7 @@ public class EndOfDayEventProcessor {
    * @return
    */
   public Map<String, Map<String, EventDAO>> breakEventsIntoDailyPingResponsesGroupedByWho(List<Event> eodEvents2) {
-    List<EventDAO> eodEvents = EventRetriever.convertEventsToDAOs(eodEvents2);
-    List<EventDAO> individualEODEvents = breakEodResponsesIntoIndividualDailyEventResponses(eodEvents);
+    List<EventDAO> individualEODEvents = breakEventsIntoIndividualDailyEventResponses(eodEvents2);
     Map<String, Map<String, EventDAO>> eventsByWhoByDate = Maps.newHashMap();
     for (EventDAO eventDAO : individualEODEvents) {
       String who = eventDAO.getWho();
@@ -0,0 +1,465 @@
+package com.google.sampling.experiential.server;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.Collections;
+import java.util.Date;
+import java.util.EnumSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.sampling.experiential.model.Event;
+import com.google.sampling.experiential.model.PhotoBlob;
+import com.google.sampling.experiential.model.What;
+
+/**
+ * Immutable columnar encoding of one experiment's events, so that exports of
+ * finished experiments do not have to re-read every Event entity.
+ *
+ * Layout: magic, experiment id, event count, watermark, then one block per
+ * column: column id, compressed length, deflated column data. Readers skip the
+ * blocks of the columns they do not need without inflating them.
+ *
+ * String columns are dictionary encoded, with the dictionary after the indexes
+ * so that a Writer can add events a page at a time. Time columns are delta
+ * encoded against the previous value in the column. Events keep the order they
+ * were added in. Photos are not archived.
+ */
+public class EventArchive {
+
+  private static final int MAGIC = 0x50454131; // PEA1
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+  public enum Column {
+    WHO(1), WHEN(2), LAT(3), LON(4), APP_ID(5), PACO_VERSION(6), EXPERIMENT_NAME(7), EXPERIMENT_VERSION(8),
+    RESPONSE_TIME(9), SCHEDULED_TIME(10), TIME_ZONE(11), GROUP_NAME(12), ACTION_TRIGGER_ID(13),
+    ACTION_TRIGGER_SPEC_ID(14), ACTION_ID(15), SHARED(16), RESPONSES(17);
+
+    private final int id;
+
+    private Column(int id) {
+      this.id = id;
+    }
+
+    static Column forId(int id) {
+      for (Column column : values()) {
+        if (column.id == id) {
+          return column;
+        }
+      }
+      return null;
+    }
+  }
+
+  public static final Set<Column> ALL_COLUMNS = Collections.unmodifiableSet(EnumSet.allOf(Column.class));
+
+  /**
+   * The columns CSVBlobWriter prints.
+   */
+  public static final Set<Column> CSV_COLUMNS = Collections.unmodifiableSet(
+      EnumSet.complementOf(EnumSet.of(Column.LAT, Column.LON, Column.SHARED)));
+
+  public static class Header {
+    public final String experimentId;
+    public final int eventCount;
+    public final long watermark;
+
+    Header(String experimentId, int eventCount, long watermark) {
+      this.experimentId = experimentId;
+      this.eventCount = eventCount;
+      this.watermark = watermark;
+    }
+  }
+
+  /**
+   * Builds an archive from events added in pages. Only the compressed columns
+   * and the dictionaries are held, not the events.
+   */
+  public static class Writer {
+    private final String experimentId;
+    private final Map<Column, ByteArrayOutputStream> blocks = Maps.newEnumMap(Column.class);
+    private final Map<Column, DataOutputStream> columnOuts = Maps.newEnumMap(Column.class);
+    private final Map<Column, Map<String, Integer>> dictionaries = Maps.newEnumMap(Column.class);
+    private final Map<Column, Long> previousTimes = Maps.newEnumMap(Column.class);
+    private final Map<String, Integer> responseNames = new LinkedHashMap<String, Integer>();
+    private final Map<String, Integer> responseValues = new LinkedHashMap<String, Integer>();
+    private int eventCount;
+
+    public Writer(String experimentId) {
+      this.experimentId = experimentId;
+      for (Column column : Column.values()) {
+        ByteArrayOutputStream block = new ByteArrayOutputStream();
+        blocks.put(column, block);
+        columnOuts.put(column, new DataOutputStream(new DeflaterOutputStream(block)));
+        if (isStringColumn(column)) {
+          dictionaries.put(column, new LinkedHashMap<String, Integer>());
+        }
+      }
+    }
+
+    public void add(Event event) throws IOException {
+      for (Column column : Column.values()) {
+        writeValue(column, columnOuts.get(column), event);
+      }
+      eventCount++;
+    }
+
+    /**
+     * @param watermark the time up to which the archive holds every event
+     */
+    public byte[] finish(long watermark) throws IOException {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      DataOutputStream out = new DataOutputStream(bytes);
+      out.writeInt(MAGIC);
+      writeString(out, experimentId);
+      writeVarLong(out, eventCount);
+      out.writeLong(watermark);
+      for (Column column : Column.values()) {
+        DataOutputStream columnOut = columnOuts.get(column);
+        if (column == Column.RESPONSES) {
+          writeDictionary(columnOut, responseNames);
+          writeDictionary(columnOut, responseValues);
+        } else if (isStringColumn(column)) {
+          writeDictionary(columnOut, dictionaries.get(column));
+        }
+        columnOut.close();
+        byte[] block = blocks.get(column).toByteArray();
+        out.writeByte(column.id);
+        out.writeInt(block.length);
+        out.write(block);
+      }
+      out.close();
+      return bytes.toByteArray();
+    }
+
+    private void writeValue(Column column, DataOutputStream out, Event event) throws IOException {
+      switch (column) {
+      case WHO:
+      case LAT:
+      case LON:
+      case APP_ID:
+      case PACO_VERSION:
+      case EXPERIMENT_NAME:
+      case TIME_ZONE:
+      case GROUP_NAME:
+        writeVarLong(out, dictionaryIndex(dictionaries.get(column), (String) getValue(column, event)));
+        break;
+      case WHEN:
+      case RESPONSE_TIME:
+      case SCHEDULED_TIME:
+        Date time = (Date) getValue(column, event);
+        out.writeBoolean(time != null);
+        if (time != null) {
+          Long previous = previousTimes.get(column);
+          writeVarLong(out, time.getTime() - (previous != null ? previous : 0));
+          previousTimes.put(column, time.getTime());
+        }
+        break;
+      case EXPERIMENT_VERSION:
+      case ACTION_TRIGGER_ID:
+      case ACTION_TRIGGER_SPEC_ID:
+      case ACTION_ID:
+        Number number = (Number) getValue(column, event);
+        out.writeBoolean(number != null);
+        if (number != null) {
+          writeVarLong(out, number.longValue());
+        }
+        break;
+      case SHARED:
+        out.writeBoolean(event.isShared());
+        break;
+      case RESPONSES:
+        writeResponses(out, event);
+        break;
+      }
+    }
+
+    /**
+     * The response count, then a name index and a value index for each
+     * response. Names and values have their own dictionaries.
+     */
+    private void writeResponses(DataOutputStream out, Event event) throws IOException {
+      Map<String, String> whatMap = event.getWhatView();
+      writeVarLong(out, whatMap.size());
+      for (Map.Entry<String, String> response : whatMap.entrySet()) {
+        writeVarLong(out, dictionaryIndex(responseNames, response.getKey()));
+        writeVarLong(out, dictionaryIndex(responseValues, response.getValue()));
+      }
+    }
+  }
+
+  /**
+   * @return an archive of events, with the latest when as its watermark
+   */
+  public static byte[] encode(String experimentId, List<Event> events) throws IOException {
+    Writer writer = new Writer(experimentId);
+    long watermark = 0;
+    for (Event event : events) {
+      writer.add(event);
+      watermark = Math.max(watermark, event.getWhen().getTime());
+    }
+    return writer.finish(watermark);
+  }
+
+  public static Header readHeader(byte[] archive) throws IOException {
+    return readHeader(new DataInputStream(new ByteArrayInputStream(archive)));
+  }
+
+  private static Header readHeader(DataInputStream in) throws IOException {
+    if (in.readInt() != MAGIC) {
+      throw new IOException("Not an event archive");
+    }
+    String experimentId = readString(in);
+    int eventCount = (int) readVarLong(in);
+    long watermark = in.readLong();
+    return new Header(experimentId, eventCount, watermark);
+  }
+
+  /**
+   * @param columns the columns to read. who and when are always read because every Event has them.
+   * @return the events in the order they were added, with unread columns left empty
+   */
+  public static List<Event> decode(byte[] archive, Set<Column> columns) throws IOException {
+    DataInputStream in = new DataInputStream(new ByteArrayInputStream(archive));
+    Header header = readHeader(in);
+    int count = header.eventCount;
+
+    Map<Column, Object[]> values = Maps.newEnumMap(Column.class);
+    List<Set<What>> responses = null;
+    for (int c = 0; c < Column.values().length; c++) {
+      Column column = Column.forId(in.readByte());
+      int length = in.readInt();
+      if (column == null || !(columns.contains(column) || column == Column.WHO || column == Column.WHEN)) {
+        in.skipBytes(length);
+        continue;
+      }
+      byte[] block = new byte[length];
+      in.readFully(block);
+      DataInputStream columnIn = new DataInputStream(new InflaterInputStream(new ByteArrayInputStream(block)));
+      if (column == Column.RESPONSES) {
+        responses = readResponses(columnIn, count);
+      } else {
+        values.put(column, readColumn(column, columnIn, count));
+      }
+      columnIn.close();
+    }
+
+    List<Event> events = Lists.newArrayListWithCapacity(count);
+    for (int i = 0; i < count; i++) {
+      Set<What> whats = responses != null ? responses.get(i) : Sets.<What>newHashSet();
+      Boolean shared = (Boolean) valueAt(values, Column.SHARED, i);
+      Long experimentVersion = (Long) valueAt(values, Column.EXPERIMENT_VERSION, i);
+      events.add(new Event((String) valueAt(values, Column.WHO, i),
+                           (String) valueAt(values, Column.LAT, i),
+                           (String) valueAt(values, Column.LON, i),
+                           (Date) valueAt(values, Column.WHEN, i),
+                           (String) valueAt(values, Column.APP_ID, i),
+                           (String) valueAt(values, Column.PACO_VERSION, i),
+                           whats,
+                           shared != null && shared,
+                           header.experimentId,
+                           (String) valueAt(values, Column.EXPERIMENT_NAME, i),
+                           experimentVersion != null ? Integer.valueOf(experimentVersion.intValue()) : null,
+                           (Date) valueAt(values, Column.RESPONSE_TIME, i),
+                           (Date) valueAt(values, Column.SCHEDULED_TIME, i),
+                           Lists.<PhotoBlob>newArrayList(),
+                           (String) valueAt(values, Column.TIME_ZONE, i),
+                           (String) valueAt(values, Column.GROUP_NAME, i),
+                           (Long) valueAt(values, Column.ACTION_TRIGGER_ID, i),
+                           (Long) valueAt(values, Column.ACTION_TRIGGER_SPEC_ID, i),
+                           (Long) valueAt(values, Column.ACTION_ID, i)));
+    }
+    return events;
+  }
+
+  private static Object valueAt(Map<Column, Object[]> values, Column column, int i) {
+    Object[] columnValues = values.get(column);
+    return columnValues != null ? columnValues[i] : null;
+  }
+
+  private static boolean isStringColumn(Column column) {
+    switch (column) {
+    case WHO:
+    case LAT:
+    case LON:
+    case APP_ID:
+    case PACO_VERSION:
+    case EXPERIMENT_NAME:
+    case TIME_ZONE:
+    case GROUP_NAME:
+      return true;
+    default:
+      return false;
+    }
+  }
+
+  private static Object getValue(Column column, Event event) {
+    switch (column) {
+    case WHO: return event.getWho();
+    case WHEN: return event.getWhen();
+    case LAT: return event.getLat();
+    case LON: return event.getLon();
+    case APP_ID: return event.getAppId();
+    case PACO_VERSION: return event.getPacoVersion();
+    case EXPERIMENT_NAME: return event.getExperimentName();
+    case EXPERIMENT_VERSION: return event.getExperimentVersion();
+    case RESPONSE_TIME: return event.getResponseTime();
+    case SCHEDULED_TIME: return event.getScheduledTime();
+    case TIME_ZONE: return event.getTimeZone();
+    case GROUP_NAME: return event.getExperimentGroupName();
+    case ACTION_TRIGGER_ID: return event.getActionTriggerId();
+    case ACTION_TRIGGER_SPEC_ID: return event.getActionTriggerSpecId();
+    case ACTION_ID: return event.getActionId();
+    default: throw new IllegalArgumentException("Not a single valued column: " + column);
+    }
+  }
+
+  private static Object[] readColumn(Column column, DataInputStream in, int count) throws IOException {
+    switch (column) {
+    case WHEN:
+    case RESPONSE_TIME:
+    case SCHEDULED_TIME:
+      Object[] times = new Object[count];
+      long previous = 0;
+      for (int i = 0; i < count; i++) {
+        if (in.readBoolean()) {
+          previous += readVarLong(in);
+          times[i] = new Date(previous);
+        }
+      }
+      return times;
+    case EXPERIMENT_VERSION:
+    case ACTION_TRIGGER_ID:
+    case ACTION_TRIGGER_SPEC_ID:
+    case ACTION_ID:
+      Object[] numbers = new Object[count];
+      for (int i = 0; i < count; i++) {
+        if (in.readBoolean()) {
+          numbers[i] = readVarLong(in);
+        }
+      }
+      return numbers;
+    case SHARED:
+      Object[] flags = new Object[count];
+      for (int i = 0; i < count; i++) {
+        flags[i] = in.readBoolean();
+      }
+      return flags;
+    default:
+      return readDictionaryColumn(in, count);
+    }
+  }
+
+  private static List<Set<What>> readResponses(DataInputStream in, int count) throws IOException {
+    int[][] encoded = new int[count][];
+    for (int i = 0; i < count; i++) {
+      int responseCount = (int) readVarLong(in);
+      encoded[i] = new int[responseCount * 2];
+      for (int r = 0; r < encoded[i].length; r++) {
+        encoded[i][r] = (int) readVarLong(in);
+      }
+    }
+    String[] names = readDictionary(in);
+    String[] values = readDictionary(in);
+    List<Set<What>> responses = Lists.newArrayListWithCapacity(count);
+    for (int i = 0; i < count; i++) {
+      Set<What> whats = Sets.newHashSet();
+      for (int r = 0; r < encoded[i].length; r += 2) {
+        whats.add(new What(names[encoded[i][r]], values[encoded[i][r + 1]]));
+      }
+      responses.add(whats);
+    }
+    return responses;
+  }
+
+  private static Object[] readDictionaryColumn(DataInputStream in, int count) throws IOException {
+    int[] indexes = new int[count];
+    for (int i = 0; i < count; i++) {
+      indexes[i] = (int) readVarLong(in);
+    }
+    String[] dictionary = readDictionary(in);
+    Object[] strings = new Object[count];
+    for (int i = 0; i < count; i++) {
+      strings[i] = dictionary[indexes[i]];
+    }
+    return strings;
+  }
+
+  /**
+   * Index 0 is reserved for null.
+   */
+  private static int dictionaryIndex(Map<String, Integer> dictionary, String value) {
+    if (value == null) {
+      return 0;
+    }
+    Integer index = dictionary.get(value);
+    if (index == null) {
+      index = dictionary.size() + 1;
+      dictionary.put(value, index);
+    }
+    return index;
+  }
+
+  private static void writeDictionary(DataOutputStream out, Map<String, Integer> dictionary) throws IOException {
+    writeVarLong(out, dictionary.size());
+    for (String value : dictionary.keySet()) {
+      writeString(out, value);
+    }
+  }
+
+  private static String[] readDictionary(DataInputStream in) throws IOException {
+    String[] dictionary = new String[(int) readVarLong(in) + 1];
+    for (int i = 1; i < dictionary.length; i++) {
+      dictionary[i] = readString(in);
+    }
+    return dictionary;
+  }
+
+  private static void writeString(DataOutputStream out, String value) throws IOException {
+    byte[] bytes = value.getBytes(UTF_8);
+    writeVarLong(out, bytes.length);
+    out.write(bytes);
+  }
+
+  private static String readString(DataInputStream in) throws IOException {
+    byte[] bytes = new byte[(int) readVarLong(in)];
+    in.readFully(bytes);
+    return new String(bytes, UTF_8);
+  }
+
+  /**
+   * Zigzag varint, so small negative deltas stay small too.
+   */
+  static void writeVarLong(DataOutputStream out, long value) throws IOException {
+    long zigzag = (value << 1) ^ (value >> 63);
+    while ((zigzag & ~0x7FL) != 0) {
+      out.writeByte((int) ((zigzag & 0x7F) | 0x80));
+      zigzag >>>= 7;
+    }
+    out.writeByte((int) zigzag);
+  }
+
+  static long readVarLong(DataInputStream in) throws IOException {
+    long zigzag = 0;
+    int shift = 0;
+    int b;
+    do {
+      b = in.readUnsignedByte();
+      zigzag |= (long) (b & 0x7F) << shift;
+      shift += 7;
+    } while ((b & 0x80) != 0);
+    return (zigzag >>> 1) ^ -(zigzag & 1);
+  }
+
+}
@@ -0,0 +1,179 @@
+package com.google.sampling.experiential.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Date;
+import java.util.List;
+import java.util.Set;
+import java.util.logging.Logger;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.joda.time.format.DateTimeFormat;
+import org.joda.time.format.DateTimeFormatter;
+
+import com.google.appengine.api.blobstore.BlobstoreService;
+import com.google.appengine.api.blobstore.BlobstoreServiceFactory;
+import com.google.appengine.tools.cloudstorage.GcsFileMetadata;
+import com.google.appengine.tools.cloudstorage.GcsFileOptions;
+import com.google.appengine.tools.cloudstorage.GcsFilename;
+import com.google.appengine.tools.cloudstorage.GcsInputChannel;
+import com.google.appengine.tools.cloudstorage.GcsOutputChannel;
+import com.google.appengine.tools.cloudstorage.GcsService;
+import com.google.appengine.tools.cloudstorage.GcsServiceFactory;
+import com.google.common.base.Strings;
+import com.google.common.collect.Lists;
+import com.google.sampling.experiential.datastore.EventArchiveEntity;
+import com.google.sampling.experiential.datastore.EventArchiveEntity.EventArchiveInfo;
+import com.google.sampling.experiential.model.Event;
+import com.google.sampling.experiential.shared.TimeUtil;
+
+/**
+ * Compacts an experiment's events into an EventArchive in cloud storage and
+ * serves exports from it, reading only the events newer than the archive's
+ * watermark from the datastore.
+ *
+ * Meant for finished experiments. An experiment that is still collecting data
+ * can be compacted again, which writes a new archive and deletes the old one.
+ */
+public class EventArchiveService {
+
+  private static final Logger log = Logger.getLogger(EventArchiveService.class.getName());
+
+  private static final String ARCHIVE_PREFIX = "archives/";
+  private static final int PAGE_SIZE = 1000;
+  // Events get the server time as their when when they are stored. The event
+  // query is eventually consistent, so the archive stops this long before the
+  // compaction started, when every stored event is visible to it.
+  private static final long CONSISTENCY_WINDOW_MILLIS = 10 * 60 * 1000;
+
+  private final GcsService gcsService = GcsServiceFactory.createGcsService();
+  private final String bucketName = System.getProperty("com.pacoapp.reportbucketname");
+  private final DateTimeFormatter queryTimeFormatter = DateTimeFormat.forPattern(TimeUtil.DATETIME_FORMAT_EVENT_QUERY)
+                                                                     .withZone(DateTimeZone.UTC);
+
+  /**
+   * Writes the experiment's events to a new archive, a page at a time. The
+   * archive's watermark is a little before the compaction started, and it
+   * holds every event before the watermark.
+   *
+   * @return the blob key of the archive
+   */
+  public String compact(String experimentId, String requestorEmail, DateTimeZone timeZoneForClient) throws IOException {
+    if (Strings.isNullOrEmpty(experimentId)) {
+      throw new IllegalArgumentException("Archiving needs an experimentId in the query");
+    }
+    checkAdmin(experimentId, requestorEmail);
+    long watermark = System.currentTimeMillis() - CONSISTENCY_WINDOW_MILLIS;
+    List<Query> query = Lists.newArrayList(new Query("experimentId", experimentId));
+    EventArchive.Writer writer = new EventArchive.Writer(experimentId);
+    int eventCount = 0;
+    String cursor = null;
+    do {
+      EventQueryResultPair page = EventRetriever.getInstance().getEventsInBatches(query, requestorEmail,
+                                                                                  timeZoneForClient, PAGE_SIZE,
+                                                                                  cursor);
+      for (Event event : page.getEvents()) {
+        // newer events are read from the datastore by getEvents
+        if (event.getWhen().getTime() < watermark) {
+          writer.add(event);
+          eventCount++;
+        }
+      }
+      cursor = page.getCursor();
+    } while (cursor != null);
+
+    byte[] archive = writer.finish(watermark);
+    String objectName = ARCHIVE_PREFIX + experimentId + "/" + watermark;
+    write(objectName, archive);
+    log.info("Archived " + eventCount + " events for experiment " + experimentId + " in " + archive.length
+             + " bytes");
+
+    EventArchiveInfo previous = EventArchiveEntity.putArchive(experimentId, objectName, new Date(watermark),
+                                                              eventCount);
+    if (previous != null && !previous.objectName().equals(objectName)) {
+      gcsService.delete(new GcsFilename(bucketName, previous.objectName()));
+    }
+    BlobstoreService blobstoreService = BlobstoreServiceFactory.getBlobstoreService();
+    return blobstoreService.createGsBlobKey("/gs/" + bucketName + "/" + objectName).getKeyString();
+  }
+
+  /**
+   * @param columns the columns the export needs
+   * @return all of the experiment's events, newest first, or null if it has no archive
+   */
+  public List<Event> getEvents(String experimentId, Set<EventArchive.Column> columns, String requestorEmail,
+                               DateTimeZone timeZoneForClient) throws IOException {
+    EventArchiveInfo archiveInfo = EventArchiveEntity.getArchive(experimentId);
+    if (archiveInfo == null) {
+      return null;
+    }
+    checkAdmin(experimentId, requestorEmail);
+
+    long watermark = archiveInfo.watermark().getTime();
+    String range = queryTimeFormatter.print(watermark) + "--" + queryTimeFormatter.print(new DateTime());
+    List<Query> newerQuery = Lists.newArrayList(new Query("experimentId", experimentId),
+                                                new Query("datetime_range", range));
+    List<Event> events = Lists.newArrayList();
+    for (Event event : readAllEvents(newerQuery, requestorEmail, timeZoneForClient)) {
+      // the range has second precision, so it can overlap the last archived events
+      if (event.getWhen().getTime() >= watermark) {
+        events.add(event);
+      }
+    }
+    int newerCount = events.size();
+
+    // the archive was written from a when desc query, so it follows on
+    events.addAll(EventArchive.decode(read(archiveInfo.objectName()), columns));
+    log.info("Read " + (events.size() - newerCount) + " archived and " + newerCount
+             + " newer events for experiment " + experimentId);
+    return events;
+  }
+
+  private void checkAdmin(String experimentId, String requestorEmail) {
+    if (!ExperimentAccessManager.isAdminForExperiment(requestorEmail, Long.parseLong(experimentId))) {
+      throw new IllegalArgumentException(requestorEmail + " is not an admin of experiment " + experimentId);
+    }
+  }
+
+  private List<Event> readAllEvents(List<Query> query, String requestorEmail, DateTimeZone timeZoneForClient) {
+    List<Event> events = Lists.newArrayList();
+    String cursor = null;
+    do {
+      EventQueryResultPair page = EventRetriever.getInstance().getEventsInBatches(query, requestorEmail,
+                                                                                  timeZoneForClient, PAGE_SIZE,
+                                                                                  cursor);
+      events.addAll(page.getEvents());
+      cursor = page.getCursor();
+    } while (cursor != null);
+    return events;
+  }
+
+  private void write(String objectName, byte[] archive) throws IOException {
+    GcsFileOptions options = new GcsFileOptions.Builder()
+        .mimeType("application/octet-stream")
+        .acl("project-private")
+        .build();
+    GcsOutputChannel writeChannel = gcsService.createOrReplace(new GcsFilename(bucketName, objectName), options);
+    writeChannel.write(ByteBuffer.wrap(archive));
+    writeChannel.close();
+  }
+
+  private byte[] read(String objectName) throws IOException {
+    GcsFilename filename = new GcsFilename(bucketName, objectName);
+    GcsFileMetadata metadata = gcsService.getMetadata(filename);
+    if (metadata == null) {
+      throw new IOException("Missing event archive " + objectName);
+    }
+    ByteBuffer buffer = ByteBuffer.allocate((int) metadata.getLength());
+    GcsInputChannel readChannel = gcsService.openReadChannel(filename, 0);
+    try {
+      while (buffer.hasRemaining() && readChannel.read(buffer) >= 0) {
+      }
+    } finally {
+      readChannel.close();
+    }
+    return buffer.array();
+  }
+
+}
@@ -236,7 +236,7 @@ public class EventCsvUploadProcessor {
           input =ExperimentHelper.getInputWithName(experiment, name, groupName);
         }
         if (input != null && input.getResponseType() != null && input.getResponseType().equals(Input2.PHOTO)) {
-          PhotoBlob photoBlob = new PhotoBlob(name, Base64.decodeBase64(answer.getBytes()));
+          PhotoBlob photoBlob = PhotoStore.createPhotoBlob(name, Base64.decodeBase64(answer.getBytes()));
           blobs.add(photoBlob);
           answer = "blob";
         }
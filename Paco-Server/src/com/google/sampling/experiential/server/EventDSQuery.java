@@ -26,6 +26,7 @@ public class EventDSQuery extends BaseJDOQuery {
 
   private boolean hasAWho;
   private String who;
+  private ResponsePrefixMatcher prefixMatcher = new ResponsePrefixMatcher();
 
   public boolean hasAWho() {
     return hasAWho;
@@ -45,6 +46,13 @@ public class EventDSQuery extends BaseJDOQuery {
     return who;
   }
 
+  /**
+   * @return the response prefixes the results still have to be filtered by
+   */
+  public ResponsePrefixMatcher getPrefixMatcher() {
+    return prefixMatcher;
+  }
+
   public void getLowLevelDatastoreEntityQuery(com.google.appengine.api.datastore.Query q) {
     if (filters.size() > 0) {
       for (String filter : filters) {
@@ -0,0 +1,103 @@
+package com.google.sampling.experiential.server;
+
+import java.util.Date;
+import java.util.logging.Logger;
+
+import org.joda.time.DateTime;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Charsets;
+import com.google.common.base.Strings;
+import com.google.common.hash.Hashing;
+import com.google.sampling.experiential.datastore.EventDedupEntity;
+
+/**
+ * Makes event upload idempotent.
+ *
+ * Clients retry a whole group of events when a response is lost, so the same
+ * event can arrive more than once. Each event is keyed by the client-generated
+ * event id or, for older clients, by who + experiment + response and scheduled time.
+ * Once an event is stored its key is recorded; later uploads with the same key
+ * are skipped. Keys are kept for MAX_AGE_DAYS, well past how long a phone keeps
+ * retrying an upload.
+ */
+public class EventDedup {
+
+  private static final Logger log = Logger.getLogger(EventDedup.class.getName());
+  private static EventDedup instance;
+
+  static final int MAX_AGE_DAYS = 30;
+  private static final int DELETE_BATCH_SIZE = 500;
+
+  @VisibleForTesting
+  EventDedup() {
+  }
+
+  public static synchronized EventDedup getInstance() {
+    if (instance == null) {
+      instance = new EventDedup();
+    }
+    return instance;
+  }
+
+  /**
+   * @return the dedup key, or null when the event carries nothing that identifies
+   *         it (no client id and no times), in which case it is always stored
+   */
+  public static String computeKey(String who, String clientEventId, String experimentId,
+                                  DateTime responseTime, DateTime scheduledTime) {
+    String identity;
+    if (!Strings.isNullOrEmpty(clientEventId)) {
+      identity = who + "|client|" + clientEventId;
+    } else if (responseTime != null || scheduledTime != null) {
+      identity = who + "|" + experimentId + "|"
+                 + (responseTime != null ? responseTime.getMillis() : "") + "|"
+                 + (scheduledTime != null ? scheduledTime.getMillis() : "");
+    } else {
+      return null;
+    }
+    return Hashing.md5().hashString(identity, Charsets.UTF_8).toString();
+  }
+
+  /**
+   * @return true if an event with this key has already been stored
+   */
+  public boolean isDuplicate(String dedupKey) {
+    boolean recorded = EventDedupEntity.isRecorded(dedupKey);
+    if (recorded) {
+      log.info("Skipping duplicate event upload: " + dedupKey);
+    }
+    return recorded;
+  }
+
+  /**
+   * Records a stored event. Called only after the event is stored, so an
+   * upload that dies in between is stored again on retry rather than lost.
+   * A failure here is logged, not thrown, because the event itself is safe.
+   */
+  public void record(String dedupKey) {
+    try {
+      EventDedupEntity.record(dedupKey);
+    } catch (RuntimeException e) {
+      log.warning("Could not record dedup key " + dedupKey + ": " + e.getMessage());
+    }
+  }
+
+  /**
+   * Deletes the dedup keys of events stored more than MAX_AGE_DAYS ago.
+   *
+   * @return the number of keys deleted
+   */
+  public int deleteExpired() {
+    Date cutoff = new DateTime().minusDays(MAX_AGE_DAYS).toDate();
+    int deleted = 0;
+    int batch;
+    do {
+      batch = EventDedupEntity.deleteRecordedBefore(cutoff, DELETE_BATCH_SIZE);
+      deleted += batch;
+    } while (batch == DELETE_BATCH_SIZE);
+    log.info("Deleted " + deleted + " expired dedup keys");
+    return deleted;
+  }
+
+}
@@ -0,0 +1,30 @@
+package com.google.sampling.experiential.server;
+
+import java.io.IOException;
+import java.util.logging.Logger;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import com.google.common.base.Strings;
+
+/**
+ * Servlet triggered by cron job in cron.xml to delete expired event dedup keys
+ */
+public class EventDedupCleanupServlet extends HttpServlet {
+
+  public static final Logger log = Logger.getLogger(EventDedupCleanupServlet.class.getName());
+
+  @Override
+  protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+    String isLaunchedByCron = req.getHeader("X-Appengine-Cron");
+    if (Strings.isNullOrEmpty(isLaunchedByCron) || !Boolean.parseBoolean(isLaunchedByCron)) {
+      resp.sendError(HttpServletResponse.SC_FORBIDDEN);
+      return;
+    }
+    EventDedup.getInstance().deleteExpired();
+    resp.setStatus(HttpServletResponse.SC_OK);
+  }
+
+}
@@ -22,6 +22,7 @@ public class EventJDOQuery extends BaseJDOQuery {
 
   private boolean hasAWho;
   private String who;
+  private ResponsePrefixMatcher prefixMatcher = new ResponsePrefixMatcher();
 
   public boolean hasAWho() {
     return hasAWho;
@@ -41,4 +42,11 @@ public class EventJDOQuery extends BaseJDOQuery {
     return who;
   }
 
+  /**
+   * @return the response prefixes the results still have to be filtered by
+   */
+  public ResponsePrefixMatcher getPrefixMatcher() {
+    return prefixMatcher;
+  }
+
 }
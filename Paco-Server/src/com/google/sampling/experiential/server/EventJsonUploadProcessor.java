@@ -1,6 +1,8 @@
 package com.google.sampling.experiential.server;
 
 import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.Date;
@@ -10,6 +12,10 @@ import java.util.logging.Logger;
 
 import org.apache.commons.codec.binary.Base64;
 import org.codehaus.jackson.JsonGenerationException;
+import org.codehaus.jackson.JsonNode;
+import org.codehaus.jackson.JsonParser;
+import org.codehaus.jackson.JsonProcessingException;
+import org.codehaus.jackson.JsonToken;
 import org.codehaus.jackson.map.JsonMappingException;
 import org.codehaus.jackson.map.ObjectMapper;
 import org.joda.time.DateTime;
@@ -35,31 +41,66 @@ public class EventJsonUploadProcessor {
   private static final Logger log = Logger.getLogger(EventJsonUploadProcessor.class.getName());
   private ExperimentService experimentRetriever;
   private EventRetriever eventRetriever;
+  private EventDedup eventDedup;
 
   public EventJsonUploadProcessor(ExperimentService experimentRetriever, EventRetriever eventRetriever) {
+    this(experimentRetriever, eventRetriever, null);
+  }
+
+  /**
+   * @param eventDedup skips events that were already stored by an earlier upload, or null to store every event
+   */
+  public EventJsonUploadProcessor(ExperimentService experimentRetriever, EventRetriever eventRetriever,
+                                  EventDedup eventDedup) {
     this.eventRetriever = eventRetriever;
     this.experimentRetriever = experimentRetriever;
+    this.eventDedup = eventDedup;
   }
 
   public static EventJsonUploadProcessor create() {
     ExperimentService experimentService = ExperimentServiceFactory.getExperimentService();
-    return new EventJsonUploadProcessor(experimentService, EventRetriever.getInstance());
+    return new EventJsonUploadProcessor(experimentService, EventRetriever.getInstance(), EventDedup.getInstance());
   }
 
   public String processJsonEvents(String postBodyString, String whoFromLogin, String appIdHeader, String pacoVersion) {
+    return processJsonEvents(new StringReader(postBodyString), whoFromLogin, appIdHeader, pacoVersion);
+  }
+
+  /**
+   * Reads events off the stream one at a time, so only the event currently being
+   * posted (and its photos) is held in memory rather than the whole upload.
+   */
+  public String processJsonEvents(Reader postBody, String whoFromLogin, String appIdHeader, String pacoVersion) {
     try {
-      if (postBodyString.startsWith("[")) {
-        final JSONArray events = new JSONArray(postBodyString);
-        return toJson(processJsonArray(events, whoFromLogin, appIdHeader, pacoVersion));
-      } else {
-        final JSONObject currentEvent = new JSONObject(postBodyString);
-        return toJson(processSingleJsonEvent(currentEvent, whoFromLogin, appIdHeader, pacoVersion));
+      JsonParser parser = JsonConverter.getObjectMapper().getJsonFactory().createJsonParser(postBody);
+      try {
+        JsonToken firstToken = parser.nextToken();
+        if (firstToken == null) {
+          throw new IllegalArgumentException("Empty Post body");
+        } else if (firstToken == JsonToken.START_ARRAY) {
+          return toJson(processJsonArray(parser, whoFromLogin, appIdHeader, pacoVersion));
+        } else {
+          final JSONObject currentEvent = readJsonObject(parser);
+          return toJson(processSingleJsonEvent(currentEvent, whoFromLogin, appIdHeader, pacoVersion));
+        }
+      } finally {
+        parser.close();
       }
     } catch (JSONException e) {
       throw new IllegalArgumentException("JSON Exception reading post data: " + e.getMessage());
+    } catch (IOException e) {
+      throw new IllegalArgumentException("JSON Exception reading post data: " + e.getMessage());
     }
   }
 
+  private JSONObject readJsonObject(JsonParser parser) throws IOException, JSONException {
+    JsonNode node = parser.readValueAsTree();
+    if (node == null || !node.isObject()) {
+      throw new JSONException("Expected an event object but found: " + node);
+    }
+    return new JSONObject(node.toString());
+  }
+
   private String toJson(List<Outcome> outcomes) {
     ObjectMapper mapper = JsonConverter.getObjectMapper();
 
@@ -88,18 +129,25 @@ public class EventJsonUploadProcessor {
     return results;
   }
 
-  private List<Outcome> processJsonArray(JSONArray events, String whoFromLogin, String appIdHeader, String pacoVersionHeader) {
+  private List<Outcome> processJsonArray(JsonParser parser, String whoFromLogin, String appIdHeader, String pacoVersionHeader) throws IOException {
     List<Outcome> results = Lists.newArrayList();
     JSONObject currentEvent = null;
-    for (int i = 0; i < events.length(); i++) {
+    int i = 0;
+    while (parser.nextToken() != JsonToken.END_ARRAY) {
+      if (parser.getCurrentToken() == null) {
+        throw new IllegalArgumentException("JSON Exception reading post data: unterminated array of events");
+      }
       try {
-        currentEvent = events.getJSONObject(i);
+        currentEvent = readJsonObject(parser);
         results.add(postEvent(currentEvent, i, whoFromLogin, appIdHeader, pacoVersionHeader));
       } catch (JSONException e) {
         results.add(new Outcome(i, "JSONException posting event: " + i + ". " + e.getMessage()));
+      } catch (JsonProcessingException e) {
+        throw e;
       } catch (Throwable e) {
         results.add(new Outcome(i, "Exception posting event: " + i + ". " + e.getMessage()));
       }
+      i++;
     }
     return results;
   }
@@ -235,12 +283,11 @@ public class EventJsonUploadProcessor {
         }
 
         if (input != null && input.getResponseType() != null && input.getResponseType().equals(Input2.PHOTO) && !Strings.isNullOrEmpty(answer)) {
-          PhotoBlob photoBlob = new PhotoBlob(name, Base64.decodeBase64(answer.getBytes()));
+          PhotoBlob photoBlob = PhotoStore.createPhotoBlob(name, Base64.decodeBase64(answer.getBytes()));
           blobs.add(photoBlob);
           answer = "blob";
         } else if (input != null && input.getResponseType() != null && input.getResponseType().equals(Input2.AUDIO) && !Strings.isNullOrEmpty(answer)) {
-          // TODO Store audio in Google Cloud Storage
-          PhotoBlob photoBlob = new PhotoBlob(name, Base64.decodeBase64(answer.getBytes()));
+          PhotoBlob photoBlob = PhotoStore.createPhotoBlob(name, Base64.decodeBase64(answer.getBytes()));
           blobs.add(photoBlob);
           answer = "audioblob";
         } else if (answer != null && answer.length() >= 500) {
@@ -281,9 +328,22 @@ public class EventJsonUploadProcessor {
              + ", what length = " + whats.size());
 
 
+    String dedupKey = null;
+    if (eventDedup != null) {
+      String clientEventId = eventJson.has("clientEventId") ? eventJson.getString("clientEventId") : null;
+      dedupKey = EventDedup.computeKey(who, clientEventId, experimentIdStr, responseTime, scheduledTime);
+      if (dedupKey != null && eventDedup.isDuplicate(dedupKey)) {
+        // already stored by an earlier upload; report success so the client stops retrying it
+        return outcome;
+      }
+    }
+
     eventRetriever.postEvent(who, null, null, whenDate, appId, pacoVersion, whats, false, experimentIdStr,
-                                           experimentName, experimentVersion, responseTime, scheduledTime, blobs,
-                                           groupName, actionTriggerId, actionTriggerSpecId, actionId);
+                             experimentName, experimentVersion, responseTime, scheduledTime, blobs,
+                             groupName, actionTriggerId, actionTriggerSpecId, actionId);
+    if (dedupKey != null) {
+      eventDedup.record(dedupKey);
+    }
     return outcome;
   }
 
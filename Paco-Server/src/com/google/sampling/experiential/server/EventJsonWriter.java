@@ -0,0 +1,137 @@
+package com.google.sampling.experiential.server;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+import org.apache.commons.codec.binary.Base64;
+import org.codehaus.jackson.JsonGenerator;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.codehaus.jackson.map.SerializationConfig;
+import org.joda.time.DateTime;
+
+import com.google.common.collect.Maps;
+import com.google.sampling.experiential.model.Event;
+import com.google.sampling.experiential.model.PhotoBlob;
+import com.google.sampling.experiential.shared.EventDAO;
+import com.pacoapp.paco.shared.model2.JsonConverter;
+
+/**
+ * Writes events as the json of an EventDAOQueryResultPair, i.e.
+ * {"events":[...],"cursor":"..."}, one event at a time.
+ *
+ * Events go straight to the writer instead of being collected into a list of
+ * EventDAOs and then a String of the whole result, so the json of a large
+ * export is never held in memory.
+ */
+public class EventJsonWriter {
+
+  private static final Logger log = Logger.getLogger(EventJsonWriter.class.getName());
+
+  private final ObjectMapper mapper;
+  private final Anonymizer anonymizer;
+  private final String timezoneId;
+  private final boolean includePhotos;
+
+  /**
+   * @param anonymizer null if the who should be written as is
+   * @param timezoneId the timezone of the client, for response and scheduled times
+   * @param includePhotos whether to inline photo responses as base64
+   */
+  public EventJsonWriter(Anonymizer anonymizer, String timezoneId, boolean includePhotos) {
+    this.anonymizer = anonymizer;
+    this.timezoneId = timezoneId;
+    this.includePhotos = includePhotos;
+    this.mapper = JsonConverter.getObjectMapper();
+    // the caller flushes once at the end, not after every event
+    mapper.configure(SerializationConfig.Feature.FLUSH_AFTER_WRITE_VALUE, false);
+  }
+
+  public void write(Writer out, EventQueryResultPair eventQueryResultPair) throws IOException {
+    JsonGenerator generator = mapper.getJsonFactory().createJsonGenerator(out);
+    generator.writeStartObject();
+    generator.writeArrayFieldStart("events");
+    for (Event event : eventQueryResultPair.getEvents()) {
+      mapper.writeValue(generator, toEventDAO(event));
+    }
+    generator.writeEndArray();
+    if (eventQueryResultPair.getCursor() != null) {
+      generator.writeStringField("cursor", eventQueryResultPair.getCursor());
+    }
+    generator.writeEndObject();
+    generator.flush();
+  }
+
+  EventDAO toEventDAO(Event event) {
+    String userId = event.getWho();
+    if (anonymizer != null) {
+      userId = anonymizer.getAnonymousId(userId);
+    }
+    DateTime responseDateTime = event.getResponseTimeWithTimeZone(timezoneId);
+    Date responseTime = null;
+    if (responseDateTime != null) {
+      responseTime = responseDateTime.toGregorianCalendar().getTime();
+    }
+    DateTime scheduledDateTime = event.getScheduledTimeWithTimeZone(timezoneId);
+    Date scheduledTime = null;
+    if (scheduledDateTime != null) {
+      scheduledTime = scheduledDateTime.toDate();
+    }
+    Map<String, String> whatMap = event.getWhatView();
+    List<PhotoBlob> photos = event.getBlobs();
+    if (includePhotos && photos != null && photos.size() > 0) {
+      whatMap = inlinePhotos(event.getWhatMap(), photos);
+    }
+
+    return new EventDAO(userId,
+                        event.getWhen(),
+                        event.getExperimentName(),
+                        event.getLat(), event.getLon(),
+                        event.getAppId(),
+                        event.getPacoVersion(),
+                        whatMap,
+                        event.isShared(),
+                        responseTime,
+                        scheduledTime,
+                        null,
+                        Long.parseLong(event.getExperimentId()),
+                        event.getExperimentVersion(),
+                        event.getTimeZone(),
+                        event.getExperimentGroupName(),
+                        event.getActionTriggerId(),
+                        event.getActionTriggerSpecId(),
+                        event.getActionId());
+  }
+
+  private Map<String, String> inlinePhotos(Map<String, String> whatMap, List<PhotoBlob> photos) {
+    Map<String, PhotoBlob> photoByNames = Maps.newHashMap();
+    for (PhotoBlob photoBlob : photos) {
+      photoByNames.put(photoBlob.getName(), photoBlob);
+    }
+    for (String key : whatMap.keySet()) {
+      if (photoByNames.containsKey(key)) {
+        String value = "";
+        byte[] photoData;
+        try {
+          photoData = PhotoStore.readBytes(photoByNames.get(key));
+        } catch (PhotoStore.MissingPhotoException e) {
+          log.severe(e.getMessage());
+          whatMap.put(key, PhotoStore.MISSING_PHOTO);
+          continue;
+        }
+        if (photoData.length > 0) {
+          String photoString = new String(Base64.encodeBase64(photoData));
+          if (!photoString.equals("==")) {
+            value = photoString;
+          }
+        }
+        whatMap.put(key, value);
+      }
+    }
+    return whatMap;
+  }
+
+}
@@ -71,11 +71,11 @@ public class EventMatcher {
   private boolean compareMemberResultToQueryValue(Query query, Event event, String key) {
     String value = query.getValue();
     
-    if (event.getWhatMap().containsKey(key)) {
+    if (event.getWhatView().containsKey(key)) {
       if (value == null || value.length() == 0) {
         return true;
       }
-      return value.equals(event.getWhatMap().get(key));
+      return value.equals(event.getWhatView().get(key));
     } else {
       String upcasedKey = key.substring(0, 1).toUpperCase() + key.substring(1);      
       try {
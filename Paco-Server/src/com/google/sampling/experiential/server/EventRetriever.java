@@ -38,7 +38,6 @@ import org.joda.time.DateTimeZone;
 
 import com.google.appengine.api.datastore.Cursor;
 import com.google.appengine.api.datastore.DatastoreService;
-import com.google.appengine.api.datastore.DatastoreServiceFactory;
 import com.google.appengine.api.datastore.Entity;
 import com.google.appengine.api.datastore.FetchOptions;
 import com.google.appengine.api.datastore.PreparedQuery;
@@ -49,10 +48,13 @@ import com.google.common.base.Strings;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Sets;
 import com.google.sampling.experiential.datastore.EventEntityConverter;
+import com.google.sampling.experiential.datastore.ResponseIndexEntity;
 import com.google.sampling.experiential.model.Event;
 import com.google.sampling.experiential.model.Experiment;
 import com.google.sampling.experiential.model.PhotoBlob;
 import com.google.sampling.experiential.model.What;
+import com.google.sampling.experiential.server.metrics.MeteredDatastoreService;
+import com.google.sampling.experiential.server.metrics.MetricsRegistry;
 import com.google.sampling.experiential.server.stats.participation.ParticipationStatsService;
 import com.google.sampling.experiential.shared.EventDAO;
 
@@ -127,6 +129,9 @@ public class EventRetriever {
     Event event = new Event(who, lat, lon, whenDate, appId, pacoVersion, what, shared,
         experimentId, experimentName, experimentVersion, responseTime, scheduledTime, blobs, tz,
         groupName, actionTriggerId, actionTriggerSpecId, actionId);
+    if (ResponseIndexEntity.isEnabled(experimentId)) {
+      event.setResponseIndex(ResponseIndex.tokensFor(event.getWhatKeys(), event.getWhatValues()));
+    }
     Transaction tx = null;
     try {
       tx = pm.currentTransaction();
@@ -157,11 +162,10 @@ public class EventRetriever {
       q.setOrdering("when desc");
       q.setFilter("who = whoParam");
       q.declareParameters("String whoParam");
-      long t11 = System.currentTimeMillis();
+      MetricsRegistry.Timer timer = MetricsRegistry.getInstance().startTimer("events.getEventsForUser");
       List<Event> events = (List<Event>) q.execute(loggedInUser);
       adjustTimeZone(events);
-      long t12 = System.currentTimeMillis();
-      log.info("get execute time: " + (t12 - t11));
+      log.info("get execute time: " + timer.stop());
       return events;
   }
 
@@ -175,7 +179,7 @@ public class EventRetriever {
     PersistenceManager pm = PMF.get().getPersistenceManager();
     EventJDOQuery eventJDOQuery = createJDOQueryFrom(pm, queryFilters, clientTimeZone);
 
-    long t11 = System.currentTimeMillis();
+    MetricsRegistry.Timer timer = MetricsRegistry.getInstance().startTimer("events.getEvents");
 
     List<Long> adminExperiments = getExperimentsForAdmin(loggedInuser);
     log.info("Loggedin user's administered experiments: " + loggedInuser + " has ids: "
@@ -209,8 +213,7 @@ public class EventRetriever {
       addAllSharedEvents(queryFilters, clientTimeZone, allEvents, pm);
     }
 
-    long t12 = System.currentTimeMillis();
-    log.info("get execute time: " + (t12 - t11));
+    log.info("get execute time: " + timer.stop());
 
     ArrayList<Event> newArrayList = Lists.newArrayList(allEvents);
     sortList(newArrayList);
@@ -277,14 +280,14 @@ public class EventRetriever {
     } else {
       queryResults = (List<Event>) query.execute();
     }
-    allEvents.addAll(queryResults);
+    allEvents.addAll(eventJDOQuery.getPrefixMatcher().filter(queryResults));
     adjustTimeZone(allEvents);
   }
 
   private void executeQuery(Set<Event> allEvents, EventDSQuery eventJDOQuery) {
 
     //
-    DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
+    DatastoreService datastore = MeteredDatastoreService.getDatastoreService();
     Cursor cursor = null;
     while (true) {
       int pageSize = 1000;
@@ -304,7 +307,10 @@ public class EventRetriever {
         break;
       }
       for (Entity entity : results) {
-        allEvents.add(createEventFromEntity(entity));
+        Event event = createEventFromEntity(entity);
+        if (eventJDOQuery.getPrefixMatcher().matches(event)) {
+          allEvents.add(event);
+        }
       }
       cursor = results.getCursor();
       if (cursor == null) {
@@ -350,7 +356,7 @@ public class EventRetriever {
     sharedQ.addFilters("shared == true");
     Query queryShared = sharedQ.getQuery();
     List<Event> sharedEvents = (List<Event>)queryShared.executeWithArray(sharedQ.getParameters().toArray());
-    allEvents.addAll(sharedEvents);
+    allEvents.addAll(sharedQ.getPrefixMatcher().filter(sharedEvents));
     adjustTimeZone(allEvents);
   }
 
@@ -408,6 +414,18 @@ public class EventRetriever {
     return false;
   }
 
+  /**
+   * The response index only covers the experiments that opted in, so it can
+   * only be used when the query is restricted to one of them.
+   */
+  private boolean isResponseIndexQueryable(List<com.google.sampling.experiential.server.Query> queryFilters) {
+    if (queryFilters == null) {
+      return false;
+    }
+    Long experimentId = getExperimentIdFromFilter(queryFilters);
+    return experimentId != null && ResponseIndexEntity.isQueryable(experimentId.toString());
+  }
+
   private Long getExperimentIdFromFilter(List<com.google.sampling.experiential.server.Query> queryFilters) {
     for (com.google.sampling.experiential.server.Query query : queryFilters) {
       if (query.getKey().equals("experimentId")) {
@@ -462,11 +480,30 @@ public class EventRetriever {
                                            List<com.google.sampling.experiential.server.Query> queryFilters,
                                            DateTimeZone clientTimeZone) {
     Query newQuery = pm.newQuery(Event.class);
-    JDOQueryBuilder queryBuilder = new JDOQueryBuilder(newQuery);
+    JDOQueryBuilder queryBuilder = new JDOQueryBuilder(newQuery, isResponseIndexQueryable(queryFilters));
     queryBuilder.addFilters(queryFilters, clientTimeZone);
     return queryBuilder.getQuery();
   }
 
+  /**
+   * Sorts by when, newest first, and drops the second copy of a stored event.
+   * A participant's own shared events are returned by both the own and the
+   * shared query. The query already orders by "when desc", and sorting an
+   * already sorted list is a single pass, so the sort is kept rather than
+   * relying on the datastore order.
+   */
+  static List<Event> newestFirst(Collection<Event> events) {
+    List<Event> newestFirst = Lists.newArrayListWithCapacity(events.size());
+    Set<Long> ids = Sets.newHashSet();
+    for (Event event : events) {
+      if (event.getId() == null || ids.add(event.getId())) {
+        newestFirst.add(event);
+      }
+    }
+    sortEvents(newestFirst);
+    return newestFirst;
+  }
+
   public static void sortEvents(List<Event> greetings) {
     Comparator<Event> dateComparator = new Comparator<Event>() {
       @Override
@@ -492,7 +529,7 @@ public class EventRetriever {
     for (Event event : result) {
       eventDAOs.add(new EventDAO(event.getWho(), event.getWhen(), event.getExperimentName(),
           event.getLat(), event.getLon(), event.getAppId(), event.getPacoVersion(),
-          event.getWhatMap(), event.isShared(), event.getResponseTime(), event.getScheduledTime(),
+          event.getWhatView(), event.isShared(), event.getResponseTime(), event.getScheduledTime(),
           toBase64StringArray(event.getBlobs()), Long.parseLong(event.getExperimentId()), event.getExperimentVersion(),
           event.getTimeZone(), event.getExperimentGroupName(), event.getActionTriggerId(), event.getActionTriggerSpecId(), event.getActionId()));
     }
@@ -501,12 +538,17 @@ public class EventRetriever {
 
   /**
    * @param blobs
-   * @return
+   * @return the base64 of each photo, or PhotoStore.MISSING_PHOTO for one that cannot be read
    */
   public static String[] toBase64StringArray(List<PhotoBlob> blobs) {
     String[] results = new String[blobs.size()];
     for (int i =0; i < blobs.size(); i++) {
-      results[i] = new String(Base64.encodeBase64(blobs.get(i).getValue()));
+      try {
+        results[i] = new String(Base64.encodeBase64(PhotoStore.readBytes(blobs.get(i))));
+      } catch (PhotoStore.MissingPhotoException e) {
+        log.severe(e.getMessage());
+        results[i] = PhotoStore.MISSING_PHOTO;
+      }
     }
     return results;
   }
@@ -520,7 +562,7 @@ public class EventRetriever {
     PersistenceManager pm = PMF.get().getPersistenceManager();
     EventDSQuery eventJDOQuery = createDSQueryFrom(pm, query, timeZoneForClient, offset, limit);
 
-    long t11 = System.currentTimeMillis();
+    MetricsRegistry.Timer timer = MetricsRegistry.getInstance().startTimer("events.getEventsFromLowLevelDS");
 
     if (isDevMode(requestorEmail) || isUserQueryingTheirOwnData(requestorEmail, eventJDOQuery)) {
       log.info("dev mode or user querying self data");
@@ -537,8 +579,7 @@ public class EventRetriever {
     }
 
 
-    long t12 = System.currentTimeMillis();
-    log.info("get execute time: " + (t12 - t11));
+    log.info("get execute time: " + timer.stop());
 
     ArrayList<Event> newArrayList = Lists.newArrayList(allEvents);
     sortList(newArrayList);
@@ -555,22 +596,26 @@ public class EventRetriever {
                                          List<com.google.sampling.experiential.server.Query> query,
                                          DateTimeZone timeZoneForClient, int offset, int limit) {
     Query newQuery = pm.newQuery(Event.class);
-    DSQueryBuilder queryBuilder = new DSQueryBuilder(newQuery);
+    DSQueryBuilder queryBuilder = new DSQueryBuilder(newQuery, isResponseIndexQueryable(query));
     queryBuilder.addFilters(query, timeZoneForClient);
     return queryBuilder.getQuery();
 
   }
 
+  /**
+   * Returns one page of at most limit events, newest first, and the cursor of
+   * the next page, or null after the last page.
+   */
   public EventQueryResultPair getEventsInBatches(List<com.google.sampling.experiential.server.Query> queryFilters,
                                         String loggedInuser, DateTimeZone clientTimeZone, int limit, String cursor) {
     if (limit == 0) {
       limit = DEFAULT_FETCH_LIMIT;
     }
-    Set<Event> allEvents = Sets.newHashSet();
+    Set<Event> allEvents = Sets.newLinkedHashSet();
     PersistenceManager pm = PMF.get().getPersistenceManager();
     EventJDOQuery eventJDOQuery = createJDOQueryFrom(pm, queryFilters, clientTimeZone);
 
-    long t11 = System.currentTimeMillis();
+    MetricsRegistry.Timer timer = MetricsRegistry.getInstance().startTimer("events.getEventsInBatches");
 
     List<Long> adminExperiments = getExperimentsForAdmin(loggedInuser);
     log.info("Loggedin user's administered experiments: " + loggedInuser + " has ids: "
@@ -605,13 +650,10 @@ public class EventRetriever {
       addAllSharedEvents(queryFilters, clientTimeZone, allEvents, pm);
     }
 
-    long t12 = System.currentTimeMillis();
-    log.info("get execute time: " + (t12 - t11));
+    log.info("get execute time: " + timer.stop());
     log.info("retrieved " + allEvents.size() + " experiments");
 
-    ArrayList<Event> newArrayList = Lists.newArrayList(allEvents);
-    sortList(newArrayList);
-    return new EventQueryResultPair(newArrayList, nextCursor);
+    return new EventQueryResultPair(newestFirst(allEvents), nextCursor);
   }
 
   private String executeQueryInBatches(Set<Event> allEvents, EventJDOQuery eventJDOQuery, int limit, String websafeCursor) {
@@ -646,7 +688,9 @@ public class EventRetriever {
       }
 
       Collection<Event> detachedResults = q.getPersistenceManager().detachCopyAll(currentResults);
-      allEvents.addAll(detachedResults);
+      // a response prefix is tested here, so a page can hold fewer than limit events.
+      // The cursor still comes from the unfiltered results.
+      allEvents.addAll(eventJDOQuery.getPrefixMatcher().filter(detachedResults));
 
       // log.info("Accumulated result count: " + allEvents.size());
       Cursor newCursor = JDOCursorHelper.getCursor(currentResults);
@@ -655,6 +699,9 @@ public class EventRetriever {
       } else {
         cursor = newCursor;
       }
+    } else {
+      // past the last result, so there is nothing more to page through
+      cursor = null;
     }
 
     // }
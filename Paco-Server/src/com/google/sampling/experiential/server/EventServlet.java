@@ -18,43 +18,29 @@ package com.google.sampling.experiential.server;
 
 import java.io.BufferedReader;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.PrintWriter;
+import java.io.Reader;
 import java.io.UnsupportedEncodingException;
-import java.net.HttpURLConnection;
-import java.net.MalformedURLException;
-import java.net.SocketTimeoutException;
-import java.net.URL;
-import java.util.Date;
 import java.util.HashSet;
 import java.util.List;
-import java.util.Map;
 import java.util.Set;
 import java.util.logging.Logger;
+import java.util.zip.GZIPInputStream;
 
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
-import org.apache.commons.codec.binary.Base64;
 import org.apache.commons.fileupload.FileUploadException;
 import org.apache.commons.fileupload.servlet.ServletFileUpload;
-import org.codehaus.jackson.JsonGenerationException;
-import org.codehaus.jackson.map.JsonMappingException;
-import org.codehaus.jackson.map.ObjectMapper;
-import org.joda.time.DateTime;
 import org.joda.time.DateTimeZone;
 
-import com.google.appengine.api.modules.ModulesService;
-import com.google.appengine.api.modules.ModulesServiceFactory;
 import com.google.appengine.api.users.User;
 import com.google.common.base.Strings;
 import com.google.common.collect.Lists;
-import com.google.common.collect.Maps;
 import com.google.sampling.experiential.model.Event;
-import com.google.sampling.experiential.model.PhotoBlob;
-import com.google.sampling.experiential.shared.EventDAO;
-import com.pacoapp.paco.shared.model2.JsonConverter;
 
 /**
  * Servlet that answers queries for Events.
@@ -65,6 +51,13 @@ import com.pacoapp.paco.shared.model2.JsonConverter;
 public class EventServlet extends HttpServlet {
 
   public static final Logger log = Logger.getLogger(EventServlet.class.getName());
+
+  /**
+   * Most events returned by one synchronous json request. Larger results are
+   * paged with the returned cursor, or exported with backend=true.
+   */
+  static final int MAX_JSON_PAGE_SIZE = 1000;
+
   private String defaultAdmin = "bobevans@google.com";
   private List<String> adminUsers = Lists.newArrayList(defaultAdmin);
 
@@ -103,7 +96,7 @@ public class EventServlet extends HttpServlet {
       } else if (req.getParameter("json") != null) {
         if (!doJsonOnBackend) {
           resp.setContentType("application/json;charset=UTF-8");
-          dumpEventsJson(resp, req, anon, includePhotos, limit, cursor, cmdline);
+          dumpEventsJson(resp, req, anon, includePhotos, getJsonPageSize(limit), cursor, cmdline);
         } else {
           dumpEventJsonUsingBackend(resp, req, anon, includePhotos, limit, cursor, cmdline);
         }
@@ -111,6 +104,8 @@ public class EventServlet extends HttpServlet {
         dumpPhotosZip(resp, req, anon, limit, cursor, cmdline);
       } else if (req.getParameter("csv") != null) {
         dumpEventsCSV(resp, req, anon, limit, cursor, cmdline);
+      } else if (req.getParameter("archive") != null) {
+        archiveEvents(resp, req, cmdline);
       } else {
         dumpEventsHtml(resp, req, anon, limit, cursor, cmdline);
       }
@@ -125,12 +120,7 @@ public class EventServlet extends HttpServlet {
     }
 
     DateTimeZone timeZoneForClient = TimeUtil.getTimeZoneForClient(req);
-    String jobId = runReportJob(anon, loggedInuser, timeZoneForClient, req, "json", limit, cursor);
-    // Give the backend time to startup and register the job.
-    try {
-      Thread.sleep(100);
-    } catch (InterruptedException e) {
-    }
+    String jobId = runReportJob(anon, loggedInuser, timeZoneForClient, req, "json", limit, cursor, includePhotos);
     if (cmdline) {
       resp.getWriter().println(jobId);
     } else {
@@ -149,11 +139,12 @@ public class EventServlet extends HttpServlet {
     for (Event event : events) {
       whos.add(event.getWho());
     }
+    Anonymizer anonymizer = getAnonymizerForQuery(query);
     StringBuilder mappingOutput = new StringBuilder();
     for (String who : whos) {
       mappingOutput.append(who);
       mappingOutput.append(",");
-      mappingOutput.append(Event.getAnonymousId(who));
+      mappingOutput.append(anonymizer.getAnonymousId(who));
       mappingOutput.append("\n");
     }
     resp.setContentType("text/csv;charset=UTF-8");
@@ -163,93 +154,30 @@ public class EventServlet extends HttpServlet {
 
   private void dumpEventsJson(HttpServletResponse resp, HttpServletRequest req, boolean anon, boolean includePhotos, int limit, String cursor, boolean cmdline) throws IOException {
     List<com.google.sampling.experiential.server.Query> query = new QueryParser().parse(stripQuotes(HttpUtil.getParam(req, "q")));
+    // newest first, see EventRetriever.newestFirst
     EventQueryResultPair eventQueryPair = getEventsWithQuery(req, query, limit, cursor);
-    List<Event> events = eventQueryPair.getEvents();
-    EventRetriever.sortEvents(events);
 
-    String jsonOutput = jsonifyEvents(eventQueryPair, anon, TimeUtil.getTimeZoneForClient(req).getID(), includePhotos);
-    resp.getWriter().println(jsonOutput);
+    Anonymizer anonymizer = anon ? getAnonymizerForQuery(query) : null;
+    PrintWriter out = resp.getWriter();
+    new EventJsonWriter(anonymizer, TimeUtil.getTimeZoneForClient(req).getID(), includePhotos).write(out, eventQueryPair);
+    out.println();
   }
 
-  private String jsonifyEvents(EventQueryResultPair eventQueryPair, boolean anon, String timezoneId, boolean includePhotos) {
-    ObjectMapper mapper = JsonConverter.getObjectMapper();
-
-    try {
-      List<EventDAO> eventDAOs = Lists.newArrayList();
-      for (Event event : eventQueryPair.getEvents()) {
-        String userId = event.getWho();
-        if (anon) {
-          userId = Event.getAnonymousId(userId);
-        }
-        DateTime responseDateTime = event.getResponseTimeWithTimeZone(timezoneId);
-        Date responseTime = null;
-        if (responseDateTime != null) {
-          responseTime = responseDateTime.toGregorianCalendar().getTime();
-        }
-        DateTime scheduledDateTime = event.getScheduledTimeWithTimeZone(timezoneId);
-        Date scheduledTime = null;
-        if (scheduledDateTime != null) {
-          scheduledTime = scheduledDateTime.toDate();
-        }
-        final Map<String, String> whatMap = event.getWhatMap();
-        List<PhotoBlob> photos = event.getBlobs();
-        String[] photoBlobs = null;
-        if (includePhotos && photos != null && photos.size() > 0) {
-
-          photoBlobs = new String[photos.size()];
-
-          Map<String, PhotoBlob> photoByNames = Maps.newConcurrentMap();
-          for (PhotoBlob photoBlob : photos) {
-            photoByNames.put(photoBlob.getName(), photoBlob);
-          }
-          for(String key : whatMap.keySet()) {
-            String value = null;
-            if (photoByNames.containsKey(key)) {
-              byte[] photoData = photoByNames.get(key).getValue();
-              if (photoData != null && photoData.length > 0) {
-                String photoString = new String(Base64.encodeBase64(photoData));
-                if (!photoString.equals("==")) {
-                  value = photoString;
-                } else {
-                  value = "";
-                }
-              } else {
-                value = "";
-              }
-              whatMap.put(key, value);
-            }
-          }
-        }
+  static int getJsonPageSize(int requestedLimit) {
+    if (requestedLimit <= 0 || requestedLimit > MAX_JSON_PAGE_SIZE) {
+      return MAX_JSON_PAGE_SIZE;
+    }
+    return requestedLimit;
+  }
 
-        eventDAOs.add(new EventDAO(userId,
-                                   event.getWhen(),
-                                   event.getExperimentName(),
-                                   event.getLat(), event.getLon(),
-                                   event.getAppId(),
-                                   event.getPacoVersion(),
-                                   whatMap,
-                                   event.isShared(),
-                                   responseTime,
-                                   scheduledTime,
-                                   null,
-                                   Long.parseLong(event.getExperimentId()),
-                                   event.getExperimentVersion(),
-                                   event.getTimeZone(),
-                                   event.getExperimentGroupName(),
-                                   event.getActionTriggerId(),
-                                   event.getActionTriggerSpecId(),
-                                   event.getActionId()));
+  private Anonymizer getAnonymizerForQuery(List<com.google.sampling.experiential.server.Query> query) {
+    String experimentId = null;
+    for (com.google.sampling.experiential.server.Query query2 : query) {
+      if (query2.getKey().equals("experimentId")) {
+        experimentId = query2.getValue();
       }
-      EventDAOQueryResultPair eventDaoQueryResultPair = new EventDAOQueryResultPair(eventDAOs, eventQueryPair.getCursor());
-      return mapper.writeValueAsString(eventDaoQueryResultPair);
-    } catch (JsonGenerationException e) {
-      e.printStackTrace();
-    } catch (JsonMappingException e) {
-      e.printStackTrace();
-    } catch (IOException e) {
-      e.printStackTrace();
     }
-    return "Error could not retrieve events as json";
+    return Anonymizer.forExperiment(experimentId);
   }
 
   private void dumpEventsCSV(HttpServletResponse resp, HttpServletRequest req, boolean anon, int limit, String cursor, boolean cmdline) throws IOException {
@@ -259,12 +187,7 @@ public class EventServlet extends HttpServlet {
     }
 
     DateTimeZone timeZoneForClient = TimeUtil.getTimeZoneForClient(req);
-    String jobId = runReportJob(anon, loggedInuser, timeZoneForClient, req, "csv", limit, cursor);
-    // Give the backend time to startup and register the job.
-    try {
-      Thread.sleep(100);
-    } catch (InterruptedException e) {
-    }
+    String jobId = runReportJob(anon, loggedInuser, timeZoneForClient, req, "csv", limit, cursor, false);
     if (cmdline) {
       resp.getWriter().println(jobId);
     } else {
@@ -281,12 +204,7 @@ public class EventServlet extends HttpServlet {
     }
 
     DateTimeZone timeZoneForClient = TimeUtil.getTimeZoneForClient(req);
-    String jobId = runReportJob(anon, loggedInuser, timeZoneForClient, req, "html", limit, cursor);
-    // Give the backend time to startup and register the job.
-    try {
-      Thread.sleep(100);
-    } catch (InterruptedException e) {
-    }
+    String jobId = runReportJob(anon, loggedInuser, timeZoneForClient, req, "html", limit, cursor, true);
     if (cmdline) {
       resp.getWriter().println(jobId);
     } else {
@@ -302,12 +220,7 @@ public class EventServlet extends HttpServlet {
 
     DateTimeZone timeZoneForClient = TimeUtil.getTimeZoneForClient(req);
 
-    String jobId = runReportJob(anon, loggedInuser, timeZoneForClient, req, "photozip", limit, cursor);
-    // Give the backend time to startup and register the job.
-    try {
-      Thread.sleep(100);
-    } catch (InterruptedException e) {
-    }
+    String jobId = runReportJob(anon, loggedInuser, timeZoneForClient, req, "photozip", limit, cursor, false);
     if (cmdline) {
       resp.getWriter().println(jobId);
     } else {
@@ -316,9 +229,25 @@ public class EventServlet extends HttpServlet {
   }
 
 
+  /**
+   * Compacts the events of the experiment in the query into an EventArchive,
+   * which later csv and json reports of the whole experiment read from.
+   */
+  private void archiveEvents(HttpServletResponse resp, HttpServletRequest req, boolean cmdline) throws IOException {
+    String loggedInuser = AuthUtil.getWhoFromLogin().getEmail().toLowerCase();
+    DateTimeZone timeZoneForClient = TimeUtil.getTimeZoneForClient(req);
+
+    String jobId = runReportJob(false, loggedInuser, timeZoneForClient, req, "archive", 0, null, false);
+    if (cmdline) {
+      resp.getWriter().println(jobId);
+    } else {
+      resp.sendRedirect("/jobStatus?jobId=" + jobId);
+    }
+  }
+
 
   /**
-   * Triggers a backend instance call to start the potentially-long-running job
+   * Queues the potentially-long-running job for the reportworker backend
    *
    * @param anon
    * @param loggedInuser
@@ -327,64 +256,16 @@ public class EventServlet extends HttpServlet {
    * @param reportFormat
    * @param limit
    * @param cursor
+   * @param includePhotos
    * @return the jobId to check in on the status of this background job
-   * @throws IOException
    */
   private String runReportJob(boolean anon, String loggedInuser, DateTimeZone timeZoneForClient,
-                                 HttpServletRequest req, String reportFormat, int limit, String cursor) throws IOException {
-    ModulesService modulesApi = ModulesServiceFactory.getModulesService();
-    String backendAddress = modulesApi.getVersionHostname("reportworker", modulesApi.getDefaultVersion("reportworker"));
-     try {
-
-      BufferedReader reader = null;
-      try {
-        reader = sendToBackend(timeZoneForClient, req, backendAddress, reportFormat, cursor, limit);
-      } catch (SocketTimeoutException se) {
-        log.info("Timed out sending to backend. Trying again...");
-        try {
-          Thread.sleep(100);
-        } catch (InterruptedException e) {
-        }
-        reader = sendToBackend(timeZoneForClient, req, backendAddress, reportFormat, cursor, limit);
-      }
-      if (reader != null) {
-        StringBuilder buf = new StringBuilder();
-        String line;
-        while ((line = reader.readLine()) != null) {
-          buf.append(line);
-        }
-        reader.close();
-        return buf.toString();
-      }
-    } catch (MalformedURLException e) {
-      log.severe("MalformedURLException: " + e.getMessage());
-    }
-    return null;
-  }
-
-  private BufferedReader sendToBackend(DateTimeZone timeZoneForClient, HttpServletRequest req,
-                                       String backendAddress, String reportFormat, String cursor, int limit) throws MalformedURLException, IOException {
-
-    String httpScheme = "https";
-    String localAddr = req.getLocalAddr();
-    if (localAddr != null && localAddr.matches("127.0.0.1")) {
-      httpScheme = "http";
-    }
-    URL url = new URL(httpScheme + "://" + backendAddress + "/backendReportJobExecutor?q=" +
-            req.getParameter("q") +
-            "&who="+AuthUtil.getWhoFromLogin().getEmail().toLowerCase() +
-            "&anon=" + req.getParameter("anon") +
-            "&includePhotos=" +req.getParameter("includePhotos") +
-            "&tz=" + timeZoneForClient +
-            "&reportFormat=" + reportFormat +
-            "&cursor=" + cursor +
-            "&limit=" + limit);
-    log.info("URL to backend = " + url.toString());
-    HttpURLConnection connection = (HttpURLConnection) url.openConnection();
-    connection.setInstanceFollowRedirects(false);
-    InputStreamReader inputStreamReader = new InputStreamReader(connection.getInputStream());
-    BufferedReader reader = new BufferedReader(inputStreamReader);
-    return reader;
+                              HttpServletRequest req, String reportFormat, int limit, String cursor,
+                              boolean includePhotos) {
+    String queryParam = HttpUtil.getParam(req, "q");
+    List<com.google.sampling.experiential.server.Query> query = new QueryParser().parse(stripQuotes(queryParam));
+    return ReportJobExecutor.getInstance().runReportJob(loggedInuser, timeZoneForClient, query, anon, reportFormat,
+                                                        queryParam, limit, cursor, includePhotos);
   }
 
   private String stripQuotes(String parameter) {
@@ -435,21 +316,26 @@ public class EventServlet extends HttpServlet {
     }
   }
   private void processJsonUpload(HttpServletRequest req, HttpServletResponse resp) throws IOException {
-    String postBodyString;
-    try {
-      postBodyString = org.apache.commons.io.IOUtils.toString(req.getInputStream(), "UTF-8");
-    } catch (IOException e) {
-      log.info("IO Exception reading post data stream: " + e.getMessage());
-      throw e;
-    }
-    if (postBodyString.equals("")) {
-      throw new IllegalArgumentException("Empty Post body");
+    InputStream postBodyStream = req.getInputStream();
+    if ("gzip".equalsIgnoreCase(req.getHeader("Content-Encoding"))) {
+      try {
+        postBodyStream = new GZIPInputStream(postBodyStream);
+      } catch (IOException e) {
+        log.info("IO Exception reading gzipped post data stream: " + e.getMessage());
+        throw e;
+      }
     }
+    Reader postBody = new BufferedReader(new InputStreamReader(postBodyStream, "UTF-8"));
 
     String appIdHeader = req.getHeader("http.useragent");
     String pacoVersion = req.getHeader("paco.version");
     log.info("Paco version = " + pacoVersion);
-    String results = EventJsonUploadProcessor.create().processJsonEvents(postBodyString, AuthUtil.getEmailOfUser(req, AuthUtil.getWhoFromLogin()), appIdHeader, pacoVersion);
+    String results;
+    try {
+      results = EventJsonUploadProcessor.create().processJsonEvents(postBody, AuthUtil.getEmailOfUser(req, AuthUtil.getWhoFromLogin()), appIdHeader, pacoVersion);
+    } finally {
+      postBody.close();
+    }
     resp.setContentType("application/json;charset=UTF-8");
     resp.getWriter().write(results);
   }
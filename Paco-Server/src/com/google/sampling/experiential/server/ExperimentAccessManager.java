@@ -2,6 +2,7 @@ package com.google.sampling.experiential.server;
 
 import java.util.Date;
 import java.util.List;
+import java.util.Set;
 import java.util.logging.Logger;
 
 import org.joda.time.DateTime;
@@ -9,7 +10,6 @@ import org.joda.time.DateTimeZone;
 
 import com.google.appengine.api.datastore.Cursor;
 import com.google.appengine.api.datastore.DatastoreService;
-import com.google.appengine.api.datastore.DatastoreServiceFactory;
 import com.google.appengine.api.datastore.Entity;
 import com.google.appengine.api.datastore.FetchOptions;
 import com.google.appengine.api.datastore.Key;
@@ -23,8 +23,10 @@ import com.google.appengine.api.datastore.Transaction;
 import com.google.appengine.api.datastore.TransactionOptions;
 import com.google.common.base.Strings;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
 import com.google.sampling.experiential.datastore.ExperimentJsonEntityManager;
 import com.google.sampling.experiential.datastore.PublicExperimentList;
+import com.google.sampling.experiential.server.metrics.MeteredDatastoreService;
 import com.pacoapp.paco.shared.model2.ExperimentDAO;
 import com.pacoapp.paco.shared.model2.ExperimentIdQueryResult;
 import com.pacoapp.paco.shared.model2.ExperimentJoinQueryResult;
@@ -55,7 +57,7 @@ public class ExperimentAccessManager {
   }
 
   public static boolean isUserAdmin(Long experimentId, String loggedInUserEmail) {
-    DatastoreService ds = DatastoreServiceFactory.getDatastoreService();
+    DatastoreService ds = MeteredDatastoreService.getDatastoreService();
 
     List<Filter> filters = Lists.newArrayList();
     filters.add(new com.google.appengine.api.datastore.Query.FilterPredicate(EXPERIMENT_ID, FilterOperator.EQUAL, experimentId));
@@ -70,7 +72,7 @@ public class ExperimentAccessManager {
   }
 
   public static boolean isUserAdmin(List<Long> experimentIds, String loggedInUserEmail) {
-    DatastoreService ds = DatastoreServiceFactory.getDatastoreService();
+    DatastoreService ds = MeteredDatastoreService.getDatastoreService();
 
     List<Filter> filters = Lists.newArrayList();
     filters.add(new com.google.appengine.api.datastore.Query.FilterPredicate(EXPERIMENT_ID, FilterOperator.IN, experimentIds));
@@ -166,7 +168,7 @@ public class ExperimentAccessManager {
 
   public static void updateAccessControlEntities(DatastoreService ds, Transaction tx, ExperimentDAO experiment, Key experimentKey, DateTimeZone timezone) {
     updateAdminTable(tx, ds, experiment, experimentKey);
-    updateParticipantTable(/*tx,*/ ds, experiment, experimentKey);
+    PublishedUserAclFanOut.queuePlan(ds, tx, experimentKey.getId(), experiment.getVersion());
     updatePublicTable(/*tx,*/ ds, experiment, experimentKey, timezone);
   }
 
@@ -175,82 +177,49 @@ public class ExperimentAccessManager {
     PublicExperimentList.updatePublicExperimentsList(/*tx,*/ ds, experiment, experimentKey, now);
   }
 
-  private static void updateParticipantTable(/*Transaction tx, */DatastoreService ds, ExperimentDAO experiment, Key experimentKey) {
+  /**
+   * @return the published users of the experiment who have no acl yet, and
+   * the keys of the acls of users it is no longer published to. An
+   * unpublished experiment keeps no acls.
+   */
+  static Pair<List<String>, List<Key>> getPublishedUserAclChanges(DatastoreService ds, ExperimentDAO experiment) {
+    Key experimentKey = ExperimentJsonEntityManager.createkeyForId(experiment.getId());
     List<Entity> existingPublishedUserAcls = getExistingPublishedUsersForExperiment(/*tx,*/ ds, experimentKey, false);
-    if (!experiment.getPublished() && existingPublishedUserAcls.isEmpty()) {
-      return; // not published and nothing to remove and no reason to add
-    } else if (!experiment.getPublished() && existingPublishedUserAcls.size() > 0) {
-      List<Key> aclsToBeRemoved = Lists.newArrayList();
+    List<String> aclsToBeAdded = Lists.newArrayList();
+    List<Key> aclsToBeRemoved = Lists.newArrayList();
+    if (!experiment.getPublished() || experiment.getPublishedUsers() == null) {
       for (Entity existing : existingPublishedUserAcls) {
         aclsToBeRemoved.add(existing.getKey());
       }
-      removePublishedUserAcls(/*tx,*/ ds, aclsToBeRemoved);
-      return;
     } else {
-      List<String> newPublishedUsersMixedCase = experiment.getPublishedUsers();
-      List<String> newPublishedUsers = lowerCaseEmails(newPublishedUsersMixedCase);
-      if (!existingPublishedUserAcls.isEmpty()) {
-        List<Key> aclsToBeRemoved = Lists.newArrayList();
-        for (Entity entity : existingPublishedUserAcls) {
-          String existingUserEmail = (String) entity.getProperty(USER_ID);
-          if (!newPublishedUsers.contains(existingUserEmail)) {
-            aclsToBeRemoved.add(entity.getKey());
-          } else {
-            newPublishedUsers.remove(existingUserEmail);
-          }
+      Set<String> newPublishedUsers = Sets.newLinkedHashSet(lowerCaseEmails(experiment.getPublishedUsers()));
+      for (Entity entity : existingPublishedUserAcls) {
+        String existingUserEmail = (String) entity.getProperty(USER_ID);
+        if (!newPublishedUsers.remove(existingUserEmail)) {
+          aclsToBeRemoved.add(entity.getKey());
         }
-        removePublishedUserAcls(/*tx,*/ ds, aclsToBeRemoved);
       }
-      addPublishedUserAcls(/*tx,*/ ds, newPublishedUsers, experimentKey.getId());
+      aclsToBeAdded.addAll(newPublishedUsers);
     }
+    return new Pair<List<String>, List<Key>>(aclsToBeAdded, aclsToBeRemoved);
   }
 
-  public static void addPublishedUserAcls(/*Transaction tx2,*/ DatastoreService ds, List<String> newPublishedList,
-                                         final long experimentId) {
-//    List<Entity> newPublishedAcls = Lists.newArrayList();
-//    for (String admin : newPublishedList) {
-//      Entity userAccess = createPublishedUserAclEntity(experimentId, admin);
-//      newPublishedAcls.add(userAccess);
-//    }
-//    if (!newPublishedAcls.isEmpty()) {
-//      ds.put(/*tx,*/ newPublishedAcls);
-//    }
-
-    int startPosition = 0;
-    int totalCount = newPublishedList.size();
-    log.info("AddPublishedUsers. Count: " + newPublishedList.size());
-    final int batchsize = 5;
-    while (startPosition < totalCount) {
-      int fullrangeLeft = totalCount - startPosition;
-      int nextBucketSize = Math.min(batchsize, fullrangeLeft);
-
-      List<String> subList = newPublishedList.subList(startPosition, startPosition + nextBucketSize);
-
-      Transaction tx = null;
-      try {
-        TransactionOptions options = TransactionOptions.Builder.withXG(true);
-        tx = ds.beginTransaction(options);
-        List<Entity> newJoinedAcls = Lists.newArrayList();
-        for (String admin : subList) {
-          Entity userAccess = createPublishedUserAclEntity(experimentId, admin);
-          newJoinedAcls.add(userAccess);
-        }
-        if (!newJoinedAcls.isEmpty()) {
-          ds.put(tx, newJoinedAcls);
-          tx.commit();
-        }
-      } finally {
-        if (tx != null && tx.isActive()) {
-          tx.rollback();
-        }
-      }
-      startPosition = startPosition + nextBucketSize;
+  /**
+   * Writes the acls in one put. Acls are named after the experiment and the
+   * user, so writing them again is harmless.
+   */
+  public static void putPublishedUserAcls(DatastoreService ds, final long experimentId, List<String> newPublishedList) {
+    List<Entity> newPublishedAcls = Lists.newArrayList();
+    for (String user : newPublishedList) {
+      newPublishedAcls.add(createPublishedUserAclEntity(experimentId, user));
+    }
+    if (!newPublishedAcls.isEmpty()) {
+      ds.put(newPublishedAcls);
     }
-
   }
 
   public static Entity createPublishedUserAclEntity(final long experimentId, String admin) {
-    Entity userAccess = new Entity(PUBLISHED_USER_KIND);
+    Entity userAccess = new Entity(PUBLISHED_USER_KIND, experimentId + ":" + admin);
     userAccess.setProperty(EXPERIMENT_ID, experimentId);
     userAccess.setProperty(USER_ID, admin);
     return userAccess;
@@ -327,7 +296,7 @@ public class ExperimentAccessManager {
 
 
   public static ExperimentIdQueryResult getExistingPublishedExperimentIdsForUser(String userEmail, int limit, String websafeCursor) {
-    DatastoreService ds = DatastoreServiceFactory.getDatastoreService();
+    DatastoreService ds = MeteredDatastoreService.getDatastoreService();
     Query query = new com.google.appengine.api.datastore.Query(PUBLISHED_USER_KIND);
     query.addFilter(USER_ID, FilterOperator.EQUAL, userEmail);
     return getIdsMatchingQuery(query, limit, websafeCursor);
@@ -371,7 +340,7 @@ public class ExperimentAccessManager {
   }
 
   private static boolean isExperimentPublishedToUser(String email, Long experimentId) {
-    DatastoreService ds = DatastoreServiceFactory.getDatastoreService();
+    DatastoreService ds = MeteredDatastoreService.getDatastoreService();
     Query query = new com.google.appengine.api.datastore.Query(PUBLISHED_USER_KIND);
     query.addFilter(USER_ID, FilterOperator.EQUAL, email);
     query.addFilter(EXPERIMENT_ID, FilterOperator.EQUAL, experimentId);
@@ -381,7 +350,7 @@ public class ExperimentAccessManager {
   }
 
   static boolean isAdminForExperiment(String email, Long experimentId) {
-    DatastoreService ds = DatastoreServiceFactory.getDatastoreService();
+    DatastoreService ds = MeteredDatastoreService.getDatastoreService();
     Query query = new com.google.appengine.api.datastore.Query(ADMIN_USER_KIND);
     query.addFilter(ADMIN_ID, FilterOperator.EQUAL, email);
     query.addFilter(EXPERIMENT_ID, FilterOperator.EQUAL, experimentId);
@@ -408,7 +377,7 @@ public class ExperimentAccessManager {
     }
 
 
-    DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
+    DatastoreService datastore = MeteredDatastoreService.getDatastoreService();
 
 
     PreparedQuery pq = datastore.prepare(query);
@@ -452,7 +421,7 @@ public class ExperimentAccessManager {
     int totalCount = idDatePairsFull.size();
     log.info("AddJoinedExperimentsFor user: " + loggedInUserEmail + ". Count: " + idDatePairsFull.size());
     final int batchsize = 5;
-    DatastoreService ds = DatastoreServiceFactory.getDatastoreService();
+    DatastoreService ds = MeteredDatastoreService.getDatastoreService();
     while (startPosition < totalCount) {
       int fullrangeLeft = totalCount - startPosition;
       int nextBucketSize = Math.min(batchsize, fullrangeLeft);
@@ -482,7 +451,7 @@ public class ExperimentAccessManager {
   }
 
   public static void addJoinedExperimentFor(String loggedInUserEmail, Long experimentId, Date joinDate) {
-    DatastoreService ds = DatastoreServiceFactory.getDatastoreService();
+    DatastoreService ds = MeteredDatastoreService.getDatastoreService();
     Transaction tx = null;
     try {
       tx = ds.beginTransaction();
@@ -526,7 +495,7 @@ public class ExperimentAccessManager {
     }
 
 
-    DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
+    DatastoreService datastore = MeteredDatastoreService.getDatastoreService();
 
 
     PreparedQuery pq = datastore.prepare(query);
@@ -556,7 +525,7 @@ public class ExperimentAccessManager {
   public static Long getTotalJoinedParticipantsCount() {
     Query query = new com.google.appengine.api.datastore.Query(JOINED_USER_KIND);
     FetchOptions fetchOptions = FetchOptions.Builder.withDefaults();
-    DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
+    DatastoreService datastore = MeteredDatastoreService.getDatastoreService();
 
     List<Entity> joinEntities = datastore.prepare(query).asList(fetchOptions);
     if (joinEntities != null) {
@@ -0,0 +1,146 @@
+package com.google.sampling.experiential.server;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.Iterator;
+import java.util.List;
+import java.util.logging.Logger;
+
+import org.codehaus.jackson.JsonGenerator;
+import org.codehaus.jackson.map.ObjectMapper;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.pacoapp.paco.shared.model2.ExperimentDAO;
+import com.pacoapp.paco.shared.model2.ExperimentDAOCore;
+import com.pacoapp.paco.shared.model2.JsonConverter;
+
+/**
+ * Produces the same experiment list json as JsonConverter.jsonify, but
+ * assembles it from the json of each experiment, kept per experiment id,
+ * version and protocol.
+ *
+ * Converting an experiment to the version 3 model and serializing it is most
+ * of the cost of an experiment list, and it is the same for every request
+ * until the experiment is saved again.
+ *
+ * The cache is per instance. A save bumps the version, so an instance that
+ * did not see the save will not serve the old json either.
+ */
+public class ExperimentJsonCache {
+
+  public static final Logger log = Logger.getLogger(ExperimentJsonCache.class.getName());
+
+  static final int MAX_CACHED_EXPERIMENTS = 5000;
+
+  // stands in for experiments that are left out of the results for a protocol
+  private static final String OMITTED = "";
+
+  private static final Cache<String, String> cache = CacheBuilder.newBuilder()
+                                                                 .maximumSize(MAX_CACHED_EXPERIMENTS)
+                                                                 .build();
+
+  public static String jsonify(List<? extends ExperimentDAOCore> experiments, Integer limit, String cursor,
+                               String pacoProtocol) {
+    Float pacoProtocolFloat = JsonConverter.getPacoProtocolVersion(pacoProtocol);
+    if (pacoProtocolFloat != null && pacoProtocolFloat < 3.0) {
+      return JsonConverter.jsonify(experiments, limit, cursor, pacoProtocol);
+    }
+    try {
+      ObjectMapper mapper = JsonConverter.getObjectMapper();
+      StringWriter out = new StringWriter();
+      JsonGenerator generator = mapper.getJsonFactory().createJsonGenerator(out);
+      if (pacoProtocolFloat != null) {
+        generator.writeStartObject();
+        generator.writeFieldName("results");
+      }
+      generator.writeStartArray();
+      if (experiments != null) {
+        for (ExperimentDAOCore experiment : experiments) {
+          String experimentJson = getJson(mapper, experiment, pacoProtocolFloat);
+          if (experimentJson != null) {
+            generator.writeRawValue(experimentJson);
+          }
+        }
+      }
+      generator.writeEndArray();
+      if (pacoProtocolFloat != null) {
+        if (limit != null) {
+          generator.writeNumberField("limit", limit);
+        }
+        if (cursor != null) {
+          generator.writeStringField("cursor", cursor);
+        }
+        generator.writeEndObject();
+      }
+      generator.close();
+      return out.toString();
+    } catch (IOException e) {
+      log.severe("IO error getting experiments: " + e.getMessage());
+    }
+    return null;
+  }
+
+  /**
+   * Drops the json of every version of the experiment.
+   */
+  public static void invalidate(Long experimentId) {
+    String prefix = experimentId + ":";
+    Iterator<String> keys = cache.asMap().keySet().iterator();
+    while (keys.hasNext()) {
+      if (keys.next().startsWith(prefix)) {
+        keys.remove();
+      }
+    }
+  }
+
+  static long size() {
+    return cache.size();
+  }
+
+  static void clear() {
+    cache.invalidateAll();
+  }
+
+  private static String getJson(ObjectMapper mapper, ExperimentDAOCore experiment,
+                                Float pacoProtocolFloat) throws IOException {
+    String key = getKey(experiment, pacoProtocolFloat);
+    if (key == null) {
+      return JsonConverter.jsonifyForProtocol(mapper, experiment, pacoProtocolFloat);
+    }
+    String experimentJson = cache.getIfPresent(key);
+    if (experimentJson == null) {
+      experimentJson = JsonConverter.jsonifyForProtocol(mapper, experiment, pacoProtocolFloat);
+      if (experimentJson == null) {
+        experimentJson = OMITTED;
+      }
+      cache.put(key, experimentJson);
+    }
+    return experimentJson != OMITTED ? experimentJson : null;
+  }
+
+  /**
+   * @return the key of the json of this experiment, or null if it should not
+   * be cached. Summaries have no version, and join dates are per participant.
+   * The key records which participant data removeNonAdminData took out, so
+   * admins and participants get their own json.
+   */
+  private static String getKey(ExperimentDAOCore experimentCore, Float pacoProtocolFloat) {
+    if (!(experimentCore instanceof ExperimentDAO)) {
+      return null;
+    }
+    ExperimentDAO experiment = (ExperimentDAO) experimentCore;
+    if (experiment.getId() == null || experiment.getVersion() == null || experiment.getJoinDate() != null) {
+      return null;
+    }
+    String protocol = pacoProtocolFloat != null && pacoProtocolFloat < 4.0 ? "3" : "4";
+    return experiment.getId() + ":" + experiment.getVersion() + ":" + protocol + ":"
+           + isEmpty(experiment.getAdmins()) + ":" + isEmpty(experiment.getPublishedUsers()) + ":"
+           + (experiment.getCreator() == null);
+  }
+
+  private static boolean isEmpty(List<String> emails) {
+    return emails == null || emails.isEmpty();
+  }
+
+}
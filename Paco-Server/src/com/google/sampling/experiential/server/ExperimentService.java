@@ -7,6 +7,7 @@ import org.joda.time.DateTimeZone;
 
 import com.pacoapp.paco.shared.model2.ExperimentDAO;
 import com.pacoapp.paco.shared.model2.ExperimentQueryResult;
+import com.pacoapp.paco.shared.model2.ExperimentSummaryQueryResult;
 import com.pacoapp.paco.shared.model2.ValidationMessage;
 
 
@@ -55,6 +56,16 @@ public interface ExperimentService {
 
   ExperimentQueryResult getMyJoinedExperiments(String email, DateTimeZone timezone, Integer limit, String cursor);
 
+  // summaries are the list view of experiments, see ExperimentSummaryEntity
+  ExperimentSummaryQueryResult getMyJoinableExperimentSummaries(String email, DateTimeZone timeZoneForClient,
+                                                                Integer limit, String cursor);
+
+  ExperimentSummaryQueryResult getMyJoinedExperimentSummaries(String email, DateTimeZone timezone, Integer limit,
+                                                              String cursor);
+
+  ExperimentSummaryQueryResult getExperimentSummariesPublishedPublicly(DateTimeZone timezone, Integer limit,
+                                                                       String cursor);
+
   ExperimentQueryResult getAllExperiments(String cursor);
 
 
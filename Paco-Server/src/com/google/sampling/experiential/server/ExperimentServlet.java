@@ -31,6 +31,7 @@ import org.joda.time.DateTimeZone;
 import com.google.appengine.api.users.User;
 import com.google.common.base.Strings;
 import com.google.common.collect.Lists;
+import com.google.sampling.experiential.server.metrics.MetricsRegistry;
 import com.pacoapp.paco.shared.comm.Outcome;
 
 /**
@@ -78,6 +79,9 @@ public class ExperimentServlet extends HttpServlet {
       String experimentsPublishedPubliclyParam = req.getParameter("public");
       String experimentsAdministeredByUserParam = req.getParameter("admin");
       String experimentsJoinedByMeParam = req.getParameter("joined");
+      String knownExperimentVersionsParam = req.getParameter("delta");
+      String aclStatusParam = req.getParameter("aclStatus");
+      boolean summary = req.getParameter("summary") != null;
 
       String pacoProtocol = req.getHeader("pacoProtocol");
       if (pacoProtocol == null) {
@@ -99,18 +103,25 @@ public class ExperimentServlet extends HttpServlet {
 //      }
       String cursor = req.getParameter("cursor");
 
+      if (aclStatusParam != null) {
+        resp.getWriter().println(scriptBust(getAclStatus(email, aclStatusParam)));
+        return;
+      }
+
       String experimentsJson = null;
       ExperimentServletHandler handler;
       if (experimentsPublishedToMeParam != null) {
-        handler = new ExperimentServletExperimentsForMeLoadHandler(email, timezone, limit, cursor, pacoProtocol);
+        handler = new ExperimentServletExperimentsForMeLoadHandler(email, timezone, limit, cursor, pacoProtocol, summary);
+      } else if (knownExperimentVersionsParam != null) {
+        handler = new ExperimentServletDeltaLoadHandler(email, timezone, knownExperimentVersionsParam, pacoProtocol);
       } else if (selectedExperimentsParam != null) {
         handler = new ExperimentServletSelectedExperimentsFullLoadHandler(email, timezone, selectedExperimentsParam, pacoProtocol);
       } else if (experimentsPublishedPubliclyParam != null) {
-        handler = new ExperimentServletExperimentsShortPublicLoadHandler(email, timezone, limit, cursor, pacoProtocol);
+        handler = new ExperimentServletExperimentsShortPublicLoadHandler(email, timezone, limit, cursor, pacoProtocol, summary);
       } /*else if (experimentsAdministeredByUserParam != null && experimentsJoinedByMeParam != null) {
         handler = new ExperimentServletAdminAndJoinedExperimentsShortLoadHandler(email, timezone, limit, cursor, pacoProtocol);
       } */else if (experimentsJoinedByMeParam != null) {
-        handler = new ExperimentServletJoinedExperimentsShortLoadHandler(email, timezone, limit, cursor, pacoProtocol);
+        handler = new ExperimentServletJoinedExperimentsShortLoadHandler(email, timezone, limit, cursor, pacoProtocol, summary);
       }
       else if (experimentsAdministeredByUserParam != null) {
         handler = new ExperimentServletAdminExperimentsFullLoadHandler(email, timezone, limit, cursor, pacoProtocol);
@@ -118,8 +129,22 @@ public class ExperimentServlet extends HttpServlet {
         handler = null; //new ExperimentServletAllExperimentsFullLoadHandler(email, timezone, limit, cursor, pacoProtocol);
       }
       if (handler != null) {
+        String eTag = handler.getETag();
+        if (eTag != null) {
+          if (eTag.equals(req.getHeader("If-None-Match"))) {
+            log.info("Experiments not modified");
+            resp.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            return;
+          }
+          resp.setHeader("ETag", eTag);
+        }
         log.info("Loading experiments...");
-        experimentsJson = handler.performLoad();
+        MetricsRegistry.Timer timer = MetricsRegistry.getInstance().startTimer("handler." + handler.getClass().getSimpleName());
+        try {
+          experimentsJson = handler.performLoad();
+        } finally {
+          timer.stop();
+        }
         resp.getWriter().println(scriptBust(experimentsJson));
       } else {
         resp.getWriter().println(scriptBust("Unrecognized parameters!"));
@@ -131,6 +156,23 @@ public class ExperimentServlet extends HttpServlet {
 
 
 
+  /**
+   * @return how far the published user acls of the last save of the
+   * experiment have been written, for its admins
+   */
+  private String getAclStatus(String email, String experimentIdParam) throws IOException {
+    Long experimentId;
+    try {
+      experimentId = Long.parseLong(experimentIdParam);
+    } catch (NumberFormatException e) {
+      return "Unrecognized parameters!";
+    }
+    if (!ExperimentAccessManager.isUserAdmin(experimentId, email)) {
+      return null;
+    }
+    return PublishedUserAclFanOut.getStatusJson(experimentId);
+  }
+
   private void logPacoClientVersion(HttpServletRequest req) {
     String pacoVersion = req.getHeader("paco.version");
     if (pacoVersion != null) {
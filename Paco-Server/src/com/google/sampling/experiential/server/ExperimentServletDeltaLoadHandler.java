@@ -0,0 +1,177 @@
+package com.google.sampling.experiential.server;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.logging.Logger;
+
+import org.joda.time.DateTimeZone;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Splitter;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.sampling.experiential.datastore.ExperimentJsonEntityManager;
+import com.pacoapp.paco.shared.model2.ExperimentDAO;
+import com.pacoapp.paco.shared.model2.JsonConverter;
+
+/**
+ * Answers a refresh of joined experiments with only what changed.
+ *
+ * The client sends the ids and versions it has, e.g., delta=1:4,7:2.
+ * The response has the full definition of each experiment whose version on the server
+ * differs from the client's, and the ids of experiments that no longer exist or are
+ * no longer visible to the user:
+ *
+ * {"results" : [...], "deleted" : [7], "etag" : "..."}
+ *
+ * The etag identifies this request against the current server state so that
+ * the servlet can answer a repeated request with a 304.
+ */
+public class ExperimentServletDeltaLoadHandler extends ExperimentServletHandler {
+
+  private static final Logger log = Logger.getLogger(ExperimentServletDeltaLoadHandler.class.getName());
+
+  private SortedMap<Long, Integer> knownVersions;
+  private Map<Long, Integer> serverVersions;
+
+  public ExperimentServletDeltaLoadHandler(String email, DateTimeZone timezone, String deltaParam, String pacoProtocol) {
+    super(email, timezone, null, null, pacoProtocol);
+    this.knownVersions = parseKnownVersions(deltaParam);
+  }
+
+  /**
+   * Parses id:version pairs. A missing or malformed version is kept as null,
+   * which always counts as changed. Malformed ids are skipped.
+   */
+  public static SortedMap<Long, Integer> parseKnownVersions(String deltaParam) {
+    SortedMap<Long, Integer> versions = Maps.newTreeMap();
+    if (deltaParam == null) {
+      return versions;
+    }
+    for (String pair : Splitter.on(",").trimResults().omitEmptyStrings().split(deltaParam)) {
+      List<String> parts = Lists.newArrayList(Splitter.on(":").trimResults().limit(2).split(pair));
+      Long experimentId;
+      try {
+        experimentId = Long.parseLong(parts.get(0), 10);
+      } catch (NumberFormatException e) {
+        log.info("Invalid experiment id " + parts.get(0) + " sent to server.");
+        continue;
+      }
+      Integer version = null;
+      if (parts.size() > 1) {
+        try {
+          version = Integer.parseInt(parts.get(1), 10);
+        } catch (NumberFormatException e) {
+          log.info("Invalid experiment version " + parts.get(1) + " sent to server.");
+        }
+      }
+      versions.put(experimentId, version);
+    }
+    return versions;
+  }
+
+  public static List<Long> computeChangedExperimentIds(Map<Long, Integer> knownVersions,
+                                                      Map<Long, Integer> serverVersions) {
+    List<Long> changed = Lists.newArrayList();
+    for (Map.Entry<Long, Integer> known : knownVersions.entrySet()) {
+      if (!serverVersions.containsKey(known.getKey())) {
+        continue;
+      }
+      Integer serverVersion = serverVersions.get(known.getKey());
+      if (known.getValue() == null || serverVersion == null || !known.getValue().equals(serverVersion)) {
+        changed.add(known.getKey());
+      }
+    }
+    return changed;
+  }
+
+  /**
+   * A strong etag over the user, the client's known versions, the server's versions and the protocol,
+   * i.e., everything that determines the response body.
+   */
+  public static String computeETag(String email, SortedMap<Long, Integer> knownVersions,
+                                   Map<Long, Integer> serverVersions, String pacoProtocol) {
+    Hasher hasher = Hashing.md5().newHasher();
+    hasher.putString(String.valueOf(email) + "|" + String.valueOf(pacoProtocol), Charsets.UTF_8);
+    for (Map.Entry<Long, Integer> known : knownVersions.entrySet()) {
+      Long experimentId = known.getKey();
+      hasher.putString("|" + experimentId + ":" + known.getValue() + ":", Charsets.UTF_8);
+      hasher.putString(serverVersions.containsKey(experimentId)
+                               ? String.valueOf(serverVersions.get(experimentId))
+                               : "deleted", Charsets.UTF_8);
+    }
+    return "\"" + hasher.hash().toString() + "\"";
+  }
+
+  private Map<Long, Integer> getServerVersions() {
+    if (serverVersions == null) {
+      serverVersions = ExperimentJsonEntityManager.getExperimentVersions(Lists.newArrayList(knownVersions.keySet()));
+    }
+    return serverVersions;
+  }
+
+  @Override
+  public String getETag() {
+    return computeETag(email, knownVersions, getServerVersions(), pacoProtocol);
+  }
+
+  @Override
+  protected List<ExperimentDAO> getAllExperimentsAvailableToUser() {
+    List<Long> changedIds = computeChangedExperimentIds(knownVersions, getServerVersions());
+    if (changedIds.isEmpty()) {
+      return Collections.emptyList();
+    }
+    return ExperimentServiceFactory.getExperimentService().getExperimentsById(changedIds, email, timezone);
+  }
+
+  @Override
+  public String performLoad() {
+    List<ExperimentDAO> changedExperiments = getAllExperimentsAvailableToUser();
+    List<Long> deletedIds = getDeletedExperimentIds(changedExperiments);
+    log.info("Delta load: " + knownVersions.size() + " known, " + changedExperiments.size() + " changed, "
+             + deletedIds.size() + " deleted");
+
+    Map<String, Object> response = Maps.newHashMap();
+    response.put("results", changedExperiments);
+    response.put("deleted", deletedIds);
+    response.put("etag", getETag());
+    try {
+      return JsonConverter.getObjectMapper().writeValueAsString(response);
+    } catch (IOException e) {
+      log.severe("Could not write delta for experiments: " + e.getMessage());
+    }
+    return null;
+  }
+
+  /**
+   * Experiments the client knows about that are gone from the datastore, or that changed but were
+   * not returned because the user may no longer read them.
+   */
+  private List<Long> getDeletedExperimentIds(List<ExperimentDAO> changedExperiments) {
+    Set<Long> returnedIds = Sets.newHashSet();
+    for (ExperimentDAO experimentDAO : changedExperiments) {
+      returnedIds.add(experimentDAO.getId());
+    }
+    List<Long> deletedIds = Lists.newArrayList();
+    Map<Long, Integer> versions = getServerVersions();
+    for (Long experimentId : knownVersions.keySet()) {
+      if (!versions.containsKey(experimentId)) {
+        deletedIds.add(experimentId);
+      }
+    }
+    for (Long experimentId : computeChangedExperimentIds(knownVersions, versions)) {
+      if (!returnedIds.contains(experimentId)) {
+        deletedIds.add(experimentId);
+      }
+    }
+    return deletedIds;
+  }
+
+}
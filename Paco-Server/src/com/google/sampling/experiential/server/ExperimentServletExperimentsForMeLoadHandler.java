@@ -5,13 +5,15 @@ import java.util.List;
 import org.joda.time.DateTimeZone;
 
 import com.pacoapp.paco.shared.model2.ExperimentDAO;
+import com.pacoapp.paco.shared.model2.ExperimentDAOCore;
 import com.pacoapp.paco.shared.model2.ExperimentQueryResult;
+import com.pacoapp.paco.shared.model2.ExperimentSummaryQueryResult;
 
 
 public class ExperimentServletExperimentsForMeLoadHandler extends ExperimentServletShortLoadHandler {
 
-  public ExperimentServletExperimentsForMeLoadHandler(String email, DateTimeZone timezone, Integer limit, String cursor, String pacoProtocol) {
-    super(email, timezone, limit, cursor, pacoProtocol);
+  public ExperimentServletExperimentsForMeLoadHandler(String email, DateTimeZone timezone, Integer limit, String cursor, String pacoProtocol, boolean summary) {
+    super(email, timezone, limit, cursor, pacoProtocol, summary);
   }
 
   @Override
@@ -21,4 +23,11 @@ public class ExperimentServletExperimentsForMeLoadHandler extends ExperimentServ
     return pair.getExperiments();
   }
 
+  @Override
+  protected List<ExperimentDAOCore> getExperimentSummariesAvailableToUser() {
+    ExperimentSummaryQueryResult result = ExperimentServiceFactory.getExperimentService().getMyJoinableExperimentSummaries(email, timezone, limit, cursor);
+    cursor = result.getCursor();
+    return result.getExperiments();
+  }
+
 }
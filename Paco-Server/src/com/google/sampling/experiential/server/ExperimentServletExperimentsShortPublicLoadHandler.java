@@ -5,13 +5,15 @@ import java.util.List;
 import org.joda.time.DateTimeZone;
 
 import com.pacoapp.paco.shared.model2.ExperimentDAO;
+import com.pacoapp.paco.shared.model2.ExperimentDAOCore;
 import com.pacoapp.paco.shared.model2.ExperimentQueryResult;
+import com.pacoapp.paco.shared.model2.ExperimentSummaryQueryResult;
 
 
 public class ExperimentServletExperimentsShortPublicLoadHandler extends ExperimentServletShortLoadHandler {
 
-  public ExperimentServletExperimentsShortPublicLoadHandler(String email, DateTimeZone timezone, Integer limit, String cursor, String pacoProtocol) {
-    super(email, timezone, limit, cursor, pacoProtocol);
+  public ExperimentServletExperimentsShortPublicLoadHandler(String email, DateTimeZone timezone, Integer limit, String cursor, String pacoProtocol, boolean summary) {
+    super(email, timezone, limit, cursor, pacoProtocol, summary);
   }
 
   protected List<ExperimentDAO> getAllExperimentsAvailableToUser() {
@@ -20,5 +22,11 @@ public class ExperimentServletExperimentsShortPublicLoadHandler extends Experime
     return result.getExperiments();
   }
 
+  @Override
+  protected List<ExperimentDAOCore> getExperimentSummariesAvailableToUser() {
+    ExperimentSummaryQueryResult result = ExperimentServiceFactory.getExperimentService().getExperimentSummariesPublishedPublicly(timezone, limit, cursor);
+    cursor = result.getCursor();
+    return result.getExperiments();
+  }
 
 }
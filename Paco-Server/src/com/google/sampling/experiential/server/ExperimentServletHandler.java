@@ -6,7 +6,6 @@ import java.util.logging.Logger;
 import org.joda.time.DateTimeZone;
 
 import com.pacoapp.paco.shared.model2.ExperimentDAO;
-import com.pacoapp.paco.shared.model2.JsonConverter;
 
 abstract class ExperimentServletHandler {
 
@@ -35,8 +34,16 @@ abstract class ExperimentServletHandler {
 
   protected abstract List<ExperimentDAO> getAllExperimentsAvailableToUser();
 
+  /**
+   * @return an etag for the response this handler would produce, or null if
+   * the handler does not support conditional requests.
+   */
+  public String getETag() {
+    return null;
+  }
+
   protected String jsonify(List<ExperimentDAO> availableExperiments) {
-    return JsonConverter.jsonify(availableExperiments, limit, cursor, pacoProtocol);
+    return ExperimentJsonCache.jsonify(availableExperiments, limit, cursor, pacoProtocol);
   }
 
 }
\ No newline at end of file
@@ -5,14 +5,16 @@ import java.util.List;
 import org.joda.time.DateTimeZone;
 
 import com.pacoapp.paco.shared.model2.ExperimentDAO;
+import com.pacoapp.paco.shared.model2.ExperimentDAOCore;
 import com.pacoapp.paco.shared.model2.ExperimentQueryResult;
+import com.pacoapp.paco.shared.model2.ExperimentSummaryQueryResult;
 
 public class ExperimentServletJoinedExperimentsShortLoadHandler extends ExperimentServletShortLoadHandler {
 
   public ExperimentServletJoinedExperimentsShortLoadHandler(String email, DateTimeZone timezone,
                                                             Integer limit, String cursor,
-                                                            String pacoProtocol) {
-    super(email, timezone, limit, cursor, pacoProtocol);
+                                                            String pacoProtocol, boolean summary) {
+    super(email, timezone, limit, cursor, pacoProtocol, summary);
   }
 
   @Override
@@ -22,4 +24,11 @@ public class ExperimentServletJoinedExperimentsShortLoadHandler extends Experime
     return pair.getExperiments();
   }
 
+  @Override
+  protected List<ExperimentDAOCore> getExperimentSummariesAvailableToUser() {
+    ExperimentSummaryQueryResult result = ExperimentServiceFactory.getExperimentService().getMyJoinedExperimentSummaries(email, timezone, limit, cursor);
+    cursor = result.getCursor();
+    return result.getExperiments();
+  }
+
 }
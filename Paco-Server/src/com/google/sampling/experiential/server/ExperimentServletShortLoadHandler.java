@@ -3,19 +3,32 @@ import java.util.List;
 
 import org.joda.time.DateTimeZone;
 
-import com.pacoapp.paco.shared.model2.ExperimentDAO;
-import com.pacoapp.paco.shared.model2.JsonConverter;
+import com.pacoapp.paco.shared.model2.ExperimentDAOCore;
 
 
 public abstract class ExperimentServletShortLoadHandler extends ExperimentServletHandler {
 
-  public ExperimentServletShortLoadHandler(String email, DateTimeZone timezone, Integer limit, String cursor, String pacoProtocol) {
+  protected boolean summary;
+
+  /**
+   * @param summary whether to answer with experiment summaries (ExperimentDAOCore)
+   * instead of full experiments. Older clients read the groups of the listed
+   * experiments, so they only get summaries when they ask for them.
+   */
+  public ExperimentServletShortLoadHandler(String email, DateTimeZone timezone, Integer limit, String cursor, String pacoProtocol,
+                                           boolean summary) {
     super(email, timezone, limit, cursor, pacoProtocol);
+    this.summary = summary;
   }
 
   @Override
-  protected String jsonify(List<ExperimentDAO> availableExperiments) {
-    return JsonConverter.shortJsonify(availableExperiments, limit, cursor, pacoProtocol);
+  public String performLoad() {
+    if (summary) {
+      return ExperimentJsonCache.jsonify(getExperimentSummariesAvailableToUser(), limit, cursor, pacoProtocol);
+    }
+    return super.performLoad();
   }
 
+  protected abstract List<ExperimentDAOCore> getExperimentSummariesAvailableToUser();
+
 }
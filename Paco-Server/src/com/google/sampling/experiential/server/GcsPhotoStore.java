@@ -0,0 +1,65 @@
+package com.google.sampling.experiential.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import com.google.appengine.tools.cloudstorage.GcsFileMetadata;
+import com.google.appengine.tools.cloudstorage.GcsFileOptions;
+import com.google.appengine.tools.cloudstorage.GcsFilename;
+import com.google.appengine.tools.cloudstorage.GcsInputChannel;
+import com.google.appengine.tools.cloudstorage.GcsOutputChannel;
+import com.google.appengine.tools.cloudstorage.GcsService;
+import com.google.appengine.tools.cloudstorage.GcsServiceFactory;
+
+/**
+ * PhotoStore backed by a Google Cloud Storage bucket. Objects are named photos/<sha-256>.
+ */
+public class GcsPhotoStore extends PhotoStore {
+
+  private static final String PHOTO_PREFIX = "photos/";
+
+  private final GcsService gcsService = GcsServiceFactory.createGcsService();
+  private final String bucketName;
+
+  public GcsPhotoStore(String bucketName) {
+    this.bucketName = bucketName;
+  }
+
+  private GcsFilename filenameFor(String contentHash) {
+    return new GcsFilename(bucketName, PHOTO_PREFIX + contentHash);
+  }
+
+  @Override
+  public byte[] fetch(String contentHash) throws IOException {
+    GcsFilename filename = filenameFor(contentHash);
+    GcsFileMetadata metadata = gcsService.getMetadata(filename);
+    if (metadata == null) {
+      throw new IOException("No photo stored for " + contentHash);
+    }
+    ByteBuffer buffer = ByteBuffer.allocate((int) metadata.getLength());
+    GcsInputChannel readChannel = gcsService.openReadChannel(filename, 0);
+    try {
+      while (buffer.hasRemaining() && readChannel.read(buffer) >= 0) {
+      }
+    } finally {
+      readChannel.close();
+    }
+    return buffer.array();
+  }
+
+  @Override
+  protected boolean exists(String contentHash) throws IOException {
+    return gcsService.getMetadata(filenameFor(contentHash)) != null;
+  }
+
+  @Override
+  protected void write(String contentHash, byte[] bytes) throws IOException {
+    GcsFileOptions options = new GcsFileOptions.Builder()
+        .acl("project-private")
+        .build();
+    GcsOutputChannel writeChannel = gcsService.createOrReplace(filenameFor(contentHash), options);
+    writeChannel.write(ByteBuffer.wrap(bytes));
+    writeChannel.close();
+  }
+
+}
@@ -49,14 +49,14 @@ public class HtmlBlobWriter {
   public HtmlBlobWriter() {
   }
 
-  public String writeNormalExperimentEventsAsHtml(boolean anon, EventQueryResultPair eventQueryResultPair, String jobId, String experimentId, String timeZone, String originalQuery, String requestorEmail)
+  public String writeNormalExperimentEventsAsHtml(Anonymizer anonymizer, EventQueryResultPair eventQueryResultPair, String jobId, String experimentId, String timeZone, String originalQuery, String requestorEmail)
           throws IOException {
     log.info("writing normal Experiment events as html");
 
     ExperimentDAO experiment = ExperimentServiceFactory.getExperimentService().getExperiment(Long.parseLong(experimentId));
     String eventPage;
     try {
-      eventPage = printEvents(eventQueryResultPair, experiment, timeZone, anon, originalQuery, requestorEmail);
+      eventPage = printEvents(eventQueryResultPair, experiment, timeZone, anonymizer, originalQuery, requestorEmail);
     } catch (IOException e) {
       log.severe("Could not run printEvents. " + e.getMessage());
       e.printStackTrace();
@@ -98,7 +98,7 @@ public class HtmlBlobWriter {
     return blobKey;
   }
 
-  public String writeEndOfDayExperimentEventsAsHtml(boolean anon, String jobId, String experimentId,
+  public String writeEndOfDayExperimentEventsAsHtml(Anonymizer anonymizer, String jobId, String experimentId,
                                                     List<EventDAO> events, String timeZoneForClient) throws IOException {
     log.info("writing End of Day Experiment events as html");
     FileService fileService = FileServiceFactory.getFileService();
@@ -114,7 +114,7 @@ public class HtmlBlobWriter {
 
 
     ExperimentDAO experiment = ExperimentServiceFactory.getExperimentService().getExperiment(Long.parseLong(experimentId));
-    String eventPage = printEventDAOs(events, experiment, timeZoneForClient, anon);
+    String eventPage = printEventDAOs(events, experiment, timeZoneForClient, anonymizer);
 
     out.println(printHeader(events.size(), getExperimentTitle(experiment), timeZoneForClient));
     out.println(eventPage);
@@ -160,7 +160,7 @@ public class HtmlBlobWriter {
 
   }
 
-  private String printEvents(EventQueryResultPair eventQueryResultPair, ExperimentDAO experiment, String clientTimezone, boolean anon, String originalQuery, String whoFromLogin) throws IOException {
+  private String printEvents(EventQueryResultPair eventQueryResultPair, ExperimentDAO experiment, String clientTimezone, Anonymizer anonymizer, String originalQuery, String whoFromLogin) throws IOException {
     if (eventQueryResultPair.getEvents().isEmpty()) {
       return "No events in experiment: " + getExperimentTitle(experiment) + ".";
     } else {
@@ -195,8 +195,8 @@ public class HtmlBlobWriter {
           out.append("<td>").append(getTimeString(event, event.getResponseTime(), clientTimezone)).append("</td>");
 
           String who = event.getWho();
-          if (anon) {
-            who = Event.getAnonymousId(who);
+          if (anonymizer != null) {
+            who = anonymizer.getAnonymousId(who);
           }
           out.append("<td>").append(who).append("</td>");
 
@@ -250,7 +250,7 @@ public class HtmlBlobWriter {
     }
   }
 
-  private String printEventDAOs(List<EventDAO> events, ExperimentDAO experiment, String clientTimezone, boolean anon) throws IOException {
+  private String printEventDAOs(List<EventDAO> events, ExperimentDAO experiment, String clientTimezone, Anonymizer anonymizer) throws IOException {
     if (events.isEmpty()) {
       return "No events in experiment: " + getExperimentTitle(experiment) + ".";
     } else {
@@ -280,8 +280,8 @@ public class HtmlBlobWriter {
         out.append("<td>").append(getTimeString(event, event.getResponseTime(), clientTimezone)).append("</td>");
 
         String who = event.getWho();
-        if (anon) {
-          who = Event.getAnonymousId(who);
+        if (anonymizer != null) {
+          who = anonymizer.getAnonymousId(who);
         }
         out.append("<td>").append(who).append("</td>");
 
@@ -374,8 +374,14 @@ public class HtmlBlobWriter {
     if (value == null) {
       value = "";
     } else if (photoByNames.containsKey(key)) {
-      byte[] photoData = photoByNames.get(key).getValue();
-      if (photoData != null && photoData.length > 0) {
+      byte[] photoData;
+      try {
+        photoData = PhotoStore.readBytes(photoByNames.get(key));
+      } catch (PhotoStore.MissingPhotoException e) {
+        log.severe(e.getMessage());
+        return PhotoStore.MISSING_PHOTO;
+      }
+      if (photoData.length > 0) {
         String photoString = new String(Base64.encodeBase64(photoData));
         if (!photoString.equals("==")) {
           value = "<img height=\"375\" src=\"data:image/jpg;base64," + photoString + "\">";
@@ -45,8 +45,19 @@ public class JDOQueryBuilder {
 
 
 
+  private ResponseFilterBuilder responseFilters;
+
   public JDOQueryBuilder(Query newQuery) {
+    this(newQuery, false);
+  }
+
+  /**
+   * @param useResponseIndex filter on responses with the responseIndex tokens.
+   * Only pass true when the query is restricted to one experiment whose events are all indexed.
+   */
+  public JDOQueryBuilder(Query newQuery, boolean useResponseIndex) {
     this.jdoQuery = new EventJDOQuery(newQuery);
+    this.responseFilters = new ResponseFilterBuilder(jdoQuery, jdoQuery.getPrefixMatcher(), useResponseIndex);
   }
 
   public void addFilters(List<com.google.sampling.experiential.server.Query> queryFilters,
@@ -166,37 +177,15 @@ public class JDOQueryBuilder {
             "Specify a matching value");
       }
     } else {
-      if (value != null) {
-        addTestThatWhatKeyEquals(key, value);
-      } else {
-        addExistenceOfWhatKeyTest(key);
-      }
+      responseFilters.addResponseTest(query);
     }
 
   }
 
-  // TODO(bobevans): once appengine supports querying on properties of
-  // children types make this do the equality test on the associated what value.
-  // For now, we still do the EventMatcher on the results returned, but at least
-  // it is a smaller set, and the database query should be more efficient than retrieving
-  // all events.
-  private void addTestThatWhatKeyEquals(String key, String value) {
-    // TODO (bobevans): this is not exactly correct, because the value could be contained
-    // at a different index, meaning that we don't actually have equality.
-    // We really want a Map (not supported), but we would also like an index for the key and
-    // value to ensure that those match.
-   jdoQuery.addFilters("keysList.contains(\"" + key
-       + "\") && valuesList.contains(\"" + value +"\")");
-  }
-
   private void addTestThatKeyEquals(String key, String value) {
     jdoQuery.addFilters(key + " == '" + value + "'");
   }
 
-  private void addExistenceOfWhatKeyTest(String key) {
-    jdoQuery.addFilters("keysList.contains(\"" + key + "\")");
-  }
-
   private boolean eventPropertyHasKey(String key) {
     return Event.eventProperties.contains(key);
   }
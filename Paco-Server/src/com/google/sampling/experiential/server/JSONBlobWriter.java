@@ -5,15 +5,8 @@ import java.io.IOException;
 import java.io.PrintWriter;
 import java.nio.channels.Channels;
 import java.util.Date;
-import java.util.List;
-import java.util.Map;
 import java.util.logging.Logger;
 
-import org.apache.commons.codec.binary.Base64;
-import org.codehaus.jackson.JsonGenerationException;
-import org.codehaus.jackson.map.JsonMappingException;
-import org.codehaus.jackson.map.ObjectMapper;
-import org.joda.time.DateTime;
 import org.joda.time.DateTimeZone;
 import org.joda.time.format.DateTimeFormat;
 import org.joda.time.format.DateTimeFormatter;
@@ -26,13 +19,9 @@ import com.google.appengine.tools.cloudstorage.GcsFilename;
 import com.google.appengine.tools.cloudstorage.GcsOutputChannel;
 import com.google.appengine.tools.cloudstorage.GcsService;
 import com.google.appengine.tools.cloudstorage.GcsServiceFactory;
-import com.google.common.collect.Lists;
-import com.google.common.collect.Maps;
 import com.google.sampling.experiential.model.Event;
-import com.google.sampling.experiential.model.PhotoBlob;
 import com.google.sampling.experiential.shared.EventDAO;
 import com.google.sampling.experiential.shared.TimeUtil;
-import com.pacoapp.paco.shared.model2.JsonConverter;
 
 public class JSONBlobWriter {
 
@@ -44,97 +33,16 @@ public class JSONBlobWriter {
   }
 
 
-  public String writeEventsAsJSON(boolean anon, EventQueryResultPair eventQueryResultPair, String jobId,
+  public String writeEventsAsJSON(Anonymizer anonymizer, EventQueryResultPair eventQueryResultPair, String jobId,
                                   DateTimeZone timeZoneForClient, boolean includePhotos) throws IOException {
     EventRetriever.sortEvents(eventQueryResultPair.getEvents());
 
-    String jsonOutput = jsonifyEvents(anon, timeZoneForClient.getID(), includePhotos, eventQueryResultPair);
-
-    return writeBlobUsingNewApi(jobId, jsonOutput).getKeyString();
+    EventJsonWriter jsonWriter = new EventJsonWriter(anonymizer, timeZoneForClient.getID(), includePhotos);
+    return writeBlobUsingNewApi(jobId, jsonWriter, eventQueryResultPair).getKeyString();
  }
 
-  private String jsonifyEvents(boolean anon, String timezoneId, boolean includePhotos, EventQueryResultPair eventQueryResultPair) {
-    ObjectMapper mapper = JsonConverter.getObjectMapper();
-
-    try {
-      List<EventDAO> eventDAOs = Lists.newArrayList();
-      for (Event event : eventQueryResultPair.getEvents()) {
-        String userId = event.getWho();
-        if (anon) {
-          userId = Event.getAnonymousId(userId);
-        }
-        DateTime responseDateTime = event.getResponseTimeWithTimeZone(timezoneId);
-        Date responseTime = null;
-        if (responseDateTime != null) {
-          responseTime = responseDateTime.toGregorianCalendar().getTime();
-        }
-        DateTime scheduledDateTime = event.getScheduledTimeWithTimeZone(timezoneId);
-        Date scheduledTime = null;
-        if (scheduledDateTime != null) {
-          scheduledTime = scheduledDateTime.toDate();
-        }
-        final Map<String, String> whatMap = event.getWhatMap();
-        List<PhotoBlob> photos = event.getBlobs();
-        String[] photoBlobs = null;
-        if (includePhotos && photos != null && photos.size() > 0) {
-
-          photoBlobs = new String[photos.size()];
-
-          Map<String, PhotoBlob> photoByNames = Maps.newConcurrentMap();
-          for (PhotoBlob photoBlob : photos) {
-            photoByNames.put(photoBlob.getName(), photoBlob);
-          }
-          for(String key : whatMap.keySet()) {
-            String value = null;
-            if (photoByNames.containsKey(key)) {
-              byte[] photoData = photoByNames.get(key).getValue();
-              if (photoData != null && photoData.length > 0) {
-                String photoString = new String(Base64.encodeBase64(photoData));
-                if (!photoString.equals("==")) {
-                  value = photoString;
-                } else {
-                  value = "";
-                }
-              } else {
-                value = "";
-              }
-              whatMap.put(key, value);
-            }
-          }
-        }
-
-        eventDAOs.add(new EventDAO(userId,
-                                   event.getWhen(),
-                                   event.getExperimentName(),
-                                   event.getLat(), event.getLon(),
-                                   event.getAppId(),
-                                   event.getPacoVersion(),
-                                   whatMap,
-                                   event.isShared(),
-                                   responseTime,
-                                   scheduledTime,
-                                   null,
-                                   Long.parseLong(event.getExperimentId()),
-                                   event.getExperimentVersion(),
-                                   event.getTimeZone(),
-                                   event.getExperimentGroupName(),
-                                   event.getActionTriggerId(),
-                                   event.getActionTriggerSpecId(),
-                                   event.getActionId()));
-      }
-      EventDAOQueryResultPair eventDaoQueryResultPair = new EventDAOQueryResultPair(eventDAOs, eventQueryResultPair.getCursor());
-      return mapper.writeValueAsString(eventDaoQueryResultPair);
-    } catch (JsonGenerationException e) {
-      e.printStackTrace();
-    } catch (JsonMappingException e) {
-      e.printStackTrace();
-    } catch (IOException e) {
-      e.printStackTrace();
-    }
-    return "Error could not retrieve events as json";
-  }
-
-  private BlobKey writeBlobUsingNewApi(String jobId, String json) throws IOException,
+  private BlobKey writeBlobUsingNewApi(String jobId, EventJsonWriter jsonWriter,
+                                       EventQueryResultPair eventQueryResultPair) throws IOException,
                                                                      FileNotFoundException {
     GcsService gcsService = GcsServiceFactory.createGcsService();
     String bucketName = System.getProperty("com.pacoapp.reportbucketname");
@@ -149,7 +57,8 @@ public class JSONBlobWriter {
     GcsOutputChannel writeChannel = gcsService.createOrReplace(filename, options);
     PrintWriter writer = new PrintWriter(Channels.newWriter(writeChannel, "UTF8"));
 
-    writer.println(json);
+    jsonWriter.write(writer, eventQueryResultPair);
+    writer.println();
       writer.flush();
       writeChannel.waitForOutstandingWrites();
     writeChannel.close();
@@ -65,7 +65,13 @@ public class JobStatusServlet extends HttpServlet {
       String location = getParam(req, "location");
       String jobId = getParam(req, "jobId");
       String who = user.getEmail().toLowerCase();
-      if (!Strings.isNullOrEmpty(jobId) && !Strings.isNullOrEmpty(location)) {
+      if (!Strings.isNullOrEmpty(jobId) && getParam(req, "cancel") != null) {
+        if (new ReportJobStatusManager().cancelReport(who, jobId)) {
+          resp.getWriter().println("cancelled");
+        } else {
+          resp.getWriter().println("Job " + jobId + " is not pending.");
+        }
+      } else if (!Strings.isNullOrEmpty(jobId) && !Strings.isNullOrEmpty(location)) {
         ReportJobStatus jobReport = getJobReport(who, jobId);
         if (jobReport != null && jobReport.getRequestor().equals(who)) {
           blobstoreService.serve(new BlobKey(location), resp);
@@ -78,6 +84,8 @@ public class JobStatusServlet extends HttpServlet {
           if (cmdline) {
             if (!Strings.isNullOrEmpty(jobReport.getLocation())) {
               blobstoreService.serve(new BlobKey(jobReport.getLocation()), resp);
+            } else if (jobReport.getStatus() == ReportJobStatusManager.CANCELLED) {
+              resp.getWriter().println("cancelled");
             } else {
               resp.getWriter().println("pending");
             }
@@ -100,8 +108,7 @@ public class JobStatusServlet extends HttpServlet {
   private void writeJobStatus(HttpServletResponse resp, ReportJobStatus jobReport, String jobId, String who) throws IOException {
     resp.setContentType("text/html;charset=UTF-8");
     PrintWriter printWriter = resp.getWriter();
-    boolean finished = !Strings.isNullOrEmpty(jobReport.getErrorMessage())
-                       || !Strings.isNullOrEmpty(jobReport.getLocation());
+    boolean finished = jobReport.getStatus() != ReportJobStatusManager.PENDING;
 
     StringBuilder out = new StringBuilder();
     out.append("<html><head>");
@@ -126,6 +133,16 @@ public class JobStatusServlet extends HttpServlet {
     out.append("<tr><th>" + "Status: " + "</th>");
     out.append("<td>").append(getNameForStatus(jobReport)).append("</td></tr>");
 
+    if (!finished) {
+      out.append("<tr><th>" + "Progress: " + "</th>");
+      out.append("<td>").append(jobReport.getProgress()).append("%");
+      out.append(" <a href=\"/jobStatus?jobId=" + jobId + "&cancel=true\">Cancel</a></td></tr>");
+    }
+    if (jobReport.getRowCount() > 0) {
+      out.append("<tr><th>" + "Events: " + "</th>");
+      out.append("<td>").append(jobReport.getRowCount()).append("</td></tr>");
+    }
+
     out.append("<tr><th>" + "Started at: " + "</th>");
     out.append("<td>").append(jobReport.getStartTime()).append("</td></tr>");
 
@@ -170,6 +187,8 @@ public class JobStatusServlet extends HttpServlet {
       return "Complete";
     case ReportJobStatusManager.FAILED:
       return "Failed";
+    case ReportJobStatusManager.CANCELLED:
+      return "Cancelled";
       default:
         return "Unknown";
     }
@@ -0,0 +1,34 @@
+package com.google.sampling.experiential.server;
+
+import java.io.File;
+import java.io.IOException;
+
+import com.google.common.io.Files;
+
+/**
+ * PhotoStore on the local filesystem, for tests and the dev server.
+ */
+public class LocalPhotoStore extends PhotoStore {
+
+  private final File directory;
+
+  public LocalPhotoStore(File directory) {
+    this.directory = directory;
+  }
+
+  @Override
+  public byte[] fetch(String contentHash) throws IOException {
+    return Files.toByteArray(new File(directory, contentHash));
+  }
+
+  @Override
+  protected boolean exists(String contentHash) {
+    return new File(directory, contentHash).exists();
+  }
+
+  @Override
+  protected void write(String contentHash, byte[] bytes) throws IOException {
+    Files.write(bytes, new File(directory, contentHash));
+  }
+
+}
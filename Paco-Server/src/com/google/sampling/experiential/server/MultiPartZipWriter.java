@@ -0,0 +1,110 @@
+package com.google.sampling.experiential.server;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Writes entries into a series of zip archives, starting a new part
+ * whenever the current one would grow past maxPartBytes.
+ *
+ * Entries are STORED rather than deflated because the photos are already
+ * compressed jpegs. Each part ends with a manifest.csv listing its entries.
+ */
+public class MultiPartZipWriter {
+
+  public static final String MANIFEST_ENTRY_NAME = "manifest.csv";
+
+  public interface PartFactory {
+    OutputStream createPart(int partNumber) throws IOException;
+  }
+
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+  private final PartFactory partFactory;
+  private final long maxPartBytes;
+  private final String manifestHeader;
+
+  private ZipOutputStream currentPart;
+  private StringBuilder currentManifest;
+  private long currentPartBytes;
+  private int partCount;
+  private int entryCount;
+
+  public MultiPartZipWriter(PartFactory partFactory, long maxPartBytes, String manifestHeader) {
+    this.partFactory = partFactory;
+    this.maxPartBytes = maxPartBytes;
+    this.manifestHeader = manifestHeader;
+  }
+
+  /**
+   * @param manifestLine the csv row describing this entry, without the line break
+   */
+  public void addStoredEntry(String name, byte[] bytes, String manifestLine) throws IOException {
+    if (currentPart != null && currentPartBytes > 0 && currentPartBytes + bytes.length > maxPartBytes) {
+      closeCurrentPart();
+    }
+    if (currentPart == null) {
+      openNextPart();
+    }
+    writeStoredEntry(name, bytes);
+    currentManifest.append(manifestLine).append('\n');
+    currentPartBytes += bytes.length;
+    entryCount++;
+  }
+
+  /**
+   * Lists an entry in the manifest of the current part without writing it,
+   * as for a photo that could not be read.
+   */
+  public void addManifestLine(String manifestLine) throws IOException {
+    if (currentPart == null) {
+      openNextPart();
+    }
+    currentManifest.append(manifestLine).append('\n');
+  }
+
+  /**
+   * @return the number of parts written
+   */
+  public int close() throws IOException {
+    if (currentPart != null) {
+      closeCurrentPart();
+    }
+    return partCount;
+  }
+
+  public int getEntryCount() {
+    return entryCount;
+  }
+
+  private void openNextPart() throws IOException {
+    partCount++;
+    currentPart = new ZipOutputStream(partFactory.createPart(partCount));
+    currentManifest = new StringBuilder(manifestHeader).append('\n');
+    currentPartBytes = 0;
+  }
+
+  private void closeCurrentPart() throws IOException {
+    writeStoredEntry(MANIFEST_ENTRY_NAME, currentManifest.toString().getBytes(UTF_8));
+    currentPart.close();
+    currentPart = null;
+  }
+
+  private void writeStoredEntry(String name, byte[] bytes) throws IOException {
+    CRC32 crc = new CRC32();
+    crc.update(bytes);
+    ZipEntry entry = new ZipEntry(name);
+    entry.setMethod(ZipEntry.STORED);
+    entry.setSize(bytes.length);
+    entry.setCompressedSize(bytes.length);
+    entry.setCrc(crc.getValue());
+    currentPart.putNextEntry(entry);
+    currentPart.write(bytes);
+    currentPart.closeEntry();
+  }
+
+}
@@ -27,6 +27,8 @@ import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.sampling.experiential.model.Event;
 import com.google.sampling.experiential.server.ParticipationStats.ParticipantParticipationStat;
+import com.google.sampling.experiential.server.stats.participation.ParticipantSummary;
+import com.google.sampling.experiential.server.stats.participation.ParticipantSummaryEntityManager;
 import com.google.sampling.experiential.server.stats.participation.ParticipationStatsService;
 import com.google.sampling.experiential.server.stats.participation.ResponseStat;
 import com.pacoapp.paco.shared.model2.ExperimentDAO;
@@ -158,6 +160,11 @@ public class ParticipantStatServlet extends HttpServlet {
                                            Long experimentId, String whoParam, DateTimeZone timeZoneForClient) throws IOException {
     // computes the overview stats for the project stats page using the new counters
     ParticipationStatsService ps =  new ParticipationStatsService();
+    List<ParticipantSummary> summaries = ps.getParticipantSummaries(experimentId);
+    if (summaries != null) {
+      writeParticipationStats(resp, createParticipationStatsFromSummaries(summaries));
+      return;
+    }
     List<ResponseStat> totalParticipationStats = ps.getTotalByParticipant(experimentId);
     
     Map<String, ResponseStat> todayResponseMap = Maps.newConcurrentMap();
@@ -170,18 +177,43 @@ public class ParticipantStatServlet extends HttpServlet {
     
     for (ResponseStat totalResponseStat : totalParticipationStats) {
       ResponseStat todayWho = todayResponseMap.get(totalResponseStat.who);
-      participantStats.add(new ParticipationStats.ParticipantParticipationStat(totalResponseStat.who,
+      ParticipantParticipationStat participantStat = new ParticipationStats.ParticipantParticipationStat(totalResponseStat.who,
                                                                                todayWho != null ? (todayWho.schedR + todayWho.missedR) : 0,
                                                                                todayWho != null ? todayWho.schedR : 0,
                                                                                todayWho != null ? todayWho.selfR : 0,
                                                                                totalResponseStat.schedR + totalResponseStat.missedR,
                                                                                totalResponseStat.schedR,
-                                                                               totalResponseStat.selfR));
+                                                                               totalResponseStat.selfR);
+      participantStat.setLastContactDateTime(totalResponseStat.getLastContactDateTime());
+      participantStats.add(participantStat);
     }
 
     
-    ParticipationStats participationStats = new ParticipationStats(participantStats, null);
+    writeParticipationStats(resp, new ParticipationStats(participantStats, null));
+  }
+
+  private ParticipationStats createParticipationStatsFromSummaries(List<ParticipantSummary> summaries) {
+    long today = ParticipantSummaryEntityManager.dayOf(new DateTime());
+    List<ParticipantParticipationStat> participantStats = Lists.newArrayList();
+    for (ParticipantSummary summary : summaries) {
+      ParticipantParticipationStat participantStat = new ParticipationStats.ParticipantParticipationStat(summary.getWho(),
+                                                                               summary.getSchedROn(today) + summary.getMissedROn(today),
+                                                                               summary.getSchedROn(today),
+                                                                               summary.getSelfROn(today),
+                                                                               summary.getSchedR() + summary.getMissedR(),
+                                                                               summary.getSchedR(),
+                                                                               summary.getSelfR());
+      if (summary.getLastContact() != null) {
+        participantStat.setLastContactDateTime(new DateTime(summary.getLastContact(), DateTimeZone.UTC));
+      }
+      participantStat.setCurrentStreak(summary.getCurrentStreak(today));
+      participantStat.setLongestStreak(summary.getLongestStreak());
+      participantStats.add(participantStat);
+    }
+    return new ParticipationStats(participantStats, null);
+  }
 
+  private void writeParticipationStats(HttpServletResponse resp, ParticipationStats participationStats) throws IOException {
     PrintWriter writer = resp.getWriter();
     ObjectMapper mapper = JsonConverter.getObjectMapper();
     writer.write(mapper.writeValueAsString(participationStats));
@@ -3,6 +3,7 @@ package com.google.sampling.experiential.server;
 import java.util.List;
 
 import org.codehaus.jackson.annotate.JsonIgnore;
+import org.joda.time.DateTime;
 
 import com.google.common.collect.Lists;
 
@@ -19,6 +20,10 @@ public class ParticipationStats implements java.io.Serializable {
       int totalSignalResponseCount;
       int totalSelfReportCount;
 
+      DateTime lastContactDateTime;
+      Integer currentStreak;
+      Integer longestStreak;
+
       public ParticipantParticipationStat(String who,
                                           int todaySignalCount,
                                           int todaySignalResponseCount,
@@ -92,6 +97,33 @@ public class ParticipationStats implements java.io.Serializable {
         this.totalSelfReportCount = totalSelfReportCount;
       }
 
+      public DateTime getLastContactDateTime() {
+        return lastContactDateTime;
+      }
+
+      public void setLastContactDateTime(DateTime lastContactDateTime) {
+        this.lastContactDateTime = lastContactDateTime;
+      }
+
+      /**
+       * @return consecutive days with a response up to today, or null if not computed
+       */
+      public Integer getCurrentStreak() {
+        return currentStreak;
+      }
+
+      public void setCurrentStreak(Integer currentStreak) {
+        this.currentStreak = currentStreak;
+      }
+
+      public Integer getLongestStreak() {
+        return longestStreak;
+      }
+
+      public void setLongestStreak(Integer longestStreak) {
+        this.longestStreak = longestStreak;
+      }
+
       @Override
       @JsonIgnore
       public int compareTo(ParticipantParticipationStat o) {
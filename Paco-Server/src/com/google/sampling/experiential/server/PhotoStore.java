@@ -0,0 +1,139 @@
+package com.google.sampling.experiential.server;
+
+import java.io.IOException;
+import java.util.logging.Logger;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Strings;
+import com.google.common.hash.Hashing;
+import com.google.sampling.experiential.model.PhotoBlob;
+
+/**
+ * Content-addressed storage for photo and audio responses.
+ *
+ * Bytes are stored once under the sha-256 of their content, and the PhotoBlob
+ * child of an Event keeps only that hash. Ordinary event loads then no longer
+ * pull the media through the datastore, and an identical photo uploaded twice
+ * is only stored once.
+ *
+ * Set the system property com.pacoapp.photobucketname in appengine-web.xml to enable.
+ * Without it photos stay inline in the datastore as before.
+ */
+public abstract class PhotoStore {
+
+  private static final Logger log = Logger.getLogger(PhotoStore.class.getName());
+
+  public static final String PHOTO_BUCKET_PROPERTY = "com.pacoapp.photobucketname";
+
+  /**
+   * Written in place of a photo whose bytes cannot be read back from the store.
+   */
+  public static final String MISSING_PHOTO = "missing photo";
+
+  /**
+   * Thrown when a photo is stored under a content hash that cannot be read back.
+   */
+  public static class MissingPhotoException extends IOException {
+    public MissingPhotoException(String contentHash, Throwable cause) {
+      super("Could not fetch photo " + contentHash, cause);
+    }
+  }
+
+  private static PhotoStore instance;
+  private static boolean initialized;
+
+  /**
+   * @return the configured store, or null if photos are kept in the datastore
+   */
+  public static synchronized PhotoStore getInstance() {
+    if (!initialized) {
+      String bucketName = System.getProperty(PHOTO_BUCKET_PROPERTY);
+      if (!Strings.isNullOrEmpty(bucketName)) {
+        instance = new GcsPhotoStore(bucketName);
+      }
+      initialized = true;
+    }
+    return instance;
+  }
+
+  @VisibleForTesting
+  static synchronized void setInstance(PhotoStore photoStore) {
+    instance = photoStore;
+    initialized = true;
+  }
+
+  public static String contentHash(byte[] bytes) {
+    return Hashing.sha256().hashBytes(bytes).toString();
+  }
+
+  /**
+   * Makes the PhotoBlob for an uploaded response, storing the bytes in the
+   * configured store if there is one. If that write fails the bytes are kept
+   * inline so the upload is not lost.
+   */
+  public static PhotoBlob createPhotoBlob(String name, byte[] bytes) {
+    PhotoStore photoStore = getInstance();
+    if (photoStore != null) {
+      try {
+        return PhotoBlob.withContentHash(name, photoStore.store(bytes));
+      } catch (IOException e) {
+        log.warning("Could not store photo " + name + " in photo store. Keeping it inline. " + e.getMessage());
+      }
+    }
+    return new PhotoBlob(name, bytes);
+  }
+
+  /**
+   * @return the bytes of the photo, inline or from the store
+   * @throws MissingPhotoException if the bytes are in a store that is not
+   *         configured or that cannot return them
+   */
+  public static byte[] readBytes(PhotoBlob photoBlob) throws MissingPhotoException {
+    byte[] inline = photoBlob.getValue();
+    if (inline != null) {
+      return inline;
+    }
+    String contentHash = photoBlob.getContentHash();
+    if (contentHash == null) {
+      return new byte[0];
+    }
+    PhotoStore photoStore = getInstance();
+    if (photoStore == null) {
+      throw new MissingPhotoException(contentHash, new IllegalStateException("No photo store is configured"));
+    }
+    try {
+      return photoStore.fetch(contentHash);
+    } catch (IOException e) {
+      throw new MissingPhotoException(contentHash, e);
+    }
+  }
+
+  /**
+   * Moves inline bytes into this store, leaving only the content hash.
+   */
+  public void moveToStore(PhotoBlob photoBlob) throws IOException {
+    byte[] inline = photoBlob.getValue();
+    if (inline == null) {
+      return;
+    }
+    photoBlob.replaceValueWithContentHash(store(inline));
+  }
+
+  /**
+   * @return the content hash under which the bytes are stored
+   */
+  public String store(byte[] bytes) throws IOException {
+    String contentHash = contentHash(bytes);
+    if (!exists(contentHash)) {
+      write(contentHash, bytes);
+    }
+    return contentHash;
+  }
+
+  public abstract byte[] fetch(String contentHash) throws IOException;
+
+  protected abstract boolean exists(String contentHash) throws IOException;
+
+  protected abstract void write(String contentHash, byte[] bytes) throws IOException;
+
+}
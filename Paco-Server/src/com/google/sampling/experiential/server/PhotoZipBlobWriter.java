@@ -1,29 +1,40 @@
 package com.google.sampling.experiential.server;
 
-import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
-import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.io.PrintWriter;
 import java.nio.channels.Channels;
+import java.util.ArrayDeque;
 import java.util.Date;
+import java.util.Deque;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipOutputStream;
 
-import org.apache.commons.io.output.ByteArrayOutputStream;
 import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
 import org.joda.time.format.DateTimeFormat;
 import org.joda.time.format.DateTimeFormatter;
 
-import com.google.appengine.api.blobstore.BlobKey;
-import com.google.appengine.api.files.AppEngineFile;
-import com.google.appengine.api.files.FileService;
-import com.google.appengine.api.files.FileServiceFactory;
-import com.google.appengine.api.files.FileWriteChannel;
+import com.google.appengine.api.ThreadManager;
+import com.google.appengine.api.blobstore.BlobstoreService;
+import com.google.appengine.api.blobstore.BlobstoreServiceFactory;
+import com.google.appengine.tools.cloudstorage.GcsFileOptions;
+import com.google.appengine.tools.cloudstorage.GcsFilename;
+import com.google.appengine.tools.cloudstorage.GcsOutputChannel;
+import com.google.appengine.tools.cloudstorage.GcsService;
+import com.google.appengine.tools.cloudstorage.GcsServiceFactory;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
 import com.google.sampling.experiential.model.Event;
 import com.google.sampling.experiential.model.PhotoBlob;
 import com.google.sampling.experiential.shared.EventDAO;
@@ -32,212 +43,199 @@ import com.google.sampling.experiential.shared.TimeUtil;
 public class PhotoZipBlobWriter {
 
   private static final Logger log = Logger.getLogger(PhotoZipBlobWriter.class.getName());
+
+  private static final long MAX_PART_BYTES = 256 * 1024 * 1024;
+  private static final int DEFAULT_PAGE_SIZE = 500;
+  private static final int PHOTO_FETCH_THREADS = 4;
+  private static final int MAX_PREFETCHED_PHOTOS = 16;
   private DateTimeFormatter fileNameDateFormatter = DateTimeFormat.forPattern(TimeUtil.DATETIME_FORMAT_FOR_FILENAME).withOffsetParsed();
 
   public PhotoZipBlobWriter() {
   }
 
-  public String writePhotoZipFile(boolean anon, String experimentId, EventQueryResultPair eventQueryResultPair, String jobId, String timeZoneForClient) {
-    log.info("Inside writePhotoZipFile");
-    log.info("Event count: " + eventQueryResultPair.getEvents().size());
-    List<Event> eventsWithPhotos = getEventsWithPhotos(eventQueryResultPair.getEvents());
+  /**
+   * Writes the photos of every event matching the query, paging through the
+   * events with the datastore cursor. Photo bytes are fetched on a small pool a
+   * few photos ahead of the writer, and entries are STORED since jpegs are already
+   * compressed. Parts are capped at MAX_PART_BYTES.
+   *
+   * @return the blob key of the zip or, if it needed more than one part, of an html page linking the parts
+   */
+  public String writePhotoZipFile(Anonymizer anonymizer, String experimentId, List<Query> query, String requestorEmail,
+                                  DateTimeZone timeZoneForClient, int limit, String cursor, final String jobId) {
     log.info("Inside writePhotoZipFile");
+    final String bucketName = System.getProperty("com.pacoapp.reportbucketname");
+    final GcsService gcsService = GcsServiceFactory.createGcsService();
+    final List<String> partFileNames = Lists.newArrayList();
+    final String filePrefix = jobId + "_photos_" + experimentId;
+
+    MultiPartZipWriter zipWriter = new MultiPartZipWriter(new MultiPartZipWriter.PartFactory() {
+      @Override
+      public OutputStream createPart(int partNumber) throws IOException {
+        String fileName = filePrefix + "_part" + partNumber + ".zip";
+        partFileNames.add(fileName);
+        GcsFileOptions options = new GcsFileOptions.Builder()
+            .mimeType("application/zip")
+            .acl("project-private")
+            .addUserMetadata("jobId", jobId)
+            .build();
+        GcsOutputChannel writeChannel = gcsService.createOrReplace(new GcsFilename(bucketName, fileName), options);
+        return new BufferedOutputStream(Channels.newOutputStream(writeChannel));
+      }
+    }, MAX_PART_BYTES, "file,who,responseTime,bytes");
 
-
+    int pageSize = limit > 0 ? limit : DEFAULT_PAGE_SIZE;
+    ExecutorService photoFetchPool = Executors.newFixedThreadPool(PHOTO_FETCH_THREADS,
+                                                                  ThreadManager.backgroundThreadFactory());
     try {
-      FileService fileService = FileServiceFactory.getFileService();
-      AppEngineFile file = fileService.createNewBlobFile("application/zip", "photos_" + experimentId + "_" + Long.toString(System.currentTimeMillis())+ ".zip");
-
-      FileWriteChannel writeChannel = fileService.openWriteChannel(file, true);
-      ZipOutputStream zipOutputStream = new ZipOutputStream(new BufferedOutputStream(Channels.newOutputStream(writeChannel)));
-
-      int eventPhotoCount = eventsWithPhotos.size();
-      log.info("Events with photos: " + eventPhotoCount);
-      int totalBytes = 0;
-      int photoCount = 0;
-
-      List<String> existingNames = Lists.newArrayList();
-      for (int eventIndex = 0; eventIndex < eventPhotoCount; eventIndex++) {
-        Event event = eventsWithPhotos.get(eventIndex);
-        String filenamePrefix = anonymize(event.getWho(), anon) + "_" + fileNameDateFormatter.print(event.getResponseTimeWithTimeZone(timeZoneForClient)) + "_";
-        if (existingNames.contains(filenamePrefix)) {
-          filenamePrefix += "1_";
-        }
-        existingNames.add(filenamePrefix);
-
-        List<PhotoBlob> blobs = event.getBlobs();
-        for (int i=0; i < blobs.size(); i++) {
-          PhotoBlob photoBlob = blobs.get(i);
-          byte[] photoBytes = photoBlob.getValue();
-          if (photoBytes.length == 0) {
-            continue;
+      Deque<PendingPhoto> pendingPhotos = new ArrayDeque<PendingPhoto>();
+      Set<String> existingNames = Sets.newHashSet();
+      String pageCursor = cursor;
+      int eventCount = 0;
+      do {
+        EventQueryResultPair page = EventRetriever.getInstance().getEventsInBatches(query, requestorEmail,
+                                                                                    timeZoneForClient, pageSize,
+                                                                                    pageCursor);
+        eventCount += page.getEvents().size();
+        for (Event event : getEventsWithPhotos(page.getEvents())) {
+          String who = anonymize(event.getWho(), anonymizer);
+          String responseTime = fileNameDateFormatter.print(event.getResponseTimeWithTimeZone(timeZoneForClient.getID()));
+          String filenamePrefix = who + "_" + responseTime + "_";
+          if (!existingNames.add(filenamePrefix)) {
+            filenamePrefix += "1_";
           }
-          totalBytes += photoBytes.length;
-          photoCount++;
-          log.info("Total photo count: " + photoCount +  ". Byte count: " +totalBytes);
-          zipOutputStream.putNextEntry(new ZipEntry(filenamePrefix + Integer.toString(i) + ".jpg"));
-          zipOutputStream.write(photoBytes);
-          zipOutputStream.closeEntry();
-          zipOutputStream.flush();
 
-          // close file each time and then re-open it.
-          zipOutputStream.close();
-          writeChannel.close();
-          String assetsPath = file.getFullPath();
-          file = new AppEngineFile(assetsPath);
-          writeChannel = fileService.openWriteChannel(file, true);
-          zipOutputStream = new ZipOutputStream(new BufferedOutputStream(Channels.newOutputStream(writeChannel)));
+          List<PhotoBlob> blobs = event.getBlobs();
+          for (int i = 0; i < blobs.size(); i++) {
+            final PhotoBlob photoBlob = blobs.get(i);
+            Future<byte[]> photoBytes = photoFetchPool.submit(new Callable<byte[]>() {
+              @Override
+              public byte[] call() {
+                try {
+                  return PhotoStore.readBytes(photoBlob);
+                } catch (PhotoStore.MissingPhotoException e) {
+                  log.severe(e.getMessage());
+                  return null;
+                }
+              }
+            });
+            pendingPhotos.add(new PhotoZipBlobWriter.PendingPhoto(filenamePrefix + Integer.toString(i) + ".jpg",
+                                                                  who + "," + responseTime, photoBytes));
+            if (pendingPhotos.size() >= MAX_PREFETCHED_PHOTOS) {
+              writePhoto(zipWriter, pendingPhotos.remove());
+            }
+          }
         }
-      }
+        pageCursor = page.getCursor();
+        log.info("Events so far: " + eventCount + ". Photos written: " + zipWriter.getEntryCount());
+      } while (pageCursor != null);
 
+      while (!pendingPhotos.isEmpty()) {
+        writePhoto(zipWriter, pendingPhotos.remove());
+      }
+      int partCount = zipWriter.close();
+      log.info("Wrote " + zipWriter.getEntryCount() + " photos into " + partCount + " zip parts");
 
-//      String path = file.getFullPath();
-//      log.info("RE-opening file to finalize");
-//      file = new AppEngineFile(path);
-//      writeChannel = fileService.openWriteChannel(file, true);
-
-      writeChannel.closeFinally();
-
-      BlobKey blobKey = fileService.getBlobKey(file);
-      if (blobKey != null) {
-        return blobKey.getKeyString();
+      BlobstoreService blobstoreService = BlobstoreServiceFactory.getBlobstoreService();
+      if (partCount == 0) {
+        return writeNoPhotosZip(gcsService, bucketName, filePrefix + ".zip", blobstoreService);
+      }
+      List<String> partKeys = Lists.newArrayList();
+      for (String partFileName : partFileNames) {
+        partKeys.add(blobstoreService.createGsBlobKey("/gs/" + bucketName + "/" + partFileName).getKeyString());
+      }
+      if (partKeys.size() == 1) {
+        return partKeys.get(0);
       }
-      return "Error getting location of report";
+      return writePartsPage(gcsService, bucketName, filePrefix + "_parts.html", jobId, partKeys, blobstoreService);
     } catch (IOException e) {
       log.log(Level.SEVERE, "IO Thrown writing zip file.", e);
-      throw new RuntimeException("Writing photo zip into blobStore", e);
+      throw new RuntimeException("Writing photo zip into GCS", e);
+    } catch (InterruptedException e) {
+      throw new RuntimeException("Interrupted writing photo zip", e);
+    } catch (ExecutionException e) {
+      throw new RuntimeException("Could not fetch photo for zip", e.getCause());
+    } finally {
+      photoFetchPool.shutdownNow();
     }
   }
 
-  public String XwritePhotoZipFile(boolean anon, String experimentId, List<Event> events, String jobId) {
-    log.info("Inside writePhotoZipFile");
-    log.info("Event count: " + events.size());
-    List<Event> eventsWithPhotos = getEventsWithPhotos(events);
-    log.info("Inside writePhotoZipFile");
-
-    try {
-      ByteArrayOutputStream bytesOut = new ByteArrayOutputStream();
-      BufferedOutputStream bufferedBytesOut = new BufferedOutputStream(bytesOut);
-      ZipOutputStream zipOutputStream = new ZipOutputStream(bufferedBytesOut);
-      int eventPhotoCount = eventsWithPhotos.size();
-      log.info("Events with photos: " + eventPhotoCount);
-      int totalBytes = 0;
-
-      List<String> existingNames = Lists.newArrayList();
-      for (int eventIndex = 0; eventIndex < eventPhotoCount; eventIndex++) {
-        Event event = eventsWithPhotos.get(eventIndex);
-        String filenamePrefix = anonymize(event.getWho(), anon) + "_" + fileNameDateFormatter.print(event.getResponseTimeWithTimeZone(null)) + "_";
-        if (existingNames.contains(filenamePrefix)) {
-          filenamePrefix += "1_";
-        }
-        existingNames.add(filenamePrefix);
-
-        List<PhotoBlob> blobs = event.getBlobs();
-        for (int i=0; i < blobs.size(); i++) {
-          PhotoBlob photoBlob = blobs.get(i);
-          byte[] photoBytes = photoBlob.getValue();
-          if (photoBytes.length == 0) {
-            continue;
-          }
-          totalBytes += photoBytes.length;
-          log.info("Total Byte count: " +totalBytes);
-          zipOutputStream.putNextEntry(new ZipEntry(filenamePrefix + Integer.toString(i) + ".jpg"));
-          zipOutputStream.write(photoBytes);
-          zipOutputStream.closeEntry();
-        }
-      }
-      zipOutputStream.flush();
-      zipOutputStream.close();
-
-      log.info("Inside writePhotoZipFile - closing zipstream");
-
-      FileService fileService = FileServiceFactory.getFileService();
-      AppEngineFile file = fileService.createNewBlobFile("application/zip", "photos_" + experimentId + ".zip");
-      boolean lock = false;
-      FileWriteChannel writeChannel = fileService.openWriteChannel(file, lock);
-      OutputStream zipFileBlobOutputStream = Channels.newOutputStream(writeChannel);
-      BufferedOutputStream bufferedZipBlob = new BufferedOutputStream(zipFileBlobOutputStream);
-      BufferedInputStream bytesIn = new BufferedInputStream(new ByteArrayInputStream(bytesOut.toByteArray()));
-      byte[] buf = new byte[1024];
-      while (bytesIn.read(buf) != 0) {
-        bufferedZipBlob.write(buf);
-      }
-      bufferedZipBlob.flush();
-      bufferedZipBlob.close();
-      log.info("Inside writePhotoZipFile - finished writing zipBlob");
-
-
-//    if (eventIndex % 10 == 0 && eventIndex < eventPhotoCount - 1) {
-//    zip.close();
-//    String path = file.getFullPath();
-//    log.info("RE-opening blobfile on event: " + eventIndex);
-//    file = new AppEngineFile(path);
-//    writeChannel = fileService.openWriteChannel(file, lock);
-//    blobOutputStream = Channels.newOutputStream(writeChannel);
-//    zip = new ZipOutputStream(blobOutputStream);
-//  }
-
+  private static class PendingPhoto {
+    final String fileName;
+    final String manifestPrefix;
+    final Future<byte[]> bytes;
 
+    PendingPhoto(String fileName, String manifestPrefix, Future<byte[]> bytes) {
+      this.fileName = fileName;
+      this.manifestPrefix = manifestPrefix;
+      this.bytes = bytes;
+    }
+  }
 
-      String path = file.getFullPath();
-      log.info("RE-opening file to finalize");
-      file = new AppEngineFile(path);
-      writeChannel = fileService.openWriteChannel(file, true);
-
-      writeChannel.closeFinally();
-      BlobKey blobKey = fileService.getBlobKey(file);
-      if (blobKey != null) {
-        return blobKey.getKeyString();
-      }
-      return "Error getting location of report";
-    } catch (IOException e) {
-      log.log(Level.SEVERE, "IO Thrown writing zip file.", e);
-      throw new RuntimeException("Writing photo zip into blobStore", e);
+  private void writePhoto(MultiPartZipWriter zipWriter, PendingPhoto pendingPhoto) throws IOException,
+                                                                                       InterruptedException,
+                                                                                       ExecutionException {
+    byte[] photoBytes = pendingPhoto.bytes.get();
+    if (photoBytes == null) {
+      zipWriter.addManifestLine(pendingPhoto.fileName + "," + pendingPhoto.manifestPrefix + ","
+                                + PhotoStore.MISSING_PHOTO);
+      return;
+    }
+    if (photoBytes.length == 0) {
+      return;
     }
+    zipWriter.addStoredEntry(pendingPhoto.fileName, photoBytes,
+                             pendingPhoto.fileName + "," + pendingPhoto.manifestPrefix + "," + photoBytes.length);
   }
 
+  private String writeNoPhotosZip(GcsService gcsService, String bucketName, String fileName,
+                                  BlobstoreService blobstoreService) throws IOException {
+    GcsFileOptions options = new GcsFileOptions.Builder().mimeType("application/zip").acl("project-private").build();
+    GcsOutputChannel writeChannel = gcsService.createOrReplace(new GcsFilename(bucketName, fileName), options);
+    new ZipOutputStream(Channels.newOutputStream(writeChannel)).close();
+    return blobstoreService.createGsBlobKey("/gs/" + bucketName + "/" + fileName).getKeyString();
+  }
 
-//  private void ensureOpen() throws IOException {
-//    if (channel != null) {
-//      // This only works if slices are <30 seconds.  TODO(ohler): close and
-//      // reopen every 29 seconds.  Better yet, change fileproxy to not require
-//      // the file to be open.
-//      return;
-//    }
-//    if (file == null) {
-//      file = FILE_SERVICE.createNewBlobFile(mimeType, fileName);
-//    }
-//    channel = FILE_SERVICE.openWriteChannel(file, false);
-//  }
-//
-//  @Override public void write(ByteBuffer bytes) throws IOException {
-//    Preconditions.checkState(!closed, "%s: already closed", this);
-//    if (bytes.hasRemaining()) {
-//      ensureOpen();
-//      channel.write(bytes);
-//    }
-//  }
+  private String writePartsPage(GcsService gcsService, String bucketName, String fileName, String jobId,
+                                List<String> partKeys, BlobstoreService blobstoreService) throws IOException {
+    GcsFileOptions options = new GcsFileOptions.Builder()
+        .mimeType("text/html")
+        .acl("project-private")
+        .addUserMetadata("jobId", jobId)
+        .build();
+    GcsOutputChannel writeChannel = gcsService.createOrReplace(new GcsFilename(bucketName, fileName), options);
+    PrintWriter writer = new PrintWriter(Channels.newWriter(writeChannel, "UTF8"));
+    writer.println("<html><head><title>Photos for job " + jobId + "</title></head><body>");
+    writer.println("<p>The photos were split into " + partKeys.size() + " zip files.</p><ul>");
+    for (int i = 0; i < partKeys.size(); i++) {
+      writer.println("<li><a href=\"/jobStatus?jobId=" + jobId + "&location=" + partKeys.get(i) + "\">Part "
+                     + (i + 1) + "</a></li>");
+    }
+    writer.println("</ul></body></html>");
+    writer.close();
+    return blobstoreService.createGsBlobKey("/gs/" + bucketName + "/" + fileName).getKeyString();
+  }
 
 
-  private void addPhotoEventsToZip(List<Event> eventsWithPhotos, ZipOutputStream zip, boolean anon) throws IOException {
+  private void addPhotoEventsToZip(List<Event> eventsWithPhotos, ZipOutputStream zip, Anonymizer anonymizer) throws IOException {
     for (Event event : eventsWithPhotos) {
-      createFilesForEventPhotos(zip, event, anon);
+      createFilesForEventPhotos(zip, event, anonymizer);
     }
   }
 
-  private void createFilesForEventPhotos(ZipOutputStream zip, Event event, boolean anon) throws IOException {
-    String filenamePrefix = anonymize(event.getWho(), anon) + "_" + new DateTime(event.getResponseTime()).toString(fileNameDateFormatter) + "_";
+  private void createFilesForEventPhotos(ZipOutputStream zip, Event event, Anonymizer anonymizer) throws IOException {
+    String filenamePrefix = anonymize(event.getWho(), anonymizer) + "_" + new DateTime(event.getResponseTime()).toString(fileNameDateFormatter) + "_";
 
     List<PhotoBlob> blobs = event.getBlobs();
     for (int i=0; i < blobs.size(); i++) {
       PhotoBlob photoBlob = blobs.get(i);
-      createFileForBytes(zip, filenamePrefix + Integer.toString(i), photoBlob.getValue());
+      createFileForBytes(zip, filenamePrefix + Integer.toString(i), PhotoStore.readBytes(photoBlob));
     }
   }
 
-  private String anonymize(String who, boolean anon) {
-    if (anon) {
-      return Event.getAnonymousId(who + Event.SALT);
+  private String anonymize(String who, Anonymizer anonymizer) {
+    if (anonymizer != null) {
+      return anonymizer.getSaltedAnonymousId(who);
     }
     return who;
   }
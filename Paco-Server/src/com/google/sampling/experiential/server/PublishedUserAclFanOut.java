@@ -0,0 +1,341 @@
+package com.google.sampling.experiential.server;
+
+import java.io.IOException;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.EntityNotFoundException;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.Transaction;
+import com.google.appengine.api.taskqueue.Queue;
+import com.google.appengine.api.taskqueue.QueueFactory;
+import com.google.appengine.api.taskqueue.TaskAlreadyExistsException;
+import com.google.appengine.api.taskqueue.TaskOptions;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.sampling.experiential.server.metrics.MeteredDatastoreService;
+import com.pacoapp.paco.shared.model2.ExperimentDAO;
+import com.pacoapp.paco.shared.model2.JsonConverter;
+import com.pacoapp.paco.shared.model2.Pair;
+
+/**
+ * Writes the published_user acls of a saved experiment in the background.
+ *
+ * Saving an experiment queues a plan task in the save transaction. The plan
+ * diffs the published users of that version against the existing acls once,
+ * stores the adds and removes as batches under the status, and queues a task
+ * for each stored batch on the acls queue. A retried plan does not diff
+ * again, as batches that already ran would change the diff, but queues the
+ * stored batches again. Batch tasks are named after the experiment, version
+ * and batch, and the acls they write are named after the experiment and
+ * user, so a retried plan or batch writes the same entities again.
+ *
+ * Progress is kept in one published_user_acl_status entity per experiment,
+ * which the experiment editor polls while a large audience is written.
+ */
+public class PublishedUserAclFanOut {
+
+  private static final Logger log = Logger.getLogger(PublishedUserAclFanOut.class.getName());
+
+  static final String ACL_QUEUE = "acls";
+  static final String ACL_WORKER_URL = "/aclWorker";
+
+  // the most entities a single datastore put or delete takes
+  static final int BATCH_SIZE = 500;
+  // the most tasks a single queue add takes
+  private static final int TASKS_PER_ADD = 100;
+
+  private static final String STATUS_KIND = "published_user_acl_status";
+  // a planned batch, keyed by its number under the status
+  private static final String BATCH_KIND = "published_user_acl_batch";
+  private static final String USERS_PROPERTY = "users";
+  private static final String KEYS_PROPERTY = "keys";
+  private static final String VERSION_PROPERTY = "version";
+  private static final String STATUS_PROPERTY = "status";
+  private static final String BATCH_COUNT_PROPERTY = "batch_count";
+  private static final String COMPLETED_BATCHES_PROPERTY = "completed_batches";
+  private static final String ADD_COUNT_PROPERTY = "add_count";
+  private static final String REMOVE_COUNT_PROPERTY = "remove_count";
+  private static final String START_DATE_PROPERTY = "start_date";
+  private static final String END_DATE_PROPERTY = "end_date";
+
+  static final String EXPERIMENT_ID_PARAM = "experimentId";
+  static final String VERSION_PARAM = "version";
+  static final String BATCH_PARAM = "batch";
+  static final String USER_PARAM = "user";
+  static final String KEY_PARAM = "key";
+
+  public static final int PENDING = 1;
+  public static final int COMPLETE = 2;
+
+  /**
+   * Marks the acls of this version pending and queues its plan, both in the
+   * save transaction, so nothing runs for a save that rolls back.
+   */
+  public static void queuePlan(DatastoreService ds, Transaction tx, Long experimentId, Integer version) {
+    Entity status = new Entity(statusKeyFor(experimentId));
+    status.setUnindexedProperty(VERSION_PROPERTY, version);
+    status.setUnindexedProperty(STATUS_PROPERTY, PENDING);
+    status.setUnindexedProperty(START_DATE_PROPERTY, new Date());
+    ds.put(tx, status);
+    QueueFactory.getQueue(ACL_QUEUE).add(tx, TaskOptions.Builder.withUrl(ACL_WORKER_URL)
+                                                                 .param(EXPERIMENT_ID_PARAM, experimentId.toString())
+                                                                 .param(VERSION_PARAM, version.toString()));
+  }
+
+  /**
+   * Diffs the published users of the version against the existing acls,
+   * stores the batches and queues them. A retry queues the stored batches
+   * again. Does nothing if the experiment has been saved again, as the newer
+   * version queued its own plan.
+   */
+  public static void plan(Long experimentId, int version) {
+    ExperimentDAO experiment = ExperimentServiceFactory.getExperimentService().getExperiment(experimentId);
+    if (experiment == null || experiment.getVersion() == null || experiment.getVersion() != version) {
+      log.info("Skipping acl plan for experiment " + experimentId + " version " + version + ", it has changed");
+      return;
+    }
+    DatastoreService ds = MeteredDatastoreService.getDatastoreService();
+    Entity status = getStatus(ds, null, experimentId);
+    if (status == null || getVersion(status) != version) {
+      log.info("Skipping acl plan for experiment " + experimentId + " version " + version + ", it has changed");
+      return;
+    }
+    if (!status.hasProperty(BATCH_COUNT_PROPERTY)
+        && !storeBatches(ds, experimentId, version, ExperimentAccessManager.getPublishedUserAclChanges(ds, experiment))) {
+      return;
+    }
+    List<Entity> batches = getStoredBatches(ds, experimentId, version);
+    if (batches == null) {
+      log.info("Skipping acl plan for experiment " + experimentId + " version " + version + ", it has changed");
+      return;
+    }
+    queueBatches(experimentId, version, batches);
+  }
+
+  @SuppressWarnings("unchecked")
+  private static void queueBatches(Long experimentId, int version, List<Entity> batches) {
+    List<TaskOptions> tasks = Lists.newArrayList();
+    for (int batch = 0; batch < batches.size(); batch++) {
+      TaskOptions task = createBatchTask(experimentId, version, batch);
+      List<String> users = (List<String>) batches.get(batch).getProperty(USERS_PROPERTY);
+      if (users != null) {
+        for (String user : users) {
+          task.param(USER_PARAM, user);
+        }
+      }
+      List<Key> keys = (List<Key>) batches.get(batch).getProperty(KEYS_PROPERTY);
+      if (keys != null) {
+        for (Key key : keys) {
+          task.param(KEY_PARAM, KeyFactory.keyToString(key));
+        }
+      }
+      tasks.add(task);
+    }
+    Queue queue = QueueFactory.getQueue(ACL_QUEUE);
+    for (List<TaskOptions> someTasks : Lists.partition(tasks, TASKS_PER_ADD)) {
+      try {
+        queue.add(someTasks);
+      } catch (TaskAlreadyExistsException e) {
+        // a retried plan, the other batches were still added
+        log.info("Acl batches already queued for experiment " + experimentId + " version " + version);
+      }
+    }
+  }
+
+  /**
+   * Writes one batch of acls and records it on the status. Does nothing if
+   * the experiment has been saved again.
+   */
+  public static void runBatch(Long experimentId, int version, int batch, List<String> users, List<Key> keys) {
+    DatastoreService ds = MeteredDatastoreService.getDatastoreService();
+    Entity status = getStatus(ds, null, experimentId);
+    if (status == null || getVersion(status) != version) {
+      log.info("Skipping acl batch " + batch + " for experiment " + experimentId + " version " + version
+               + ", it has changed");
+      return;
+    }
+    ExperimentAccessManager.putPublishedUserAcls(ds, experimentId, users);
+    ExperimentAccessManager.removePublishedUserAcls(ds, keys);
+    completeBatch(ds, experimentId, version, batch);
+  }
+
+  /**
+   * @return the acl status of the experiment as json, or null if its acls
+   * have not been written since the fan out started
+   */
+  public static String getStatusJson(Long experimentId) throws IOException {
+    Entity status = getStatus(MeteredDatastoreService.getDatastoreService(), null, experimentId);
+    if (status == null) {
+      return null;
+    }
+    Map<String, Object> json = Maps.newLinkedHashMap();
+    json.put("experimentId", experimentId);
+    json.put("version", getVersion(status));
+    json.put("status", getLong(status, STATUS_PROPERTY) == COMPLETE ? "complete" : "pending");
+    json.put("batchCount", getLong(status, BATCH_COUNT_PROPERTY));
+    json.put("completedBatchCount", getCompletedBatches(status).size());
+    json.put("addCount", getLong(status, ADD_COUNT_PROPERTY));
+    json.put("removeCount", getLong(status, REMOVE_COUNT_PROPERTY));
+    return JsonConverter.getObjectMapper().writeValueAsString(json);
+  }
+
+  /**
+   * Stores the batches and their count on the status in one transaction,
+   * unless an earlier attempt of the plan already did.
+   *
+   * @return false if the experiment has been saved again since the plan was
+   * queued
+   */
+  private static boolean storeBatches(DatastoreService ds, Long experimentId, int version,
+                                      Pair<List<String>, List<Key>> changes) {
+    Key statusKey = statusKeyFor(experimentId);
+    List<Entity> batches = Lists.newArrayList();
+    for (List<String> users : Lists.partition(changes.first, BATCH_SIZE)) {
+      Entity batch = new Entity(batchKeyFor(statusKey, batches.size()));
+      batch.setUnindexedProperty(VERSION_PROPERTY, version);
+      batch.setUnindexedProperty(USERS_PROPERTY, Lists.newArrayList(users));
+      batches.add(batch);
+    }
+    for (List<Key> keys : Lists.partition(changes.second, BATCH_SIZE)) {
+      Entity batch = new Entity(batchKeyFor(statusKey, batches.size()));
+      batch.setUnindexedProperty(VERSION_PROPERTY, version);
+      batch.setUnindexedProperty(KEYS_PROPERTY, Lists.newArrayList(keys));
+      batches.add(batch);
+    }
+    log.info("Acls for experiment " + experimentId + " version " + version + ": " + changes.first.size() + " to add, "
+             + changes.second.size() + " to remove, in " + batches.size() + " batches");
+
+    Transaction tx = ds.beginTransaction();
+    try {
+      Entity status = getStatus(ds, tx, experimentId);
+      if (status == null || getVersion(status) != version) {
+        return false;
+      }
+      if (status.hasProperty(BATCH_COUNT_PROPERTY)) {
+        // stored by another attempt since this one read the status
+        return true;
+      }
+      status.setUnindexedProperty(BATCH_COUNT_PROPERTY, batches.size());
+      status.setUnindexedProperty(ADD_COUNT_PROPERTY, changes.first.size());
+      status.setUnindexedProperty(REMOVE_COUNT_PROPERTY, changes.second.size());
+      if (batches.isEmpty()) {
+        status.setUnindexedProperty(STATUS_PROPERTY, COMPLETE);
+        status.setUnindexedProperty(END_DATE_PROPERTY, new Date());
+      }
+      ds.put(tx, status);
+      // the batches are in the status' entity group, so they commit with it
+      for (List<Entity> someBatches : Lists.partition(batches, BATCH_SIZE)) {
+        ds.put(tx, someBatches);
+      }
+      tx.commit();
+      return true;
+    } finally {
+      if (tx.isActive()) {
+        tx.rollback();
+      }
+    }
+  }
+
+  /**
+   * @return the batches stored for the version, in order, or null if the
+   * experiment has been saved again
+   */
+  private static List<Entity> getStoredBatches(DatastoreService ds, Long experimentId, int version) {
+    Entity status = getStatus(ds, null, experimentId);
+    if (status == null || getVersion(status) != version) {
+      return null;
+    }
+    Key statusKey = status.getKey();
+    List<Key> batchKeys = Lists.newArrayList();
+    for (int batch = 0; batch < getLong(status, BATCH_COUNT_PROPERTY); batch++) {
+      batchKeys.add(batchKeyFor(statusKey, batch));
+    }
+    Map<Key, Entity> stored = ds.get(batchKeys);
+    List<Entity> batches = Lists.newArrayList();
+    for (Key batchKey : batchKeys) {
+      Entity batch = stored.get(batchKey);
+      if (batch == null || getVersion(batch) != version) {
+        return null;
+      }
+      batches.add(batch);
+    }
+    return batches;
+  }
+
+  private static void completeBatch(DatastoreService ds, Long experimentId, int version, int batch) {
+    Transaction tx = ds.beginTransaction();
+    try {
+      Entity status = getStatus(ds, tx, experimentId);
+      if (status == null || getVersion(status) != version) {
+        return;
+      }
+      List<Long> completedBatches = getCompletedBatches(status);
+      if (completedBatches.contains((long) batch)) {
+        return;
+      }
+      completedBatches.add((long) batch);
+      status.setUnindexedProperty(COMPLETED_BATCHES_PROPERTY, completedBatches);
+      if (completedBatches.size() >= getLong(status, BATCH_COUNT_PROPERTY)) {
+        status.setUnindexedProperty(STATUS_PROPERTY, COMPLETE);
+        status.setUnindexedProperty(END_DATE_PROPERTY, new Date());
+      }
+      ds.put(tx, status);
+      tx.commit();
+    } finally {
+      if (tx.isActive()) {
+        tx.rollback();
+      }
+    }
+  }
+
+  private static TaskOptions createBatchTask(Long experimentId, int version, int batch) {
+    return TaskOptions.Builder.withUrl(ACL_WORKER_URL)
+                              .taskName("acl-" + experimentId + "-" + version + "-" + batch)
+                              .param(EXPERIMENT_ID_PARAM, experimentId.toString())
+                              .param(VERSION_PARAM, Integer.toString(version))
+                              .param(BATCH_PARAM, Integer.toString(batch));
+  }
+
+  private static Entity getStatus(DatastoreService ds, Transaction tx, Long experimentId) {
+    try {
+      return ds.get(tx, statusKeyFor(experimentId));
+    } catch (EntityNotFoundException e) {
+      return null;
+    }
+  }
+
+  private static int getVersion(Entity entity) {
+    return (int) getLong(entity, VERSION_PROPERTY);
+  }
+
+  private static long getLong(Entity status, String property) {
+    Long value = (Long) status.getProperty(property);
+    return value != null ? value : 0;
+  }
+
+  @SuppressWarnings("unchecked")
+  private static List<Long> getCompletedBatches(Entity status) {
+    List<Long> completedBatches = Lists.newArrayList();
+    List<Long> stored = (List<Long>) status.getProperty(COMPLETED_BATCHES_PROPERTY);
+    if (stored != null) {
+      completedBatches.addAll(stored);
+    }
+    return completedBatches;
+  }
+
+  private static Key statusKeyFor(Long experimentId) {
+    return KeyFactory.createKey(STATUS_KIND, experimentId);
+  }
+
+  // named rather than numbered, as batch numbers start at 0
+  private static Key batchKeyFor(Key statusKey, int batch) {
+    return KeyFactory.createKey(statusKey, BATCH_KIND, Integer.toString(batch));
+  }
+
+}
@@ -0,0 +1,63 @@
+package com.google.sampling.experiential.server;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.logging.Logger;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.common.base.Strings;
+import com.google.common.collect.Lists;
+
+/**
+ * Receives acl plans and batches from the acls task queue.
+ *
+ * A task without a batch number is the plan of a saved version. Failures are
+ * left to the queue to retry; plans and batches can run more than once.
+ */
+@SuppressWarnings("serial")
+public class PublishedUserAclWorkerServlet extends HttpServlet {
+
+  private static final Logger log = Logger.getLogger(PublishedUserAclWorkerServlet.class.getName());
+
+  @Override
+  protected void doPost(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+    String experimentIdParam = req.getParameter(PublishedUserAclFanOut.EXPERIMENT_ID_PARAM);
+    String versionParam = req.getParameter(PublishedUserAclFanOut.VERSION_PARAM);
+    if (Strings.isNullOrEmpty(experimentIdParam) || Strings.isNullOrEmpty(versionParam)) {
+      log.warning("Acl worker called without an experimentId and version");
+      return;
+    }
+    Long experimentId = Long.parseLong(experimentIdParam);
+    int version = Integer.parseInt(versionParam);
+    String batchParam = req.getParameter(PublishedUserAclFanOut.BATCH_PARAM);
+    if (Strings.isNullOrEmpty(batchParam)) {
+      PublishedUserAclFanOut.plan(experimentId, version);
+    } else {
+      PublishedUserAclFanOut.runBatch(experimentId, version, Integer.parseInt(batchParam),
+                                      getValues(req, PublishedUserAclFanOut.USER_PARAM),
+                                      getKeys(req, PublishedUserAclFanOut.KEY_PARAM));
+    }
+  }
+
+  private List<String> getValues(HttpServletRequest req, String name) {
+    String[] values = req.getParameterValues(name);
+    if (values == null) {
+      return Lists.newArrayList();
+    }
+    return Lists.newArrayList(values);
+  }
+
+  private List<Key> getKeys(HttpServletRequest req, String name) {
+    List<Key> keys = Lists.newArrayList();
+    for (String key : getValues(req, name)) {
+      keys.add(KeyFactory.stringToKey(key));
+    }
+    return keys;
+  }
+
+}
@@ -20,10 +20,19 @@ public class Query {
 
   private String key;
   private String value;
+  private boolean prefixMatch;
 
   public Query(String key, String value) {
+    this(key, value, false);
+  }
+
+  /**
+   * @param prefixMatch match responses to key that start with value, rather than equal it
+   */
+  public Query(String key, String value, boolean prefixMatch) {
     this.key = key;
     this.value = value;
+    this.prefixMatch = prefixMatch;
   }
 
   public String getKey() {
@@ -42,6 +51,10 @@ public class Query {
     this.value = value;
   }
 
+  public boolean isPrefixMatch() {
+    return prefixMatch;
+  }
+
 
 
 }
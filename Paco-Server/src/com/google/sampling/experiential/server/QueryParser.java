@@ -26,7 +26,7 @@ import com.google.common.collect.Lists;
  * param_string :: 'q=\'' keyvalue_pair_list '\'' 
  * keyvalue_pair_list :: EMPTY |keyvalue_pair (':' keyvalue_pair)* 
  * EMPTY :: '' 
- * keyvalue_pair :: date_range | keyword ('=' value)+ 
+ * keyvalue_pair :: date_range | keyword ('=' value)+ | keyword '^=' value
  * date_range :: 'date_range=' date (-date)+ 
  * date :: [0-0]{4}[0-9]{2}[0-9]{2} 
  * keyword :: builtin_keyword | app_specific_keyword
@@ -48,12 +48,16 @@ import com.google.common.collect.Lists;
  * q='who=bobevans@google.com:weight'
  * q='restaurant=CafeMoma:date_range=20090831-20090902'
  * q='restaurant=CafeMoma:date_range=20090831'
+ * q='restaurant^=Cafe'  (restaurant starts with Cafe)
  * 
  * @author Bob Evans
  * 
  */
 public class QueryParser {
 
+  // "key^=value" splits on '=' into "key^" and "value"
+  private static final String PREFIX_OPERATOR_SUFFIX = "^";
+
   public List<Query> parse(String q) {
     List<Query> query = Lists.newArrayList();
     if (q == null || q.isEmpty()) {
@@ -80,6 +84,9 @@ public class QueryParser {
     if (iterator.hasNext()) {
       value = iterator.next();
     }
+    if (value != null && key.endsWith(PREFIX_OPERATOR_SUFFIX)) {
+      return new Query(key.substring(0, key.length() - PREFIX_OPERATOR_SUFFIX.length()), value, true);
+    }
 
     return new Query(key, value);
   }
@@ -2,26 +2,32 @@ package com.google.sampling.experiential.server;
 
 import java.io.IOException;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
 import java.util.logging.Logger;
 
 import org.apache.commons.codec.digest.DigestUtils;
 import org.joda.time.DateTimeZone;
 
-import com.google.appengine.api.ThreadManager;
 import com.google.common.base.Strings;
 import com.google.sampling.experiential.model.Event;
+import com.google.sampling.experiential.server.metrics.MetricsRegistry;
 import com.google.sampling.experiential.server.stats.usage.UsageStatsBlobWriter;
 import com.google.sampling.experiential.shared.EventDAO;
 import com.pacoapp.paco.shared.model2.ExperimentDAO;
 
 /**
- * Setup a job as a background thread to run a report.
- * This runs in a backend instance.
- * Also, update the ReportJobStatus.
+ * Runs reports for the report servlets.
  *
- * The reportservlet will ask this to kick off a job.
- * It will also ask it for the status, which will include pending, completed, failed.
- * If completed, the client can then access the report that was generated at a location.
+ * runReportJob records a job for the requestor and queues a run on the
+ * reports task queue, or attaches the job to an identical run that is already
+ * pending or whose result is still current. The queue delivers runs to
+ * executeRun on the reportworker backend, which also updates the
+ * ReportJobStatus with progress as it goes.
+ *
+ * The client then asks for the status, which will include pending, completed,
+ * failed or cancelled. If completed, the client can then access the report
+ * that was generated at a location.
  *
  * @author bobevans
  *
@@ -30,6 +36,9 @@ public class ReportJobExecutor {
 
   private static final Logger log = Logger.getLogger(ReportJobExecutor.class.getName());
 
+  private static final int STARTED_PROGRESS = 5;
+  private static final int EVENTS_READ_PROGRESS = 50;
+
   private static ReportJobExecutor instance;
 
   public static ReportJobExecutor getInstance() {
@@ -46,36 +55,96 @@ public class ReportJobExecutor {
     statusMgr = new ReportJobStatusManager();
   }
 
-  public String runReportJob(final String requestorEmail, final DateTimeZone timeZoneForClient,
-                             final List<Query> query, final boolean anon, final String reportFormat,
-                             final String originalQuery, final int limit, final String cursor, final boolean includePhotos) {
+  public String runReportJob(String requestorEmail, DateTimeZone timeZoneForClient,
+                             List<Query> query, boolean anon, String reportFormat,
+                             String originalQuery, int limit, String cursor, boolean includePhotos) {
     // TODO get a real id function for jobs
 
-    final String jobId = DigestUtils.md5Hex(requestorEmail + Long.toString(System.currentTimeMillis()));
+    String jobId = DigestUtils.md5Hex(requestorEmail + Long.toString(System.currentTimeMillis()));
     log.info("In runReportJob for job: " + jobId);
-    statusMgr.startReport(requestorEmail, jobId);
-
-    final ClassLoader cl = getClass().getClassLoader();
-    final Thread thread2 = ThreadManager.createBackgroundThread(new Runnable() {
-      @Override
-      public void run() {
-        log.info("ReportJobExecutor running");
-        Thread.currentThread().setContextClassLoader(cl);
-        try {
-          String location = doJob(requestorEmail, timeZoneForClient, query, anon, jobId, reportFormat, originalQuery, limit, cursor, includePhotos);
-          statusMgr.completeReport(requestorEmail, jobId, location);
-        } catch (Throwable e) {
-          statusMgr.failReport(requestorEmail, jobId, e.getClass() + "." + e.getMessage());
-          log.severe("Could not run job: " + e.getMessage());
-          e.printStackTrace();
-        }
-      }
-    });
-    thread2.start();
+    ReportJobRequest request = new ReportJobRequest(requestorEmail, timeZoneForClient, query, anon, reportFormat,
+                                                    originalQuery, limit, cursor, includePhotos);
+    boolean shared = isSharedAcrossAdmins(request);
+    // stats change without new events and archive always rewrites the archive
+    boolean reusable = shared && !"stats".equals(reportFormat) && !"archive".equals(reportFormat);
+    statusMgr.startReport(requestorEmail, jobId, request.getRunKey(shared), request, reusable);
     log.info("Leaving runReportJob");
     return jobId;
   }
 
+  /**
+   * Every admin of an experiment sees all of its events, so their reports on
+   * it are the same.
+   */
+  private boolean isSharedAcrossAdmins(ReportJobRequest request) {
+    String experimentId = request.getExperimentId();
+    if (Strings.isNullOrEmpty(experimentId)) {
+      return false;
+    }
+    try {
+      return ExperimentAccessManager.isAdminForExperiment(request.getRequestorEmail(), Long.parseLong(experimentId));
+    } catch (NumberFormatException e) {
+      return false;
+    }
+  }
+
+  /**
+   * Executes a queued run. Called by the reports queue on the reportworker backend.
+   *
+   * @param runKey
+   */
+  public void executeRun(String runKey) {
+    ReportJobRequest request = statusMgr.getPendingRunRequest(runKey);
+    if (request == null) {
+      log.info("Report run " + runKey + " is no longer pending");
+      return;
+    }
+    log.info("ReportJobExecutor running " + runKey);
+    try {
+      checkProgress(runKey, STARTED_PROGRESS, 0);
+      MetricsRegistry.Timer timer = MetricsRegistry.getInstance().startTimer(metricName(request.getReportFormat()));
+      String location;
+      try {
+        location = doJob(request.getRequestorEmail(), request.getTimeZoneForClient(), request.getQuery(),
+                         request.isAnon(), runKey, request.getReportFormat(), request.getOriginalQuery(),
+                         request.getLimit(), request.getCursor(), request.isIncludePhotos());
+      } finally {
+        timer.stop();
+      }
+      statusMgr.completeRun(runKey, location);
+    } catch (CancellationException e) {
+      log.info("Report run " + runKey + " was cancelled");
+    } catch (Throwable e) {
+      statusMgr.failRun(runKey, e.getClass() + "." + e.getMessage());
+      log.severe("Could not run job: " + e.getMessage());
+      e.printStackTrace();
+    }
+  }
+
+  private static String metricName(String reportFormat) {
+    return "report." + (Strings.isNullOrEmpty(reportFormat) ? "html" : reportFormat);
+  }
+
+  /**
+   * Counts the rows written by a report and sets its format's rows per second
+   * gauge to the rate they were written at.
+   */
+  private void recordRowsExported(String reportFormat, int rowCount, long writeStartMillis) {
+    long millis = Math.max(1, System.currentTimeMillis() - writeStartMillis);
+    MetricsRegistry metrics = MetricsRegistry.getInstance();
+    metrics.increment(metricName(reportFormat) + ".rowsExported", rowCount);
+    metrics.setGauge(metricName(reportFormat) + ".rowsPerSecond", rowCount * 1000.0 / millis);
+  }
+
+  /**
+   * Records progress and stops the run if every job waiting on it was cancelled.
+   */
+  private void checkProgress(String runKey, int progress, long rowCount) {
+    if (!statusMgr.updateRunProgress(runKey, progress, rowCount)) {
+      throw new CancellationException();
+    }
+  }
+
   protected String doJob(String requestorEmail, DateTimeZone timeZoneForClient, List<Query> query, boolean anon, String jobId,
                          String reportFormat, String originalQuery, int limit, String cursor, boolean includePhotos) throws IOException {
     log.info("starting doJob");
@@ -91,46 +160,90 @@ public class ReportJobExecutor {
       }
     }
 
+    Anonymizer anonymizer = anon ? Anonymizer.forExperiment(experimentId) : null;
 
-    if (!Strings.isNullOrEmpty(reportFormat) && reportFormat.equals("csv")) {
+    if (!Strings.isNullOrEmpty(reportFormat) && reportFormat.equals("archive")) {
+      log.info("Archiving events for job: " + jobId);
+      return new EventArchiveService().compact(experimentId, requestorEmail, timeZoneForClient);
+    } else if (!Strings.isNullOrEmpty(reportFormat) && reportFormat.equals("csv")) {
       // TODO - get rid of the offset and limit params and rewrite the eventretriever call to loop until all results are retrieved.
       log.info("Getting events for job: " + jobId);
-      EventQueryResultPair eventQueryResultPair = EventRetriever.getInstance().getEventsInBatchesOneBatch(query, requestorEmail, timeZoneForClient, limit, cursor);
+      EventQueryResultPair eventQueryResultPair = getArchivedEvents(query, experimentId, requestorEmail,
+                                                                    timeZoneForClient, EventArchive.CSV_COLUMNS);
+      if (eventQueryResultPair == null) {
+        eventQueryResultPair = EventRetriever.getInstance().getEventsInBatchesOneBatch(query, requestorEmail, timeZoneForClient, limit, cursor);
+      }
       //EventRetriever.sortEvents(events);
       log.info("Got events for job: " + jobId);
+      checkProgress(jobId, EVENTS_READ_PROGRESS, eventQueryResultPair.getEvents().size());
 
-      return generateCSVReport(anon, jobId, experimentId, eventQueryResultPair, timeZoneForClient);
+      long writeStart = System.currentTimeMillis();
+      String location = generateCSVReport(anonymizer, jobId, experimentId, eventQueryResultPair, timeZoneForClient);
+      recordRowsExported(reportFormat, eventQueryResultPair.getEvents().size(), writeStart);
+      return location;
     } else if (!Strings.isNullOrEmpty(reportFormat) && reportFormat.equals("json")) {
       // TODO - get rid of the offset and limit params and rewrite the eventretriever call to loop until all results are retrieved.
       log.info("Getting events for job: " + jobId);
-      EventQueryResultPair eventQueryResultPair = EventRetriever.getInstance().getEventsInBatchesOneBatch(query, requestorEmail, timeZoneForClient, limit, cursor);
+      EventQueryResultPair eventQueryResultPair = null;
+      if (!includePhotos) {
+        eventQueryResultPair = getArchivedEvents(query, experimentId, requestorEmail, timeZoneForClient,
+                                                 EventArchive.ALL_COLUMNS);
+      }
+      if (eventQueryResultPair == null) {
+        eventQueryResultPair = EventRetriever.getInstance().getEventsInBatchesOneBatch(query, requestorEmail, timeZoneForClient, limit, cursor);
+      }
       //EventRetriever.sortEvents(events);
       log.info("Got events for job: " + jobId);
+      checkProgress(jobId, EVENTS_READ_PROGRESS, eventQueryResultPair.getEvents().size());
 
-      return generateJsonReport(anon, jobId, experimentId, eventQueryResultPair, timeZoneForClient, includePhotos);
+      long writeStart = System.currentTimeMillis();
+      String location = generateJsonReport(anonymizer, jobId, experimentId, eventQueryResultPair, timeZoneForClient,
+                                           includePhotos);
+      recordRowsExported(reportFormat, eventQueryResultPair.getEvents().size(), writeStart);
+      return location;
     } else if (!Strings.isNullOrEmpty(reportFormat) && reportFormat.equals("photozip")) {
-      // TODO - get rid of the offset and limit params and rewrite the eventretriever call to loop until all results are retrieved.
-      log.info("Getting events for job: " + jobId);
-      EventQueryResultPair eventQueryResultPair = EventRetriever.getInstance().getEventsInBatches(query, requestorEmail, timeZoneForClient, limit, cursor);
-      //EventRetriever.sortEvents(events);
-      log.info("Got events for job: " + jobId);
-
-      return generatePhotoZip(jobId, experimentId, eventQueryResultPair, anon, timeZoneForClient);
+      log.info("Writing photos for job: " + jobId);
+      return generatePhotoZip(jobId, experimentId, query, requestorEmail, limit, cursor, anonymizer, timeZoneForClient);
     } else {
       // TODO - get rid of the offset and limit params and rewrite the eventretriever call to loop until all results are retrieved.
       log.info("Getting events for job: " + jobId);
       EventQueryResultPair eventQueryResultPair = EventRetriever.getInstance().getEventsInBatches(query, requestorEmail, timeZoneForClient, limit, cursor);
       //EventRetriever.sortEvents(events);
       log.info("Got events for job: " + jobId);
+      checkProgress(jobId, EVENTS_READ_PROGRESS, eventQueryResultPair.getEvents().size());
 
-      return generateHtmlReport(timeZoneForClient, anon, jobId, experimentId, eventQueryResultPair, originalQuery, requestorEmail);
+      long writeStart = System.currentTimeMillis();
+      String location = generateHtmlReport(timeZoneForClient, anonymizer, jobId, experimentId, eventQueryResultPair,
+                                           originalQuery, requestorEmail);
+      recordRowsExported(reportFormat, eventQueryResultPair.getEvents().size(), writeStart);
+      return location;
+    }
+  }
+
+  /**
+   * Reads the events from the experiment's archive when the query asks for
+   * all of an archived experiment's events.
+   *
+   * @return the events, or null if the query has to go to the datastore
+   */
+  private EventQueryResultPair getArchivedEvents(List<Query> query, String experimentId, String requestorEmail,
+                                                 DateTimeZone timeZoneForClient,
+                                                 Set<EventArchive.Column> columns) throws IOException {
+    if (Strings.isNullOrEmpty(experimentId) || query.size() != 1 || !query.get(0).getKey().equals("experimentId")) {
+      return null;
+    }
+    List<Event> events = new EventArchiveService().getEvents(experimentId, columns, requestorEmail, timeZoneForClient);
+    if (events == null) {
+      return null;
     }
+    log.info("Using event archive for experiment: " + experimentId);
+    return new EventQueryResultPair(events, null);
   }
 
-  private String generateJsonReport(boolean anon, String jobId, String experimentId,
+  private String generateJsonReport(Anonymizer anonymizer, String jobId, String experimentId,
                                     EventQueryResultPair eventQueryResultPair, DateTimeZone timeZoneForClient,
                                     boolean includePhotos) throws IOException {
-    return new JSONBlobWriter().writeEventsAsJSON(anon, eventQueryResultPair, jobId, timeZoneForClient, includePhotos);
+    return new JSONBlobWriter().writeEventsAsJSON(anonymizer, eventQueryResultPair, jobId, timeZoneForClient, includePhotos);
 
   }
 
@@ -148,28 +261,29 @@ public class ReportJobExecutor {
     return new UsageStatsBlobWriter().writeStatsAsJson(jobId, tz, requestorEmail);
   }
 
-  private String generatePhotoZip(String jobId, String experimentId, EventQueryResultPair eventQueryResultPair, boolean anon, DateTimeZone timeZoneForClient) {
-      return new PhotoZipBlobWriter().writePhotoZipFile(anon, experimentId, eventQueryResultPair, jobId, timeZoneForClient.getID());
+  private String generatePhotoZip(String jobId, String experimentId, List<Query> query, String requestorEmail,
+                                  int limit, String cursor, Anonymizer anonymizer, DateTimeZone timeZoneForClient) {
+      return new PhotoZipBlobWriter().writePhotoZipFile(anonymizer, experimentId, query, requestorEmail, timeZoneForClient,
+                                                        limit, cursor, jobId);
   }
 
-  private String generateHtmlReport(DateTimeZone timeZoneForClient, boolean anon, String jobId, String experimentId,
+  private String generateHtmlReport(DateTimeZone timeZoneForClient, Anonymizer anonymizer, String jobId, String experimentId,
                                     EventQueryResultPair eventQueryResultPair, String originalQuery, String requestorEmail) throws IOException {
     if (!Strings.isNullOrEmpty(experimentId)) {
-      String eodFile = generateEODHtml(anon, jobId, experimentId, eventQueryResultPair, timeZoneForClient.getID());
+      String eodFile = generateEODHtml(anonymizer, jobId, experimentId, eventQueryResultPair, timeZoneForClient.getID());
       if (eodFile != null) {
         return eodFile;
       }
     }
-    return new HtmlBlobWriter().writeNormalExperimentEventsAsHtml(anon, eventQueryResultPair, jobId, experimentId, timeZoneForClient.getID(), originalQuery, requestorEmail);
+    return new HtmlBlobWriter().writeNormalExperimentEventsAsHtml(anonymizer, eventQueryResultPair, jobId, experimentId, timeZoneForClient.getID(), originalQuery, requestorEmail);
   }
 
-  private String generateEODHtml(boolean anon, String jobId, String experimentId, EventQueryResultPair eventQueryResultPair, String timeZoneForClient) throws IOException {
+  private String generateEODHtml(Anonymizer anonymizer, String jobId, String experimentId, EventQueryResultPair eventQueryResultPair, String timeZoneForClient) throws IOException {
     log.info("Checking referred experiment for job: " + jobId);
     ExperimentDAO referredExperiment = getReferredExperiment(experimentId);
     if (referredExperiment != null) {
-      List<EventDAO> eodEventDAOs = EventRetriever.convertEventsToDAOs(eventQueryResultPair.getEvents());
-      List<EventDAO> dailyPingEodEventDAOs = new EndOfDayEventProcessor().breakEodResponsesIntoIndividualDailyEventResponses(eodEventDAOs);
-      return new HtmlBlobWriter().writeEndOfDayExperimentEventsAsHtml(anon, jobId, experimentId, dailyPingEodEventDAOs, timeZoneForClient);
+      List<EventDAO> dailyPingEodEventDAOs = new EndOfDayEventProcessor().breakEventsIntoIndividualDailyEventResponses(eventQueryResultPair.getEvents());
+      return new HtmlBlobWriter().writeEndOfDayExperimentEventsAsHtml(anonymizer, jobId, experimentId, dailyPingEodEventDAOs, timeZoneForClient);
     }
     return null;
   }
@@ -178,25 +292,24 @@ public class ReportJobExecutor {
     return ExperimentServiceFactory.getExperimentService().getReferredExperiment(Long.parseLong(experimentId));
   }
 
-  private String generateCSVReport(boolean anon, String jobId, String experimentId, EventQueryResultPair eventQueryResultPair, DateTimeZone clientTimezone)
+  private String generateCSVReport(Anonymizer anonymizer, String jobId, String experimentId, EventQueryResultPair eventQueryResultPair, DateTimeZone clientTimezone)
                                                                                                        throws IOException {
     if (!Strings.isNullOrEmpty(experimentId)) {
-      String eodFile = generateEODCSV(anon, jobId, experimentId, eventQueryResultPair.getEvents(), clientTimezone.getID());
+      String eodFile = generateEODCSV(anonymizer, jobId, experimentId, eventQueryResultPair.getEvents(), clientTimezone.getID());
       if (eodFile != null) {
         return eodFile;
       }
     }
     List<EventDAO> eodEventDAOs = EventRetriever.convertEventsToDAOs(eventQueryResultPair.getEvents());
     log.info("converted events to eod");
-    return new CSVBlobWriter().writeNormalExperimentEventsAsCSV(anon, eodEventDAOs, jobId, clientTimezone.getID());
+    return new CSVBlobWriter().writeNormalExperimentEventsAsCSV(anonymizer, eodEventDAOs, jobId, clientTimezone.getID());
   }
 
-  private String generateEODCSV(boolean anon, String jobId, String experimentId, List<Event> events, String clientTimezone) throws IOException {
+  private String generateEODCSV(Anonymizer anonymizer, String jobId, String experimentId, List<Event> events, String clientTimezone) throws IOException {
     ExperimentDAO referredExperiment = getReferredExperiment(experimentId);
     if (referredExperiment != null) {
-      List<EventDAO> eodEventDAOs = EventRetriever.convertEventsToDAOs(events);
-      List<EventDAO> dailyPingEodEventDAOs = new EndOfDayEventProcessor().breakEodResponsesIntoIndividualDailyEventResponses(eodEventDAOs);
-      return new CSVBlobWriter().writeEndOfDayExperimentEventsAsCSV(anon, dailyPingEodEventDAOs, jobId, clientTimezone);
+      List<EventDAO> dailyPingEodEventDAOs = new EndOfDayEventProcessor().breakEventsIntoIndividualDailyEventResponses(events);
+      return new CSVBlobWriter().writeEndOfDayExperimentEventsAsCSV(anonymizer, dailyPingEodEventDAOs, jobId, clientTimezone);
     }
     return null;
   }
@@ -0,0 +1,122 @@
+package com.google.sampling.experiential.server;
+
+import java.util.List;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.joda.time.DateTimeZone;
+
+import com.google.common.base.Joiner;
+import com.google.common.collect.Lists;
+
+/**
+ * The parameters of a report job, as stored with its run and handed to the
+ * worker that executes it.
+ *
+ * Two requests with the same run key produce the same report, so they share
+ * one run.
+ */
+public class ReportJobRequest {
+
+  private String requestorEmail;
+  private DateTimeZone timeZoneForClient;
+  private List<Query> query;
+  private boolean anon;
+  private String reportFormat;
+  private String originalQuery;
+  private int limit;
+  private String cursor;
+  private boolean includePhotos;
+
+  public ReportJobRequest(String requestorEmail, DateTimeZone timeZoneForClient, List<Query> query, boolean anon,
+                          String reportFormat, String originalQuery, int limit, String cursor,
+                          boolean includePhotos) {
+    this.requestorEmail = requestorEmail;
+    this.timeZoneForClient = timeZoneForClient;
+    this.query = query;
+    this.anon = anon;
+    this.reportFormat = reportFormat;
+    this.originalQuery = originalQuery;
+    this.limit = limit;
+    this.cursor = cursor;
+    this.includePhotos = includePhotos;
+  }
+
+  public String getRequestorEmail() {
+    return requestorEmail;
+  }
+
+  public DateTimeZone getTimeZoneForClient() {
+    return timeZoneForClient;
+  }
+
+  public List<Query> getQuery() {
+    return query;
+  }
+
+  public boolean isAnon() {
+    return anon;
+  }
+
+  public String getReportFormat() {
+    return reportFormat;
+  }
+
+  public String getOriginalQuery() {
+    return originalQuery;
+  }
+
+  public int getLimit() {
+    return limit;
+  }
+
+  public String getCursor() {
+    return cursor;
+  }
+
+  public boolean isIncludePhotos() {
+    return includePhotos;
+  }
+
+  /**
+   * @return the experimentId the query is restricted to, or null
+   */
+  public String getExperimentId() {
+    if (query == null) {
+      return null;
+    }
+    String experimentId = null;
+    for (Query query2 : query) {
+      if (query2.getKey().equals("experimentId")) {
+        experimentId = query2.getValue();
+      }
+    }
+    return experimentId;
+  }
+
+  /**
+   * Which events a query returns depends on who asks, so runs are only shared
+   * between requestors when the caller has checked that they see the same
+   * events, e.g. because they are all admins of the queried experiment.
+   *
+   * @param sharedAcrossRequestors leave the requestor out of the key
+   * @return the dedup key of the report this request produces
+   */
+  public String getRunKey(boolean sharedAcrossRequestors) {
+    List<Object> parts = Lists.newArrayList();
+    parts.add(sharedAcrossRequestors ? "" : requestorEmail);
+    parts.add(reportFormat);
+    parts.add(anon);
+    parts.add(includePhotos);
+    parts.add(timeZoneForClient != null ? timeZoneForClient.getID() : "");
+    parts.add(limit);
+    parts.add(cursor);
+    if (query != null) {
+      for (Query query2 : query) {
+        parts.add(query2.getKey());
+        parts.add(query2.getValue());
+      }
+    }
+    return DigestUtils.md5Hex(Joiner.on('\n').useForNull("").join(parts));
+  }
+
+}
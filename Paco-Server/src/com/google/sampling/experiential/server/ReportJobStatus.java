@@ -8,6 +8,8 @@ public class ReportJobStatus {
   private String location;
   private String startTime;
   private String endTime;
+  private int progress;
+  private long rowCount;
   public ReportJobStatus(String id, String requestor, int status,  
                    String startTime, String endTime, String location,
                    String errorMessage) {
@@ -62,4 +64,16 @@ public class ReportJobStatus {
   public void setEndTime(String endTime) {
     this.endTime = endTime;
   }
+  public int getProgress() {
+    return progress;
+  }
+  public void setProgress(int progress) {
+    this.progress = progress;
+  }
+  public long getRowCount() {
+    return rowCount;
+  }
+  public void setRowCount(long rowCount) {
+    this.rowCount = rowCount;
+  }
 }
\ No newline at end of file
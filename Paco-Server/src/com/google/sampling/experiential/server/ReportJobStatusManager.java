@@ -1,22 +1,45 @@
 package com.google.sampling.experiential.server;
 
+import java.util.ConcurrentModificationException;
+import java.util.Date;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.logging.Logger;
 
 import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
 
 import com.google.appengine.api.datastore.DatastoreService;
-import com.google.appengine.api.datastore.DatastoreServiceFactory;
 import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.EntityNotFoundException;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
 import com.google.appengine.api.datastore.PreparedQuery;
 import com.google.appengine.api.datastore.Query;
 import com.google.appengine.api.datastore.Query.FilterOperator;
+import com.google.appengine.api.datastore.Query.SortDirection;
 import com.google.appengine.api.datastore.QueryResultIterator;
+import com.google.appengine.api.datastore.Transaction;
+import com.google.appengine.api.taskqueue.QueueFactory;
+import com.google.appengine.api.taskqueue.TaskOptions;
 import com.google.common.base.Strings;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.sampling.experiential.server.metrics.MeteredDatastoreService;
 import com.google.sampling.experiential.shared.TimeUtil;
 
+/**
+ * Tracks report jobs.
+ *
+ * A report_job belongs to one requestor. It points at a report_run, which
+ * does the work and may be shared by several jobs asking for the same report.
+ * A pending run counts the jobs waiting on it. Jobs attach and cancel in a
+ * transaction on the run, and the run is cancelled when its count reaches 0.
+ * Runs execute as tasks on the reports queue, which targets the reportworker
+ * module and bounds how many run at once.
+ */
 public class ReportJobStatusManager {
 
   private static final Logger log = Logger.getLogger(ReportJobStatusManager.class.getName());
@@ -30,10 +53,36 @@ public class ReportJobStatusManager {
   private static final String LOCATION_PROPERTY = "location";
   private static final String START_TIME_PROPERTY = "start_time";
   private static final String END_TIME_PROPERTY = "end_time";
+  private static final String RUN_KEY_PROPERTY = "runKey";
+
+  private static final String REPORT_RUN_KIND = "report_run";
+  private static final String PROGRESS_PROPERTY = "progress";
+  private static final String ROW_COUNT_PROPERTY = "row_count";
+  private static final String START_DATE_PROPERTY = "start_date";
+  private static final String TIME_ZONE_PROPERTY = "tz";
+  private static final String QUERY_KEYS_PROPERTY = "query_keys";
+  private static final String QUERY_VALUES_PROPERTY = "query_values";
+  private static final String ORIGINAL_QUERY_PROPERTY = "original_query";
+  private static final String ANON_PROPERTY = "anon";
+  private static final String REPORT_FORMAT_PROPERTY = "report_format";
+  private static final String LIMIT_PROPERTY = "limit";
+  private static final String CURSOR_PROPERTY = "cursor";
+  private static final String INCLUDE_PHOTOS_PROPERTY = "include_photos";
+  private static final String EXPERIMENT_ID_PROPERTY = "experiment_id";
+  private static final String WAITING_JOBS_PROPERTY = "waiting_jobs";
+
+  static final String REPORT_QUEUE = "reports";
+  static final String REPORT_WORKER_URL = "/reportJobWorker";
+
+  // a run still pending after the longest a task can run has lost its worker
+  private static final long STALE_RUN_MILLIS = 24 * 60 * 60 * 1000L;
+
+  private static final int RUN_TRANSACTION_ATTEMPTS = 3;
 
   public static final int PENDING = 1;
   public static final int COMPLETE = 2;
   public static final int FAILED = 3;
+  public static final int CANCELLED = 4;
 
   public ReportJobStatus isItDone(String who, String id) {
     if (who == null || id == null) {
@@ -48,17 +97,45 @@ public class ReportJobStatusManager {
       return null; // no need to throw an error, why let on that there is a
                    // report by this id that someone else owns?
     }
-    return report == null ? null : new ReportJobStatus((String)report.getProperty(ID_PROPERTY),
+    ReportJobStatus status = new ReportJobStatus((String)report.getProperty(ID_PROPERTY),
                                                  (String)report.getProperty(REQUESTOR_PROPERTY),
                                                  new Integer(((Long)report.getProperty(STATUS_PROPERTY)).intValue()),
                                                  (String)report.getProperty(START_TIME_PROPERTY),
                                                  (String)report.getProperty(END_TIME_PROPERTY),
                                                  (String)report.getProperty(LOCATION_PROPERTY),
                                                  (String)report.getProperty(ERROR_MESSAGE_PROPERTY));
+    String runKey = (String) report.getProperty(RUN_KEY_PROPERTY);
+    if (status.getStatus() == PENDING && runKey != null) {
+      copyRunStatus(getRun(runKey), status);
+    }
+    return status;
+  }
+
+  private void copyRunStatus(Entity run, ReportJobStatus status) {
+    if (run == null) {
+      status.setStatus(FAILED);
+      status.setErrorMessage("The report run is missing");
+      return;
+    }
+    int runStatus = ((Long) run.getProperty(STATUS_PROPERTY)).intValue();
+    status.setEndTime((String) run.getProperty(END_TIME_PROPERTY));
+    status.setLocation((String) run.getProperty(LOCATION_PROPERTY));
+    status.setErrorMessage((String) run.getProperty(ERROR_MESSAGE_PROPERTY));
+    if (runStatus == CANCELLED) {
+      // a job cancelled by its requestor is marked on the job itself, so this one was not
+      status.setStatus(FAILED);
+      status.setErrorMessage("The report run was cancelled. Please request the report again.");
+    } else {
+      status.setStatus(runStatus);
+    }
+    Long progress = (Long) run.getProperty(PROGRESS_PROPERTY);
+    status.setProgress(progress != null ? progress.intValue() : 0);
+    Long rowCount = (Long) run.getProperty(ROW_COUNT_PROPERTY);
+    status.setRowCount(rowCount != null ? rowCount : 0);
   }
 
   private Entity getReportById(String id) {
-    DatastoreService ds = DatastoreServiceFactory.getDatastoreService();
+    DatastoreService ds = MeteredDatastoreService.getDatastoreService();
     Query query = new Query(REPORT_JOB_KIND);
     query.addFilter(ID_PROPERTY, FilterOperator.EQUAL, id);
     PreparedQuery preparedQuery = ds.prepare(query);
@@ -79,7 +156,7 @@ public class ReportJobStatusManager {
     requestorEmail = requestorEmail.toLowerCase();
     Entity report = getReportById(id);
     if (report == null) {
-      DatastoreService ds = DatastoreServiceFactory.getDatastoreService();
+      DatastoreService ds = MeteredDatastoreService.getDatastoreService();
       Entity entity = new Entity(REPORT_JOB_KIND);
       entity.setProperty(ID_PROPERTY, id);
       entity.setProperty(REQUESTOR_PROPERTY, requestorEmail);
@@ -91,6 +168,324 @@ public class ReportJobStatusManager {
     }
   }
 
+  /**
+   * Starts a job for the requestor, sharing the run of an identical report
+   * that is still pending, or that completed and can be reused, instead of
+   * starting another one.
+   *
+   * @param reusable whether a completed run may be reused while no new
+   *          events have arrived for its experiment
+   * @return true if a new run was queued
+   */
+  public boolean startReport(String requestorEmail, String id, String runKey, ReportJobRequest request,
+                             boolean reusable) {
+    if (requestorEmail == null || id == null || runKey == null) {
+      log.info("Invalid startReport request");
+      throw new IllegalArgumentException("Invalid report parameters for startReport");
+    }
+    boolean newRun = false;
+    if (!(reusable && isReusableRun(getRun(runKey)))) {
+      newRun = attachToRunWithRetries(runKey, request);
+    }
+    if (!newRun) {
+      log.info("Job " + id + " shares report run " + runKey);
+    }
+
+    DatastoreService ds = MeteredDatastoreService.getDatastoreService();
+    Entity entity = new Entity(REPORT_JOB_KIND);
+    entity.setProperty(ID_PROPERTY, id);
+    entity.setProperty(REQUESTOR_PROPERTY, requestorEmail.toLowerCase());
+    entity.setProperty(STATUS_PROPERTY, PENDING);
+    entity.setProperty(START_TIME_PROPERTY, getCurrentTimeAsString());
+    entity.setProperty(RUN_KEY_PROPERTY, runKey);
+    ds.put(entity);
+    return newRun;
+  }
+
+  private boolean isPendingRun(Entity run) {
+    if (run == null || ((Long) run.getProperty(STATUS_PROPERTY)).intValue() != PENDING) {
+      return false;
+    }
+    Date startDate = (Date) run.getProperty(START_DATE_PROPERTY);
+    return System.currentTimeMillis() - startDate.getTime() < STALE_RUN_MILLIS;
+  }
+
+  /**
+   * A completed run can be reused until an event arrives for its experiment.
+   * Event.when is the time the server stored the event, so any newer event
+   * arrived after the run started reading.
+   */
+  private boolean isReusableRun(Entity run) {
+    if (run == null || ((Long) run.getProperty(STATUS_PROPERTY)).intValue() != COMPLETE) {
+      return false;
+    }
+    String experimentId = (String) run.getProperty(EXPERIMENT_ID_PROPERTY);
+    if (experimentId == null) {
+      return false;
+    }
+    Date startDate = (Date) run.getProperty(START_DATE_PROPERTY);
+    Query newestEvent = new Query("Event");
+    newestEvent.addFilter("experimentId", FilterOperator.EQUAL, experimentId);
+    newestEvent.addSort("when", SortDirection.DESCENDING);
+    DatastoreService ds = MeteredDatastoreService.getDatastoreService();
+    List<Entity> newest = ds.prepare(newestEvent).asList(FetchOptions.Builder.withLimit(1));
+    return newest.isEmpty() || !((Date) newest.get(0).getProperty("when")).after(startDate);
+  }
+
+  private boolean attachToRunWithRetries(String runKey, ReportJobRequest request) {
+    for (int attempt = 1; ; attempt++) {
+      try {
+        return attachToRun(runKey, request);
+      } catch (ConcurrentModificationException e) {
+        if (attempt == RUN_TRANSACTION_ATTEMPTS) {
+          throw e;
+        }
+      }
+    }
+  }
+
+  /**
+   * Adds a job to the waiting jobs of the pending run, or else writes a new
+   * pending run for it and queues its task, in one transaction.
+   *
+   * @return true if this call queued the run
+   */
+  private boolean attachToRun(String runKey, ReportJobRequest request) {
+    DatastoreService ds = MeteredDatastoreService.getDatastoreService();
+    Transaction tx = ds.beginTransaction();
+    try {
+      Entity run = getRun(ds, tx, runKey);
+      if (isPendingRun(run)) {
+        Long waitingJobs = (Long) run.getProperty(WAITING_JOBS_PROPERTY);
+        if (waitingJobs != null) {
+          run.setUnindexedProperty(WAITING_JOBS_PROPERTY, waitingJobs + 1);
+          ds.put(tx, run);
+          tx.commit();
+        }
+        return false;
+      }
+      run = new Entity(runKeyFor(runKey));
+      run.setProperty(STATUS_PROPERTY, PENDING);
+      run.setUnindexedProperty(WAITING_JOBS_PROPERTY, 1);
+      run.setUnindexedProperty(START_DATE_PROPERTY, new Date());
+      run.setUnindexedProperty(START_TIME_PROPERTY, getCurrentTimeAsString());
+      run.setUnindexedProperty(PROGRESS_PROPERTY, 0);
+      run.setUnindexedProperty(ROW_COUNT_PROPERTY, 0);
+      setRequestProperties(run, request);
+      ds.put(tx, run);
+      QueueFactory.getQueue(REPORT_QUEUE).add(tx, TaskOptions.Builder.withUrl(REPORT_WORKER_URL)
+                                                                      .param("runKey", runKey));
+      tx.commit();
+      log.info("Queued report run " + runKey);
+      return true;
+    } finally {
+      if (tx.isActive()) {
+        tx.rollback();
+      }
+    }
+  }
+
+  private void setRequestProperties(Entity run, ReportJobRequest request) {
+    run.setUnindexedProperty(REQUESTOR_PROPERTY, request.getRequestorEmail());
+    DateTimeZone timeZone = request.getTimeZoneForClient();
+    run.setUnindexedProperty(TIME_ZONE_PROPERTY, timeZone != null ? timeZone.getID() : null);
+    if (request.getQuery() != null) {
+      List<String> keys = Lists.newArrayList();
+      List<String> values = Lists.newArrayList();
+      for (com.google.sampling.experiential.server.Query query : request.getQuery()) {
+        keys.add(query.getKey());
+        values.add(query.getValue());
+      }
+      run.setUnindexedProperty(QUERY_KEYS_PROPERTY, keys);
+      run.setUnindexedProperty(QUERY_VALUES_PROPERTY, values);
+    }
+    run.setUnindexedProperty(ORIGINAL_QUERY_PROPERTY, request.getOriginalQuery());
+    run.setUnindexedProperty(ANON_PROPERTY, request.isAnon());
+    run.setUnindexedProperty(REPORT_FORMAT_PROPERTY, request.getReportFormat());
+    run.setUnindexedProperty(LIMIT_PROPERTY, request.getLimit());
+    run.setUnindexedProperty(CURSOR_PROPERTY, request.getCursor());
+    run.setUnindexedProperty(INCLUDE_PHOTOS_PROPERTY, request.isIncludePhotos());
+    run.setUnindexedProperty(EXPERIMENT_ID_PROPERTY, request.getExperimentId());
+  }
+
+  /**
+   * @param runKey
+   * @return the request of the run, or null if it is no longer pending
+   */
+  @SuppressWarnings("unchecked")
+  public ReportJobRequest getPendingRunRequest(String runKey) {
+    Entity run = getRun(runKey);
+    if (run == null || ((Long) run.getProperty(STATUS_PROPERTY)).intValue() != PENDING) {
+      return null;
+    }
+    List<com.google.sampling.experiential.server.Query> query = null;
+    List<String> keys = (List<String>) run.getProperty(QUERY_KEYS_PROPERTY);
+    if (keys != null) {
+      List<String> values = (List<String>) run.getProperty(QUERY_VALUES_PROPERTY);
+      query = Lists.newArrayList();
+      for (int i = 0; i < keys.size(); i++) {
+        query.add(new com.google.sampling.experiential.server.Query(keys.get(i), values.get(i)));
+      }
+    }
+    String tz = (String) run.getProperty(TIME_ZONE_PROPERTY);
+    Long limit = (Long) run.getProperty(LIMIT_PROPERTY);
+    return new ReportJobRequest((String) run.getProperty(REQUESTOR_PROPERTY),
+                                tz != null ? DateTimeZone.forID(tz) : null,
+                                query,
+                                Boolean.TRUE.equals(run.getProperty(ANON_PROPERTY)),
+                                (String) run.getProperty(REPORT_FORMAT_PROPERTY),
+                                (String) run.getProperty(ORIGINAL_QUERY_PROPERTY),
+                                limit != null ? limit.intValue() : 0,
+                                (String) run.getProperty(CURSOR_PROPERTY),
+                                Boolean.TRUE.equals(run.getProperty(INCLUDE_PHOTOS_PROPERTY)));
+  }
+
+  /**
+   * @return false if the run is no longer pending, e.g. because it was cancelled
+   */
+  public boolean updateRunProgress(String runKey, int progress, long rowCount) {
+    Map<String, Object> properties = Maps.newHashMap();
+    properties.put(PROGRESS_PROPERTY, progress);
+    properties.put(ROW_COUNT_PROPERTY, rowCount);
+    return updatePendingRun(runKey, properties);
+  }
+
+  public void completeRun(String runKey, String location) {
+    Map<String, Object> properties = Maps.newHashMap();
+    properties.put(STATUS_PROPERTY, COMPLETE);
+    properties.put(PROGRESS_PROPERTY, 100);
+    properties.put(END_TIME_PROPERTY, getCurrentTimeAsString());
+    properties.put(LOCATION_PROPERTY, location);
+    updatePendingRun(runKey, properties);
+  }
+
+  public void failRun(String runKey, String errorMessage) {
+    Map<String, Object> properties = Maps.newHashMap();
+    properties.put(STATUS_PROPERTY, FAILED);
+    properties.put(END_TIME_PROPERTY, getCurrentTimeAsString());
+    properties.put(ERROR_MESSAGE_PROPERTY, errorMessage);
+    updatePendingRun(runKey, properties);
+  }
+
+  /**
+   * Cancels the requestor's job. The run is cancelled too once no other
+   * job is waiting on it.
+   *
+   * @return false if the job is not the requestor's or is no longer pending
+   */
+  public boolean cancelReport(String requestorEmail, String id) {
+    ReportJobStatus status = isItDone(requestorEmail, id);
+    if (status == null || status.getStatus() != PENDING) {
+      return false;
+    }
+    Entity report = getReportById(id);
+    String runKey = (String) report.getProperty(RUN_KEY_PROPERTY);
+    if (runKey != null && !detachFromRunWithRetries(runKey)) {
+      // the run finished in the meantime
+      return false;
+    }
+    report.setProperty(STATUS_PROPERTY, CANCELLED);
+    report.setProperty(END_TIME_PROPERTY, getCurrentTimeAsString());
+    DatastoreService ds = MeteredDatastoreService.getDatastoreService();
+    ds.put(report);
+    return true;
+  }
+
+  private boolean detachFromRunWithRetries(String runKey) {
+    for (int attempt = 1; ; attempt++) {
+      try {
+        return detachFromRun(runKey);
+      } catch (ConcurrentModificationException e) {
+        if (attempt == RUN_TRANSACTION_ATTEMPTS) {
+          throw e;
+        }
+      }
+    }
+  }
+
+  /**
+   * Removes a job from the waiting jobs of the run, and cancels the run when
+   * it was the last one. Runs written before jobs were counted are left to
+   * finish.
+   *
+   * @return false if the run is no longer pending
+   */
+  private boolean detachFromRun(String runKey) {
+    DatastoreService ds = MeteredDatastoreService.getDatastoreService();
+    Transaction tx = ds.beginTransaction();
+    try {
+      Entity run = getRun(ds, tx, runKey);
+      if (run == null || ((Long) run.getProperty(STATUS_PROPERTY)).intValue() != PENDING) {
+        return false;
+      }
+      Long waitingJobs = (Long) run.getProperty(WAITING_JOBS_PROPERTY);
+      if (waitingJobs == null) {
+        return true;
+      }
+      run.setUnindexedProperty(WAITING_JOBS_PROPERTY, waitingJobs - 1);
+      if (waitingJobs <= 1) {
+        run.setProperty(STATUS_PROPERTY, CANCELLED);
+        run.setUnindexedProperty(END_TIME_PROPERTY, getCurrentTimeAsString());
+      }
+      ds.put(tx, run);
+      tx.commit();
+      if (waitingJobs <= 1) {
+        log.info("Cancelled report run " + runKey);
+      }
+      return true;
+    } finally {
+      if (tx.isActive()) {
+        tx.rollback();
+      }
+    }
+  }
+
+  /**
+   * Updates a run in a transaction, so progress updates from the worker
+   * cannot overwrite a cancellation.
+   */
+  private boolean updatePendingRun(String runKey, Map<String, Object> properties) {
+    DatastoreService ds = MeteredDatastoreService.getDatastoreService();
+    Transaction tx = ds.beginTransaction();
+    try {
+      Entity run = getRun(ds, tx, runKey);
+      if (run == null || ((Long) run.getProperty(STATUS_PROPERTY)).intValue() != PENDING) {
+        return false;
+      }
+      for (Map.Entry<String, Object> property : properties.entrySet()) {
+        if (property.getKey().equals(STATUS_PROPERTY)) {
+          run.setProperty(STATUS_PROPERTY, property.getValue());
+        } else {
+          run.setUnindexedProperty(property.getKey(), property.getValue());
+        }
+      }
+      ds.put(tx, run);
+      tx.commit();
+      return true;
+    } finally {
+      if (tx.isActive()) {
+        tx.rollback();
+      }
+    }
+  }
+
+  private Entity getRun(String runKey) {
+    DatastoreService ds = MeteredDatastoreService.getDatastoreService();
+    return getRun(ds, null, runKey);
+  }
+
+  private Entity getRun(DatastoreService ds, Transaction tx, String runKey) {
+    try {
+      return ds.get(tx, runKeyFor(runKey));
+    } catch (EntityNotFoundException e) {
+      return null;
+    }
+  }
+
+  private Key runKeyFor(String runKey) {
+    return KeyFactory.createKey(REPORT_RUN_KIND, runKey);
+  }
+
   private String getCurrentTimeAsString() {
     return DateTime.now().toString(TimeUtil.DATETIME_FORMAT);
   }
@@ -116,7 +511,7 @@ public class ReportJobStatusManager {
       report.setProperty(LOCATION_PROPERTY, location);
     }
 
-    DatastoreService ds = DatastoreServiceFactory.getDatastoreService();
+    DatastoreService ds = MeteredDatastoreService.getDatastoreService();
     ds.put(report);
   }
 
@@ -141,7 +536,7 @@ public class ReportJobStatusManager {
       report.setProperty(ERROR_MESSAGE_PROPERTY, errorMessage);
     }
 
-    DatastoreService ds = DatastoreServiceFactory.getDatastoreService();
+    DatastoreService ds = MeteredDatastoreService.getDatastoreService();
     ds.put(report);
   }
 
@@ -159,7 +554,7 @@ public class ReportJobStatusManager {
   }
 
   public List<String> getAllReportStatus() {
-    DatastoreService ds = DatastoreServiceFactory.getDatastoreService();
+    DatastoreService ds = MeteredDatastoreService.getDatastoreService();
     Query q = new Query(REPORT_JOB_KIND);
     PreparedQuery preparedQuery = ds.prepare(q);
 
@@ -0,0 +1,54 @@
+/*
+ * Copyright 2011 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance  with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.google.sampling.experiential.server;
+
+import java.io.IOException;
+import java.util.logging.Logger;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import com.google.common.base.Strings;
+
+/**
+ * Receives report runs from the reports task queue and executes them.
+ *
+ * Runs on backend.
+ *
+ * A failed report is recorded on its run and not retried. The queue only
+ * retries a run whose worker died before it finished.
+ *
+ */
+@SuppressWarnings("serial")
+public class ReportJobWorkerServlet extends HttpServlet {
+
+  private static final Logger log = Logger.getLogger(ReportJobWorkerServlet.class.getName());
+
+  @Override
+  protected void doPost(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+    String runKey = req.getParameter("runKey");
+    if (Strings.isNullOrEmpty(runKey)) {
+      log.warning("Report worker called without a runKey");
+      return;
+    }
+    log.info("Report worker executing run " + runKey + ", attempt "
+             + req.getHeader("X-AppEngine-TaskRetryCount"));
+    ReportJobExecutor.getInstance().executeRun(runKey);
+  }
+
+}
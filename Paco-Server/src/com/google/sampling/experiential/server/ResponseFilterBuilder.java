@@ -0,0 +1,80 @@
+package com.google.sampling.experiential.server;
+
+/**
+ * Adds the filters on response values to an event query, for JDOQueryBuilder
+ * and DSQueryBuilder.
+ *
+ * Equality and existence use the responseIndex tokens when the experiment's
+ * events are all indexed, and keysList/valuesList otherwise. A prefix is
+ * filtered as the existence of the response, and then tested on the results
+ * by the query's ResponsePrefixMatcher, so the events stay in "when desc"
+ * order.
+ */
+class ResponseFilterBuilder {
+
+  private final BaseJDOQuery jdoQuery;
+  private final ResponsePrefixMatcher prefixMatcher;
+  private final boolean useResponseIndex;
+  private int responseIndexParamCount;
+
+  /**
+   * @param useResponseIndex filter on responses with the responseIndex tokens.
+   * Only pass true when the query is restricted to one experiment whose events are all indexed.
+   */
+  ResponseFilterBuilder(BaseJDOQuery jdoQuery, ResponsePrefixMatcher prefixMatcher, boolean useResponseIndex) {
+    this.jdoQuery = jdoQuery;
+    this.prefixMatcher = prefixMatcher;
+    this.useResponseIndex = useResponseIndex;
+  }
+
+  void addResponseTest(Query query) {
+    String key = query.getKey();
+    String value = query.getValue();
+    if (query.isPrefixMatch()) {
+      addExistenceTest(key);
+      prefixMatcher.addPrefix(key, value);
+    } else if (value != null) {
+      addEqualityTest(key, value);
+    } else {
+      addExistenceTest(key);
+    }
+  }
+
+  private void addExistenceTest(String key) {
+    if (useResponseIndex && addResponseIndexContains(ResponseIndex.keyToken(key))) {
+      return;
+    }
+    jdoQuery.addFilters("keysList.contains(\"" + key + "\")");
+  }
+
+  // TODO(bobevans): once appengine supports querying on properties of
+  // children types make this do the equality test on the associated what value.
+  // For now, we still do the EventMatcher on the results returned, but at least
+  // it is a smaller set, and the database query should be more efficient than retrieving
+  // all events.
+  private void addEqualityTest(String key, String value) {
+    if (useResponseIndex && addResponseIndexContains(ResponseIndex.valueToken(key, value))) {
+      return;
+    }
+    // TODO (bobevans): this is not exactly correct, because the value could be contained
+    // at a different index, meaning that we don't actually have equality.
+    // We really want a Map (not supported), but we would also like an index for the key and
+    // value to ensure that those match.
+    jdoQuery.addFilters("keysList.contains(\"" + key + "\") && valuesList.contains(\"" + value + "\")");
+  }
+
+  /**
+   * @return false if the token is too long to be indexed, so the caller should fall back
+   */
+  private boolean addResponseIndexContains(String token) {
+    if (token == null) {
+      return false;
+    }
+    String paramName = "responseIndexParam" + responseIndexParamCount++;
+    jdoQuery.declareParameters("String " + paramName);
+    jdoQuery.addParameterObjects(token);
+    jdoQuery.addFilters(ResponseIndex.PROPERTY + ".contains(" + paramName + ")");
+    return true;
+  }
+
+}
@@ -0,0 +1,72 @@
+package com.google.sampling.experiential.server;
+
+import java.util.List;
+
+import com.google.common.collect.Lists;
+
+/**
+ * Builds the tokens of the indexed responseIndex property on Event.
+ *
+ * keysList and valuesList are unindexed and parallel, so the datastore cannot
+ * tell that a key and a value belong to the same response. Each response is
+ * instead written as an "inputName" token, for existence tests, and an
+ * "inputName=value" token, for equality tests. '=' and '\' in input names
+ * are escaped with '\', so a name containing '=' cannot collide with a
+ * name and value.
+ *
+ * Only experiments that opt in with indexResponses get the tokens.
+ */
+public class ResponseIndex {
+
+  public static final String PROPERTY = "responseIndex";
+
+  // indexed strings are capped at 1500 bytes. Longer responses are not indexed.
+  static final int MAX_TOKEN_LENGTH = 500;
+
+  private static final String SEPARATOR = "=";
+  private static final String ESCAPE = "\\";
+
+  public static List<String> tokensFor(List<String> keys, List<String> values) {
+    List<String> tokens = Lists.newArrayList();
+    if (keys == null || values == null) {
+      return tokens;
+    }
+    for (int i = 0; i < keys.size() && i < values.size(); i++) {
+      String key = keys.get(i);
+      if (key == null || key.isEmpty()) {
+        continue;
+      }
+      addIfAbsent(tokens, keyToken(key));
+      addIfAbsent(tokens, valueToken(key, values.get(i)));
+    }
+    return tokens;
+  }
+
+  private static void addIfAbsent(List<String> tokens, String token) {
+    if (token != null && !tokens.contains(token)) {
+      tokens.add(token);
+    }
+  }
+
+  /**
+   * @return the token for the existence of key, or null if it is too long to index
+   */
+  public static String keyToken(String key) {
+    String token = escape(key);
+    return token.length() > MAX_TOKEN_LENGTH ? null : token;
+  }
+
+  /**
+   * @return the token for key having value, or null if it is too long to index
+   */
+  public static String valueToken(String key, String value) {
+    String token = escape(key) + SEPARATOR + (value != null ? value : "");
+    return token.length() > MAX_TOKEN_LENGTH ? null : token;
+  }
+
+  // the first unescaped separator ends the key, so the value needs no escaping
+  private static String escape(String key) {
+    return key.replace(ESCAPE, ESCAPE + ESCAPE).replace(SEPARATOR, ESCAPE + SEPARATOR);
+  }
+
+}
@@ -0,0 +1,54 @@
+package com.google.sampling.experiential.server;
+
+import java.util.Collection;
+import java.util.List;
+
+import com.google.common.collect.Lists;
+import com.google.sampling.experiential.model.Event;
+
+/**
+ * The prefix tests of an event query, e.g. restaurant^=Cafe.
+ *
+ * The datastore can only range over one property and then has to sort on it
+ * first, which would return the events out of "when desc" order. The query
+ * therefore only filters on the response existing, and the prefix is tested
+ * here on the results.
+ */
+public class ResponsePrefixMatcher {
+
+  private final List<String> keys = Lists.newArrayList();
+  private final List<String> prefixes = Lists.newArrayList();
+
+  public void addPrefix(String key, String prefix) {
+    keys.add(key);
+    prefixes.add(prefix);
+  }
+
+  public boolean isEmpty() {
+    return keys.isEmpty();
+  }
+
+  public boolean matches(Event event) {
+    for (int i = 0; i < keys.size(); i++) {
+      String value = event.getWhatByKey(keys.get(i));
+      if (value == null || !value.startsWith(prefixes.get(i))) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * @return the events that match, in their original order
+   */
+  public <T extends Event> List<T> filter(Collection<T> events) {
+    List<T> matching = Lists.newArrayList();
+    for (T event : events) {
+      if (matches(event)) {
+        matching.add(event);
+      }
+    }
+    return matching;
+  }
+
+}
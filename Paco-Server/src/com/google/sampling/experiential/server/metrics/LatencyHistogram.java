@@ -0,0 +1,105 @@
+package com.google.sampling.experiential.server.metrics;
+
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import com.google.common.collect.Maps;
+
+/**
+ * Counts latencies into fixed buckets so that recording is a couple of atomic
+ * increments and the percentiles are estimated from the bucket bounds.
+ *
+ * The values are read one at a time, so a snapshot taken while latencies are
+ * recorded can be off by the latencies recorded while it was taken.
+ */
+public class LatencyHistogram {
+
+  static final long[] BUCKET_BOUNDS_MILLIS = new long[] { 1, 2, 5, 10, 20, 50, 100, 200, 500, 1000, 2000, 5000,
+                                                          10000, 30000, 60000 };
+
+  // the last bucket counts the latencies above the last bound
+  private final AtomicLongArray bucketCounts = new AtomicLongArray(BUCKET_BOUNDS_MILLIS.length + 1);
+  private final AtomicLong count = new AtomicLong();
+  private final AtomicLong totalMillis = new AtomicLong();
+  private final AtomicLong maxMillis = new AtomicLong();
+
+  public void record(long millis) {
+    if (millis < 0) {
+      millis = 0;
+    }
+    bucketCounts.incrementAndGet(bucketFor(millis));
+    count.incrementAndGet();
+    totalMillis.addAndGet(millis);
+    long max = maxMillis.get();
+    while (millis > max && !maxMillis.compareAndSet(max, millis)) {
+      max = maxMillis.get();
+    }
+  }
+
+  private static int bucketFor(long millis) {
+    for (int i = 0; i < BUCKET_BOUNDS_MILLIS.length; i++) {
+      if (millis <= BUCKET_BOUNDS_MILLIS[i]) {
+        return i;
+      }
+    }
+    return BUCKET_BOUNDS_MILLIS.length;
+  }
+
+  public long getCount() {
+    return count.get();
+  }
+
+  public long getTotalMillis() {
+    return totalMillis.get();
+  }
+
+  public long getMaxMillis() {
+    return maxMillis.get();
+  }
+
+  /**
+   * @param percentile between 0 and 100
+   * @return the upper bound of the bucket holding the percentile, or the max
+   * if it is in the last bucket
+   */
+  public long getPercentileMillis(double percentile) {
+    long total = 0;
+    long[] counts = new long[bucketCounts.length()];
+    for (int i = 0; i < counts.length; i++) {
+      counts[i] = bucketCounts.get(i);
+      total += counts[i];
+    }
+    if (total == 0) {
+      return 0;
+    }
+    long rank = (long) Math.ceil(total * percentile / 100.0);
+    long seen = 0;
+    for (int i = 0; i < BUCKET_BOUNDS_MILLIS.length; i++) {
+      seen += counts[i];
+      if (seen >= rank) {
+        return Math.min(BUCKET_BOUNDS_MILLIS[i], getMaxMillis());
+      }
+    }
+    return getMaxMillis();
+  }
+
+  Map<String, Object> toMap() {
+    Map<String, Object> values = Maps.newLinkedHashMap();
+    long recorded = getCount();
+    values.put("count", recorded);
+    values.put("meanMillis", recorded == 0 ? 0 : getTotalMillis() / recorded);
+    values.put("p50Millis", getPercentileMillis(50));
+    values.put("p95Millis", getPercentileMillis(95));
+    values.put("p99Millis", getPercentileMillis(99));
+    values.put("maxMillis", getMaxMillis());
+    Map<String, Long> buckets = Maps.newLinkedHashMap();
+    for (int i = 0; i < BUCKET_BOUNDS_MILLIS.length; i++) {
+      buckets.put("<=" + BUCKET_BOUNDS_MILLIS[i], bucketCounts.get(i));
+    }
+    buckets.put(">" + BUCKET_BOUNDS_MILLIS[BUCKET_BOUNDS_MILLIS.length - 1],
+                bucketCounts.get(BUCKET_BOUNDS_MILLIS.length));
+    values.put("buckets", buckets);
+    return values;
+  }
+}
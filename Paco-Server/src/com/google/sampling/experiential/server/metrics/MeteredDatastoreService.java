@@ -0,0 +1,127 @@
+package com.google.sampling.experiential.server.metrics;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.Map;
+
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.PreparedQuery;
+
+/**
+ * A DatastoreService that counts its gets, puts, deletes and queries, and the
+ * entities they read, into the MetricsRegistry.
+ *
+ * Query results are counted as they are read: the entities returned by the
+ * iterators, lists and single entity results of a prepared query.
+ *
+ * This is a dynamic proxy, rather than a class delegating each method, so it
+ * follows the DatastoreService of whatever sdk version it runs against.
+ */
+public class MeteredDatastoreService {
+
+  static final String GETS = "datastore.gets";
+  static final String PUTS = "datastore.puts";
+  static final String DELETES = "datastore.deletes";
+  static final String QUERIES = "datastore.queries";
+  static final String ENTITIES_READ = "datastore.entitiesRead";
+  static final String ENTITIES_WRITTEN = "datastore.entitiesWritten";
+
+  private MeteredDatastoreService() {
+  }
+
+  /**
+   * Use in place of DatastoreServiceFactory.getDatastoreService().
+   */
+  public static DatastoreService getDatastoreService() {
+    return wrap(DatastoreServiceFactory.getDatastoreService(), MetricsRegistry.getInstance());
+  }
+
+  // Visible for testing
+  static DatastoreService wrap(DatastoreService datastoreService, MetricsRegistry metrics) {
+    return (DatastoreService) Proxy.newProxyInstance(DatastoreService.class.getClassLoader(),
+                                                     new Class<?>[] { DatastoreService.class },
+                                                     new DatastoreHandler(datastoreService, metrics));
+  }
+
+  private static Object invoke(Object target, Method method, Object[] args) throws Throwable {
+    try {
+      return method.invoke(target, args);
+    } catch (InvocationTargetException e) {
+      throw e.getCause();
+    }
+  }
+
+  private static class DatastoreHandler implements InvocationHandler {
+    private final DatastoreService datastoreService;
+    private final MetricsRegistry metrics;
+
+    DatastoreHandler(DatastoreService datastoreService, MetricsRegistry metrics) {
+      this.datastoreService = datastoreService;
+      this.metrics = metrics;
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+      String name = method.getName();
+      if (name.equals("prepare")) {
+        metrics.increment(QUERIES);
+        PreparedQuery preparedQuery = (PreparedQuery) MeteredDatastoreService.invoke(datastoreService, method, args);
+        return Proxy.newProxyInstance(PreparedQuery.class.getClassLoader(), new Class<?>[] { PreparedQuery.class },
+                                      new ResultHandler(preparedQuery, metrics));
+      }
+      if (!name.equals("get") && !name.equals("put") && !name.equals("delete")) {
+        return MeteredDatastoreService.invoke(datastoreService, method, args);
+      }
+
+      MetricsRegistry.Timer timer = metrics.startTimer("datastore." + name);
+      Object result = MeteredDatastoreService.invoke(datastoreService, method, args);
+      timer.stop();
+      if (name.equals("get")) {
+        metrics.increment(GETS);
+        metrics.increment(ENTITIES_READ, result instanceof Map ? ((Map<?, ?>) result).size() : 1);
+      } else if (name.equals("put")) {
+        metrics.increment(PUTS);
+        metrics.increment(ENTITIES_WRITTEN, result instanceof Collection ? ((Collection<?>) result).size() : 1);
+      } else {
+        metrics.increment(DELETES);
+      }
+      return result;
+    }
+  }
+
+  /**
+   * Counts the entities read through a prepared query and the iterables,
+   * iterators and lists of its results.
+   */
+  private static class ResultHandler implements InvocationHandler {
+    private final Object target;
+    private final MetricsRegistry metrics;
+
+    ResultHandler(Object target, MetricsRegistry metrics) {
+      this.target = target;
+      this.metrics = metrics;
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+      Object result = MeteredDatastoreService.invoke(target, method, args);
+      if (result instanceof Entity) {
+        metrics.increment(ENTITIES_READ);
+        return result;
+      }
+      Class<?> returnType = method.getReturnType();
+      if (result != null && returnType.isInterface()
+          && (Iterable.class.isAssignableFrom(returnType) || Iterator.class.isAssignableFrom(returnType))) {
+        return Proxy.newProxyInstance(returnType.getClassLoader(), new Class<?>[] { returnType },
+                                      new ResultHandler(result, metrics));
+      }
+      return result;
+    }
+  }
+}
@@ -0,0 +1,59 @@
+package com.google.sampling.experiential.server.metrics;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+
+import com.google.common.collect.Maps;
+
+/**
+ * Records the latency of each request into servlet.&lt;servlet name&gt;, and
+ * counts the requests that threw into servlet.&lt;servlet name&gt;.errors.
+ * The servlet name is the one web.xml maps the request to, or other.
+ */
+public class MetricsFilter implements Filter {
+
+  private ServletNames servletNames = new ServletNames(Maps.<String, String>newHashMap());
+
+  @Override
+  public void init(FilterConfig filterConfig) throws ServletException {
+    InputStream webXml = filterConfig.getServletContext().getResourceAsStream("/WEB-INF/web.xml");
+    servletNames = ServletNames.fromWebXml(webXml);
+    if (webXml != null) {
+      try {
+        webXml.close();
+      } catch (IOException e) {
+      }
+    }
+  }
+
+  @Override
+  public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain) throws IOException,
+                                                                                             ServletException {
+    String name = "servlet." + servletNames.getName(((HttpServletRequest) request).getServletPath());
+    MetricsRegistry metrics = MetricsRegistry.getInstance();
+    MetricsRegistry.Timer timer = metrics.startTimer(name);
+    boolean completed = false;
+    try {
+      chain.doFilter(request, response);
+      completed = true;
+    } finally {
+      timer.stop();
+      if (!completed) {
+        metrics.increment(name + ".errors");
+      }
+    }
+  }
+
+  @Override
+  public void destroy() {
+  }
+
+}
@@ -0,0 +1,152 @@
+package com.google.sampling.experiential.server.metrics;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import org.codehaus.jackson.map.ObjectMapper;
+
+import com.google.common.collect.Maps;
+
+/**
+ * Latency histograms, counters and gauges of this instance, by name, since it
+ * started. Safe to update from concurrent requests.
+ *
+ * Names are dotted, starting with what is measured: servlet.&lt;servlet name&gt;,
+ * handler.&lt;class&gt;, datastore.&lt;operation&gt;, events.&lt;query&gt;,
+ * report.&lt;format&gt;.
+ */
+public class MetricsRegistry {
+
+  private static final Logger log = Logger.getLogger(MetricsRegistry.class.getName());
+
+  private static final MetricsRegistry instance = new MetricsRegistry();
+
+  private final ConcurrentMap<String, LatencyHistogram> histograms = new ConcurrentHashMap<String, LatencyHistogram>();
+  private final ConcurrentMap<String, AtomicLong> counters = new ConcurrentHashMap<String, AtomicLong>();
+  private final ConcurrentMap<String, Double> gauges = new ConcurrentHashMap<String, Double>();
+  private volatile long startMillis = System.currentTimeMillis();
+
+  /**
+   * Times one operation into a histogram.
+   */
+  public static class Timer {
+    private final LatencyHistogram histogram;
+    private final long start;
+
+    private Timer(LatencyHistogram histogram) {
+      this.histogram = histogram;
+      this.start = System.currentTimeMillis();
+    }
+
+    /**
+     * @return the millis since the timer was started
+     */
+    public long stop() {
+      long millis = System.currentTimeMillis() - start;
+      histogram.record(millis);
+      return millis;
+    }
+  }
+
+  // Visible for testing
+  MetricsRegistry() {
+  }
+
+  public static MetricsRegistry getInstance() {
+    return instance;
+  }
+
+  public LatencyHistogram getHistogram(String name) {
+    LatencyHistogram histogram = histograms.get(name);
+    if (histogram == null) {
+      LatencyHistogram newHistogram = new LatencyHistogram();
+      histogram = histograms.putIfAbsent(name, newHistogram);
+      if (histogram == null) {
+        histogram = newHistogram;
+      }
+    }
+    return histogram;
+  }
+
+  public Timer startTimer(String name) {
+    return new Timer(getHistogram(name));
+  }
+
+  public void recordLatency(String name, long millis) {
+    getHistogram(name).record(millis);
+  }
+
+  public void increment(String name) {
+    increment(name, 1);
+  }
+
+  public void increment(String name, long delta) {
+    AtomicLong counter = counters.get(name);
+    if (counter == null) {
+      AtomicLong newCounter = new AtomicLong();
+      counter = counters.putIfAbsent(name, newCounter);
+      if (counter == null) {
+        counter = newCounter;
+      }
+    }
+    counter.addAndGet(delta);
+  }
+
+  public long getCount(String name) {
+    AtomicLong counter = counters.get(name);
+    return counter != null ? counter.get() : 0;
+  }
+
+  public void setGauge(String name, double value) {
+    gauges.put(name, value);
+  }
+
+  public Double getGauge(String name) {
+    return gauges.get(name);
+  }
+
+  public Map<String, Object> toMap() {
+    Map<String, Object> values = Maps.newLinkedHashMap();
+    values.put("startTime", startMillis);
+    values.put("uptimeMillis", System.currentTimeMillis() - startMillis);
+
+    Map<String, Object> histogramValues = Maps.newTreeMap();
+    for (Map.Entry<String, LatencyHistogram> entry : histograms.entrySet()) {
+      histogramValues.put(entry.getKey(), entry.getValue().toMap());
+    }
+    values.put("latencies", histogramValues);
+
+    Map<String, Long> counterValues = Maps.newTreeMap();
+    for (Map.Entry<String, AtomicLong> entry : counters.entrySet()) {
+      counterValues.put(entry.getKey(), entry.getValue().get());
+    }
+    values.put("counters", counterValues);
+
+    values.put("gauges", new TreeMap<String, Double>(gauges));
+    return values;
+  }
+
+  public String toJson() {
+    try {
+      return new ObjectMapper().writeValueAsString(toMap());
+    } catch (IOException e) {
+      log.severe("Could not write metrics as json: " + e.getMessage());
+      return null;
+    }
+  }
+
+  /**
+   * Drops everything recorded so far.
+   */
+  public void reset() {
+    histograms.clear();
+    counters.clear();
+    gauges.clear();
+    startMillis = System.currentTimeMillis();
+  }
+}
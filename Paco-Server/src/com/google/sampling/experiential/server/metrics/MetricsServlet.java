@@ -0,0 +1,46 @@
+package com.google.sampling.experiential.server.metrics;
+
+import java.io.IOException;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import com.google.appengine.api.users.User;
+import com.google.sampling.experiential.server.AuthUtil;
+
+/**
+ * Admin only. GET returns the metrics of the instance that serves the request
+ * as json. POST returns them too and then drops them.
+ */
+@SuppressWarnings("serial")
+public class MetricsServlet extends HttpServlet {
+
+  @Override
+  protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
+    writeMetrics(req, resp, false);
+  }
+
+  @Override
+  protected void doPost(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
+    writeMetrics(req, resp, true);
+  }
+
+  private void writeMetrics(HttpServletRequest req, HttpServletResponse resp, boolean reset) throws IOException {
+    User user = AuthUtil.getWhoFromLogin();
+    if (user == null) {
+      AuthUtil.redirectUserToLogin(req, resp);
+    } else if (AuthUtil.isUserAdmin()) {
+      MetricsRegistry metrics = MetricsRegistry.getInstance();
+      resp.setContentType("application/json;charset=UTF-8");
+      resp.getWriter().println(metrics.toJson());
+      if (reset) {
+        metrics.reset();
+      }
+    } else {
+      resp.sendError(HttpServletResponse.SC_FORBIDDEN);
+    }
+  }
+
+}
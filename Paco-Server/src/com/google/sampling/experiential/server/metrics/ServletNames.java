@@ -0,0 +1,95 @@
+package com.google.sampling.experiential.server.metrics;
+
+import java.io.InputStream;
+import java.util.Map;
+import java.util.logging.Logger;
+
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+
+import com.google.common.collect.Maps;
+
+/**
+ * The servlet names of the servlet mappings in web.xml, by servlet path.
+ *
+ * Requests that no servlet is mapped to, like static files and mistyped urls,
+ * all get OTHER, so the number of names stays that of the servlets.
+ */
+class ServletNames {
+
+  private static final Logger log = Logger.getLogger(ServletNames.class.getName());
+
+  static final String OTHER = "other";
+
+  private final Map<String, String> namesByServletPath;
+
+  ServletNames(Map<String, String> namesByServletPath) {
+    this.namesByServletPath = namesByServletPath;
+  }
+
+  /**
+   * @param webXml web.xml, or null if it could not be opened
+   */
+  static ServletNames fromWebXml(InputStream webXml) {
+    Map<String, String> namesByServletPath = Maps.newHashMap();
+    if (webXml == null) {
+      log.warning("No web.xml, all requests are recorded as " + OTHER);
+      return new ServletNames(namesByServletPath);
+    }
+    try {
+      DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+      // the web.xml DTD is not needed, and fetching it would go to the network
+      factory.setFeature("http://apache.org/xml/features/nonvalidating/load-external-dtd", false);
+      DocumentBuilder builder = factory.newDocumentBuilder();
+      Document document = builder.parse(webXml);
+      NodeList mappings = document.getElementsByTagName("servlet-mapping");
+      for (int i = 0; i < mappings.getLength(); i++) {
+        Element mapping = (Element) mappings.item(i);
+        String name = getText(mapping, "servlet-name");
+        NodeList urlPatterns = mapping.getElementsByTagName("url-pattern");
+        for (int j = 0; j < urlPatterns.getLength(); j++) {
+          String servletPath = toServletPath(urlPatterns.item(j).getTextContent().trim());
+          if (name != null && servletPath != null && !namesByServletPath.containsKey(servletPath)) {
+            namesByServletPath.put(servletPath, name);
+          }
+        }
+      }
+    } catch (Exception e) {
+      log.warning("Could not read the servlet mappings of web.xml, all requests are recorded as " + OTHER + ": "
+                  + e.getMessage());
+    }
+    return new ServletNames(namesByServletPath);
+  }
+
+  private static String getText(Element parent, String tagName) {
+    NodeList elements = parent.getElementsByTagName(tagName);
+    if (elements.getLength() == 0) {
+      return null;
+    }
+    return elements.item(0).getTextContent().trim();
+  }
+
+  /**
+   * @return the servlet path of the requests mapped by an exact "/path" or a
+   * "/path/*" pattern, or null for the default and extension mappings, whose
+   * servlet path is the whole request path
+   */
+  private static String toServletPath(String urlPattern) {
+    if (urlPattern.endsWith("/*")) {
+      return urlPattern.substring(0, urlPattern.length() - 2);
+    }
+    if (urlPattern.startsWith("/") && !urlPattern.equals("/")) {
+      return urlPattern;
+    }
+    return null;
+  }
+
+  String getName(String servletPath) {
+    String name = namesByServletPath.get(servletPath);
+    return name != null ? name : OTHER;
+  }
+}
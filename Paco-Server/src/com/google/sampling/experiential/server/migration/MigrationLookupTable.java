@@ -8,6 +8,9 @@ import com.google.common.collect.Maps;
 import com.google.sampling.experiential.server.migration.jobs.EventStatsCounterMigrationJob;
 import com.google.sampling.experiential.server.migration.jobs.ExperimentJDOToDatastoreMigration;
 import com.google.sampling.experiential.server.migration.jobs.FeedbackTypeRepairMigration;
+import com.google.sampling.experiential.server.migration.jobs.ParticipantSummaryBackfillJob;
+import com.google.sampling.experiential.server.migration.jobs.PhotoBlobToPhotoStoreMigrationJob;
+import com.google.sampling.experiential.server.migration.jobs.ResponseIndexBackfillJob;
 import com.google.sampling.experiential.server.migration.jobs.TestJDODSCompat;
 import com.google.sampling.experiential.server.stats.usage.UsageStatsBackfillJob;
 
@@ -22,6 +25,9 @@ public class MigrationLookupTable {
     migrations.put("965", TestJDODSCompat.class);
     migrations.put("98", EventStatsCounterMigrationJob.class);
     migrations.put("99", UsageStatsBackfillJob.class);
+    migrations.put("100", PhotoBlobToPhotoStoreMigrationJob.class);
+    migrations.put("101", ResponseIndexBackfillJob.class);
+    migrations.put("102", ParticipantSummaryBackfillJob.class);
   }
   public static MigrationJob getMigrationByName(String name) {
     if (Strings.isNullOrEmpty(name)) {
@@ -0,0 +1,56 @@
+package com.google.sampling.experiential.server.migration.jobs;
+
+import java.util.logging.Logger;
+
+import com.google.appengine.api.datastore.Cursor;
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.datastore.QueryResultList;
+import com.google.sampling.experiential.datastore.ExperimentJsonEntityManager;
+import com.google.sampling.experiential.server.migration.MigrationJob;
+import com.google.sampling.experiential.server.stats.participation.ParticipantSummaryEntityManager;
+
+/**
+ * Builds the participant summaries of the experiments created before
+ * summaries were kept, from their response_stats rows.
+ *
+ * Safe to re-run: rows already counted in a summary are skipped.
+ */
+public class ParticipantSummaryBackfillJob implements MigrationJob {
+
+  public static final Logger log = Logger.getLogger(ParticipantSummaryBackfillJob.class.getName());
+
+  @Override
+  public boolean doMigration() {
+    log.info("STARTING Participant summary backfill");
+    final int limit = 100;
+
+    DatastoreService ds = DatastoreServiceFactory.getDatastoreService();
+    ParticipantSummaryEntityManager summaryManager = new ParticipantSummaryEntityManager();
+    Cursor cursor = null;
+    int experiments = 0;
+    while (true) {
+      Query query = new Query(ExperimentJsonEntityManager.EXPERIMENT_KIND);
+      query.setKeysOnly();
+      FetchOptions options = FetchOptions.Builder.withLimit(limit);
+      if (cursor != null) {
+        options = options.startCursor(cursor);
+      }
+      QueryResultList<Entity> results = ds.prepare(query).asQueryResultList(options);
+      for (Entity experiment : results) {
+        summaryManager.backfill(experiment.getKey().getId());
+        experiments++;
+      }
+      if (results.size() < limit) {
+        break;
+      }
+      cursor = results.getCursor();
+    }
+    log.info("Done backfilling participant summaries for " + experiments + " experiments");
+    return true;
+  }
+
+}
@@ -0,0 +1,91 @@
+package com.google.sampling.experiential.server.migration.jobs;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.logging.Logger;
+
+import com.google.appengine.api.datastore.Blob;
+import com.google.appengine.api.datastore.Cursor;
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.PreparedQuery;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.datastore.QueryResultList;
+import com.google.common.collect.Lists;
+import com.google.sampling.experiential.server.PhotoStore;
+import com.google.sampling.experiential.server.migration.MigrationJob;
+
+/**
+ * Moves the bytes of existing PhotoBlob entities into the PhotoStore,
+ * leaving only the content hash on the entity.
+ *
+ * Safe to re-run: entities that already have a content hash are skipped.
+ */
+public class PhotoBlobToPhotoStoreMigrationJob implements MigrationJob {
+
+  public static final Logger log = Logger.getLogger(PhotoBlobToPhotoStoreMigrationJob.class.getName());
+
+  private static final String PHOTO_BLOB_KIND = "PhotoBlob";
+  private static final String VALUE_PROPERTY = "value";
+  private static final String CONTENT_HASH_PROPERTY = "contentHash";
+
+  @Override
+  public boolean doMigration() {
+    PhotoStore photoStore = PhotoStore.getInstance();
+    if (photoStore == null) {
+      log.severe("No photo store configured. Set " + PhotoStore.PHOTO_BUCKET_PROPERTY + " before migrating photos.");
+      return false;
+    }
+    log.info("STARTING PhotoBlob to PhotoStore MIGRATION");
+    final int limit = 30;
+
+    DatastoreService ds = DatastoreServiceFactory.getDatastoreService();
+    Cursor cursor = null;
+    int moved = 0;
+    int skipped = 0;
+    boolean firstPass = true;
+    while (firstPass || cursor != null) {
+      firstPass = false;
+      PreparedQuery q = ds.prepare(new Query(PHOTO_BLOB_KIND));
+      FetchOptions options = FetchOptions.Builder.withLimit(limit);
+      if (cursor != null) {
+        options = options.startCursor(cursor);
+      }
+      QueryResultList<Entity> results = q.asQueryResultList(options);
+
+      List<Entity> changed = Lists.newArrayList();
+      for (Entity photoEntity : results) {
+        Blob value = (Blob) photoEntity.getProperty(VALUE_PROPERTY);
+        if (photoEntity.getProperty(CONTENT_HASH_PROPERTY) != null || value == null) {
+          skipped++;
+          continue;
+        }
+        try {
+          String contentHash = photoStore.store(value.getBytes());
+          photoEntity.setProperty(CONTENT_HASH_PROPERTY, contentHash);
+          photoEntity.removeProperty(VALUE_PROPERTY);
+          changed.add(photoEntity);
+        } catch (IOException e) {
+          log.severe("Could not move photo " + photoEntity.getKey() + ": " + e.getMessage());
+          return false;
+        }
+      }
+      if (!changed.isEmpty()) {
+        ds.put(changed);
+        moved += changed.size();
+      }
+      log.info("Moved " + moved + " photos, skipped " + skipped);
+
+      if (results.size() < limit) {
+        break;
+      } else {
+        cursor = results.getCursor();
+      }
+    }
+    log.info("Done moving photos. Moved " + moved + ", skipped " + skipped);
+    return true;
+  }
+
+}
@@ -0,0 +1,88 @@
+package com.google.sampling.experiential.server.migration.jobs;
+
+import java.util.List;
+import java.util.logging.Logger;
+
+import com.google.appengine.api.datastore.Cursor;
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.PreparedQuery;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.datastore.Query.FilterOperator;
+import com.google.appengine.api.datastore.Query.FilterPredicate;
+import com.google.appengine.api.datastore.QueryResultList;
+import com.google.common.collect.Lists;
+import com.google.sampling.experiential.datastore.ResponseIndexEntity;
+import com.google.sampling.experiential.server.ResponseIndex;
+import com.google.sampling.experiential.server.migration.MigrationJob;
+
+/**
+ * Writes the responseIndex tokens on the events stored before an experiment
+ * turned on indexResponses, then marks the experiment queryable.
+ *
+ * Safe to re-run: the tokens are recomputed from keysList and valuesList.
+ */
+public class ResponseIndexBackfillJob implements MigrationJob {
+
+  public static final Logger log = Logger.getLogger(ResponseIndexBackfillJob.class.getName());
+
+  private static final String EVENT_KIND = "Event";
+
+  @Override
+  public boolean doMigration() {
+    log.info("STARTING Response index backfill");
+    List<String> experimentIds = ResponseIndexEntity.getExperimentsReadyForBackfill();
+    for (String experimentId : experimentIds) {
+      backfillExperiment(experimentId);
+      ResponseIndexEntity.markBackfilled(experimentId);
+    }
+    log.info("Done backfilling response index for " + experimentIds.size() + " experiments");
+    return true;
+  }
+
+  @SuppressWarnings("unchecked")
+  private void backfillExperiment(String experimentId) {
+    final int limit = 100;
+
+    DatastoreService ds = DatastoreServiceFactory.getDatastoreService();
+    Cursor cursor = null;
+    int indexed = 0;
+    boolean firstPass = true;
+    while (firstPass || cursor != null) {
+      firstPass = false;
+      Query query = new Query(EVENT_KIND).setFilter(new FilterPredicate("experimentId", FilterOperator.EQUAL, experimentId));
+      PreparedQuery q = ds.prepare(query);
+      FetchOptions options = FetchOptions.Builder.withLimit(limit);
+      if (cursor != null) {
+        options = options.startCursor(cursor);
+      }
+      QueryResultList<Entity> results = q.asQueryResultList(options);
+
+      List<Entity> changed = Lists.newArrayList();
+      for (Entity eventEntity : results) {
+        List<String> keysList = (List<String>) eventEntity.getProperty("keysList");
+        List<String> valuesList = (List<String>) eventEntity.getProperty("valuesList");
+        List<String> tokens = ResponseIndex.tokensFor(keysList, valuesList);
+        if (tokens.isEmpty()) {
+          continue;
+        }
+        eventEntity.setProperty(ResponseIndex.PROPERTY, tokens);
+        changed.add(eventEntity);
+      }
+      if (!changed.isEmpty()) {
+        ds.put(changed);
+        indexed += changed.size();
+      }
+      log.info("Experiment " + experimentId + ": indexed " + indexed + " events");
+
+      if (results.size() < limit) {
+        break;
+      } else {
+        cursor = results.getCursor();
+      }
+    }
+  }
+
+}
@@ -0,0 +1,174 @@
+package com.google.sampling.experiential.server.stats.participation;
+
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+import com.google.common.collect.Lists;
+
+/**
+ * Running participation totals for one participant in an experiment, across
+ * all groups and dates.
+ *
+ * Days are the local dates of the participant encoded as UTC midnight millis,
+ * the same as the date of a ResponseStat row.
+ *
+ * Counts can be added in any order, so rows folded in by the backfill and
+ * live increments give the same summary.
+ */
+public class ParticipantSummary implements java.io.Serializable {
+
+  static final long DAY_MILLIS = 24L * 60 * 60 * 1000;
+
+  private long experimentId;
+  private String who;
+
+  private int schedR;
+  private int missedR;
+  private int selfR;
+
+  private Long lastDay;
+  private int lastDaySchedR;
+  private int lastDayMissedR;
+  private int lastDaySelfR;
+
+  private Date lastContact;
+
+  private List<Long> responseDays = Lists.newArrayList();
+
+  public ParticipantSummary(long experimentId, String who) {
+    this.experimentId = experimentId;
+    this.who = who;
+  }
+
+  /**
+   * Adds counts for one day.
+   *
+   * @param day midnight millis of the participant's local date
+   * @param contact when the participant was heard from, or null
+   */
+  public void add(long day, int schedR, int missedR, int selfR, Date contact) {
+    this.schedR += schedR;
+    this.missedR += missedR;
+    this.selfR += selfR;
+
+    if (lastDay == null || day > lastDay) {
+      lastDay = day;
+      lastDaySchedR = schedR;
+      lastDayMissedR = missedR;
+      lastDaySelfR = selfR;
+    } else if (day == lastDay) {
+      lastDaySchedR += schedR;
+      lastDayMissedR += missedR;
+      lastDaySelfR += selfR;
+    }
+
+    if (contact != null && (lastContact == null || contact.after(lastContact))) {
+      lastContact = contact;
+    }
+
+    if (schedR + selfR > 0) {
+      int pos = Collections.binarySearch(responseDays, day);
+      if (pos < 0) {
+        responseDays.add(-pos - 1, day);
+      }
+    }
+  }
+
+  /**
+   * @param today midnight millis of the current date
+   * @return the number of consecutive days with a response, ending today or
+   *         yesterday, or 0 if the participant has not responded since
+   */
+  public int getCurrentStreak(long today) {
+    if (responseDays.isEmpty()) {
+      return 0;
+    }
+    int last = responseDays.size() - 1;
+    if (today - responseDays.get(last) > DAY_MILLIS) {
+      return 0;
+    }
+    int streak = 1;
+    for (int i = last; i > 0 && responseDays.get(i) - responseDays.get(i - 1) == DAY_MILLIS; i--) {
+      streak++;
+    }
+    return streak;
+  }
+
+  public int getLongestStreak() {
+    int longest = 0;
+    int streak = 0;
+    for (int i = 0; i < responseDays.size(); i++) {
+      if (i > 0 && responseDays.get(i) - responseDays.get(i - 1) == DAY_MILLIS) {
+        streak++;
+      } else {
+        streak = 1;
+      }
+      longest = Math.max(longest, streak);
+    }
+    return longest;
+  }
+
+  public long getExperimentId() {
+    return experimentId;
+  }
+
+  public String getWho() {
+    return who;
+  }
+
+  public int getSchedR() {
+    return schedR;
+  }
+
+  public int getMissedR() {
+    return missedR;
+  }
+
+  public int getSelfR() {
+    return selfR;
+  }
+
+  public int getSchedROn(long day) {
+    return isLastDay(day) ? lastDaySchedR : 0;
+  }
+
+  public int getMissedROn(long day) {
+    return isLastDay(day) ? lastDayMissedR : 0;
+  }
+
+  public int getSelfROn(long day) {
+    return isLastDay(day) ? lastDaySelfR : 0;
+  }
+
+  private boolean isLastDay(long day) {
+    return lastDay != null && lastDay == day;
+  }
+
+  public Long getLastDay() {
+    return lastDay;
+  }
+
+  public Date getLastContact() {
+    return lastContact;
+  }
+
+  public List<Long> getResponseDays() {
+    return responseDays;
+  }
+
+  void restore(int schedR, int missedR, int selfR, Long lastDay, int lastDaySchedR, int lastDayMissedR,
+               int lastDaySelfR, Date lastContact, List<Long> responseDays) {
+    this.schedR = schedR;
+    this.missedR = missedR;
+    this.selfR = selfR;
+    this.lastDay = lastDay;
+    this.lastDaySchedR = lastDaySchedR;
+    this.lastDayMissedR = lastDayMissedR;
+    this.lastDaySelfR = lastDaySelfR;
+    this.lastContact = lastContact;
+    this.responseDays = responseDays != null ? Lists.newArrayList(responseDays) : Lists.<Long>newArrayList();
+    Collections.sort(this.responseDays);
+  }
+
+}
@@ -0,0 +1,300 @@
+package com.google.sampling.experiential.server.stats.participation;
+
+import java.util.ConcurrentModificationException;
+import java.util.Date;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.joda.time.DateTime;
+
+import com.google.appengine.api.datastore.Cursor;
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.EntityNotFoundException;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.datastore.Query.FilterOperator;
+import com.google.appengine.api.datastore.Query.FilterPredicate;
+import com.google.appengine.api.datastore.QueryResultList;
+import com.google.appengine.api.datastore.Transaction;
+import com.google.appengine.api.datastore.TransactionOptions;
+import com.google.appengine.api.memcache.Expiration;
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+import com.google.common.collect.Lists;
+import com.google.sampling.experiential.server.metrics.MeteredDatastoreService;
+
+/**
+ * Persists one ParticipantSummary per participant in an experiment so the
+ * stats page does not have to total the response_stats rows on every view.
+ *
+ * A summary is updated in the same transaction as the response_stats row it
+ * counts. Each row carries a summarized flag: a row that is not yet summarized
+ * is folded into the summary as a whole, after that only its increments are
+ * added. That way every count lands in the summary exactly once, whether it
+ * was written before or after the experiment's summaries were backfilled.
+ *
+ * Summaries are only served for experiments that are ready, i.e. created
+ * after summaries were introduced or backfilled by ParticipantSummaryBackfillJob.
+ */
+public class ParticipantSummaryEntityManager {
+  private static final Logger LOG = Logger.getLogger(ParticipantSummaryEntityManager.class.getName());
+
+  public static final String KIND = "participant_summary";
+  private static final String STATE_KIND = "participant_summary_state";
+
+  public static final String SUMMARIZED_PROPERTY = "summarized";
+
+  private static final String EXPERIMENT_ID_PROPERTY = "experimentId";
+  private static final String WHO_PROPERTY = "who";
+  private static final String SCHED_R_PROPERTY = "schedR";
+  private static final String MISSED_R_PROPERTY = "missedR";
+  private static final String SELF_R_PROPERTY = "selfR";
+  private static final String LAST_DAY_PROPERTY = "lastDay";
+  private static final String LAST_DAY_SCHED_R_PROPERTY = "lastDaySchedR";
+  private static final String LAST_DAY_MISSED_R_PROPERTY = "lastDayMissedR";
+  private static final String LAST_DAY_SELF_R_PROPERTY = "lastDaySelfR";
+  private static final String LAST_CONTACT_PROPERTY = "lastContact";
+  private static final String RESPONSE_DAYS_PROPERTY = "responseDays";
+  private static final String READY_DATE_PROPERTY = "readyDate";
+
+  private static final String CACHE_KEY_PREFIX = "participant_summaries:";
+  private static final int CACHE_SECONDS = 5 * 60;
+  private static final int FOLD_RETRIES = 3;
+
+  /**
+   * @return the midnight millis of the participant's local date, as stored on
+   *         a response_stats row
+   */
+  public static long dayOf(DateTime date) {
+    return LocalToUTCTimeZoneConverter.changeZoneToUTC(date).toDateMidnight().getMillis();
+  }
+
+  /**
+   * Counts an increment of a response_stats row in the participant's summary.
+   *
+   * Called inside the cross-group transaction that writes the row, after the
+   * row's count has been incremented.
+   *
+   * @param responseStat the incremented row, read in the transaction
+   * @param prop which count was incremented
+   * @param date the time of the counted event
+   * @return the summary entity to put in the transaction, or null if the
+   *         experiment does not keep summaries yet
+   */
+  public Entity updateForResponseStat(DatastoreService ds, Transaction tx, Entity responseStat, String prop,
+                                      DateTime date) {
+    long experimentId = (Long) responseStat.getProperty(ResponseStatEntityManager.EXPERIMENT_ID_PROPERTY);
+    boolean summarized = Boolean.TRUE.equals(responseStat.getProperty(SUMMARIZED_PROPERTY));
+    if (!summarized && !isReady(experimentId)) {
+      return null;
+    }
+    String who = (String) responseStat.getProperty(ResponseStatEntityManager.WHO_PROPERTY);
+    Entity summaryEntity = getSummaryEntity(ds, tx, experimentId, who);
+    ParticipantSummary summary = createSummaryFromEntity(summaryEntity);
+    if (summarized) {
+      long day = (Long) responseStat.getProperty(ResponseStatEntityManager.DATE_PROPERTY);
+      summary.add(day,
+                  ResponseStatEntityManager.SCHED_R_PROPERTY.equals(prop) ? 1 : 0,
+                  ResponseStatEntityManager.MISSED_R_PROPERTY.equals(prop) ? 1 : 0,
+                  ResponseStatEntityManager.SELF_R_PROPERTY.equals(prop) ? 1 : 0,
+                  date.toDate());
+    } else {
+      foldResponseStat(summary, responseStat);
+    }
+    writeSummaryToEntity(summary, summaryEntity);
+    return summaryEntity;
+  }
+
+  /**
+   * Summaries of all participants in an experiment.
+   *
+   * @return the summaries, or null if the experiment is not ready and the
+   *         caller has to total the response_stats rows itself
+   */
+  @SuppressWarnings("unchecked")
+  public List<ParticipantSummary> getSummaries(long experimentId) {
+    MemcacheService cache = MemcacheServiceFactory.getMemcacheService();
+    String cacheKey = CACHE_KEY_PREFIX + experimentId;
+    List<ParticipantSummary> summaries = (List<ParticipantSummary>) cache.get(cacheKey);
+    if (summaries != null) {
+      return summaries;
+    }
+    if (!isReady(experimentId)) {
+      return null;
+    }
+    summaries = Lists.newArrayList();
+    Query query = new Query(KIND);
+    query.setFilter(new FilterPredicate(EXPERIMENT_ID_PROPERTY, FilterOperator.EQUAL, experimentId));
+    DatastoreService ds = MeteredDatastoreService.getDatastoreService();
+    for (Entity entity : ds.prepare(query).asIterable()) {
+      summaries.add(createSummaryFromEntity(entity));
+    }
+    cache.put(cacheKey, summaries, Expiration.byDeltaSeconds(CACHE_SECONDS));
+    return summaries;
+  }
+
+  public void invalidate(long experimentId) {
+    MemcacheServiceFactory.getMemcacheService().delete(CACHE_KEY_PREFIX + experimentId);
+  }
+
+  public boolean isReady(long experimentId) {
+    DatastoreService ds = MeteredDatastoreService.getDatastoreService();
+    try {
+      ds.get(stateKeyFor(experimentId));
+      return true;
+    } catch (EntityNotFoundException e) {
+      return false;
+    }
+  }
+
+  /**
+   * From now on every response_stats row of the experiment is counted in its
+   * summaries as it is written. Older rows are counted by backfill.
+   */
+  public void markReady(long experimentId) {
+    Entity state = new Entity(stateKeyFor(experimentId));
+    state.setUnindexedProperty(READY_DATE_PROPERTY, new Date());
+    MeteredDatastoreService.getDatastoreService().put(state);
+  }
+
+  /**
+   * Folds the response_stats rows written before the experiment was ready into
+   * its summaries. Safe to re-run: folded rows are skipped.
+   *
+   * @return the number of rows folded
+   */
+  public int backfill(long experimentId) {
+    markReady(experimentId);
+    final int limit = 100;
+    DatastoreService ds = MeteredDatastoreService.getDatastoreService();
+    Cursor cursor = null;
+    int folded = 0;
+    while (true) {
+      Query query = new Query(ResponseStatEntityManager.KIND);
+      query.setFilter(new FilterPredicate(ResponseStatEntityManager.EXPERIMENT_ID_PROPERTY,
+                                          FilterOperator.EQUAL, experimentId));
+      query.setKeysOnly();
+      FetchOptions options = FetchOptions.Builder.withLimit(limit);
+      if (cursor != null) {
+        options = options.startCursor(cursor);
+      }
+      QueryResultList<Entity> results = ds.prepare(query).asQueryResultList(options);
+      for (Entity row : results) {
+        if (foldWithRetries(ds, row.getKey())) {
+          folded++;
+        }
+      }
+      if (results.size() < limit) {
+        break;
+      }
+      cursor = results.getCursor();
+    }
+    invalidate(experimentId);
+    LOG.info("Experiment " + experimentId + ": folded " + folded + " response stats into participant summaries");
+    return folded;
+  }
+
+  private boolean foldWithRetries(DatastoreService ds, Key responseStatKey) {
+    for (int attempt = 1; ; attempt++) {
+      try {
+        return fold(ds, responseStatKey);
+      } catch (ConcurrentModificationException e) {
+        if (attempt == FOLD_RETRIES) {
+          LOG.log(Level.WARNING, "Could not fold " + responseStatKey + ", it will be folded on its next update", e);
+          return false;
+        }
+      }
+    }
+  }
+
+  private boolean fold(DatastoreService ds, Key responseStatKey) {
+    Transaction tx = ds.beginTransaction(TransactionOptions.Builder.withXG(true));
+    try {
+      Entity responseStat = ds.get(tx, responseStatKey);
+      if (Boolean.TRUE.equals(responseStat.getProperty(SUMMARIZED_PROPERTY))) {
+        return false;
+      }
+      long experimentId = (Long) responseStat.getProperty(ResponseStatEntityManager.EXPERIMENT_ID_PROPERTY);
+      String who = (String) responseStat.getProperty(ResponseStatEntityManager.WHO_PROPERTY);
+      Entity summaryEntity = getSummaryEntity(ds, tx, experimentId, who);
+      ParticipantSummary summary = createSummaryFromEntity(summaryEntity);
+      foldResponseStat(summary, responseStat);
+      writeSummaryToEntity(summary, summaryEntity);
+      ds.put(tx, responseStat);
+      ds.put(tx, summaryEntity);
+      tx.commit();
+      return true;
+    } catch (EntityNotFoundException e) {
+      return false;
+    } finally {
+      if (tx.isActive()) {
+        tx.rollback();
+      }
+    }
+  }
+
+  private void foldResponseStat(ParticipantSummary summary, Entity responseStat) {
+    summary.add((Long) responseStat.getProperty(ResponseStatEntityManager.DATE_PROPERTY),
+                getInt(responseStat, ResponseStatEntityManager.SCHED_R_PROPERTY),
+                getInt(responseStat, ResponseStatEntityManager.MISSED_R_PROPERTY),
+                getInt(responseStat, ResponseStatEntityManager.SELF_R_PROPERTY),
+                (Date) responseStat.getProperty(ResponseStatEntityManager.LAST_CONTACT_DATE_TIME_PROPERTY));
+    responseStat.setUnindexedProperty(SUMMARIZED_PROPERTY, true);
+  }
+
+  private Entity getSummaryEntity(DatastoreService ds, Transaction tx, long experimentId, String who) {
+    Key key = KeyFactory.createKey(KIND, experimentId + ":" + who);
+    try {
+      return ds.get(tx, key);
+    } catch (EntityNotFoundException e) {
+      Entity entity = new Entity(key);
+      entity.setProperty(EXPERIMENT_ID_PROPERTY, experimentId);
+      entity.setUnindexedProperty(WHO_PROPERTY, who);
+      return entity;
+    }
+  }
+
+  @SuppressWarnings("unchecked")
+  private ParticipantSummary createSummaryFromEntity(Entity entity) {
+    ParticipantSummary summary = new ParticipantSummary((Long) entity.getProperty(EXPERIMENT_ID_PROPERTY),
+                                                        (String) entity.getProperty(WHO_PROPERTY));
+    summary.restore(getInt(entity, SCHED_R_PROPERTY),
+                    getInt(entity, MISSED_R_PROPERTY),
+                    getInt(entity, SELF_R_PROPERTY),
+                    (Long) entity.getProperty(LAST_DAY_PROPERTY),
+                    getInt(entity, LAST_DAY_SCHED_R_PROPERTY),
+                    getInt(entity, LAST_DAY_MISSED_R_PROPERTY),
+                    getInt(entity, LAST_DAY_SELF_R_PROPERTY),
+                    (Date) entity.getProperty(LAST_CONTACT_PROPERTY),
+                    (List<Long>) entity.getProperty(RESPONSE_DAYS_PROPERTY));
+    return summary;
+  }
+
+  private void writeSummaryToEntity(ParticipantSummary summary, Entity entity) {
+    Long day = summary.getLastDay();
+    entity.setUnindexedProperty(SCHED_R_PROPERTY, summary.getSchedR());
+    entity.setUnindexedProperty(MISSED_R_PROPERTY, summary.getMissedR());
+    entity.setUnindexedProperty(SELF_R_PROPERTY, summary.getSelfR());
+    entity.setUnindexedProperty(LAST_DAY_PROPERTY, day);
+    entity.setUnindexedProperty(LAST_DAY_SCHED_R_PROPERTY, day != null ? summary.getSchedROn(day) : 0);
+    entity.setUnindexedProperty(LAST_DAY_MISSED_R_PROPERTY, day != null ? summary.getMissedROn(day) : 0);
+    entity.setUnindexedProperty(LAST_DAY_SELF_R_PROPERTY, day != null ? summary.getSelfROn(day) : 0);
+    entity.setUnindexedProperty(LAST_CONTACT_PROPERTY, summary.getLastContact());
+    entity.setUnindexedProperty(RESPONSE_DAYS_PROPERTY, summary.getResponseDays());
+  }
+
+  // counts are Long when read from the datastore, Integer when set in this request
+  private int getInt(Entity entity, String prop) {
+    Number value = (Number) entity.getProperty(prop);
+    return value != null ? value.intValue() : 0;
+  }
+
+  private Key stateKeyFor(long experimentId) {
+    return KeyFactory.createKey(STATE_KIND, experimentId);
+  }
+
+}
@@ -79,6 +79,18 @@ public class ParticipationStatsService {
   }
 
 
+  /**
+   * All participants summary
+   * 
+   * Returns the materialized summary of each participant, kept up to date as responses come in.
+   * 
+   * @param experimentId
+   * @return the summaries, or null if the experiment's summaries have not been backfilled yet
+   */
+  public List<ParticipantSummary> getParticipantSummaries(Long experimentId) {
+    return new ParticipantSummaryEntityManager().getSummaries(experimentId);
+  }
+
   /**
    * All participants total
    * 
@@ -11,7 +11,6 @@ import org.joda.time.DateTime;
 import org.joda.time.DateTimeZone;
 
 import com.google.appengine.api.datastore.DatastoreService;
-import com.google.appengine.api.datastore.DatastoreServiceFactory;
 import com.google.appengine.api.datastore.Entity;
 import com.google.appengine.api.datastore.EntityNotFoundException;
 import com.google.appengine.api.datastore.Key;
@@ -23,7 +22,9 @@ import com.google.appengine.api.datastore.Query.Filter;
 import com.google.appengine.api.datastore.Query.FilterOperator;
 import com.google.appengine.api.datastore.Query.FilterPredicate;
 import com.google.appengine.api.datastore.Transaction;
+import com.google.appengine.api.datastore.TransactionOptions;
 import com.google.common.collect.Lists;
+import com.google.sampling.experiential.server.metrics.MeteredDatastoreService;
 
 /**
  * This class persists the response statistics for the participants in an experiment by date.
@@ -108,7 +109,7 @@ public class ResponseStatEntityManager {
 //    
 //    query.setFilter(CompositeFilterOperator.and(experimentFilter, whoFilter, dateMidnightUTCMillisFilter));
 // 
-//    DatastoreService ds = DatastoreServiceFactory.getDatastoreService();
+//    DatastoreService ds = MeteredDatastoreService.getDatastoreService();
 //    Entity whoResult = ds.prepare(query).asSingleEntity();
 //    return createResponseStatFromQueryResult(whoResult);
 //  }
@@ -264,7 +265,7 @@ public class ResponseStatEntityManager {
 
   private List<ResponseStat> executeResponseStatsQuery(Query query) {
     List<ResponseStat> responseStats = Lists.newArrayList();
-    DatastoreService ds = DatastoreServiceFactory.getDatastoreService();
+    DatastoreService ds = MeteredDatastoreService.getDatastoreService();
     for (Entity entity : ds.prepare(query).asIterable()) {
       responseStats.add(createResponseStatFromQueryResult(entity));
     }
@@ -301,12 +302,18 @@ public class ResponseStatEntityManager {
     Filter andFilter = CompositeFilterOperator.and(experimentFilter, experimentGroupFilter, whoFilter, dateMidnightUTCMillisFilter);
     query.setFilter(andFilter);
 
-    DatastoreService ds = DatastoreServiceFactory.getDatastoreService();
-    Transaction tx = ds.beginTransaction();
+    DatastoreService ds = MeteredDatastoreService.getDatastoreService();
+    ParticipantSummaryEntityManager summaryManager = new ParticipantSummaryEntityManager();
+    Transaction tx = ds.beginTransaction(TransactionOptions.Builder.withXG(true));
     Entity whoResult;
+    Entity summary;
     int value;
     try {
       whoResult = ds.prepare(query).asSingleEntity();
+      if (whoResult != null) {
+        // re-read in the transaction so concurrent updates of the row conflict
+        whoResult = ds.get(tx, whoResult.getKey());
+      }
       if (whoResult == null) {
         whoResult = new Entity(KIND);
         whoResult.setProperty(EXPERIMENT_ID_PROPERTY, experimentId);
@@ -335,8 +342,15 @@ public class ResponseStatEntityManager {
         }
       }
       whoResult.setUnindexedProperty(prop, value);
+      summary = summaryManager.updateForResponseStat(ds, tx, whoResult, prop, date);
       ds.put(tx, whoResult);
+      if (summary != null) {
+        ds.put(tx, summary);
+      }
       tx.commit();
+      if (summary != null) {
+        summaryManager.invalidate(experimentId);
+      }
     } catch (ConcurrentModificationException e) {
       LOG.log(Level.WARNING, "You may need more shards. Consider adding more shards.");
       LOG.log(Level.WARNING, e.toString(), e);
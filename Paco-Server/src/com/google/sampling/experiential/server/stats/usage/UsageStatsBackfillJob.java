@@ -10,7 +10,6 @@ import org.joda.time.DateMidnight;
 import org.joda.time.DateTime;
 
 import com.google.appengine.api.datastore.DatastoreService;
-import com.google.appengine.api.datastore.DatastoreServiceFactory;
 import com.google.appengine.api.datastore.Entity;
 import com.google.appengine.api.datastore.Query;
 import com.google.appengine.api.datastore.Query.FilterOperator;
@@ -18,6 +17,7 @@ import com.google.appengine.api.datastore.Query.FilterPredicate;
 import com.google.common.base.Strings;
 import com.google.common.collect.Lists;
 import com.google.sampling.experiential.server.ExperimentServiceFactory;
+import com.google.sampling.experiential.server.metrics.MeteredDatastoreService;
 import com.google.sampling.experiential.server.migration.MigrationJob;
 import com.pacoapp.paco.shared.model2.ExperimentDAO;
 import com.pacoapp.paco.shared.model2.ExperimentQueryResult;
@@ -157,7 +157,7 @@ public class UsageStatsBackfillJob implements MigrationJob {
   private long getTotalEventCount() {
     long numberOfEvents = 0;
 
-    DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
+    DatastoreService datastore = MeteredDatastoreService.getDatastoreService();
     Query query = new Query("__Stat_Kind__");
     query.setFilter(new FilterPredicate("kind_name", FilterOperator.EQUAL, "Event"));
     Entity eventTotalStat = datastore.prepare(query).asSingleEntity();
@@ -8,7 +8,6 @@ import org.joda.time.DateMidnight;
 import org.joda.time.DateTime;
 
 import com.google.appengine.api.datastore.DatastoreService;
-import com.google.appengine.api.datastore.DatastoreServiceFactory;
 import com.google.appengine.api.datastore.Entity;
 import com.google.appengine.api.datastore.Query;
 import com.google.appengine.api.datastore.Query.FilterOperator;
@@ -17,6 +16,7 @@ import com.google.common.base.Strings;
 import com.google.common.collect.Lists;
 import com.google.sampling.experiential.server.ExperimentAccessManager;
 import com.google.sampling.experiential.server.ExperimentServiceFactory;
+import com.google.sampling.experiential.server.metrics.MeteredDatastoreService;
 import com.pacoapp.paco.shared.model2.ExperimentDAO;
 import com.pacoapp.paco.shared.model2.ExperimentQueryResult;
 import com.pacoapp.paco.shared.scheduling.ActionScheduleGenerator;
@@ -91,7 +91,7 @@ public class UsageStatsCronJob {
   private long getTotalEventCount() {
     long numberOfEvents = 0;
     
-    DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
+    DatastoreService datastore = MeteredDatastoreService.getDatastoreService();
     Query query = new Query("__Stat_Kind__");
     query.setFilter(new FilterPredicate("kind_name", FilterOperator.EQUAL, "Event"));
     Entity eventTotalStat = datastore.prepare(query).asSingleEntity();
@@ -14,7 +14,6 @@ import org.codehaus.jackson.type.TypeReference;
 import org.joda.time.DateTime;
 
 import com.google.appengine.api.datastore.DatastoreService;
-import com.google.appengine.api.datastore.DatastoreServiceFactory;
 import com.google.appengine.api.datastore.Entity;
 import com.google.appengine.api.datastore.FetchOptions;
 import com.google.appengine.api.datastore.PreparedQuery;
@@ -28,6 +27,7 @@ import com.google.appengine.api.datastore.TransactionOptions;
 import com.google.common.collect.Maps;
 import com.google.common.base.Strings;
 import com.google.common.collect.Lists;
+import com.google.sampling.experiential.server.metrics.MeteredDatastoreService;
 import com.pacoapp.paco.shared.model2.ExperimentDAO;
 import com.pacoapp.paco.shared.model2.JsonConverter;
 
@@ -87,7 +87,7 @@ public class UsageStatsEntityManager {
       return;
     }
     
-    DatastoreService ds = DatastoreServiceFactory.getDatastoreService();
+    DatastoreService ds = MeteredDatastoreService.getDatastoreService();
     Transaction tx = null;     
     try {
       TransactionOptions txOpts = TransactionOptions.Builder.withXG(true);
@@ -114,7 +114,7 @@ public class UsageStatsEntityManager {
 
   private List<UsageStat> execute(Query query) {
     List<UsageStat> stats = Lists.newArrayList();
-    DatastoreService ds = DatastoreServiceFactory.getDatastoreService();
+    DatastoreService ds = MeteredDatastoreService.getDatastoreService();
     
     PreparedQuery q = ds.prepare(query);
     FetchOptions fetchOptions = FetchOptions.Builder.withDefaults();
@@ -32,7 +32,24 @@ public class AllTests extends TestCase {
       com.google.sampling.experiential.server.EventMatcherTest.class,
       com.google.sampling.experiential.server.EventJsonUploadProcessorTest.class,
       com.google.sampling.experiential.server.QueryParserTest.class,
-      com.google.sampling.experiential.server.ExperimentServletHandlerTest.class
+      com.google.sampling.experiential.server.ExperimentServletHandlerTest.class,
+      com.google.sampling.experiential.server.ExperimentServletDeltaLoadHandlerTest.class,
+      com.google.sampling.experiential.server.PhotoStoreTest.class,
+      com.google.sampling.experiential.server.MultiPartZipWriterTest.class,
+      com.google.sampling.experiential.server.ResponseIndexTest.class,
+      com.google.sampling.experiential.server.ResponsePrefixMatcherTest.class,
+      com.google.sampling.experiential.server.EventArchiveTest.class,
+      com.google.sampling.experiential.server.ReportJobRequestTest.class,
+      com.google.sampling.experiential.server.EndOfDayEventProcessorTest.class,
+      com.google.sampling.experiential.server.AnonymizerTest.class,
+      com.google.sampling.experiential.server.EventJsonWriterTest.class,
+      com.google.sampling.experiential.server.EventRetrieverTest.class,
+      com.google.sampling.experiential.server.EventServletTest.class,
+      com.google.sampling.experiential.server.ExperimentJsonCacheTest.class,
+      com.google.sampling.experiential.server.PublishedUserAclFanOutTest.class,
+      com.google.sampling.experiential.server.metrics.MetricsRegistryTest.class,
+      com.google.sampling.experiential.server.metrics.MeteredDatastoreServiceTest.class,
+      com.google.sampling.experiential.server.metrics.ServletNamesTest.class
     };
     return new TestSuite(tests);
   }
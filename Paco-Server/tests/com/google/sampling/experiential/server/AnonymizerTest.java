@@ -0,0 +1,42 @@
+package com.google.sampling.experiential.server;
+
+import junit.framework.TestCase;
+
+import com.google.sampling.experiential.model.Event;
+
+public class AnonymizerTest extends TestCase {
+
+  private static final String WHO = "bob@example.com";
+
+  public void testMd5IdsMatchThePlainHash() {
+    Anonymizer anonymizer = Anonymizer.md5();
+    // md5 hex of "bob@example.com" and of "bob@example.comzyzzyfoo"
+    assertEquals("4b9bb80620f03eb3719e0a061c14283d", anonymizer.getAnonymousId(WHO));
+    assertEquals(Event.getAnonymousId(WHO + Event.SALT), anonymizer.getSaltedAnonymousId(WHO));
+    assertFalse(anonymizer.getAnonymousId(WHO).equals(anonymizer.getSaltedAnonymousId(WHO)));
+  }
+
+  public void testIdsAreRemembered() {
+    Anonymizer anonymizer = Anonymizer.md5();
+    assertSame(anonymizer.getAnonymousId(WHO), anonymizer.getAnonymousId(WHO));
+    assertSame(anonymizer.getSaltedAnonymousId(WHO), anonymizer.getSaltedAnonymousId(WHO));
+  }
+
+  public void testKeyedIdsAreStableForTheSameKey() {
+    byte[] key = "experiment secret".getBytes();
+    Anonymizer anonymizer = Anonymizer.keyed(key);
+    String id = anonymizer.getAnonymousId(WHO);
+
+    assertEquals(64, id.length());
+    assertEquals(id, Anonymizer.keyed(key.clone()).getAnonymousId(WHO));
+    assertEquals(id, anonymizer.getSaltedAnonymousId(WHO));
+    assertFalse(id.equals(Anonymizer.keyed("other secret".getBytes()).getAnonymousId(WHO)));
+    assertFalse(id.equals(Anonymizer.md5().getAnonymousId(WHO)));
+  }
+
+  public void testNullWho() {
+    assertNull(Anonymizer.md5().getAnonymousId(null));
+    assertNull(Anonymizer.keyed("experiment secret".getBytes()).getAnonymousId(null));
+  }
+
+}
@@ -0,0 +1,65 @@
+package com.google.sampling.experiential.server;
+
+import java.util.Date;
+import java.util.List;
+import java.util.Set;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import com.google.sampling.experiential.model.Event;
+import com.google.sampling.experiential.model.PhotoBlob;
+import com.google.sampling.experiential.model.What;
+import com.google.sampling.experiential.shared.EventDAO;
+
+/**
+ * Times the end of day pivot of a synthetic experiment, converting to
+ * EventDAOs first as exports used to, and straight from the Events.
+ *
+ * Run with: java EndOfDayEventProcessorBenchmark [eventCount]
+ */
+public class EndOfDayEventProcessorBenchmark {
+
+  private static final int DAYS_PER_EOD = 7;
+  private static final String[] INPUTS = { "why", "mood", "where" };
+
+  public static void main(String[] args) {
+    int eventCount = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+    List<Event> events = createEodEvents(eventCount);
+    EndOfDayEventProcessor processor = new EndOfDayEventProcessor();
+
+    for (int round = 0; round < 5; round++) {
+      System.gc();
+      long start = System.currentTimeMillis();
+      int viaDAOs = processor.breakEodResponsesIntoIndividualDailyEventResponses(
+                        EventRetriever.convertEventsToDAOs(events)).size();
+      long viaDAOsMillis = System.currentTimeMillis() - start;
+
+      System.gc();
+      start = System.currentTimeMillis();
+      int fromEvents = processor.breakEventsIntoIndividualDailyEventResponses(events).size();
+      long fromEventsMillis = System.currentTimeMillis() - start;
+
+      System.out.println("round " + round + ": " + events.size() + " eod events, " + viaDAOs + "/" + fromEvents
+                         + " daily responses. via DAOs: " + viaDAOsMillis + "ms, from Events: " + fromEventsMillis
+                         + "ms, " + (fromEventsMillis * 1000.0 / events.size()) + "us per event");
+    }
+  }
+
+  private static List<Event> createEodEvents(int eventCount) {
+    List<Event> events = Lists.newArrayListWithCapacity(eventCount);
+    for (int i = 0; i < eventCount; i++) {
+      Set<What> whats = Sets.newHashSet();
+      whats.add(new What(EventDAO.REFERRED_EXPERIMENT_INPUT_ITEM_KEY, "41"));
+      for (int day = 0; day < DAYS_PER_EOD; day++) {
+        String dailyEvent = "2013/03/" + (10 + day) + " 09:00:00-0700";
+        for (String input : INPUTS) {
+          whats.add(new What(dailyEvent + "_" + input, input + i));
+        }
+      }
+      events.add(new Event("participant" + (i % 500) + "@example.com", null, null, new Date(i * 1000L), "Android",
+                           "4.2", whats, false, "42", "Diary", 3, new Date(i * 1000L), null,
+                           Lists.<PhotoBlob>newArrayList(), "America/Los_Angeles", "eod", null, null, null));
+    }
+    return events;
+  }
+}
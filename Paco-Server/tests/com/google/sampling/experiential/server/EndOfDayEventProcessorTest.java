@@ -0,0 +1,90 @@
+package com.google.sampling.experiential.server;
+
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import junit.framework.TestCase;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.sampling.experiential.model.Event;
+import com.google.sampling.experiential.model.PhotoBlob;
+import com.google.sampling.experiential.model.What;
+import com.google.sampling.experiential.shared.EventDAO;
+
+public class EndOfDayEventProcessorTest extends TestCase {
+
+  private static final String MONDAY = "2013/03/11 09:00:00-0700";
+  private static final String TUESDAY = "2013/03/12 09:00:00-0700";
+
+  public void testPivotsResponsesByDailyEvent() {
+    List<EventDAO> daily = new EndOfDayEventProcessor()
+        .breakEodResponsesIntoIndividualDailyEventResponses(Lists.newArrayList(eodEventDAO()));
+
+    assertEquals(2, daily.size());
+    assertEquals(dailyWhat(MONDAY, "why", "tired", "mood", "2"), daily.get(0).getWhat());
+    assertEquals(dailyWhat(TUESDAY, "why", "rested"), daily.get(1).getWhat());
+    assertEquals("bob@example.com", daily.get(1).getWho());
+  }
+
+  public void testEventsPivotLikeEventDAOs() {
+    List<EventDAO> fromDAOs = new EndOfDayEventProcessor()
+        .breakEodResponsesIntoIndividualDailyEventResponses(Lists.newArrayList(eodEventDAO()));
+    List<EventDAO> fromEvents = new EndOfDayEventProcessor()
+        .breakEventsIntoIndividualDailyEventResponses(Lists.newArrayList(eodEvent()));
+
+    assertEquals(fromDAOs.size(), fromEvents.size());
+    for (int i = 0; i < fromDAOs.size(); i++) {
+      assertEquals(fromDAOs.get(i).getWhat(), fromEvents.get(i).getWhat());
+      assertEquals(fromDAOs.get(i).getWho(), fromEvents.get(i).getWho());
+      assertEquals(fromDAOs.get(i).getWhen(), fromEvents.get(i).getWhen());
+      assertEquals(fromDAOs.get(i).getExperimentId(), fromEvents.get(i).getExperimentId());
+    }
+  }
+
+  public void testGroupsByWhoAndDailyEvent() {
+    Map<String, Map<String, EventDAO>> byWho = new EndOfDayEventProcessor()
+        .breakEventsIntoDailyPingResponsesGroupedByWho(Lists.newArrayList(eodEvent()));
+
+    assertEquals(Sets.newHashSet("bob@example.com"), byWho.keySet());
+    assertEquals(Sets.newHashSet(MONDAY, TUESDAY), byWho.get("bob@example.com").keySet());
+  }
+
+  private Map<String, String> eodResponses() {
+    Map<String, String> what = Maps.newHashMap();
+    what.put(EventDAO.REFERRED_EXPERIMENT_INPUT_ITEM_KEY, "41");
+    what.put(TUESDAY + "_why", "rested");
+    what.put(MONDAY + "_why", "tired");
+    what.put(MONDAY + "_mood", "2");
+    what.put("unrelated", "x");
+    return what;
+  }
+
+  private EventDAO eodEventDAO() {
+    return new EventDAO("bob@example.com", new Date(1000L), "Diary", null, null, "Android", "4.2", eodResponses(),
+                        false, new Date(900L), null, new String[0], 42L, 3, "America/Los_Angeles", "eod", null,
+                        null, null);
+  }
+
+  private Event eodEvent() {
+    Set<What> whats = Sets.newHashSet();
+    for (Map.Entry<String, String> response : eodResponses().entrySet()) {
+      whats.add(new What(response.getKey(), response.getValue()));
+    }
+    return new Event("bob@example.com", null, null, new Date(1000L), "Android", "4.2", whats, false, "42", "Diary", 3,
+                     new Date(900L), null, Lists.<PhotoBlob>newArrayList(), "America/Los_Angeles", "eod", null, null,
+                     null);
+  }
+
+  private Map<String, String> dailyWhat(String dailyEvent, String... responses) {
+    Map<String, String> what = Maps.newHashMap();
+    what.put("daily_event", dailyEvent);
+    for (int i = 0; i + 1 < responses.length; i += 2) {
+      what.put(responses[i], responses[i + 1]);
+    }
+    return what;
+  }
+}
@@ -0,0 +1,130 @@
+package com.google.sampling.experiential.server;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.util.Date;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+
+import junit.framework.TestCase;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import com.google.sampling.experiential.model.Event;
+import com.google.sampling.experiential.model.PhotoBlob;
+import com.google.sampling.experiential.model.What;
+
+public class EventArchiveTest extends TestCase {
+
+  public void testRoundTripKeepsAllColumns() throws Exception {
+    Event first = event("bob@example.com", 2000L, 1500L, null, "mood", "3");
+    first.setShared(true);
+    Event second = event("alice@example.com", 1000L, null, 900L, "restaurant", "CafeMoma");
+
+    byte[] archive = EventArchive.encode("42", Lists.newArrayList(first, second));
+    List<Event> events = EventArchive.decode(archive, EventArchive.ALL_COLUMNS);
+
+    assertEquals(2, events.size());
+    // in the order they were added, newest first
+    assertEquals(first, events.get(0), true);
+    assertEquals(second, events.get(1), false);
+  }
+
+  public void testWriterAddsEventsInPages() throws Exception {
+    EventArchive.Writer writer = new EventArchive.Writer("42");
+    writer.add(event("bob@example.com", 3000L, 2500L, null, "mood", "3"));
+    writer.add(event("alice@example.com", 2000L, null, null, "mood", "4"));
+    writer.add(event("bob@example.com", 1000L, 500L, null, "restaurant", "CafeMoma"));
+    byte[] archive = writer.finish(4000L);
+
+    EventArchive.Header header = EventArchive.readHeader(archive);
+    assertEquals(3, header.eventCount);
+    assertEquals(4000L, header.watermark);
+    List<Event> events = EventArchive.decode(archive, EventArchive.ALL_COLUMNS);
+    assertEquals(new Date(3000L), events.get(0).getWhen());
+    assertEquals(new Date(2500L), events.get(0).getResponseTime());
+    assertEquals("alice@example.com", events.get(1).getWho());
+    assertEquals("4", events.get(1).getWhatByKey("mood"));
+    assertEquals(new Date(1000L), events.get(2).getWhen());
+    assertEquals(new Date(500L), events.get(2).getResponseTime());
+    assertEquals("CafeMoma", events.get(2).getWhatByKey("restaurant"));
+  }
+
+  public void testHeaderHasCountAndWatermark() throws Exception {
+    byte[] archive = EventArchive.encode("42", Lists.newArrayList(event("bob@example.com", 5000L, null, null),
+                                                                  event("bob@example.com", 7000L, null, null)));
+    EventArchive.Header header = EventArchive.readHeader(archive);
+    assertEquals("42", header.experimentId);
+    assertEquals(2, header.eventCount);
+    assertEquals(7000L, header.watermark);
+  }
+
+  public void testProjectionSkipsUnrequestedColumns() throws Exception {
+    byte[] archive = EventArchive.encode("42", Lists.newArrayList(event("bob@example.com", 2000L, 1500L, null,
+                                                                        "mood", "3")));
+    Set<EventArchive.Column> columns = EnumSet.of(EventArchive.Column.RESPONSE_TIME);
+    Event event = EventArchive.decode(archive, columns).get(0);
+
+    assertEquals("bob@example.com", event.getWho());
+    assertEquals(new Date(2000L), event.getWhen());
+    assertEquals(new Date(1500L), event.getResponseTime());
+    assertNull(event.getLat());
+    assertNull(event.getAppId());
+    assertTrue(event.getWhat().isEmpty());
+  }
+
+  public void testEmptyArchive() throws Exception {
+    byte[] archive = EventArchive.encode("42", Lists.<Event>newArrayList());
+    assertEquals(0, EventArchive.readHeader(archive).eventCount);
+    assertTrue(EventArchive.decode(archive, EventArchive.ALL_COLUMNS).isEmpty());
+  }
+
+  public void testVarLongRoundTrip() throws Exception {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytes);
+    long[] values = { 0, 1, 127, 128, -1, Long.MAX_VALUE, Long.MIN_VALUE };
+    for (long value : values) {
+      EventArchive.writeVarLong(out, value);
+    }
+    out.flush();
+    DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+    for (long value : values) {
+      assertEquals(value, EventArchive.readVarLong(in));
+    }
+  }
+
+  private Event event(String who, long when, Long responseTime, Long scheduledTime, String... responses) {
+    Set<What> whats = Sets.newHashSet();
+    for (int i = 0; i + 1 < responses.length; i += 2) {
+      whats.add(new What(responses[i], responses[i + 1]));
+    }
+    return new Event(who, "1.5", "-2.5", new Date(when), "Android", "4.2", whats, false, "42", "Diary", 3,
+                     responseTime != null ? new Date(responseTime) : null,
+                     scheduledTime != null ? new Date(scheduledTime) : null,
+                     Lists.<PhotoBlob>newArrayList(), "America/Los_Angeles", "default", 7L, null, 11L);
+  }
+
+  private void assertEquals(Event expected, Event actual, boolean shared) {
+    assertEquals(expected.getWho(), actual.getWho());
+    assertEquals(expected.getWhen(), actual.getWhen());
+    assertEquals(expected.getResponseTime(), actual.getResponseTime());
+    assertEquals(expected.getScheduledTime(), actual.getScheduledTime());
+    assertEquals(expected.getLat(), actual.getLat());
+    assertEquals(expected.getLon(), actual.getLon());
+    assertEquals(expected.getAppId(), actual.getAppId());
+    assertEquals(expected.getPacoVersion(), actual.getPacoVersion());
+    assertEquals(expected.getExperimentId(), actual.getExperimentId());
+    assertEquals(expected.getExperimentName(), actual.getExperimentName());
+    assertEquals(expected.getExperimentVersion(), actual.getExperimentVersion());
+    assertEquals(expected.getTimeZone(), actual.getTimeZone());
+    assertEquals(expected.getExperimentGroupName(), actual.getExperimentGroupName());
+    assertEquals(expected.getActionTriggerId(), actual.getActionTriggerId());
+    assertEquals(expected.getActionTriggerSpecId(), actual.getActionTriggerSpecId());
+    assertEquals(expected.getActionId(), actual.getActionId());
+    assertEquals(expected.getWhatMap(), actual.getWhatMap());
+    assertEquals(shared, actual.isShared());
+  }
+}
@@ -1,5 +1,6 @@
 package com.google.sampling.experiential.server;
 
+import java.io.StringReader;
 import java.util.Date;
 import java.util.List;
 import java.util.Set;
@@ -14,11 +15,13 @@ import org.junit.Before;
 import org.junit.Test;
 
 import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
 import com.google.sampling.experiential.model.PhotoBlob;
 import com.google.sampling.experiential.model.What;
 import com.pacoapp.paco.shared.comm.Outcome;
 import com.pacoapp.paco.shared.model2.ExperimentDAO;
 import com.pacoapp.paco.shared.model2.ExperimentQueryResult;
+import com.pacoapp.paco.shared.model2.ExperimentSummaryQueryResult;
 import com.pacoapp.paco.shared.model2.ValidationMessage;
 
 public class EventJsonUploadProcessorTest extends TestCase {
@@ -154,6 +157,25 @@ public class EventJsonUploadProcessorTest extends TestCase {
         return null;
       }
 
+      @Override
+      public ExperimentSummaryQueryResult getMyJoinableExperimentSummaries(String email,
+                                                                           DateTimeZone timeZoneForClient,
+                                                                           Integer limit, String cursor) {
+        return null;
+      }
+
+      @Override
+      public ExperimentSummaryQueryResult getMyJoinedExperimentSummaries(String email, DateTimeZone timezone,
+                                                                         Integer limit, String cursor) {
+        return null;
+      }
+
+      @Override
+      public ExperimentSummaryQueryResult getExperimentSummariesPublishedPublicly(DateTimeZone timezone,
+                                                                                  Integer limit, String cursor) {
+        return null;
+      }
+
       @Override
       public ExperimentQueryResult getAllExperiments(String cursor) {
         // TODO Auto-generated method stub
@@ -243,6 +265,25 @@ public class EventJsonUploadProcessorTest extends TestCase {
         return null;
       }
 
+      @Override
+      public ExperimentSummaryQueryResult getMyJoinableExperimentSummaries(String email,
+                                                                           DateTimeZone timeZoneForClient,
+                                                                           Integer limit, String cursor) {
+        return null;
+      }
+
+      @Override
+      public ExperimentSummaryQueryResult getMyJoinedExperimentSummaries(String email, DateTimeZone timezone,
+                                                                         Integer limit, String cursor) {
+        return null;
+      }
+
+      @Override
+      public ExperimentSummaryQueryResult getExperimentSummariesPublishedPublicly(DateTimeZone timezone,
+                                                                                  Integer limit, String cursor) {
+        return null;
+      }
+
       @Override
       public ExperimentQueryResult getAllExperiments(String cursor) {
         // TODO Auto-generated method stub
@@ -337,6 +378,25 @@ public class EventJsonUploadProcessorTest extends TestCase {
         return null;
       }
 
+      @Override
+      public ExperimentSummaryQueryResult getMyJoinableExperimentSummaries(String email,
+                                                                           DateTimeZone timeZoneForClient,
+                                                                           Integer limit, String cursor) {
+        return null;
+      }
+
+      @Override
+      public ExperimentSummaryQueryResult getMyJoinedExperimentSummaries(String email, DateTimeZone timezone,
+                                                                         Integer limit, String cursor) {
+        return null;
+      }
+
+      @Override
+      public ExperimentSummaryQueryResult getExperimentSummariesPublishedPublicly(DateTimeZone timezone,
+                                                                                  Integer limit, String cursor) {
+        return null;
+      }
+
       @Override
       public ExperimentQueryResult getAllExperiments(String cursor) {
         // TODO Auto-generated method stub
@@ -425,6 +485,25 @@ public class EventJsonUploadProcessorTest extends TestCase {
         // TODO Auto-generated method stub
         return null;
       }
+      @Override
+      public ExperimentSummaryQueryResult getMyJoinableExperimentSummaries(String email,
+                                                                           DateTimeZone timeZoneForClient,
+                                                                           Integer limit, String cursor) {
+        return null;
+      }
+
+      @Override
+      public ExperimentSummaryQueryResult getMyJoinedExperimentSummaries(String email, DateTimeZone timezone,
+                                                                         Integer limit, String cursor) {
+        return null;
+      }
+
+      @Override
+      public ExperimentSummaryQueryResult getExperimentSummariesPublishedPublicly(DateTimeZone timezone,
+                                                                                  Integer limit, String cursor) {
+        return null;
+      }
+
       @Override
       public ExperimentQueryResult getAllExperiments(String cursor) {
         // TODO Auto-generated method stub
@@ -492,6 +571,99 @@ public class EventJsonUploadProcessorTest extends TestCase {
     assertEquals(expectedOutcomeJson, result);
   }
 
+  @Test
+  public void testStreamedJsonArray() throws Exception {
+    EventJsonUploadProcessor ejup = new EventJsonUploadProcessor(emptyExperimentService, noOpEventRetriever);
+    String result = ejup.processJsonEvents(new StringReader("[{\"experimentId\" : \"1\"}, {\"experimentId\" : \"2\"}]"), who, null, null);
+    String expectedOutcomeJson = toJson(new Outcome(0), new Outcome(1));
+    assertEquals(expectedOutcomeJson, result);
+  }
+
+  @Test
+  public void testTruncatedJsonArray() throws Exception {
+    EventJsonUploadProcessor ejup = new EventJsonUploadProcessor(emptyExperimentService, noOpEventRetriever);
+    try {
+      ejup.processJsonEvents(new StringReader("[{\"experimentId\" : \"1\"}, {\"experimentId\""), who, null, null);
+      fail("Should have complained about truncated json stream");
+    } catch (IllegalArgumentException e) {
+    }
+  }
+
+  @Test
+  public void testRetriedEventIsStoredOnce() throws Exception {
+    final List<String> posted = Lists.newArrayList();
+    EventRetriever countingEventRetriever = new EventRetriever() {
+      @Override
+      public void postEvent(String who, String lat, String lon, Date whenDate, String appId, String pacoVersion,
+                            Set<What> what, boolean shared, String experimentId, String experimentName, Integer experimentVersion,
+                            Date responseTime, Date scheduledTime, List<PhotoBlob> blobs, String timezone,
+                            String groupName, Long actionTriggerId, Long actionTriggerSpecId, Long actionId) {
+        posted.add(experimentId);
+      }
+    };
+    EventJsonUploadProcessor ejup = new EventJsonUploadProcessor(emptyExperimentService, countingEventRetriever,
+                                                                 inMemoryDedup());
+    String events = "[{\"experimentId\" : \"1\", \"clientEventId\" : \"install:1\"}, "
+                    + "{\"experimentId\" : \"1\", \"clientEventId\" : \"install:2\"}]";
+    String expectedOutcomeJson = toJson(new Outcome(0), new Outcome(1));
+    assertEquals(expectedOutcomeJson, ejup.processJsonEvents(events, who, null, null));
+    assertEquals(expectedOutcomeJson, ejup.processJsonEvents(events, who, null, null));
+    assertEquals(2, posted.size());
+  }
+
+  @Test
+  public void testEventThatFailedToStoreIsStoredOnRetry() throws Exception {
+    final List<String> posted = Lists.newArrayList();
+    EventRetriever blowUpThenCountingEventRetriever = new EventRetriever() {
+      private boolean first = true;
+
+      @Override
+      public void postEvent(String who, String lat, String lon, Date whenDate, String appId, String pacoVersion,
+                            Set<What> what, boolean shared, String experimentId, String experimentName, Integer experimentVersion,
+                            Date responseTime, Date scheduledTime, List<PhotoBlob> blobs, String timezone,
+                            String groupName, Long actionTriggerId, Long actionTriggerSpecId, Long actionId) {
+        if (first) {
+          first = false;
+          throw new IllegalStateException("datastore unavailable");
+        }
+        posted.add(experimentId);
+      }
+    };
+    EventJsonUploadProcessor ejup = new EventJsonUploadProcessor(emptyExperimentService,
+                                                                 blowUpThenCountingEventRetriever, inMemoryDedup());
+    String events = "[{\"experimentId\" : \"1\", \"clientEventId\" : \"install:1\"}]";
+    assertFalse(ejup.processJsonEvents(events, who, null, null).equals(toJson(new Outcome(0))));
+    assertEquals(toJson(new Outcome(0)), ejup.processJsonEvents(events, who, null, null));
+    assertEquals(1, posted.size());
+  }
+
+  private EventDedup inMemoryDedup() {
+    final Set<String> recorded = Sets.newHashSet();
+    return new EventDedup() {
+      @Override
+      public boolean isDuplicate(String dedupKey) {
+        return recorded.contains(dedupKey);
+      }
+
+      @Override
+      public void record(String dedupKey) {
+        recorded.add(dedupKey);
+      }
+    };
+  }
+
+  @Test
+  public void testDedupKeyFallsBackToEventTimes() throws Exception {
+    DateTime responseTime = new DateTime(2016, 5, 1, 10, 0, 0, 0, DateTimeZone.UTC);
+    assertEquals(EventDedup.computeKey(who, null, "1", responseTime, null),
+                 EventDedup.computeKey(who, "", "1", responseTime, null));
+    assertFalse(EventDedup.computeKey(who, null, "1", responseTime, null)
+                .equals(EventDedup.computeKey(who, null, "2", responseTime, null)));
+    assertFalse(EventDedup.computeKey(who, "install:1", "1", responseTime, null)
+                .equals(EventDedup.computeKey(who, null, "1", responseTime, null)));
+    assertNull(EventDedup.computeKey(who, null, "1", null, null));
+  }
+
   @Test
   public void testBadEvent() throws Exception {
     EventJsonUploadProcessor ejup = new EventJsonUploadProcessor(emptyExperimentService, blowUpEventRetriever);
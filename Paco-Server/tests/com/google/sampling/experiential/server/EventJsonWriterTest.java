@@ -0,0 +1,81 @@
+package com.google.sampling.experiential.server;
+
+import java.io.StringWriter;
+import java.util.Date;
+import java.util.List;
+import java.util.Set;
+
+import junit.framework.TestCase;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import com.google.sampling.experiential.model.Event;
+import com.google.sampling.experiential.model.PhotoBlob;
+import com.google.sampling.experiential.model.What;
+import com.google.sampling.experiential.shared.EventDAO;
+import com.pacoapp.paco.shared.model2.JsonConverter;
+
+public class EventJsonWriterTest extends TestCase {
+
+  private static final String TIMEZONE = "America/Los_Angeles";
+
+  public void testSameJsonAsResultPair() throws Exception {
+    List<Event> events = Lists.newArrayList(event("bob@example.com", 2000L, 1500L, null, "mood", "3", "where", "home"),
+                                            event("alice@example.com", 1000L, null, 900L, "restaurant", "CafeMoma"));
+    assertSameJson(new EventQueryResultPair(events, "abc"), null);
+  }
+
+  public void testNoCursor() throws Exception {
+    List<Event> events = Lists.newArrayList(event("bob@example.com", 2000L, null, null, "mood", "3"));
+    assertSameJson(new EventQueryResultPair(events, null), null);
+  }
+
+  public void testNoEvents() throws Exception {
+    assertSameJson(new EventQueryResultPair(Lists.<Event>newArrayList(), null), null);
+  }
+
+  public void testAnonymized() throws Exception {
+    List<Event> events = Lists.newArrayList(event("bob@example.com", 2000L, null, null, "mood", "3"));
+    StringWriter out = new StringWriter();
+    new EventJsonWriter(Anonymizer.md5(), TIMEZONE, false).write(out, new EventQueryResultPair(events, null));
+    assertTrue(out.toString().contains("\"who\":\"4b9bb80620f03eb3719e0a061c14283d\""));
+    assertFalse(out.toString().contains("bob@example.com"));
+  }
+
+  public void testWhatViewIsReadOnly() throws Exception {
+    Event event = event("bob@example.com", 2000L, null, null, "mood", "3");
+    assertSame(event.getWhatView(), event.getWhatView());
+    assertEquals(event.getWhatMap(), event.getWhatView());
+    try {
+      event.getWhatView().put("mood", "4");
+      fail();
+    } catch (UnsupportedOperationException e) {
+    }
+    event.getWhatMap().put("mood", "4");
+    assertEquals("3", event.getWhatView().get("mood"));
+  }
+
+  private void assertSameJson(EventQueryResultPair pair, Anonymizer anonymizer) throws Exception {
+    EventJsonWriter writer = new EventJsonWriter(anonymizer, TIMEZONE, false);
+    List<EventDAO> eventDAOs = Lists.newArrayList();
+    for (Event event : pair.getEvents()) {
+      eventDAOs.add(writer.toEventDAO(event));
+    }
+    String expected = JsonConverter.getObjectMapper().writeValueAsString(new EventDAOQueryResultPair(eventDAOs,
+                                                                                                     pair.getCursor()));
+    StringWriter out = new StringWriter();
+    writer.write(out, pair);
+    assertEquals(expected, out.toString());
+  }
+
+  private Event event(String who, long when, Long responseTime, Long scheduledTime, String... responses) {
+    Set<What> whats = Sets.newHashSet();
+    for (int i = 0; i + 1 < responses.length; i += 2) {
+      whats.add(new What(responses[i], responses[i + 1]));
+    }
+    return new Event(who, "1.5", "-2.5", new Date(when), "Android", "4.2", whats, false, "42", "Diary", 3,
+                     responseTime != null ? new Date(responseTime) : null,
+                     scheduledTime != null ? new Date(scheduledTime) : null,
+                     Lists.<PhotoBlob>newArrayList(), TIMEZONE, "default", 7L, null, 11L);
+  }
+}
@@ -0,0 +1,57 @@
+package com.google.sampling.experiential.server;
+
+import java.util.Date;
+import java.util.List;
+import java.util.Set;
+
+import junit.framework.TestCase;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import com.google.sampling.experiential.model.Event;
+import com.google.sampling.experiential.model.PhotoBlob;
+import com.google.sampling.experiential.model.What;
+
+public class EventRetrieverTest extends TestCase {
+
+  public void testNewestFirstSortsByWhen() throws Exception {
+    Event older = event(1L, 1000L);
+    Event newest = event(2L, 3000L);
+    Event middle = event(3L, 2000L);
+    List<Event> events = EventRetriever.newestFirst(Lists.newArrayList(older, newest, middle));
+    assertEquals(Lists.newArrayList(newest, middle, older), events);
+  }
+
+  public void testNewestFirstKeepsOrderOfSortedEvents() throws Exception {
+    Event newest = event(1L, 3000L);
+    Event sameTime = event(2L, 3000L);
+    Event older = event(3L, 1000L);
+    List<Event> events = EventRetriever.newestFirst(Lists.newArrayList(newest, sameTime, older));
+    assertEquals(Lists.newArrayList(newest, sameTime, older), events);
+  }
+
+  public void testNewestFirstDropsSecondCopyOfStoredEvent() throws Exception {
+    // a shared event of the participant, returned by the own and the shared query
+    Event own = event(1L, 2000L);
+    Event shared = event(1L, 2000L);
+    Event other = event(2L, 1000L);
+    List<Event> events = EventRetriever.newestFirst(Lists.newArrayList(own, other, shared));
+    assertEquals(Lists.newArrayList(own, other), events);
+  }
+
+  public void testNewestFirstKeepsEventsWithoutId() throws Exception {
+    Event first = event(null, 2000L);
+    Event second = event(null, 1000L);
+    List<Event> events = EventRetriever.newestFirst(Lists.newArrayList(second, first));
+    assertEquals(Lists.newArrayList(first, second), events);
+  }
+
+  private Event event(Long id, long when) {
+    Set<What> whats = Sets.newHashSet();
+    Event event = new Event("bob@example.com", null, null, new Date(when), "Android", "4.2", whats, false, "42",
+                            "Diary", 3, null, null, Lists.<PhotoBlob>newArrayList(), "America/Los_Angeles",
+                            "default", null, null, null);
+    event.setId(id);
+    return event;
+  }
+}
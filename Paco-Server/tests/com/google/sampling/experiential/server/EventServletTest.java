@@ -0,0 +1,23 @@
+package com.google.sampling.experiential.server;
+
+import junit.framework.TestCase;
+
+public class EventServletTest extends TestCase {
+
+  public void testJsonPageSizeWithinMax() throws Exception {
+    assertEquals(1, EventServlet.getJsonPageSize(1));
+    assertEquals(500, EventServlet.getJsonPageSize(500));
+    assertEquals(EventServlet.MAX_JSON_PAGE_SIZE, EventServlet.getJsonPageSize(EventServlet.MAX_JSON_PAGE_SIZE));
+  }
+
+  public void testJsonPageSizeCappedAtMax() throws Exception {
+    assertEquals(EventServlet.MAX_JSON_PAGE_SIZE, EventServlet.getJsonPageSize(EventServlet.MAX_JSON_PAGE_SIZE + 1));
+    assertEquals(EventServlet.MAX_JSON_PAGE_SIZE, EventServlet.getJsonPageSize(Integer.MAX_VALUE));
+  }
+
+  public void testJsonPageSizeDefaultsToMax() throws Exception {
+    // no limit or an invalid one is a full page, never an unbounded export
+    assertEquals(EventServlet.MAX_JSON_PAGE_SIZE, EventServlet.getJsonPageSize(0));
+    assertEquals(EventServlet.MAX_JSON_PAGE_SIZE, EventServlet.getJsonPageSize(-1));
+  }
+}
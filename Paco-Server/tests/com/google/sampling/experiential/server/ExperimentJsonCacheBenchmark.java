@@ -0,0 +1,52 @@
+package com.google.sampling.experiential.server;
+
+import java.util.List;
+
+import com.google.common.collect.Lists;
+import com.pacoapp.paco.shared.model2.ExperimentDAO;
+import com.pacoapp.paco.shared.model2.JsonConverter;
+
+/**
+ * Times building the experiment list json for 100 experiments by converting
+ * every experiment, as JsonConverter.jsonify does, and by assembling it from
+ * the cached json of each experiment.
+ *
+ * Run with: java ExperimentJsonCacheBenchmark [experimentCount] [pacoProtocol]
+ */
+public class ExperimentJsonCacheBenchmark {
+
+  private static final int REQUESTS_PER_ROUND = 200;
+
+  public static void main(String[] args) {
+    int experimentCount = args.length > 0 ? Integer.parseInt(args[0]) : 100;
+    String pacoProtocol = args.length > 1 ? args[1] : "3.1";
+    List<ExperimentDAO> experiments = Lists.newArrayList();
+    while (experiments.size() < experimentCount) {
+      for (ExperimentDAO experiment : ExperimentJsonCacheTest.createExperiments()) {
+        experiment.setId(experiments.size() + 1L);
+        experiments.add(experiment);
+      }
+    }
+    experiments = experiments.subList(0, experimentCount);
+
+    for (int round = 0; round < 5; round++) {
+      long start = System.currentTimeMillis();
+      int converted = 0;
+      for (int i = 0; i < REQUESTS_PER_ROUND; i++) {
+        converted += JsonConverter.jsonify(experiments, null, null, pacoProtocol).length();
+      }
+      long convertedMillis = System.currentTimeMillis() - start;
+
+      start = System.currentTimeMillis();
+      int assembled = 0;
+      for (int i = 0; i < REQUESTS_PER_ROUND; i++) {
+        assembled += ExperimentJsonCache.jsonify(experiments, null, null, pacoProtocol).length();
+      }
+      long assembledMillis = System.currentTimeMillis() - start;
+
+      System.out.println("round " + round + ": " + REQUESTS_PER_ROUND + " lists of " + experimentCount
+                         + " experiments, protocol " + pacoProtocol + ", " + converted + "/" + assembled
+                         + " chars. converted: " + convertedMillis + "ms, assembled: " + assembledMillis + "ms");
+    }
+  }
+}
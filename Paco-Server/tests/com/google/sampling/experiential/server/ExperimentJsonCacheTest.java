@@ -0,0 +1,99 @@
+package com.google.sampling.experiential.server;
+
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.codehaus.jackson.map.ObjectMapper;
+
+import com.google.common.collect.Lists;
+import com.pacoapp.paco.shared.model2.ExperimentDAO;
+import com.pacoapp.paco.shared.model2.JsonConverter;
+
+public class ExperimentJsonCacheTest extends TestCase {
+
+  private static final String[] PROTOCOLS = { null, "3.1", "4" };
+
+  protected void setUp() throws Exception {
+    super.setUp();
+    ExperimentJsonCache.clear();
+  }
+
+  public void testSameJsonAsJsonConverter() throws Exception {
+    List<ExperimentDAO> experiments = createExperiments();
+    for (String protocol : PROTOCOLS) {
+      String expected = JsonConverter.jsonify(experiments, 20, "abc", protocol);
+      // once to fill the cache, once from it
+      assertSameJson(expected, ExperimentJsonCache.jsonify(experiments, 20, "abc", protocol));
+      assertSameJson(expected, ExperimentJsonCache.jsonify(experiments, 20, "abc", protocol));
+      assertSameJson(JsonConverter.jsonify(experiments, null, null, protocol),
+                     ExperimentJsonCache.jsonify(experiments, null, null, protocol));
+    }
+  }
+
+  public void testOldProtocolsGetNothing() throws Exception {
+    assertNull(ExperimentJsonCache.jsonify(createExperiments(), null, null, "2"));
+  }
+
+  public void testCachedPerVersion() throws Exception {
+    List<ExperimentDAO> experiments = createExperiments();
+    ExperimentJsonCache.jsonify(experiments, null, null, "4");
+    ExperimentDAO experiment = experiments.get(0);
+    experiment.setTitle("changed title");
+    assertFalse(ExperimentJsonCache.jsonify(experiments, null, null, "4").contains("changed title"));
+
+    experiment.setVersion(experiment.getVersion() + 1);
+    assertTrue(ExperimentJsonCache.jsonify(experiments, null, null, "4").contains("changed title"));
+  }
+
+  public void testInvalidate() throws Exception {
+    List<ExperimentDAO> experiments = createExperiments();
+    for (String protocol : PROTOCOLS) {
+      ExperimentJsonCache.jsonify(experiments, null, null, protocol);
+    }
+    assertEquals(2 * experiments.size(), ExperimentJsonCache.size());
+
+    ExperimentDAO experiment = experiments.get(0);
+    experiment.setTitle("changed title");
+    ExperimentJsonCache.invalidate(experiment.getId());
+    assertEquals(2 * (experiments.size() - 1), ExperimentJsonCache.size());
+    assertTrue(ExperimentJsonCache.jsonify(experiments, null, null, "4").contains("changed title"));
+  }
+
+  public void testParticipantsGetTheirOwnJson() throws Exception {
+    List<ExperimentDAO> experiments = createExperiments();
+    String adminJson = ExperimentJsonCache.jsonify(experiments, null, null, "4");
+    assertTrue(adminJson.contains("admin@example.com"));
+
+    // as removeNonAdminData leaves them for participants
+    for (ExperimentDAO experiment : experiments) {
+      experiment.setAdmins(Lists.<String>newArrayList());
+      experiment.setPublishedUsers(Lists.<String>newArrayList());
+      experiment.setCreator(null);
+    }
+    String participantJson = ExperimentJsonCache.jsonify(experiments, null, null, "4");
+    assertFalse(participantJson.contains("admin@example.com"));
+    assertSameJson(JsonConverter.jsonify(experiments, null, null, "4"), participantJson);
+  }
+
+  private void assertSameJson(String expected, String actual) throws Exception {
+    ObjectMapper mapper = JsonConverter.getObjectMapper();
+    assertEquals(mapper.readTree(expected), mapper.readTree(actual));
+  }
+
+  static List<ExperimentDAO> createExperiments() {
+    String[] experimentJsons = { ExperimentTestConstants.TEST_EXPERIMENT_0_NEW,
+                                ExperimentTestConstants.TEST_EXPERIMENT_1_NEW,
+                                ExperimentTestConstants.TEST_EXPERIMENT_2_NEW,
+                                ExperimentTestConstants.TEST_EXPERIMENT_3_NEW };
+    List<ExperimentDAO> experiments = Lists.newArrayList();
+    for (int i = 0; i < experimentJsons.length; i++) {
+      ExperimentDAO experiment = JsonConverter.fromSingleEntityJson(experimentJsons[i]);
+      experiment.setId(100L + i);
+      experiment.setVersion(1);
+      experiment.setAdmins(Lists.newArrayList("admin@example.com"));
+      experiments.add(experiment);
+    }
+    return experiments;
+  }
+}
@@ -9,9 +9,11 @@ import org.joda.time.DateTimeZone;
 
 import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
 import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.appengine.tools.development.testing.LocalTaskQueueTestConfig;
 import com.google.common.collect.Lists;
 import com.pacoapp.paco.shared.comm.Outcome;
 import com.pacoapp.paco.shared.model2.ExperimentDAO;
+import com.pacoapp.paco.shared.model2.ExperimentDAOCore;
 import com.pacoapp.paco.shared.model2.JsonConverter;
 
 public class ExperimentServiceTest extends TestCase {
@@ -20,7 +22,8 @@ public class ExperimentServiceTest extends TestCase {
   private final String email = "user1@gmail.com";
   private final String authDomain = "unused_auth_domain";
 
-  private final LocalServiceTestHelper helper = new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig().setApplyAllHighRepJobPolicy() );
+  private final LocalServiceTestHelper helper = new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig().setApplyAllHighRepJobPolicy(),
+                                                                           new LocalTaskQueueTestConfig().setQueueXmlPath("ear/default/WEB-INF/queue.xml"));
 
   public void setUp() {
     helper.setUp();
@@ -95,6 +98,22 @@ public class ExperimentServiceTest extends TestCase {
 
 
 
+  public void testJoinableSummariesMatchExperiments() throws Exception {
+    ExperimentService experimentService = ExperimentServiceFactory.getExperimentService();
+    ExperimentDAO experiment = JsonConverter.fromSingleEntityJson(ExperimentTestConstants.TEST_EXPERIMENT_USER1_ADMIN_NEW);
+    experiment.setId(null);
+    experimentService.saveExperiment(experiment, email, DateTimeZone.UTC);
+
+    DateTimeZone email1Timezone = DateTime.now().getZone();
+    List<ExperimentDAO> experiments = experimentService.getMyJoinableExperiments(email, email1Timezone, null, null).getExperiments();
+    List<ExperimentDAOCore> summaries = experimentService.getMyJoinableExperimentSummaries(email, email1Timezone, null, null).getExperiments();
+    assertEquals(1, summaries.size());
+    assertFalse(summaries.get(0) instanceof ExperimentDAO);
+    assertEquals(experiments.get(0).getId(), summaries.get(0).getId());
+    assertEquals("Test 5", summaries.get(0).getTitle());
+    assertEquals("bob", summaries.get(0).getOrganization());
+  }
+
   @Override
   protected void tearDown() throws Exception {
     helper.tearDown();
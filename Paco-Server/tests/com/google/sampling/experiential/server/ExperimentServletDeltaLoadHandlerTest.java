@@ -0,0 +1,57 @@
+package com.google.sampling.experiential.server;
+
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+
+import junit.framework.TestCase;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+public class ExperimentServletDeltaLoadHandlerTest extends TestCase {
+
+  private static final String EMAIL = "bobevans@google.com";
+
+  public void testParseKnownVersions() {
+    SortedMap<Long, Integer> versions = ExperimentServletDeltaLoadHandler.parseKnownVersions("7:2, 1:4,bogus:3,9");
+    assertEquals(3, versions.size());
+    assertEquals(Integer.valueOf(4), versions.get(1l));
+    assertEquals(Integer.valueOf(2), versions.get(7l));
+    assertTrue(versions.containsKey(9l));
+    assertNull(versions.get(9l));
+  }
+
+  public void testOnlyChangedExperimentsAreSelected() {
+    SortedMap<Long, Integer> known = ExperimentServletDeltaLoadHandler.parseKnownVersions("1:4,2:1,3:2,4");
+    Map<Long, Integer> server = Maps.newHashMap();
+    server.put(1l, 4);
+    server.put(3l, 3);
+    server.put(4l, 1);
+    // 2 is gone from the server
+
+    List<Long> changed = ExperimentServletDeltaLoadHandler.computeChangedExperimentIds(known, server);
+    assertEquals(Lists.newArrayList(3l, 4l), changed);
+  }
+
+  public void testETagTracksServerAndClientVersions() {
+    SortedMap<Long, Integer> known = ExperimentServletDeltaLoadHandler.parseKnownVersions("1:4,3:2");
+    Map<Long, Integer> server = Maps.newHashMap();
+    server.put(1l, 4);
+    server.put(3l, 2);
+
+    String eTag = ExperimentServletDeltaLoadHandler.computeETag(EMAIL, known, server, "4");
+    assertEquals(eTag, ExperimentServletDeltaLoadHandler.computeETag(EMAIL, known, server, "4"));
+
+    server.put(3l, 3);
+    String serverChangedETag = ExperimentServletDeltaLoadHandler.computeETag(EMAIL, known, server, "4");
+    assertFalse(eTag.equals(serverChangedETag));
+
+    known.put(3l, 3);
+    assertFalse(serverChangedETag.equals(ExperimentServletDeltaLoadHandler.computeETag(EMAIL, known, server, "4")));
+
+    server.remove(3l);
+    assertFalse(eTag.equals(ExperimentServletDeltaLoadHandler.computeETag(EMAIL, known, server, "4")));
+  }
+
+}
@@ -60,7 +60,7 @@ public class ExperimentServletHandlerTest extends TestCase {
 
 
   public void testShortLoadIsShortButComplete() {
-    ExperimentServletHandler shortHandler = new ExperimentServletExperimentsForMeLoadHandler(email, null, null, null, pacoProtocol);
+    ExperimentServletHandler shortHandler = new ExperimentServletExperimentsForMeLoadHandler(email, null, null, null, pacoProtocol, false);
     ExperimentServletHandler longHandler = new ExperimentServletAdminExperimentsFullLoadHandler(email, null, null, null, pacoProtocol);
 
     String shortContent = shortHandler.performLoad();
@@ -125,7 +125,7 @@ public class ExperimentServletHandlerTest extends TestCase {
     createAndSaveExperiment(ExperimentTestConstants.TEST_EXPERIMENT_PUBLISHED_2_NEW);
     createAndSaveExperiment(ExperimentTestConstants.TEST_EXPERIMENT_PUBLISHED_3_NEW);
     DateTimeZone timezone = DateTimeZone.getDefault();
-    ExperimentServletHandler handler = new ExperimentServletExperimentsShortPublicLoadHandler(email, timezone, null, null, pacoProtocol );
+    ExperimentServletHandler handler = new ExperimentServletExperimentsShortPublicLoadHandler(email, timezone, null, null, pacoProtocol, false);
     String content = handler.performLoad();
 
     assertTrue(!Strings.isNullOrEmpty(content));
@@ -138,7 +138,7 @@ public class ExperimentServletHandlerTest extends TestCase {
     createAndSaveExperiment(ExperimentTestConstants.TEST_EXPERIMENT_PUBLISHED_1_NEW);
     createAndSaveExperiment(ExperimentTestConstants.TEST_EXPERIMENT_PUBLISHED_2_NEW);
     createAndSaveExperiment(ExperimentTestConstants.TEST_EXPERIMENT_PUBLISHED_3_NEW);
-    ExperimentServletHandler handler = new ExperimentServletExperimentsShortPublicLoadHandler(email, null, 4, null, pacoProtocol);
+    ExperimentServletHandler handler = new ExperimentServletExperimentsShortPublicLoadHandler(email, null, 4, null, pacoProtocol, false);
     String content = handler.performLoad();
 
 
@@ -149,14 +149,14 @@ public class ExperimentServletHandlerTest extends TestCase {
     String cursor = handler.cursor;
     assertNotNull(cursor);
 
-    ExperimentServletHandler handler2 = new ExperimentServletExperimentsShortPublicLoadHandler(email, null, 4, cursor, pacoProtocol);
+    ExperimentServletHandler handler2 = new ExperimentServletExperimentsShortPublicLoadHandler(email, null, 4, cursor, pacoProtocol, false);
     String content2 = handler2.performLoad();
     assertNotSame(cursor, handler2.cursor);
     assertTrue(content2 != null);
     List<ExperimentDAO> experiments2 = getExperimentList(content2);
     assertEquals(2, experiments2.size());
 
-    ExperimentServletHandler handler3 = new ExperimentServletExperimentsShortPublicLoadHandler(email, null, 4, handler2.cursor, pacoProtocol);
+    ExperimentServletHandler handler3 = new ExperimentServletExperimentsShortPublicLoadHandler(email, null, 4, handler2.cursor, pacoProtocol, false);
     String content3 = handler3.performLoad();
     assertNotSame(cursor, handler3.cursor);
     assertTrue(content3 != null);
@@ -170,7 +170,7 @@ public class ExperimentServletHandlerTest extends TestCase {
     createAndSaveExperiment(ExperimentTestConstants.TEST_EXPERIMENT_PUBLISHED_1_NEW);
     createAndSaveExperiment(ExperimentTestConstants.TEST_EXPERIMENT_PUBLISHED_2_NEW);
     createAndSaveExperiment(ExperimentTestConstants.TEST_EXPERIMENT_PUBLISHED_3_NEW);
-    ExperimentServletHandler handler = new ExperimentServletExperimentsShortPublicLoadHandler(email, null, 2, null, pacoProtocol);
+    ExperimentServletHandler handler = new ExperimentServletExperimentsShortPublicLoadHandler(email, null, 2, null, pacoProtocol, false);
     String content = handler.performLoad();
 
 
@@ -181,7 +181,7 @@ public class ExperimentServletHandlerTest extends TestCase {
     String cursor = handler.cursor;
     assertNotNull(cursor);
 
-    ExperimentServletHandler handler2 = new ExperimentServletExperimentsShortPublicLoadHandler(email, null, 2, cursor, pacoProtocol);
+    ExperimentServletHandler handler2 = new ExperimentServletExperimentsShortPublicLoadHandler(email, null, 2, cursor, pacoProtocol, false);
     String content2 = handler2.performLoad();
 
     assertNotSame(cursor, handler2.cursor);
@@ -199,7 +199,7 @@ public class ExperimentServletHandlerTest extends TestCase {
       assertTrue(experimentDAO.getTitle() + " should not be in first page of experiments", !experimentsGroup1Names.contains(experimentDAO.getTitle()));
     }
 ///////////////////////////////
-    ExperimentServletHandler handler3 = new ExperimentServletExperimentsShortPublicLoadHandler(email, null, 2, handler2.cursor, pacoProtocol);
+    ExperimentServletHandler handler3 = new ExperimentServletExperimentsShortPublicLoadHandler(email, null, 2, handler2.cursor, pacoProtocol, false);
     String content3 = handler3.performLoad();
 
     assertNotSame(handler2.cursor, handler3.cursor);
@@ -220,7 +220,7 @@ public class ExperimentServletHandlerTest extends TestCase {
 
 
     //////////////////////////////////////
-    ExperimentServletHandler handler4 = new ExperimentServletExperimentsShortPublicLoadHandler(email, null, 2, handler3.cursor, pacoProtocol);
+    ExperimentServletHandler handler4 = new ExperimentServletExperimentsShortPublicLoadHandler(email, null, 2, handler3.cursor, pacoProtocol, false);
     String content4 = handler4.performLoad();
 
     assertNotSame(handler3.cursor, handler4.cursor);
@@ -0,0 +1,349 @@
+package com.google.sampling.experiential.server;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.joda.time.format.DateTimeFormat;
+import org.joda.time.format.DateTimeFormatter;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalMemcacheServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.appengine.tools.development.testing.LocalTaskQueueTestConfig;
+import com.google.apphosting.api.ApiProxy;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import com.google.sampling.experiential.shared.TimeUtil;
+import com.pacoapp.paco.shared.model2.ExperimentDAO;
+import com.pacoapp.paco.shared.model2.JsonConverter;
+
+/**
+ * Drives a fleet of simulated phones against the local datastore, memcache
+ * and task queue stubs: uploads of 50 events, public and selected experiment
+ * fetches through the ExperimentServlet handlers, and event exports. Reports
+ * the p50/p95/p99 latency, datastore calls per request and errors of each
+ * kind of request, and prints the first few exceptions of each.
+ *
+ * The requests call what the servlets call, without http. Exports read and
+ * convert the events as the report jobs do, but do not write the report to
+ * cloud storage.
+ *
+ * Run with: java LoadTestHarness [participants] [threads] [requests]
+ */
+public class LoadTestHarness {
+
+  private static final String ADMIN = "user1@gmail.com";
+  private static final String PACO_PROTOCOL = "4";
+  private static final String DATASTORE_PACKAGE = "datastore_v3";
+  static final int EVENTS_PER_UPLOAD = 50;
+  private static final int EXPORT_LIMIT = 500;
+  // stack traces printed per kind of request, the rest are only counted
+  static final int MAX_LOGGED_EXCEPTIONS = 5;
+
+  enum RequestType {
+    UPLOAD(70), PUBLIC_FETCH(10), SELECTED_FETCH(15), EXPORT(5);
+
+    final int weight;
+
+    RequestType(int weight) {
+      this.weight = weight;
+    }
+  }
+
+  /**
+   * Latencies, datastore calls and errors of one kind of request.
+   */
+  static class RequestStats {
+    private final long[] latencies;
+    private final AtomicInteger count = new AtomicInteger();
+    private final AtomicLong datastoreCalls = new AtomicLong();
+    private final AtomicInteger errors = new AtomicInteger();
+    private final AtomicInteger exceptions = new AtomicInteger();
+
+    RequestStats(int maxRequests) {
+      this.latencies = new long[maxRequests];
+    }
+
+    /**
+     * @return true if the exception is one of the first MAX_LOGGED_EXCEPTIONS
+     */
+    boolean shouldLogException() {
+      return exceptions.getAndIncrement() < MAX_LOGGED_EXCEPTIONS;
+    }
+
+    int getSucceeded() {
+      return count.get() - errors.get();
+    }
+
+    void record(long millis, long calls, boolean failed) {
+      latencies[count.getAndIncrement()] = millis;
+      datastoreCalls.addAndGet(calls);
+      if (failed) {
+        errors.incrementAndGet();
+      }
+    }
+
+    String report(String name) {
+      int n = count.get();
+      if (n == 0) {
+        return name + ": no requests";
+      }
+      long[] sorted = Arrays.copyOf(latencies, n);
+      Arrays.sort(sorted);
+      return String.format("%-15s %6d requests, %4d errors, p50 %5dms, p95 %5dms, p99 %5dms, max %5dms, "
+                           + "%.1f datastore calls/request", name, n, errors.get(), percentile(sorted, 50),
+                           percentile(sorted, 95), percentile(sorted, 99), sorted[n - 1],
+                           datastoreCalls.get() / (double) n);
+    }
+
+    static long percentile(long[] sorted, double percentile) {
+      int rank = (int) Math.ceil(sorted.length * percentile / 100.0);
+      return sorted[Math.max(0, rank - 1)];
+    }
+  }
+
+  /**
+   * Counts the datastore calls made on each thread, including the ones made
+   * through JDO, which the datastore service wrappers do not see.
+   */
+  static class DatastoreCallCounter implements InvocationHandler {
+    private final Object delegate;
+    private final ThreadLocal<long[]> calls = new ThreadLocal<long[]>() {
+      protected long[] initialValue() {
+        return new long[1];
+      }
+    };
+
+    DatastoreCallCounter(Object delegate) {
+      this.delegate = delegate;
+    }
+
+    long getCallsOnThisThread() {
+      return calls.get()[0];
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+      if (method.getName().startsWith("make") && args != null && args.length > 1
+          && DATASTORE_PACKAGE.equals(args[1])) {
+        calls.get()[0]++;
+      }
+      try {
+        return method.invoke(delegate, args);
+      } catch (InvocationTargetException e) {
+        throw e.getCause();
+      }
+    }
+  }
+
+  private final int participants;
+  private final int threads;
+  private final int requests;
+  private final Map<RequestType, RequestStats> stats = new ConcurrentHashMap<RequestType, RequestStats>();
+  private final AtomicInteger nextRequest = new AtomicInteger();
+  private final DateTimeFormatter dateFormatter = DateTimeFormat.forPattern(TimeUtil.DATETIME_FORMAT);
+  private DatastoreCallCounter callCounter;
+  private Long experimentId;
+  private String experimentTitle;
+
+  LoadTestHarness(int participants, int threads, int requests) {
+    this.participants = participants;
+    this.threads = threads;
+    this.requests = requests;
+    for (RequestType type : RequestType.values()) {
+      stats.put(type, new RequestStats(requests));
+    }
+  }
+
+  public static void main(String[] args) throws Exception {
+    int participants = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+    int threads = args.length > 1 ? Integer.parseInt(args[1]) : 8;
+    int requests = args.length > 2 ? Integer.parseInt(args[2]) : 2000;
+
+    LocalServiceTestHelper helper = new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig(),
+                                                               new LocalMemcacheServiceTestConfig(),
+                                                               new LocalTaskQueueTestConfig().setQueueXmlPath("ear/default/WEB-INF/queue.xml")
+                                                                                             .setDisableAutoTaskExecution(true));
+    helper.setUp();
+    helper.setEnvIsLoggedIn(true);
+    helper.setEnvEmail(ADMIN);
+    helper.setEnvAuthDomain("unused_auth_domain");
+    try {
+      new LoadTestHarness(participants, threads, requests).run();
+    } finally {
+      helper.tearDown();
+    }
+  }
+
+  void run() throws Exception {
+    createExperiment();
+    ApiProxy.Delegate<?> localDelegate = ApiProxy.getDelegate();
+    installCallCounter(localDelegate);
+    try {
+      long start = System.currentTimeMillis();
+      runWorkers();
+      long millis = System.currentTimeMillis() - start;
+      printReport(millis);
+    } finally {
+      ApiProxy.setDelegate(localDelegate);
+    }
+  }
+
+  private void createExperiment() {
+    ExperimentDAO experiment = JsonConverter.fromSingleEntityJson(ExperimentTestConstants.TEST_EXPERIMENT_USER1_ADMIN_NEW);
+    experiment.setId(null);
+    experiment.setPublished(true);
+    ExperimentServiceFactory.getExperimentService().saveExperiment(experiment, ADMIN, DateTimeZone.UTC);
+    experimentId = experiment.getId();
+    experimentTitle = experiment.getTitle();
+  }
+
+  @SuppressWarnings({ "unchecked", "rawtypes" })
+  private void installCallCounter(ApiProxy.Delegate<?> localDelegate) {
+    callCounter = new DatastoreCallCounter(localDelegate);
+    // keeps the interfaces of the local delegate so casts to them still work
+    Set<Class<?>> interfaces = Sets.newLinkedHashSet();
+    for (Class<?> c = localDelegate.getClass(); c != null; c = c.getSuperclass()) {
+      interfaces.addAll(Arrays.asList(c.getInterfaces()));
+    }
+    ApiProxy.setDelegate((ApiProxy.Delegate) Proxy.newProxyInstance(localDelegate.getClass().getClassLoader(),
+                                                                    interfaces.toArray(new Class<?>[0]),
+                                                                    callCounter));
+  }
+
+  private void runWorkers() throws InterruptedException {
+    final ApiProxy.Environment environment = ApiProxy.getCurrentEnvironment();
+    List<Thread> workers = Lists.newArrayList();
+    for (int t = 0; t < threads; t++) {
+      final Random random = new Random(t);
+      workers.add(new Thread() {
+        public void run() {
+          ApiProxy.setEnvironmentForCurrentThread(environment);
+          while (nextRequest.getAndIncrement() < requests) {
+            String participant = "participant" + random.nextInt(participants) + "@example.com";
+            runRequest(pickRequestType(random), participant, random);
+          }
+        }
+      });
+    }
+    for (Thread worker : workers) {
+      worker.start();
+    }
+    for (Thread worker : workers) {
+      worker.join();
+    }
+  }
+
+  private RequestType pickRequestType(Random random) {
+    int totalWeight = 0;
+    for (RequestType type : RequestType.values()) {
+      totalWeight += type.weight;
+    }
+    int pick = random.nextInt(totalWeight);
+    for (RequestType type : RequestType.values()) {
+      if (pick < type.weight) {
+        return type;
+      }
+      pick -= type.weight;
+    }
+    return RequestType.UPLOAD;
+  }
+
+  private void runRequest(RequestType type, String participant, Random random) {
+    long callsBefore = callCounter.getCallsOnThisThread();
+    long start = System.currentTimeMillis();
+    boolean failed;
+    try {
+      failed = !send(type, participant, random);
+    } catch (Exception e) {
+      failed = true;
+      if (stats.get(type).shouldLogException()) {
+        System.err.println(type.name().toLowerCase() + " request of " + participant + " failed:");
+        e.printStackTrace();
+      }
+    }
+    long millis = System.currentTimeMillis() - start;
+    stats.get(type).record(millis, callCounter.getCallsOnThisThread() - callsBefore, failed);
+  }
+
+  /**
+   * @return false if the request completed but reported an error
+   */
+  private boolean send(RequestType type, String participant, Random random) throws Exception {
+    switch (type) {
+    case UPLOAD:
+      String outcomes = EventJsonUploadProcessor.create().processJsonEvents(createUpload(participant, random),
+                                                                            participant, "load-test", "1");
+      return !outcomes.contains("\"status\":false");
+    case PUBLIC_FETCH:
+      return new ExperimentServletExperimentsShortPublicLoadHandler(participant, DateTimeZone.UTC, 20, null,
+                                                                    PACO_PROTOCOL, true).performLoad() != null;
+    case SELECTED_FETCH:
+      return new ExperimentServletSelectedExperimentsFullLoadHandler(participant, DateTimeZone.UTC,
+                                                                     experimentId.toString(),
+                                                                     PACO_PROTOCOL).performLoad() != null;
+    case EXPORT:
+      List<Query> query = new QueryParser().parse("experimentId=" + experimentId);
+      EventQueryResultPair events = EventRetriever.getInstance().getEventsInBatches(query, ADMIN, DateTimeZone.UTC,
+                                                                                    EXPORT_LIMIT, null);
+      EventRetriever.convertEventsToDAOs(events.getEvents());
+      return true;
+    default:
+      throw new IllegalArgumentException("Unknown request type: " + type);
+    }
+  }
+
+  private String createUpload(String participant, Random random) throws JSONException {
+    JSONArray events = new JSONArray();
+    DateTime now = new DateTime();
+    for (int i = 0; i < EVENTS_PER_UPLOAD; i++) {
+      DateTime responseTime = now.minusMinutes(random.nextInt(60 * 24 * 7));
+      JSONObject event = new JSONObject();
+      event.put("experimentId", experimentId.toString());
+      event.put("experimentName", experimentTitle);
+      event.put("experimentVersion", "1");
+      event.put("experimentGroupName", "New Group");
+      event.put("responseTime", dateFormatter.print(responseTime));
+      event.put("scheduledTime", dateFormatter.print(responseTime.minusMinutes(random.nextInt(10))));
+      event.put("clientEventId", participant + "-" + responseTime.getMillis() + "-" + random.nextInt());
+      JSONArray responses = new JSONArray();
+      JSONObject response = new JSONObject();
+      response.put("name", "q1");
+      response.put("answer", Integer.toString(1 + random.nextInt(5)));
+      responses.put(response);
+      event.put("responses", responses);
+      events.put(event);
+    }
+    return events.toString();
+  }
+
+  private void printReport(long millis) {
+    int total = 0;
+    for (RequestType type : RequestType.values()) {
+      total += stats.get(type).count.get();
+    }
+    // failed uploads may not have stored their events
+    int uploadedEvents = stats.get(RequestType.UPLOAD).getSucceeded() * EVENTS_PER_UPLOAD;
+    System.out.println(participants + " participants, " + threads + " threads, " + total + " requests in " + millis
+                       + "ms: " + String.format("%.1f", total * 1000.0 / millis) + " requests/s, "
+                       + String.format("%.1f", uploadedEvents * 1000.0 / millis) + " events uploaded/s");
+    for (RequestType type : RequestType.values()) {
+      System.out.println(stats.get(type).report(type.name().toLowerCase()));
+    }
+  }
+}
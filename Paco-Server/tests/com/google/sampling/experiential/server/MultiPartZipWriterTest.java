@@ -0,0 +1,78 @@
+package com.google.sampling.experiential.server;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+import junit.framework.TestCase;
+
+import com.google.common.collect.Lists;
+import com.google.common.io.ByteStreams;
+
+public class MultiPartZipWriterTest extends TestCase {
+
+  private List<ByteArrayOutputStream> parts;
+  private MultiPartZipWriter zipWriter;
+
+  @Override
+  protected void setUp() throws Exception {
+    parts = Lists.newArrayList();
+    zipWriter = new MultiPartZipWriter(new MultiPartZipWriter.PartFactory() {
+      @Override
+      public OutputStream createPart(int partNumber) throws IOException {
+        ByteArrayOutputStream part = new ByteArrayOutputStream();
+        parts.add(part);
+        return part;
+      }
+    }, 10, "file,bytes");
+  }
+
+  public void testEntriesAreStoredWithManifest() throws Exception {
+    zipWriter.addStoredEntry("a.jpg", "12345".getBytes("UTF-8"), "a.jpg,5");
+    assertEquals(1, zipWriter.close());
+
+    ZipInputStream zip = new ZipInputStream(new ByteArrayInputStream(parts.get(0).toByteArray()));
+    ZipEntry entry = zip.getNextEntry();
+    assertEquals("a.jpg", entry.getName());
+    assertEquals(ZipEntry.STORED, entry.getMethod());
+    assertEquals("12345", new String(ByteStreams.toByteArray(zip), "UTF-8"));
+    entry = zip.getNextEntry();
+    assertEquals(MultiPartZipWriter.MANIFEST_ENTRY_NAME, entry.getName());
+    assertEquals("file,bytes\na.jpg,5\n", new String(ByteStreams.toByteArray(zip), "UTF-8"));
+    assertNull(zip.getNextEntry());
+  }
+
+  public void testPartsAreSplitBySize() throws Exception {
+    zipWriter.addStoredEntry("a.jpg", "123456".getBytes("UTF-8"), "a.jpg,6");
+    zipWriter.addStoredEntry("b.jpg", "123456".getBytes("UTF-8"), "b.jpg,6");
+    // larger than a part on its own, still written, alone
+    zipWriter.addStoredEntry("c.jpg", "123456789012".getBytes("UTF-8"), "c.jpg,12");
+    zipWriter.addStoredEntry("d.jpg", "1".getBytes("UTF-8"), "d.jpg,1");
+    assertEquals(4, zipWriter.getEntryCount());
+    assertEquals(4, zipWriter.close());
+    assertEquals(4, parts.size());
+  }
+
+  public void testManifestLineWithoutEntry() throws Exception {
+    zipWriter.addStoredEntry("a.jpg", "12345".getBytes("UTF-8"), "a.jpg,5");
+    zipWriter.addManifestLine("b.jpg,missing photo");
+    assertEquals(1, zipWriter.getEntryCount());
+    assertEquals(1, zipWriter.close());
+
+    ZipInputStream zip = new ZipInputStream(new ByteArrayInputStream(parts.get(0).toByteArray()));
+    assertEquals("a.jpg", zip.getNextEntry().getName());
+    assertEquals(MultiPartZipWriter.MANIFEST_ENTRY_NAME, zip.getNextEntry().getName());
+    assertEquals("file,bytes\na.jpg,5\nb.jpg,missing photo\n", new String(ByteStreams.toByteArray(zip), "UTF-8"));
+    assertNull(zip.getNextEntry());
+  }
+
+  public void testNoEntriesNoParts() throws Exception {
+    assertEquals(0, zipWriter.close());
+    assertTrue(parts.isEmpty());
+  }
+
+}
@@ -0,0 +1,68 @@
+package com.google.sampling.experiential.server;
+
+import java.io.File;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+import com.google.common.io.Files;
+import com.google.sampling.experiential.model.PhotoBlob;
+
+public class PhotoStoreTest extends TestCase {
+
+  private File directory;
+  private LocalPhotoStore photoStore;
+
+  @Override
+  protected void setUp() throws Exception {
+    directory = Files.createTempDir();
+    photoStore = new LocalPhotoStore(directory);
+    PhotoStore.setInstance(photoStore);
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    PhotoStore.setInstance(null);
+    for (File file : directory.listFiles()) {
+      file.delete();
+    }
+    directory.delete();
+  }
+
+  public void testIdenticalPhotosAreStoredOnce() throws Exception {
+    byte[] photo = "jpeg bytes".getBytes("UTF-8");
+    String firstHash = photoStore.store(photo);
+    String secondHash = photoStore.store(photo.clone());
+    assertEquals(firstHash, secondHash);
+    assertEquals(1, directory.listFiles().length);
+    assertTrue(Arrays.equals(photo, photoStore.fetch(firstHash)));
+  }
+
+  public void testPhotoBlobHoldsOnlyReference() throws Exception {
+    byte[] photo = "jpeg bytes".getBytes("UTF-8");
+    PhotoBlob photoBlob = PhotoStore.createPhotoBlob("photo1", photo);
+    assertFalse(photoBlob.isInline());
+    assertEquals(PhotoStore.contentHash(photo), photoBlob.getContentHash());
+    assertNull(photoBlob.getValue());
+    assertTrue(Arrays.equals(photo, PhotoStore.readBytes(photoBlob)));
+  }
+
+  public void testInlinePhotoBlobMovesToStore() throws Exception {
+    byte[] photo = "old jpeg bytes".getBytes("UTF-8");
+    PhotoBlob photoBlob = new PhotoBlob("photo1", photo);
+    assertTrue(photoBlob.isInline());
+    photoStore.moveToStore(photoBlob);
+    assertFalse(photoBlob.isInline());
+    assertTrue(Arrays.equals(photo, PhotoStore.readBytes(photoBlob)));
+  }
+
+  public void testMissingPhotoIsReported() throws Exception {
+    PhotoBlob photoBlob = PhotoBlob.withContentHash("photo1", "nosuchhash");
+    try {
+      PhotoStore.readBytes(photoBlob);
+      fail("Should have reported the photo missing");
+    } catch (PhotoStore.MissingPhotoException e) {
+    }
+  }
+
+}
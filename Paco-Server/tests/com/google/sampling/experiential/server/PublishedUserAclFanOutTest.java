@@ -0,0 +1,164 @@
+package com.google.sampling.experiential.server;
+
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.joda.time.DateTimeZone;
+
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.appengine.tools.development.testing.LocalTaskQueueTestConfig;
+import com.google.common.collect.Lists;
+import com.pacoapp.paco.shared.model2.ExperimentDAO;
+import com.pacoapp.paco.shared.model2.JsonConverter;
+import com.pacoapp.paco.shared.model2.Pair;
+
+public class PublishedUserAclFanOutTest extends TestCase {
+
+  private final String email = "user1@gmail.com";
+
+  private final LocalServiceTestHelper helper = new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig().setApplyAllHighRepJobPolicy(),
+                                                                           new LocalTaskQueueTestConfig().setQueueXmlPath("ear/default/WEB-INF/queue.xml"));
+
+  protected void setUp() throws Exception {
+    super.setUp();
+    helper.setUp();
+    helper.setEnvIsLoggedIn(true);
+    helper.setEnvEmail(email);
+    helper.setEnvAuthDomain("unused_auth_domain");
+  }
+
+  public void testSaveOnlyQueuesThePlan() throws Exception {
+    ExperimentDAO experiment = saveExperiment(createPublishedUsers(3));
+
+    assertEquals(1, getQueuedTaskCount());
+    assertTrue(getPublishedExperimentIds("participant0@example.com").isEmpty());
+    assertTrue(PublishedUserAclFanOut.getStatusJson(experiment.getId()).contains("\"status\":\"pending\""));
+  }
+
+  public void testBatchesWriteAllAcls() throws Exception {
+    ExperimentDAO experiment = saveExperiment(createPublishedUsers(1200));
+    writeAcls(experiment);
+
+    assertEquals(1 + 3, getQueuedTaskCount());
+    assertEquals(Lists.newArrayList(experiment.getId()), getPublishedExperimentIds("participant1199@example.com"));
+    String status = PublishedUserAclFanOut.getStatusJson(experiment.getId());
+    assertTrue(status.contains("\"status\":\"complete\""));
+    assertTrue(status.contains("\"addCount\":1200"));
+  }
+
+  public void testRetriedBatchWritesTheSameAcls() throws Exception {
+    ExperimentDAO experiment = saveExperiment(createPublishedUsers(10));
+    List<String> users = experiment.getPublishedUsers();
+    PublishedUserAclFanOut.runBatch(experiment.getId(), experiment.getVersion(), 0, users, Lists.<Key>newArrayList());
+    PublishedUserAclFanOut.runBatch(experiment.getId(), experiment.getVersion(), 0, users, Lists.<Key>newArrayList());
+
+    Pair<List<String>, List<Key>> changes = getChanges(experiment);
+    assertTrue(changes.first.isEmpty());
+    assertTrue(changes.second.isEmpty());
+  }
+
+  public void testRetriedPlanQueuesTheStoredBatches() throws Exception {
+    ExperimentDAO experiment = saveExperiment(createPublishedUsers(1200));
+    List<List<String>> batches = Lists.partition(getChanges(experiment).first, PublishedUserAclFanOut.BATCH_SIZE);
+    PublishedUserAclFanOut.plan(experiment.getId(), experiment.getVersion());
+    PublishedUserAclFanOut.runBatch(experiment.getId(), experiment.getVersion(), 0, batches.get(0),
+                                    Lists.<Key>newArrayList());
+
+    // the diff is smaller now, the retry still queues the first plan's batches
+    PublishedUserAclFanOut.plan(experiment.getId(), experiment.getVersion());
+    assertEquals(1 + 3, getQueuedTaskCount());
+    String status = PublishedUserAclFanOut.getStatusJson(experiment.getId());
+    assertTrue(status.contains("\"status\":\"pending\""));
+    assertTrue(status.contains("\"batchCount\":3"));
+    assertTrue(status.contains("\"addCount\":1200"));
+
+    for (int batch = 1; batch < batches.size(); batch++) {
+      PublishedUserAclFanOut.runBatch(experiment.getId(), experiment.getVersion(), batch, batches.get(batch),
+                                      Lists.<Key>newArrayList());
+    }
+    assertTrue(PublishedUserAclFanOut.getStatusJson(experiment.getId()).contains("\"status\":\"complete\""));
+    assertTrue(getChanges(experiment).first.isEmpty());
+  }
+
+  public void testSmallerAudienceRemovesAcls() throws Exception {
+    ExperimentDAO experiment = saveExperiment(createPublishedUsers(20));
+    writeAcls(experiment);
+
+    experiment.setPublishedUsers(createPublishedUsers(5));
+    ExperimentServiceFactory.getExperimentService().saveExperiment(experiment, email, DateTimeZone.UTC);
+    writeAcls(experiment);
+
+    assertEquals(Lists.newArrayList(experiment.getId()), getPublishedExperimentIds("participant4@example.com"));
+    assertTrue(getPublishedExperimentIds("participant5@example.com").isEmpty());
+    assertTrue(PublishedUserAclFanOut.getStatusJson(experiment.getId()).contains("\"removeCount\":15"));
+  }
+
+  public void testOlderVersionIsSkipped() throws Exception {
+    ExperimentDAO experiment = saveExperiment(createPublishedUsers(5));
+    int oldVersion = experiment.getVersion();
+    ExperimentServiceFactory.getExperimentService().saveExperiment(experiment, email, DateTimeZone.UTC);
+
+    PublishedUserAclFanOut.plan(experiment.getId(), oldVersion);
+    PublishedUserAclFanOut.runBatch(experiment.getId(), oldVersion, 0, experiment.getPublishedUsers(),
+                                    Lists.<Key>newArrayList());
+    assertTrue(getPublishedExperimentIds("participant0@example.com").isEmpty());
+  }
+
+  private ExperimentDAO saveExperiment(List<String> publishedUsers) {
+    ExperimentDAO experiment = JsonConverter.fromSingleEntityJson(ExperimentTestConstants.TEST_EXPERIMENT_USER1_ADMIN_NEW);
+    experiment.setId(null);
+    experiment.setPublished(true);
+    experiment.setPublishedUsers(publishedUsers);
+    ExperimentServiceFactory.getExperimentService().saveExperiment(experiment, email, DateTimeZone.UTC);
+    return experiment;
+  }
+
+  /**
+   * Runs the plan and then its batches in the order the plan queued them.
+   */
+  private void writeAcls(ExperimentDAO experiment) {
+    Pair<List<String>, List<Key>> changes = getChanges(experiment);
+    PublishedUserAclFanOut.plan(experiment.getId(), experiment.getVersion());
+    int batch = 0;
+    for (List<String> users : Lists.partition(changes.first, PublishedUserAclFanOut.BATCH_SIZE)) {
+      PublishedUserAclFanOut.runBatch(experiment.getId(), experiment.getVersion(), batch++, users,
+                                      Lists.<Key>newArrayList());
+    }
+    for (List<Key> keys : Lists.partition(changes.second, PublishedUserAclFanOut.BATCH_SIZE)) {
+      PublishedUserAclFanOut.runBatch(experiment.getId(), experiment.getVersion(), batch++,
+                                      Lists.<String>newArrayList(), keys);
+    }
+  }
+
+  private Pair<List<String>, List<Key>> getChanges(ExperimentDAO experiment) {
+    return ExperimentAccessManager.getPublishedUserAclChanges(DatastoreServiceFactory.getDatastoreService(),
+                                                              experiment);
+  }
+
+  private List<Long> getPublishedExperimentIds(String user) {
+    return ExperimentAccessManager.getExistingPublishedExperimentIdsForUser(user, 0, null).getExperiments();
+  }
+
+  private int getQueuedTaskCount() {
+    return LocalTaskQueueTestConfig.getLocalTaskQueue().getQueueStateInfo()
+                                   .get(PublishedUserAclFanOut.ACL_QUEUE).getCountTasks();
+  }
+
+  private List<String> createPublishedUsers(int count) {
+    List<String> users = Lists.newArrayList();
+    for (int i = 0; i < count; i++) {
+      users.add("participant" + i + "@example.com");
+    }
+    return users;
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    helper.tearDown();
+    super.tearDown();
+  }
+}
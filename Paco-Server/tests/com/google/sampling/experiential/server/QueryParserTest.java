@@ -121,4 +121,20 @@ public class QueryParserTest extends TestCase {
     assertEquals("20090831-20090902", result.get(0).getValue());
   }
 
+  public void testPrefixMatch() throws Exception {
+    List<Query> result = queryParser.parse("restaurant^=Cafe:rating=2");
+    assertResultSize(2, result);
+    assertEquals("restaurant", result.get(0).getKey());
+    assertEquals("Cafe", result.get(0).getValue());
+    assertTrue(result.get(0).isPrefixMatch());
+    assertFalse(result.get(1).isPrefixMatch());
+  }
+
+  public void testTrailingStarIsNotAPrefix() throws Exception {
+    List<Query> result = queryParser.parse("restaurant=Cafe*");
+    assertResultSize(1, result);
+    assertEquals("Cafe*", result.get(0).getValue());
+    assertFalse(result.get(0).isPrefixMatch());
+  }
+
 }
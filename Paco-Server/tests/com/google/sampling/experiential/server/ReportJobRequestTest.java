@@ -0,0 +1,46 @@
+package com.google.sampling.experiential.server;
+
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.joda.time.DateTimeZone;
+
+import com.google.common.collect.Lists;
+
+public class ReportJobRequestTest extends TestCase {
+
+  public void testAdminsShareTheRunOfTheSameReport() {
+    ReportJobRequest bob = request("bob@example.com", "csv", false, experimentQuery("42"));
+    ReportJobRequest alice = request("alice@example.com", "csv", false, experimentQuery("42"));
+    assertEquals(bob.getRunKey(true), alice.getRunKey(true));
+  }
+
+  public void testUnsharedRunsArePerRequestor() {
+    ReportJobRequest bob = request("bob@example.com", "csv", false, experimentQuery("42"));
+    ReportJobRequest alice = request("alice@example.com", "csv", false, experimentQuery("42"));
+    assertFalse(bob.getRunKey(false).equals(alice.getRunKey(false)));
+    assertEquals(bob.getRunKey(false), request("bob@example.com", "csv", false, experimentQuery("42")).getRunKey(false));
+  }
+
+  public void testDifferentReportsGetDifferentRuns() {
+    String key = request("bob@example.com", "csv", false, experimentQuery("42")).getRunKey(true);
+    assertFalse(key.equals(request("bob@example.com", "json", false, experimentQuery("42")).getRunKey(true)));
+    assertFalse(key.equals(request("bob@example.com", "csv", true, experimentQuery("42")).getRunKey(true)));
+    assertFalse(key.equals(request("bob@example.com", "csv", false, experimentQuery("43")).getRunKey(true)));
+  }
+
+  public void testExperimentIdComesFromTheQuery() {
+    assertEquals("42", request("bob@example.com", "csv", false, experimentQuery("42")).getExperimentId());
+    assertNull(request("cron", "stats", false, null).getExperimentId());
+  }
+
+  private List<Query> experimentQuery(String experimentId) {
+    return Lists.newArrayList(new Query("experimentId", experimentId), new Query("who", "carol@example.com"));
+  }
+
+  private ReportJobRequest request(String who, String format, boolean anon, List<Query> query) {
+    return new ReportJobRequest(who, DateTimeZone.forID("America/Los_Angeles"), query, anon, format, null, 0, null,
+                                false);
+  }
+}
@@ -0,0 +1,44 @@
+package com.google.sampling.experiential.server;
+
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import com.google.common.base.Strings;
+import com.google.common.collect.Lists;
+
+public class ResponseIndexTest extends TestCase {
+
+  public void testTokensPairKeysWithTheirValues() {
+    List<String> tokens = ResponseIndex.tokensFor(Lists.newArrayList("restaurant", "mood"),
+                                                  Lists.newArrayList("CafeMoma", "3"));
+    assertEquals(Lists.newArrayList("restaurant", "restaurant=CafeMoma", "mood", "mood=3"), tokens);
+  }
+
+  public void testNullValueIndexesAsEmpty() {
+    List<String> tokens = ResponseIndex.tokensFor(Lists.newArrayList("restaurant"),
+                                                  Lists.newArrayList((String) null));
+    assertEquals(Lists.newArrayList("restaurant", "restaurant="), tokens);
+  }
+
+  public void testLongValuesAreNotIndexed() {
+    String longValue = Strings.repeat("x", ResponseIndex.MAX_TOKEN_LENGTH);
+    List<String> tokens = ResponseIndex.tokensFor(Lists.newArrayList("notes"), Lists.newArrayList(longValue));
+    assertEquals(Lists.newArrayList("notes"), tokens);
+    assertNull(ResponseIndex.valueToken("notes", longValue));
+  }
+
+  public void testSeparatorInKeyIsEscaped() {
+    // key "a=b" with value "c" must not read as key "a" with value "b=c"
+    assertEquals("a\\=b=c", ResponseIndex.valueToken("a=b", "c"));
+    assertFalse(ResponseIndex.valueToken("a=b", "c").equals(ResponseIndex.valueToken("a", "b=c")));
+    assertFalse(ResponseIndex.keyToken("a=b").equals(ResponseIndex.valueToken("a", "b")));
+  }
+
+  public void testEscapeCharacterInKeyIsEscaped() {
+    // key "a\" with value "=b" must not read as key "a=" with value "b"
+    assertEquals("a\\\\==b", ResponseIndex.valueToken("a\\", "=b"));
+    assertFalse(ResponseIndex.valueToken("a\\", "=b").equals(ResponseIndex.valueToken("a=", "b")));
+  }
+
+}
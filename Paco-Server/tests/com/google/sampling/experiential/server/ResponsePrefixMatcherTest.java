@@ -0,0 +1,48 @@
+package com.google.sampling.experiential.server;
+
+import java.util.Date;
+import java.util.List;
+import java.util.Set;
+
+import junit.framework.TestCase;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import com.google.sampling.experiential.model.Event;
+import com.google.sampling.experiential.model.What;
+
+public class ResponsePrefixMatcherTest extends TestCase {
+
+  public void testEmptyMatcherMatchesEverything() {
+    assertTrue(new ResponsePrefixMatcher().matches(newEvent(new Date(1), "restaurant", "AmericanTable")));
+  }
+
+  public void testFilterKeepsMatchingEventsInOrder() {
+    Event newest = newEvent(new Date(3), "restaurant", "CafeMoma");
+    Event middle = newEvent(new Date(2), "restaurant", "AmericanTable");
+    Event oldest = newEvent(new Date(1), "restaurant", "Cafe");
+    Event noRestaurant = newEvent(new Date(0), "weight", "Cafe");
+
+    ResponsePrefixMatcher matcher = new ResponsePrefixMatcher();
+    matcher.addPrefix("restaurant", "Cafe");
+
+    List<Event> matching = matcher.filter(Lists.newArrayList(newest, middle, oldest, noRestaurant));
+    assertEquals(Lists.newArrayList(newest, oldest), matching);
+  }
+
+  public void testAllPrefixesMustMatch() {
+    ResponsePrefixMatcher matcher = new ResponsePrefixMatcher();
+    matcher.addPrefix("restaurant", "Cafe");
+    matcher.addPrefix("weight", "1");
+    assertFalse(matcher.matches(newEvent(new Date(1), "restaurant", "CafeMoma")));
+  }
+
+  private Event newEvent(Date when, String key, String value) {
+    Set<What> what = Sets.newHashSet();
+    what.add(new What(key, value));
+    return new Event("bobevans@google.com",
+        null, null, when, "test", null, what, false, "1", "foo", 1, when, null, null, null,
+        null, null, null, null);
+  }
+
+}
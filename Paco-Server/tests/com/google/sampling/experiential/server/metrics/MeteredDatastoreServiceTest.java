@@ -0,0 +1,83 @@
+package com.google.sampling.experiential.server.metrics;
+
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.common.collect.Lists;
+
+public class MeteredDatastoreServiceTest extends TestCase {
+
+  private final LocalServiceTestHelper helper = new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig());
+
+  private MetricsRegistry metrics;
+  private DatastoreService ds;
+
+  protected void setUp() throws Exception {
+    super.setUp();
+    helper.setUp();
+    metrics = new MetricsRegistry();
+    ds = MeteredDatastoreService.wrap(DatastoreServiceFactory.getDatastoreService(), metrics);
+  }
+
+  protected void tearDown() throws Exception {
+    helper.tearDown();
+    super.tearDown();
+  }
+
+  public void testCountsGetsAndPuts() throws Exception {
+    List<Entity> entities = createEntities(3);
+    List<Key> keys = ds.put(entities);
+    ds.put(new Entity("Thing"));
+    ds.get(keys.get(0));
+    ds.get(keys);
+
+    assertEquals(2, metrics.getCount(MeteredDatastoreService.PUTS));
+    assertEquals(4, metrics.getCount(MeteredDatastoreService.ENTITIES_WRITTEN));
+    assertEquals(2, metrics.getCount(MeteredDatastoreService.GETS));
+    assertEquals(4, metrics.getCount(MeteredDatastoreService.ENTITIES_READ));
+    assertEquals(2, metrics.getHistogram("datastore.get").getCount());
+  }
+
+  public void testCountsQueryEntitiesAsTheyAreRead() throws Exception {
+    ds.put(createEntities(5));
+
+    for (Entity entity : ds.prepare(new Query("Thing")).asIterable()) {
+      assertNotNull(entity);
+    }
+    List<Entity> firstTwo = ds.prepare(new Query("Thing")).asList(FetchOptions.Builder.withLimit(2));
+    for (Entity entity : firstTwo) {
+      assertNotNull(entity);
+    }
+    ds.prepare(new Query("Thing")).countEntities(FetchOptions.Builder.withDefaults());
+
+    assertEquals(3, metrics.getCount(MeteredDatastoreService.QUERIES));
+    assertEquals(5 + 2, metrics.getCount(MeteredDatastoreService.ENTITIES_READ));
+  }
+
+  public void testCountsDeletes() throws Exception {
+    List<Key> keys = ds.put(createEntities(2));
+    ds.delete(keys);
+
+    assertEquals(1, metrics.getCount(MeteredDatastoreService.DELETES));
+    assertTrue(ds.prepare(new Query("Thing")).asList(FetchOptions.Builder.withDefaults()).isEmpty());
+  }
+
+  private List<Entity> createEntities(int count) {
+    List<Entity> entities = Lists.newArrayList();
+    for (int i = 0; i < count; i++) {
+      Entity entity = new Entity("Thing");
+      entity.setProperty("index", i);
+      entities.add(entity);
+    }
+    return entities;
+  }
+}
@@ -0,0 +1,105 @@
+package com.google.sampling.experiential.server.metrics;
+
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import com.google.common.collect.Lists;
+
+public class MetricsRegistryTest extends TestCase {
+
+  private MetricsRegistry metrics;
+
+  protected void setUp() throws Exception {
+    super.setUp();
+    metrics = new MetricsRegistry();
+  }
+
+  public void testHistogramPercentiles() throws Exception {
+    LatencyHistogram histogram = metrics.getHistogram("servlet./events");
+    for (int i = 0; i < 90; i++) {
+      histogram.record(3);
+    }
+    for (int i = 0; i < 10; i++) {
+      histogram.record(700);
+    }
+
+    assertEquals(100, histogram.getCount());
+    assertEquals(5, histogram.getPercentileMillis(50));
+    assertEquals(700, histogram.getPercentileMillis(95));
+    assertEquals(700, histogram.getMaxMillis());
+    assertEquals(90 * 3 + 10 * 700, histogram.getTotalMillis());
+  }
+
+  public void testSameNameSameHistogram() throws Exception {
+    assertSame(metrics.getHistogram("handler.A"), metrics.getHistogram("handler.A"));
+    assertNotSame(metrics.getHistogram("handler.A"), metrics.getHistogram("handler.B"));
+  }
+
+  public void testConcurrentUpdates() throws Exception {
+    final int threadCount = 8;
+    final int updatesPerThread = 10000;
+    List<Thread> threads = Lists.newArrayList();
+    for (int t = 0; t < threadCount; t++) {
+      final int thread = t;
+      threads.add(new Thread() {
+        public void run() {
+          for (int i = 0; i < updatesPerThread; i++) {
+            metrics.increment("datastore.gets");
+            metrics.recordLatency("servlet.path" + (i % 4), thread);
+          }
+        }
+      });
+    }
+    for (Thread thread : threads) {
+      thread.start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+
+    assertEquals(threadCount * updatesPerThread, metrics.getCount("datastore.gets"));
+    long recorded = 0;
+    for (int i = 0; i < 4; i++) {
+      recorded += metrics.getHistogram("servlet.path" + i).getCount();
+    }
+    assertEquals(threadCount * updatesPerThread, recorded);
+    assertEquals(threadCount - 1, metrics.getHistogram("servlet.path0").getMaxMillis());
+  }
+
+  public void testTimer() throws Exception {
+    MetricsRegistry.Timer timer = metrics.startTimer("report.csv");
+    long millis = timer.stop();
+
+    assertEquals(1, metrics.getHistogram("report.csv").getCount());
+    assertEquals(millis, metrics.getHistogram("report.csv").getTotalMillis());
+  }
+
+  @SuppressWarnings("unchecked")
+  public void testToMapAndJson() throws Exception {
+    metrics.recordLatency("servlet./experiments", 12);
+    metrics.increment("datastore.entitiesRead", 5);
+    metrics.setGauge("report.csv.rowsPerSecond", 250.0);
+
+    Map<String, Object> values = metrics.toMap();
+    Map<String, Object> latency = (Map<String, Object>) ((Map<String, Object>) values.get("latencies")).get("servlet./experiments");
+    assertEquals(1L, latency.get("count"));
+    assertEquals(12L, latency.get("maxMillis"));
+    assertEquals(5L, ((Map<String, Object>) values.get("counters")).get("datastore.entitiesRead"));
+    assertEquals(250.0, ((Map<String, Object>) values.get("gauges")).get("report.csv.rowsPerSecond"));
+
+    String json = metrics.toJson();
+    assertTrue(json.contains("\"servlet./experiments\":{\"count\":1,"));
+    assertTrue(json.contains("\"datastore.entitiesRead\":5"));
+  }
+
+  public void testReset() throws Exception {
+    metrics.increment("datastore.puts");
+    metrics.recordLatency("servlet./events", 1);
+    metrics.reset();
+
+    assertEquals(0, metrics.getCount("datastore.puts"));
+    assertEquals(0, metrics.getHistogram("servlet./events").getCount());
+  }
+}
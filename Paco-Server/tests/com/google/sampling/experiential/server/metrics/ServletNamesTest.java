@@ -0,0 +1,55 @@
+package com.google.sampling.experiential.server.metrics;
+
+import java.io.ByteArrayInputStream;
+
+import junit.framework.TestCase;
+
+public class ServletNamesTest extends TestCase {
+
+  private static final String WEB_XML = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+      + "<!DOCTYPE web-app PUBLIC \"-//Sun Microsystems, Inc.//DTD Web Application 2.3//EN\" "
+      + "\"http://java.sun.com/dtd/web-app_2_3.dtd\">\n"
+      + "<web-app>\n"
+      + "  <filter-mapping><filter-name>Metrics Filter</filter-name><url-pattern>/*</url-pattern></filter-mapping>\n"
+      + "  <servlet-mapping><servlet-name>eventServlet</servlet-name><url-pattern>/events</url-pattern></servlet-mapping>\n"
+      + "  <servlet-mapping><servlet-name>experimentServlet</servlet-name><url-pattern>/experiments</url-pattern>"
+      + "<url-pattern>/experiment</url-pattern></servlet-mapping>\n"
+      + "  <servlet-mapping><servlet-name>remoteApi</servlet-name><url-pattern>/remote_api/*</url-pattern></servlet-mapping>\n"
+      + "  <servlet-mapping><servlet-name>jsp</servlet-name><url-pattern>*.jsp</url-pattern></servlet-mapping>\n"
+      + "  <servlet-mapping><servlet-name>default</servlet-name><url-pattern>/</url-pattern></servlet-mapping>\n"
+      + "</web-app>\n";
+
+  private ServletNames servletNames;
+
+  protected void setUp() throws Exception {
+    super.setUp();
+    servletNames = ServletNames.fromWebXml(new ByteArrayInputStream(WEB_XML.getBytes("UTF-8")));
+  }
+
+  public void testMappedServletPaths() throws Exception {
+    assertEquals("eventServlet", servletNames.getName("/events"));
+    assertEquals("experimentServlet", servletNames.getName("/experiments"));
+    assertEquals("experimentServlet", servletNames.getName("/experiment"));
+    assertEquals("remoteApi", servletNames.getName("/remote_api"));
+  }
+
+  public void testUnmappedPathsShareOneName() throws Exception {
+    assertEquals(ServletNames.OTHER, servletNames.getName("/favicon.ico"));
+    assertEquals(ServletNames.OTHER, servletNames.getName("/events/../../etc"));
+    assertEquals(ServletNames.OTHER, servletNames.getName("/index.jsp"));
+  }
+
+  public void testFilterMappingsAreNotServlets() throws Exception {
+    assertEquals(ServletNames.OTHER, servletNames.getName("/"));
+    assertEquals(ServletNames.OTHER, servletNames.getName(""));
+  }
+
+  public void testNoWebXml() throws Exception {
+    assertEquals(ServletNames.OTHER, ServletNames.fromWebXml(null).getName("/events"));
+  }
+
+  public void testUnreadableWebXml() throws Exception {
+    ServletNames names = ServletNames.fromWebXml(new ByteArrayInputStream("<web-app>".getBytes("UTF-8")));
+    assertEquals(ServletNames.OTHER, names.getName("/events"));
+  }
+}
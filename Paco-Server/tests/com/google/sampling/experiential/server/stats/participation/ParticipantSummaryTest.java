@@ -0,0 +1,78 @@
+package com.google.sampling.experiential.server.stats.participation;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Date;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.junit.Test;
+
+
+public class ParticipantSummaryTest {
+
+  private static final long DAY = ParticipantSummary.DAY_MILLIS;
+
+  private long day1 = new DateTime(2016, 1, 5, 0, 0, DateTimeZone.UTC).getMillis();
+
+  @Test
+  public void testTotalsAndLastDay() {
+    ParticipantSummary summary = new ParticipantSummary(1l, "bob");
+    summary.add(day1, 2, 1, 0, null);
+    summary.add(day1 + DAY, 1, 0, 1, null);
+    summary.add(day1 + DAY, 0, 1, 0, null);
+
+    assertEquals(3, summary.getSchedR());
+    assertEquals(2, summary.getMissedR());
+    assertEquals(1, summary.getSelfR());
+
+    assertEquals(1, summary.getSchedROn(day1 + DAY));
+    assertEquals(1, summary.getMissedROn(day1 + DAY));
+    assertEquals(1, summary.getSelfROn(day1 + DAY));
+    assertEquals(0, summary.getSchedROn(day1 + 2 * DAY));
+  }
+
+  @Test
+  public void testOutOfOrderDaysGiveSameSummary() {
+    ParticipantSummary inOrder = new ParticipantSummary(1l, "bob");
+    inOrder.add(day1, 1, 0, 0, new Date(day1 + 1000));
+    inOrder.add(day1 + DAY, 0, 0, 2, new Date(day1 + DAY + 1000));
+
+    ParticipantSummary outOfOrder = new ParticipantSummary(1l, "bob");
+    outOfOrder.add(day1 + DAY, 0, 0, 2, new Date(day1 + DAY + 1000));
+    outOfOrder.add(day1, 1, 0, 0, new Date(day1 + 1000));
+
+    assertEquals(inOrder.getLastDay(), outOfOrder.getLastDay());
+    assertEquals(inOrder.getSelfROn(day1 + DAY), outOfOrder.getSelfROn(day1 + DAY));
+    assertEquals(0, outOfOrder.getSchedROn(day1 + DAY));
+    assertEquals(inOrder.getLastContact(), outOfOrder.getLastContact());
+    assertEquals(inOrder.getResponseDays(), outOfOrder.getResponseDays());
+  }
+
+  @Test
+  public void testStreaks() {
+    ParticipantSummary summary = new ParticipantSummary(1l, "bob");
+    summary.add(day1, 1, 0, 0, null);
+    summary.add(day1 + DAY, 1, 0, 0, null);
+    summary.add(day1 + 2 * DAY, 0, 0, 1, null);
+    // a missed signal does not extend a streak
+    summary.add(day1 + 3 * DAY, 0, 2, 0, null);
+    summary.add(day1 + 5 * DAY, 1, 0, 0, null);
+    summary.add(day1 + 6 * DAY, 1, 0, 0, null);
+
+    assertEquals(3, summary.getLongestStreak());
+    assertEquals(2, summary.getCurrentStreak(day1 + 6 * DAY));
+    assertEquals(2, summary.getCurrentStreak(day1 + 7 * DAY));
+    assertEquals(0, summary.getCurrentStreak(day1 + 8 * DAY));
+  }
+
+  @Test
+  public void testNoResponses() {
+    ParticipantSummary summary = new ParticipantSummary(1l, "bob");
+    summary.add(day1, 0, 3, 0, null);
+
+    assertEquals(0, summary.getLongestStreak());
+    assertEquals(0, summary.getCurrentStreak(day1));
+  }
+
+}
@@ -17,7 +17,7 @@ public class ParticipationStatsServiceTest {
 
   private String experimentGroupName = "default";
   private final LocalServiceTestHelper helper =
-      new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig());
+      new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig().setApplyAllHighRepJobPolicy());
 
   @Before
   public void setUp() {
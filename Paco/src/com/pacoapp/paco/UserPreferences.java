@@ -20,6 +20,7 @@ package com.pacoapp.paco;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
+import java.util.UUID;
 
 import org.joda.time.DateTime;
 
@@ -79,6 +80,10 @@ public class UserPreferences {
 
   private static final String NEXT_SERVER_COMM_REFRESH_PREFERENCE_KEY = "next_server_communication_refresh";
 
+  private static final String JOINED_EXPERIMENTS_ETAG_PREFERENCE_KEY = "joined_experiments_etag";
+
+  private static final String INSTALLATION_ID_KEY = "installation_id";
+
   private static final String SELECTED_ACCOUNT_KEY = "selected_account";
 
   private static final String SELECTED_ACCOUNT_PREF = "selected_account_pref";
@@ -206,6 +211,29 @@ public class UserPreferences {
     }
   }
 
+  public String getJoinedExperimentsETag() {
+    return getAppPrefs().getString(JOINED_EXPERIMENTS_ETAG_PREFERENCE_KEY, null);
+  }
+
+  public void setJoinedExperimentsETag(String eTag) {
+    getAppPrefs().edit().putString(JOINED_EXPERIMENTS_ETAG_PREFERENCE_KEY, eTag).commit();
+  }
+
+  /**
+   * A random id for this install of the app, created on first use.
+   * Combined with local row ids it makes ids that are unique across devices.
+   */
+  public String getInstallationId() {
+    synchronized (UserPreferences.class) {
+      String installationId = getAppPrefs().getString(INSTALLATION_ID_KEY, null);
+      if (installationId == null) {
+        installationId = UUID.randomUUID().toString();
+        getAppPrefs().edit().putString(INSTALLATION_ID_KEY, installationId).commit();
+      }
+      return installationId;
+    }
+  }
+
   public DateTime getMyExperimentListRefreshTime() {
     return getExperimentListRefreshTime(FIND_MY_EXPERIMENTS);
   }
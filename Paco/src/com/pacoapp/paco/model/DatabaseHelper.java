@@ -82,9 +82,27 @@ public class DatabaseHelper extends SQLiteOpenHelper {
             + NotificationHolderColumns.ACTION_TRIGGER_SPEC_ID + " INTEGER "
             + ");");
 
+    createEventIndexes(db);
     // insertValues(db);
   }
 
+  /**
+   * Indexes the columns the event loaders select and join on: the events of an
+   * experiment, the event for a schedule time, the events needing upload, and
+   * the outputs of an event.
+   */
+  private void createEventIndexes(SQLiteDatabase db) {
+    db.execSQL("CREATE INDEX IF NOT EXISTS events_experiment_id_idx ON " + ExperimentProvider.EVENTS_TABLE_NAME
+            + " (" + EventColumns.EXPERIMENT_ID + ");");
+    db.execSQL("CREATE INDEX IF NOT EXISTS events_experiment_server_id_schedule_time_idx ON "
+            + ExperimentProvider.EVENTS_TABLE_NAME
+            + " (" + EventColumns.EXPERIMENT_SERVER_ID + ", " + EventColumns.SCHEDULE_TIME + ");");
+    db.execSQL("CREATE INDEX IF NOT EXISTS events_uploaded_idx ON " + ExperimentProvider.EVENTS_TABLE_NAME
+            + " (" + EventColumns.UPLOADED + ");");
+    db.execSQL("CREATE INDEX IF NOT EXISTS outputs_event_id_idx ON " + ExperimentProvider.OUTPUTS_TABLE_NAME
+            + " (" + OutputColumns.EVENT_ID + ");");
+  }
+
   @Override
   public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
     Log.w(ExperimentProvider.TAG, "Upgrading database from version " + oldVersion + " to " + newVersion + ".");
@@ -272,6 +290,9 @@ public class DatabaseHelper extends SQLiteOpenHelper {
       db.execSQL("ALTER TABLE " + ExperimentProvider.EVENTS_TABLE_NAME + " ADD COLUMN "
               + EventColumns.ACTION_ID + " INTEGER;");
     }
+    if (oldVersion <= 23) {
+      createEventIndexes(db);
+    }
   }
 
   private void rewriteJsonOfAllExperiments(SQLiteDatabase db) {
@@ -150,6 +150,8 @@ public class Event implements Parcelable, EventInterface {
 
   private Long actionId;
 
+  private String clientEventId;
+
   public Event() {
   }
 
@@ -307,4 +309,15 @@ public class Event implements Parcelable, EventInterface {
     return this.actionId;
   }
 
+  /**
+   * Idempotency key for upload. It is set just before upload and is not stored locally.
+   */
+  public String getClientEventId() {
+    return clientEventId;
+  }
+
+  public void setClientEventId(String clientEventId) {
+    this.clientEventId = clientEventId;
+  }
+
 }
@@ -42,4 +42,7 @@ public class EventColumns implements BaseColumns {
 
   public static final Uri CONTENT_URI = Uri.parse("content://"+ExperimentProviderUtil.AUTHORITY+"/events");
 
+  // events joined with their outputs, one row per output, read only
+  public static final Uri CONTENT_WITH_OUTPUTS_URI = Uri.parse("content://"+ExperimentProviderUtil.AUTHORITY+"/eventswithoutputs");
+
 }
\ No newline at end of file
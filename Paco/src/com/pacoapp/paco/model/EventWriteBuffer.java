@@ -0,0 +1,172 @@
+package com.pacoapp.paco.model;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import android.content.Context;
+import android.database.sqlite.SQLiteDatabaseLockedException;
+import android.util.Log;
+
+import com.pacoapp.paco.PacoConstants;
+
+/**
+ * Holds the events logged by the sensors (apps used, screen on and off,
+ * background broadcasts) and writes them in one batch, instead of a write to
+ * storage for every event and output.
+ *
+ * The receivers and services that add events flush the buffer when they
+ * finish their work, while they still hold their wake lock, because the
+ * process may be frozen or killed as soon as they return. A long running
+ * poller's events are also written once MAX_BUFFERED_EVENTS have been added
+ * or FLUSH_DELAY_MILLIS after the first one. Both writes happen on the
+ * buffer's own thread, so adding never touches storage or throws.
+ *
+ * Loading events flushes the buffer first, so buffered events are shown and
+ * uploaded like any other.
+ */
+public class EventWriteBuffer {
+
+  static final int MAX_BUFFERED_EVENTS = 50;
+  static final long FLUSH_DELAY_MILLIS = 30 * 1000;
+
+  private static EventWriteBuffer instance;
+
+  private final Context context;
+  private final ScheduledExecutorService flushExecutor;
+  // held while writing, so a flush returns only after the events added before it are stored
+  private final Object writeLock = new Object();
+  private List<Event> events;
+  private ScheduledFuture<?> scheduledFlush;
+
+  private EventWriteBuffer(Context context) {
+    this.context = context;
+    this.events = new ArrayList<Event>();
+    this.flushExecutor = Executors.newSingleThreadScheduledExecutor();
+  }
+
+  public static synchronized EventWriteBuffer getInstance(Context context) {
+    if (instance == null) {
+      instance = new EventWriteBuffer(context.getApplicationContext());
+    }
+    return instance;
+  }
+
+  /**
+   * Writes the buffered events, if anything has been buffered in this process.
+   */
+  public static void flushBuffered() {
+    EventWriteBuffer buffer;
+    synchronized (EventWriteBuffer.class) {
+      buffer = instance;
+    }
+    if (buffer != null) {
+      buffer.flush();
+    }
+  }
+
+  public synchronized void add(Event event) {
+    events.add(event);
+    eventsAdded();
+  }
+
+  public synchronized void addAll(List<Event> newEvents) {
+    events.addAll(newEvents);
+    eventsAdded();
+  }
+
+  /**
+   * Writes the buffered events on the calling thread. Call it off the main
+   * thread, e.g. at the end of a receiver's or service's background work.
+   *
+   * @return the number of events written
+   */
+  public int flush() {
+    synchronized (writeLock) {
+      List<Event> eventsToWrite = takeEvents();
+      if (eventsToWrite.isEmpty()) {
+        return 0;
+      }
+      ExperimentProviderUtil experimentProviderUtil = new ExperimentProviderUtil(context);
+      try {
+        experimentProviderUtil.insertEvents(eventsToWrite);
+        return eventsToWrite.size();
+      } catch (RuntimeException e) {
+        if (isDatabaseLocked(e)) {
+          // put back in front of the events added since, and tried again later
+          Log.w(PacoConstants.TAG, "Database locked, retrying " + eventsToWrite.size() + " buffered events", e);
+          putBack(eventsToWrite);
+          return 0;
+        }
+        // the batch is one transaction, so a bad row rolls back all of it.
+        // Writing the events one by one drops only the bad ones, which are
+        // not put back so they do not block the events after them.
+        Log.e(PacoConstants.TAG, "Could not write " + eventsToWrite.size() + " buffered events in one batch", e);
+        return insertOneByOne(experimentProviderUtil, eventsToWrite);
+      }
+    }
+  }
+
+  private int insertOneByOne(ExperimentProviderUtil experimentProviderUtil, List<Event> eventsToWrite) {
+    int written = 0;
+    for (Event event : eventsToWrite) {
+      try {
+        experimentProviderUtil.insertEvent(event);
+        written++;
+      } catch (RuntimeException e) {
+        Log.e(PacoConstants.TAG, "Dropping buffered event of experiment " + event.getExperimentServerId()
+                                 + " that could not be written", e);
+      }
+    }
+    return written;
+  }
+
+  private static boolean isDatabaseLocked(Throwable e) {
+    for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+      if (cause instanceof SQLiteDatabaseLockedException) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private synchronized void putBack(List<Event> eventsToRetry) {
+    events.addAll(0, eventsToRetry);
+    if (scheduledFlush == null) {
+      scheduleFlush(FLUSH_DELAY_MILLIS);
+    }
+  }
+
+  private synchronized List<Event> takeEvents() {
+    if (scheduledFlush != null) {
+      scheduledFlush.cancel(false);
+      scheduledFlush = null;
+    }
+    List<Event> taken = events;
+    events = new ArrayList<Event>();
+    return taken;
+  }
+
+  private void eventsAdded() {
+    if (events.size() >= MAX_BUFFERED_EVENTS) {
+      scheduleFlush(0);
+    } else if (scheduledFlush == null && !events.isEmpty()) {
+      scheduleFlush(FLUSH_DELAY_MILLIS);
+    }
+  }
+
+  private void scheduleFlush(long delayMillis) {
+    if (scheduledFlush != null) {
+      scheduledFlush.cancel(false);
+    }
+    scheduledFlush = flushExecutor.schedule(new Runnable() {
+      @Override
+      public void run() {
+        flush();
+      }
+    }, delayMillis, TimeUnit.MILLISECONDS);
+  }
+}
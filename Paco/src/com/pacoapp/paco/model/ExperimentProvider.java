@@ -16,11 +16,16 @@
 */
 package com.pacoapp.paco.model;
 
+import java.util.ArrayList;
+
 import org.joda.time.DateTime;
 
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentUris;
 import android.content.ContentValues;
+import android.content.OperationApplicationException;
 import android.content.UriMatcher;
 import android.database.Cursor;
 import android.database.SQLException;
@@ -39,13 +44,18 @@ public class ExperimentProvider extends ContentProvider {
   static final String TAG = "ExperimentProvider";
 
   static final String DATABASE_NAME = "experiments.db";
-  static final int DATABASE_VERSION = 23;
+  static final int DATABASE_VERSION = 24;
 
   static final String EXPERIMENTS_TABLE_NAME = "experiments";
   static final String EVENTS_TABLE_NAME = "events";
   static final String OUTPUTS_TABLE_NAME = "outputs";
   static final String NOTIFICATION_TABLE_NAME = "notifications";
 
+  // one row per output, or one row with null outputs for an event without any
+  static final String EVENTS_WITH_OUTPUTS_TABLES = EVENTS_TABLE_NAME + " LEFT OUTER JOIN " + OUTPUTS_TABLE_NAME
+          + " ON (" + EVENTS_TABLE_NAME + "." + EventColumns._ID + " = "
+          + OUTPUTS_TABLE_NAME + "." + OutputColumns.EVENT_ID + ")";
+
   private static final int EXPERIMENTS_DATATYPE = 1;
   private static final int EXPERIMENT_ITEM_DATATYPE = 2;
 
@@ -61,6 +71,8 @@ public class ExperimentProvider extends ContentProvider {
   private static final int NOTIFICATION_DATATYPE = 14;
   private static final int NOTIFICATION_ITEM_DATATYPE = 15;
 
+  private static final int EVENTS_WITH_OUTPUTS_DATATYPE = 16;
+
 
   private SQLiteDatabase db;
   private final UriMatcher uriMatcher;
@@ -77,6 +89,7 @@ public class ExperimentProvider extends ContentProvider {
     uriMatcher.addURI(ExperimentProviderUtil.AUTHORITY, "outputs/#", OUTPUT_ITEM_DATATYPE);
     uriMatcher.addURI(ExperimentProviderUtil.AUTHORITY, "notifications", NOTIFICATION_DATATYPE);
     uriMatcher.addURI(ExperimentProviderUtil.AUTHORITY, "notifications/#", NOTIFICATION_ITEM_DATATYPE);
+    uriMatcher.addURI(ExperimentProviderUtil.AUTHORITY, "eventswithoutputs", EVENTS_WITH_OUTPUTS_DATATYPE);
   }
 
   @Override
@@ -130,6 +143,9 @@ public class ExperimentProvider extends ContentProvider {
       qb.setTables(NOTIFICATION_TABLE_NAME);
       qb.appendWhere(addIdEqualsClause(getIdFromPath(uri)));
       break;
+    case EVENTS_WITH_OUTPUTS_DATATYPE:
+      qb.setTables(EVENTS_WITH_OUTPUTS_TABLES);
+      break;
     default:
       throw new IllegalArgumentException("Unknown URI " + uri);
     }
@@ -173,6 +189,8 @@ public class ExperimentProvider extends ContentProvider {
       return EventColumns.CONTENT_TYPE;
     case EVENT_ITEM_DATATYPE:
       return EventColumns.CONTENT_ITEM_TYPE;
+    case EVENTS_WITH_OUTPUTS_DATATYPE:
+      return EventColumns.CONTENT_TYPE;
     case NOTIFICATION_DATATYPE:
       return NotificationHolderColumns.CONTENT_TYPE;
     case NOTIFICATION_ITEM_DATATYPE:
@@ -211,6 +229,23 @@ public class ExperimentProvider extends ContentProvider {
     }
   }
 
+  /**
+   * Applies the operations in one transaction, so a batch of events and their
+   * outputs costs one write to storage instead of one per row.
+   */
+  @Override
+  public ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> operations)
+      throws OperationApplicationException {
+    db.beginTransaction();
+    try {
+      ContentProviderResult[] results = super.applyBatch(operations);
+      db.setTransactionSuccessful();
+      return results;
+    } finally {
+      db.endTransaction();
+    }
+  }
+
   private Uri insertNotification(Uri uri, ContentValues values) {
     long rowId = db.insert(NOTIFICATION_TABLE_NAME, NotificationHolderColumns.EXPERIMENT_ID, values);
     if (rowId > 0) {
@@ -31,21 +31,26 @@ import org.codehaus.jackson.map.JsonMappingException;
 import org.codehaus.jackson.map.ObjectMapper;
 import org.codehaus.jackson.node.ArrayNode;
 import org.codehaus.jackson.type.TypeReference;
-import org.joda.time.DateMidnight;
 import org.joda.time.DateTime;
 import org.joda.time.format.DateTimeFormat;
 import org.joda.time.format.DateTimeFormatter;
 
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentResolver;
+import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
+import android.content.OperationApplicationException;
 import android.database.Cursor;
 import android.net.Uri;
+import android.os.RemoteException;
 import android.util.Log;
 
 import com.google.common.base.Function;
 import com.google.common.base.Joiner;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
 import com.pacoapp.paco.PacoConstants;
 import com.pacoapp.paco.UserPreferences;
 import com.pacoapp.paco.shared.model2.ActionTrigger;
@@ -70,9 +75,31 @@ public class ExperimentProviderUtil implements EventStore {
   private Context context;
   private ContentResolver contentResolver;
   public static final String AUTHORITY = "com.google.android.apps.paco.ExperimentProvider";
-  private static final String PUBLIC_EXPERIMENTS_FILENAME = "experiments";
+  // replaced by PublicExperimentCache
+  static final String PUBLIC_EXPERIMENTS_FILENAME = "experiments";
   private static final String MY_EXPERIMENTS_FILENAME = "my_experiments";
 
+  // the output _id, renamed in the events with outputs join
+  private static final String OUTPUT_ID = "output_id";
+  static final String[] EVENT_WITH_OUTPUTS_PROJECTION = {
+    ExperimentProvider.EVENTS_TABLE_NAME + "." + EventColumns._ID + " AS " + EventColumns._ID,
+    EventColumns.EXPERIMENT_ID,
+    EventColumns.EXPERIMENT_SERVER_ID,
+    EventColumns.EXPERIMENT_NAME,
+    EventColumns.EXPERIMENT_VERSION,
+    EventColumns.SCHEDULE_TIME,
+    EventColumns.RESPONSE_TIME,
+    EventColumns.UPLOADED,
+    EventColumns.GROUP_NAME,
+    EventColumns.ACTION_TRIGGER_ID,
+    EventColumns.ACTION_TRIGGER_SPEC_ID,
+    EventColumns.ACTION_ID,
+    ExperimentProvider.OUTPUTS_TABLE_NAME + "." + OutputColumns._ID + " AS " + OUTPUT_ID,
+    OutputColumns.EVENT_ID,
+    OutputColumns.INPUT_SERVER_ID,
+    OutputColumns.NAME,
+    OutputColumns.ANSWER };
+
   DateTimeFormatter endDateFormatter = DateTimeFormat.forPattern(TimeUtil.DATE_FORMAT);
 
   public ExperimentProviderUtil(Context context) {
@@ -90,18 +117,58 @@ public class ExperimentProviderUtil implements EventStore {
       return cachedExperiments;
     }
 
-    final List<Experiment> foundExperiments = findExperimentsBy(null, ExperimentColumns.JOINED_EXPERIMENTS_CONTENT_URI);
+    final List<Experiment> foundExperiments = loadJoinedExperiments();
     if (foundExperiments != null && foundExperiments.size() > 0 ) {
       JoinedExperimentCache.getInstance().insertExperiments(foundExperiments);
     }
     return foundExperiments;
   }
 
+  /**
+   * Reads the joined experiments from the snapshot, or, if there is none, from
+   * the database, and writes the snapshot for the next process. A read that
+   * failed part way, or an experiment that could not be parsed, is not
+   * written, so it is not read back by every process after this one.
+   */
+  private List<Experiment> loadJoinedExperiments() {
+    JoinedExperimentSnapshot snapshot = new JoinedExperimentSnapshot(context);
+    List<Experiment> experiments = snapshot.read();
+    if (experiments == null) {
+      long generation = snapshot.getGeneration();
+      experiments = new ArrayList<Experiment>();
+      boolean complete = addExperimentsBy(null, ExperimentColumns.JOINED_EXPERIMENTS_CONTENT_URI, experiments);
+      if (complete && !experiments.contains(null)) {
+        snapshot.write(experiments, generation);
+      }
+    }
+    return experiments;
+  }
+
   public List<Long> getJoinedExperimentServerIds() {
+    List<Long> experimentIds = Lists.transform(getStillRunningJoinedExperiments(), new Function<Experiment, Long>() {
+      public Long apply(Experiment experiment) {
+        return experiment.getServerId();
+      }
+    });
+    return experimentIds;
+  }
+
+  /**
+   * Server ids and versions of the joined experiments that are still running.
+   * This is what we tell the server we have when asking for a delta refresh.
+   */
+  public Map<Long, Integer> getJoinedExperimentServerIdVersions() {
+    Map<Long, Integer> versions = Maps.newLinkedHashMap();
+    for (Experiment experiment : getStillRunningJoinedExperiments()) {
+      versions.put(experiment.getServerId(), experiment.getExperimentDAO().getVersion());
+    }
+    return versions;
+  }
+
+  private List<Experiment> getStillRunningJoinedExperiments() {
     List<Experiment> joinedExperiments = getJoinedExperiments();
 
     List<Experiment> stillRunningExperiments = Lists.newArrayList();
-    DateMidnight tonightMidnight = new DateMidnight().plusDays(1);
     DateTime now = DateTime.now();
     for (Experiment experiment : joinedExperiments) {
 
@@ -110,12 +177,7 @@ public class ExperimentProviderUtil implements EventStore {
         stillRunningExperiments.add(experiment);
       }
     }
-    List<Long> experimentIds = Lists.transform(stillRunningExperiments, new Function<Experiment, Long>() {
-      public Long apply(Experiment experiment) {
-        return experiment.getServerId();
-      }
-    });
-    return experimentIds;
+    return stillRunningExperiments;
   }
 
   private boolean isJoinedExperimentAndroidId(long id) {
@@ -138,6 +200,8 @@ public class ExperimentProviderUtil implements EventStore {
   }
 
   public List<Experiment> getExperimentsByServerId(long id) {
+    // fills the cache from the snapshot in a new process
+    getJoinedExperiments();
     List<Experiment> cachedExperiments = JoinedExperimentCache.getInstance().getExperimentsByServerId(id);
     if (cachedExperiments.size() > 0) {
       return cachedExperiments;
@@ -154,6 +218,8 @@ public class ExperimentProviderUtil implements EventStore {
   }
 
   public Experiment getExperimentByServerId(long id) {
+    // fills the cache from the snapshot in a new process
+    getJoinedExperiments();
     Experiment cachedExperiment = JoinedExperimentCache.getInstance().getExperimentByServerId(id);
     if (cachedExperiment != null) {
       return cachedExperiment;
@@ -170,8 +236,15 @@ public class ExperimentProviderUtil implements EventStore {
   }
 
   private Uri insertExperiment(Experiment experiment) {
-    final Uri returnedUri = contentResolver.insert(ExperimentColumns.CONTENT_URI,
-        createContentValues(experiment));
+    JoinedExperimentSnapshot snapshot = new JoinedExperimentSnapshot(context);
+    snapshot.invalidate();
+    final Uri returnedUri;
+    try {
+      returnedUri = contentResolver.insert(ExperimentColumns.CONTENT_URI,
+          createContentValues(experiment));
+    } finally {
+      snapshot.invalidate();
+    }
     long rowId = Long.parseLong(returnedUri.getLastPathSegment());
     experiment.setId(rowId);
 
@@ -230,15 +303,25 @@ public class ExperimentProviderUtil implements EventStore {
   public void deleteExperiment(long experimentId) {
     if (isJoinedExperimentAndroidId(experimentId)) {
       String[] selectionArgs = new String[] {Long.toString(experimentId)};
-      contentResolver.delete(ExperimentColumns.CONTENT_URI,
-          "_id = ?",
-          selectionArgs);
+      JoinedExperimentSnapshot snapshot = new JoinedExperimentSnapshot(context);
+      snapshot.invalidate();
+      try {
+        contentResolver.delete(ExperimentColumns.CONTENT_URI,
+            "_id = ?",
+            selectionArgs);
+      } finally {
+        snapshot.invalidate();
+      }
       JoinedExperimentCache.getInstance().deleteExperiment(experimentId);
     }
   }
 
   /**
-   * This is used by refresh downloaders only
+   * This is used by refresh downloaders only.
+   *
+   * Handles both full downloads and delta responses. A delta only carries the
+   * experiments that changed on the server, plus the ids of experiments the server
+   * no longer has (or no longer lets us see) and an etag for the next refresh.
    *
    * @param contentAsString
    * @throws JsonParseException
@@ -249,12 +332,24 @@ public class ExperimentProviderUtil implements EventStore {
     Map<String, Object> results = fromEntitiesJson(contentAsString);
     List<Experiment> experimentList = (List<Experiment>) results.get("results");
     updateExistingExperiments(experimentList, false);
+
+    List<?> deletedIds = (List<?>) results.get("deleted");
+    if (deletedIds != null && !deletedIds.isEmpty()) {
+      // joined experiments stay as they were joined. See insertFullJoinedExperiment.
+      Log.i(PacoConstants.TAG, "Joined experiments no longer available on server: " + deletedIds);
+    }
+    String eTag = (String) results.get("etag");
+    if (eTag != null) {
+      new UserPreferences(context).setJoinedExperimentsETag(eTag);
+    }
   }
 
   /**
    * Used when refreshing experiment list from the server.
    * If the experiment server id is already in the database,
    * then update it, otherwise, add it.
+   * Rows whose version already matches the downloaded one are left untouched
+   * unless shouldOverrideExistingSettings is set.
    * @param experimentList
    * @param shouldOverrideExistingSettings downloaded (refreshed experiments should not override certain
    * local properties. Locally modified experiments should override local properties, e.g., logActions.
@@ -267,6 +362,9 @@ public class ExperimentProviderUtil implements EventStore {
         continue;
       }
       for (Experiment existingExperiment : existingList) { // should become only 1 element if we prevent joining experiments multiple times
+        if (!shouldOverrideExistingSettings && isSameVersion(experiment, existingExperiment)) {
+          continue;
+        }
         copyAllPropertiesToExistingJoinedExperiment(experiment, existingExperiment, shouldOverrideExistingSettings);
         updateJoinedExperiment(existingExperiment);
       }
@@ -274,6 +372,12 @@ public class ExperimentProviderUtil implements EventStore {
     }
   }
 
+  private boolean isSameVersion(Experiment newExperiment, Experiment existingExperiment) {
+    Integer newVersion = newExperiment.getExperimentDAO().getVersion();
+    return newVersion != null && existingExperiment.getExperimentDAO() != null
+            && newVersion.equals(existingExperiment.getExperimentDAO().getVersion());
+  }
+
   private void copyAllPropertiesToExistingJoinedExperiment(Experiment newExperiment, Experiment existingExperiment,
                                                            Boolean shouldOverrideExistingSettings) {
     UserPreferences userPrefs = new UserPreferences(context);
@@ -289,15 +393,28 @@ public class ExperimentProviderUtil implements EventStore {
 
   public void updateJoinedExperiment(Experiment experiment) {
     long t1 = System.currentTimeMillis();
-    int count = contentResolver.update(ExperimentColumns.JOINED_EXPERIMENTS_CONTENT_URI,
-        createContentValues(experiment),
-        ExperimentColumns._ID + "=" + experiment.getId(), null);
+    JoinedExperimentSnapshot snapshot = new JoinedExperimentSnapshot(context);
+    snapshot.invalidate();
+    int count;
+    try {
+      count = contentResolver.update(ExperimentColumns.JOINED_EXPERIMENTS_CONTENT_URI,
+          createContentValues(experiment),
+          ExperimentColumns._ID + "=" + experiment.getId(), null);
+    } finally {
+      snapshot.invalidate();
+    }
     JoinedExperimentCache.getInstance().insertExperiment(experiment);
     Log.i(ExperimentProviderUtil.class.getSimpleName(), " updated "+ count + " rows. Time: " + (System.currentTimeMillis() - t1));
   }
 
   public void deleteAllExperiments() {
-    contentResolver.delete(ExperimentColumns.JOINED_EXPERIMENTS_CONTENT_URI, null, null);
+    JoinedExperimentSnapshot snapshot = new JoinedExperimentSnapshot(context);
+    snapshot.invalidate();
+    try {
+      contentResolver.delete(ExperimentColumns.JOINED_EXPERIMENTS_CONTENT_URI, null, null);
+    } finally {
+      snapshot.invalidate();
+    }
     JoinedExperimentCache.getInstance().deleteAllExperiments();
   }
 
@@ -322,6 +439,14 @@ public class ExperimentProviderUtil implements EventStore {
 
   private List<Experiment> findExperimentsBy(String select, Uri contentUri) {
     List<Experiment> experiments = new ArrayList<Experiment>();
+    addExperimentsBy(select, contentUri, experiments);
+    return experiments;
+  }
+
+  /**
+   * @return false if the query failed, so experiments may be missing some
+   */
+  private boolean addExperimentsBy(String select, Uri contentUri, List<Experiment> experiments) {
     Cursor cursor = null;
     try {
       cursor = contentResolver.query(contentUri,
@@ -332,14 +457,15 @@ public class ExperimentProviderUtil implements EventStore {
          experiments.add(experiment);
         }
       }
+      return true;
     } catch (RuntimeException e) {
       Log.w(ExperimentProvider.TAG, "Caught unexpected exception.", e);
+      return false;
     } finally {
       if (cursor != null) {
         cursor.close();
       }
     }
-    return experiments;
   }
 
 
@@ -738,14 +864,50 @@ public class ExperimentProviderUtil implements EventStore {
 
 
   public Uri insertEvent(Event event) {
-    Uri uri = contentResolver.insert(EventColumns.CONTENT_URI, createContentValues(event));
-    long rowId = Long.parseLong(uri.getLastPathSegment());
-    event.setId(rowId);
-    for (Output response : event.getResponses()) {
-      response.setEventId(rowId);
-      insertResponse(response);
+    List<Event> events = new ArrayList<Event>();
+    events.add(event);
+    insertEvents(events);
+    return ContentUris.withAppendedId(EventColumns.CONTENT_URI, event.getId());
+  }
+
+  /**
+   * Inserts the events and their outputs in one batch, which the provider
+   * applies in a single transaction.
+   */
+  public void insertEvents(List<Event> events) {
+    if (events.isEmpty()) {
+      return;
+    }
+    ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>();
+    for (Event event : events) {
+      int eventOperationIndex = operations.size();
+      operations.add(ContentProviderOperation.newInsert(EventColumns.CONTENT_URI)
+                                             .withValues(createContentValues(event))
+                                             .build());
+      for (Output response : event.getResponses()) {
+        operations.add(ContentProviderOperation.newInsert(OutputColumns.CONTENT_URI)
+                                               .withValues(createContentValues(response))
+                                               .withValueBackReference(OutputColumns.EVENT_ID, eventOperationIndex)
+                                               .build());
+      }
+    }
+    ContentProviderResult[] results;
+    try {
+      results = contentResolver.applyBatch(AUTHORITY, operations);
+    } catch (RemoteException e) {
+      throw new IllegalStateException("Failed to insert " + events.size() + " events", e);
+    } catch (OperationApplicationException e) {
+      throw new IllegalStateException("Failed to insert " + events.size() + " events", e);
+    }
+    int resultIndex = 0;
+    for (Event event : events) {
+      long rowId = ContentUris.parseId(results[resultIndex].uri);
+      event.setId(rowId);
+      resultIndex += 1 + event.getResponses().size();
+      for (Output response : event.getResponses()) {
+        response.setEventId(rowId);
+      }
     }
-    return uri;
   }
 
   public void insertEvent(EventInterface eventI) {
@@ -799,11 +961,6 @@ public class ExperimentProviderUtil implements EventStore {
     return values;
   }
 
-  private Uri insertResponse(Output response) {
-    return contentResolver.insert(OutputColumns.CONTENT_URI,
-        createContentValues(response));
-  }
-
   private ContentValues createContentValues(Output response) {
     ContentValues values = new ContentValues();
 
@@ -843,27 +1000,7 @@ public class ExperimentProviderUtil implements EventStore {
   }
 
   private List<Event> findEventsBy(String select, String sortOrder) {
-    List<Event> events = new ArrayList<Event>();
-    Cursor cursor = null;
-    try {
-      cursor = contentResolver.query(EventColumns.CONTENT_URI,
-          null, select, null, sortOrder);
-      if (cursor != null) {
-        while (cursor.moveToNext()) {
-          Event event = createEvent(cursor);
-          event.setResponses(findResponsesFor(event));
-          events.add(event);
-        }
-      }
-      return events;
-    } catch (RuntimeException e) {
-      Log.w(ExperimentProvider.TAG, "Caught unexpected exception.", e);
-    } finally {
-      if (cursor != null) {
-        cursor.close();
-      }
-    }
-    return events;
+    return findEventsBy(select, null, sortOrder);
   }
 
   private List<Output> findResponsesFor(Event event) {
@@ -949,7 +1086,11 @@ public class ExperimentProviderUtil implements EventStore {
   }
 
   private Output createResponse(Cursor cursor) {
-    int idIndex = cursor.getColumnIndexOrThrow(OutputColumns._ID);
+    return createResponse(cursor, OutputColumns._ID);
+  }
+
+  private Output createResponse(Cursor cursor, String idColumn) {
+    int idIndex = cursor.getColumnIndexOrThrow(idColumn);
     int eventIdIndex = cursor.getColumnIndexOrThrow(OutputColumns.EVENT_ID);
     int inputServeridIndex = cursor.getColumnIndex(OutputColumns.INPUT_SERVER_ID);
     int answerIndex = cursor.getColumnIndex(OutputColumns.ANSWER);
@@ -1289,22 +1430,27 @@ public class ExperimentProviderUtil implements EventStore {
   }
 
 
-  public void saveExperimentsToDisk(String contentAsString) throws IOException {
-    FileOutputStream fos = context.openFileOutput(PUBLIC_EXPERIMENTS_FILENAME, Context.MODE_PRIVATE);
-    fos.write(contentAsString.getBytes());
-    fos.close();
+  /**
+   * Replaces the public experiments on disk with the first page of the list.
+   */
+  public void saveExperimentsToDisk(List<Experiment> experiments) {
+    PublicExperimentCache.getInstance(context).replaceAll(experiments);
+  }
+
+  /**
+   * Adds another page of the public experiments list to the ones on disk.
+   */
+  public void addExperimentsToExperimentsOnDisk(List<Experiment> experiments) {
+    PublicExperimentCache.getInstance(context).upsert(experiments);
   }
 
   public List<Experiment> loadExperimentsFromDisk(boolean myExperimentsFile) {
-    String filename = null;
-    if (myExperimentsFile) {
-      filename = MY_EXPERIMENTS_FILENAME;
-    } else {
-      filename = PUBLIC_EXPERIMENTS_FILENAME;
+    if (!myExperimentsFile) {
+      return PublicExperimentCache.getInstance(context).getExperiments();
     }
     List<Experiment> experiments = null;
     try {
-      FileInputStream openFileInput = context.openFileInput(filename);
+      FileInputStream openFileInput = context.openFileInput(MY_EXPERIMENTS_FILENAME);
       experiments = createObjectsFromJsonStream(openFileInput);
     } catch (IOException e) {
       Log.i(PacoConstants.TAG, "IOException, experiments file does not exist. May be first launch.");
@@ -1315,24 +1461,17 @@ public class ExperimentProviderUtil implements EventStore {
   public static void deleteExperimentCachesOnDisk(Context context2) {
     context2.deleteFile(MY_EXPERIMENTS_FILENAME);
     context2.deleteFile(PUBLIC_EXPERIMENTS_FILENAME);
+    PublicExperimentCache.getInstance(context2).clear();
   }
 
   public void addExperimentToExperimentsOnDisk(String contentAsString) {
-    List<Experiment> existing = loadExperimentsFromDisk(false);
-    List<Experiment> newEx;
     try {
-      newEx = (List<Experiment>) fromDownloadedEntitiesJson(contentAsString).get("results");
-      existing.addAll(newEx);
-      String newJson = getJson(existing);
-      if (newJson != null) {
-        saveExperimentsToDisk(newJson);
-      }
+      List<Experiment> newEx = (List<Experiment>) fromDownloadedEntitiesJson(contentAsString).get("results");
+      addExperimentsToExperimentsOnDisk(newEx);
     } catch (JsonParseException e) {
     } catch (JsonMappingException e) {
     } catch (IOException e) {
     }
-
-
   }
 
   private List<Experiment> ensureExperiments(List<Experiment> experiments) {
@@ -1366,6 +1505,7 @@ public class ExperimentProviderUtil implements EventStore {
   }
 
   public void loadLastEventForExperiment(Experiment experiment) {
+    EventWriteBuffer.flushBuffered();
     String select = EventColumns.EXPERIMENT_ID + "=" + experiment.getId();
     String sortOrder = EventColumns._ID +" DESC";
 
@@ -1399,6 +1539,9 @@ public class ExperimentProviderUtil implements EventStore {
   }
 
   public Experiment getExperimentFromDisk(Long experimentServerId, boolean myExperimentsFile) {
+    if (!myExperimentsFile) {
+      return PublicExperimentCache.getInstance(context).getExperiment(experimentServerId);
+    }
     List<Experiment> experiments= loadExperimentsFromDisk(myExperimentsFile);
     for (Experiment experiment : experiments) {
       if (experiment.getServerId().equals(experimentServerId)) {
@@ -1543,18 +1686,23 @@ public class ExperimentProviderUtil implements EventStore {
     return findEventsBy(select, args, EventColumns._ID + " DESC");
   }
 
+  /**
+   * Loads the events and their outputs in one query of the events joined with
+   * their outputs, instead of a query for the outputs of each event. Buffered
+   * events are written first.
+   */
   private List<Event> findEventsBy(String select, String[] args, String sortOrder) {
+    EventWriteBuffer.flushBuffered();
     List<Event> events = new ArrayList<Event>();
+    // keeps the rows of each event together, with its outputs in input order
+    String orderBy = (sortOrder != null ? sortOrder + ", " : "") + EventColumns._ID + ", "
+            + OutputColumns.INPUT_SERVER_ID + " ASC";
     Cursor cursor = null;
     try {
-      cursor = contentResolver.query(EventColumns.CONTENT_URI,
-          null, select, args, sortOrder);
+      cursor = contentResolver.query(EventColumns.CONTENT_WITH_OUTPUTS_URI,
+          EVENT_WITH_OUTPUTS_PROJECTION, select, args, orderBy);
       if (cursor != null) {
-        while (cursor.moveToNext()) {
-          Event event = createEvent(cursor);
-          event.setResponses(findResponsesFor(event));
-          events.add(event);
-        }
+        events = createEventsWithOutputs(cursor);
       }
       return events;
     } catch (RuntimeException e) {
@@ -1567,6 +1715,27 @@ public class ExperimentProviderUtil implements EventStore {
     return events;
   }
 
+  /**
+   * @param cursor rows of EVENT_WITH_OUTPUTS_PROJECTION, with the rows of
+   * each event together
+   */
+  List<Event> createEventsWithOutputs(Cursor cursor) {
+    List<Event> events = new ArrayList<Event>();
+    int eventIdIndex = cursor.getColumnIndexOrThrow(EventColumns._ID);
+    int outputIdIndex = cursor.getColumnIndexOrThrow(OUTPUT_ID);
+    Event event = null;
+    while (cursor.moveToNext()) {
+      if (event == null || event.getId() != cursor.getLong(eventIdIndex)) {
+        event = createEvent(cursor);
+        events.add(event);
+      }
+      if (!cursor.isNull(outputIdIndex)) {
+        event.getResponses().add(createResponse(cursor, OUTPUT_ID));
+      }
+    }
+    return events;
+  }
+
 
 
 
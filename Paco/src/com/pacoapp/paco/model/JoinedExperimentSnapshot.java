@@ -0,0 +1,172 @@
+package com.pacoapp.paco.model;
+
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.List;
+
+import org.codehaus.jackson.map.ObjectMapper;
+import org.codehaus.jackson.smile.SmileFactory;
+
+import android.content.Context;
+import android.util.Log;
+
+import com.google.common.collect.Lists;
+import com.pacoapp.paco.PacoConstants;
+import com.pacoapp.paco.shared.model2.JsonConverter;
+
+/**
+ * A file of the parsed joined experiments, so a process woken by an alarm or
+ * a broadcast reads them back from smile, binary json, instead of parsing the
+ * json column of every joined experiment.
+ *
+ * The file starts with a magic number, the format version, the database
+ * version and the experiment count, followed by the length and smile bytes of
+ * each experiment. It is read through a memory map.
+ *
+ * Invalidation brackets every change to the joined experiments: the file is
+ * deleted before the database is written and again after the write returns.
+ * A load that read the old rows while the write was in flight took its
+ * generation after the first invalidation, so the second one both stops it
+ * from writing and deletes the file if it already did. The next load falls
+ * back to the database and writes the file again, unless the experiments
+ * changed again while it was loading.
+ */
+public class JoinedExperimentSnapshot {
+
+  private static final String FILENAME = "joined_experiments.snapshot";
+  private static final int MAGIC = 0x50414353; // PACS
+  static final int FORMAT_VERSION = 1;
+
+  private static final ObjectMapper smileMapper = JsonConverter.getObjectMapper(new SmileFactory());
+
+  // counts the changes to the joined experiments in this process
+  private static long generation = 0;
+
+  private final File file;
+
+  public JoinedExperimentSnapshot(Context context) {
+    this.file = new File(context.getFilesDir(), FILENAME);
+  }
+
+  /**
+   * Called before and after the joined experiments in the database are changed.
+   */
+  public void invalidate() {
+    synchronized (JoinedExperimentSnapshot.class) {
+      generation++;
+      if (file.exists() && !file.delete()) {
+        Log.e(PacoConstants.TAG, "Could not delete joined experiment snapshot");
+      }
+    }
+  }
+
+  /**
+   * @return a value to pass to write, taken before reading the experiments
+   * from the database
+   */
+  public long getGeneration() {
+    synchronized (JoinedExperimentSnapshot.class) {
+      return generation;
+    }
+  }
+
+  /**
+   * @return the joined experiments, or null if there is no snapshot or it
+   * cannot be read
+   */
+  public List<Experiment> read() {
+    if (!file.exists()) {
+      return null;
+    }
+    long t1 = System.currentTimeMillis();
+    FileInputStream in = null;
+    try {
+      in = new FileInputStream(file);
+      FileChannel channel = in.getChannel();
+      MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      List<Experiment> experiments = readExperiments(buffer);
+      if (experiments != null) {
+        Log.i(PacoConstants.TAG, "time to read " + experiments.size() + " experiments from snapshot (bytes: "
+                                 + channel.size() + "): " + (System.currentTimeMillis() - t1));
+      }
+      return experiments;
+    } catch (IOException e) {
+      Log.e(PacoConstants.TAG, "Could not read joined experiment snapshot", e);
+    } catch (RuntimeException e) {
+      // a truncated or otherwise broken file
+      Log.e(PacoConstants.TAG, "Could not read joined experiment snapshot", e);
+    } finally {
+      closeQuietly(in);
+    }
+    return null;
+  }
+
+  private List<Experiment> readExperiments(ByteBuffer buffer) throws IOException {
+    if (buffer.getInt() != MAGIC || buffer.getInt() != FORMAT_VERSION
+        || buffer.getInt() != ExperimentProvider.DATABASE_VERSION) {
+      Log.i(PacoConstants.TAG, "Joined experiment snapshot is from another version");
+      return null;
+    }
+    int count = buffer.getInt();
+    List<Experiment> experiments = Lists.newArrayListWithCapacity(count);
+    for (int i = 0; i < count; i++) {
+      byte[] experimentBytes = new byte[buffer.getInt()];
+      buffer.get(experimentBytes);
+      experiments.add(smileMapper.readValue(experimentBytes, Experiment.class));
+    }
+    return experiments;
+  }
+
+  /**
+   * Writes the experiments, unless the joined experiments changed since
+   * generation was taken.
+   */
+  public void write(List<Experiment> experiments, long generationRead) {
+    synchronized (JoinedExperimentSnapshot.class) {
+      if (generationRead != generation) {
+        return;
+      }
+      File tempFile = new File(file.getPath() + ".tmp");
+      DataOutputStream out = null;
+      try {
+        out = new DataOutputStream(new FileOutputStream(tempFile));
+        out.writeInt(MAGIC);
+        out.writeInt(FORMAT_VERSION);
+        out.writeInt(ExperimentProvider.DATABASE_VERSION);
+        out.writeInt(experiments.size());
+        for (Experiment experiment : experiments) {
+          byte[] experimentBytes = smileMapper.writeValueAsBytes(experiment);
+          out.writeInt(experimentBytes.length);
+          out.write(experimentBytes);
+        }
+        out.close();
+        out = null;
+        if (!tempFile.renameTo(file)) {
+          Log.e(PacoConstants.TAG, "Could not move joined experiment snapshot into place");
+        }
+      } catch (IOException e) {
+        Log.e(PacoConstants.TAG, "Could not write joined experiment snapshot", e);
+      } finally {
+        closeQuietly(out);
+        tempFile.delete();
+      }
+    }
+  }
+
+  private static void closeQuietly(Closeable closeable) {
+    if (closeable != null) {
+      try {
+        closeable.close();
+      } catch (IOException e) {
+        // nothing left to do
+      }
+    }
+  }
+}
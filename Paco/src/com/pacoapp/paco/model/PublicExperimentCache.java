@@ -0,0 +1,254 @@
+package com.pacoapp.paco.model;
+
+import java.io.IOException;
+import java.util.List;
+
+import org.codehaus.jackson.map.ObjectMapper;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.util.Log;
+
+import com.google.common.collect.Lists;
+import com.pacoapp.paco.PacoConstants;
+import com.pacoapp.paco.shared.model2.JsonConverter;
+
+/**
+ * The public experiments loaded from the hub, one row per experiment keyed by
+ * server id, in the order the pages were loaded.
+ *
+ * Loading another page only writes the experiments of that page, instead of
+ * reading, appending to and rewriting one json file of every experiment
+ * loaded so far. Rows are read back by server id or a page at a time, and
+ * rows older than MAX_AGE_MILLIS are neither returned nor kept.
+ */
+public class PublicExperimentCache {
+
+  static final String DATABASE_NAME = "public_experiments.db";
+  private static final int DATABASE_VERSION = 1;
+  static final String TABLE_NAME = "public_experiments";
+
+  static final String _ID = "_id";
+  static final String SERVER_ID = "server_id";
+  static final String TITLE = "title";
+  static final String FETCHED_TIME = "fetched_time";
+  static final String JSON = "json";
+
+  static final long MAX_AGE_MILLIS = 7L * 24 * 60 * 60 * 1000;
+
+  private static PublicExperimentCache instance;
+
+  private final DatabaseHelper dbHelper;
+
+  /**
+   * A page of experiments and the cursor to pass to getPage for the next one.
+   */
+  public static class Page {
+    private final List<Experiment> experiments;
+    private final Long nextCursor;
+
+    Page(List<Experiment> experiments, Long nextCursor) {
+      this.experiments = experiments;
+      this.nextCursor = nextCursor;
+    }
+
+    public List<Experiment> getExperiments() {
+      return experiments;
+    }
+
+    /**
+     * @return the cursor of the next page, or null if this is the last one
+     */
+    public Long getNextCursor() {
+      return nextCursor;
+    }
+  }
+
+  private PublicExperimentCache(Context context) {
+    this.dbHelper = new DatabaseHelper(context);
+  }
+
+  public static synchronized PublicExperimentCache getInstance(Context context) {
+    if (instance == null) {
+      instance = new PublicExperimentCache(context.getApplicationContext());
+    }
+    return instance;
+  }
+
+  /**
+   * Replaces the cached experiments, as when the list is loaded from its
+   * first page again.
+   */
+  public void replaceAll(List<Experiment> experiments) {
+    write(experiments, true);
+  }
+
+  /**
+   * Adds the experiments after the ones already cached. An experiment that is
+   * already cached is updated and keeps its place in the list.
+   */
+  public void upsert(List<Experiment> experiments) {
+    write(experiments, false);
+  }
+
+  private void write(List<Experiment> experiments, boolean replace) {
+    ObjectMapper mapper = JsonConverter.getObjectMapper();
+    long now = System.currentTimeMillis();
+    try {
+      SQLiteDatabase db = dbHelper.getWritableDatabase();
+      db.beginTransaction();
+      try {
+        if (replace) {
+          db.delete(TABLE_NAME, null, null);
+        } else {
+          deleteFetchedBefore(db, now - MAX_AGE_MILLIS);
+        }
+        for (Experiment experiment : experiments) {
+          if (experiment.getServerId() == null) {
+            continue;
+          }
+          ContentValues values = new ContentValues();
+          values.put(SERVER_ID, experiment.getServerId());
+          values.put(TITLE, experiment.getExperimentDAO().getTitle());
+          values.put(FETCHED_TIME, now);
+          values.put(JSON, mapper.writeValueAsString(experiment));
+          String[] serverIdArgs = new String[] { Long.toString(experiment.getServerId()) };
+          if (db.update(TABLE_NAME, values, SERVER_ID + " = ?", serverIdArgs) == 0) {
+            db.insert(TABLE_NAME, null, values);
+          }
+        }
+        db.setTransactionSuccessful();
+      } finally {
+        db.endTransaction();
+      }
+    } catch (IOException e) {
+      Log.e(PacoConstants.TAG, "Could not write public experiments to the cache", e);
+    } catch (RuntimeException e) {
+      Log.e(PacoConstants.TAG, "Could not write public experiments to the cache", e);
+    }
+  }
+
+  /**
+   * @return the cached experiment with this server id, or null
+   */
+  public Experiment getExperiment(long serverId) {
+    List<Experiment> experiments = query(SERVER_ID + " = ?", new String[] { Long.toString(serverId) }, null);
+    return experiments.isEmpty() ? null : experiments.get(0);
+  }
+
+  public List<Experiment> getExperiments() {
+    return query(null, null, null);
+  }
+
+  /**
+   * @param cursor null for the first page, otherwise the next cursor of the
+   * page before
+   */
+  public Page getPage(Long cursor, int limit) {
+    String selection = null;
+    String[] selectionArgs = null;
+    if (cursor != null) {
+      selection = _ID + " > ?";
+      selectionArgs = new String[] { Long.toString(cursor) };
+    }
+    List<Long> rowIds = Lists.newArrayList();
+    List<Experiment> experiments = query(selection, selectionArgs, limit, rowIds);
+    Long nextCursor = null;
+    if (experiments.size() == limit) {
+      nextCursor = rowIds.get(rowIds.size() - 1);
+    }
+    return new Page(experiments, nextCursor);
+  }
+
+  public void evictExpired() {
+    evictFetchedBefore(System.currentTimeMillis() - MAX_AGE_MILLIS);
+  }
+
+  // Visible for testing
+  void evictFetchedBefore(long fetchedTime) {
+    try {
+      deleteFetchedBefore(dbHelper.getWritableDatabase(), fetchedTime);
+    } catch (RuntimeException e) {
+      Log.e(PacoConstants.TAG, "Could not evict public experiments from the cache", e);
+    }
+  }
+
+  public void clear() {
+    try {
+      dbHelper.getWritableDatabase().delete(TABLE_NAME, null, null);
+    } catch (RuntimeException e) {
+      Log.e(PacoConstants.TAG, "Could not clear the public experiment cache", e);
+    }
+  }
+
+  private void deleteFetchedBefore(SQLiteDatabase db, long fetchedTime) {
+    db.delete(TABLE_NAME, FETCHED_TIME + " < ?", new String[] { Long.toString(fetchedTime) });
+  }
+
+  private List<Experiment> query(String selection, String[] selectionArgs, Integer limit) {
+    return query(selection, selectionArgs, limit, null);
+  }
+
+  private List<Experiment> query(String selection, String[] selectionArgs, Integer limit, List<Long> rowIds) {
+    String freshSelection = FETCHED_TIME + " >= " + (System.currentTimeMillis() - MAX_AGE_MILLIS);
+    if (selection != null) {
+      freshSelection = selection + " AND " + freshSelection;
+    }
+    List<Experiment> experiments = Lists.newArrayList();
+    ObjectMapper mapper = JsonConverter.getObjectMapper();
+    Cursor cursor = null;
+    try {
+      cursor = dbHelper.getReadableDatabase().query(TABLE_NAME, new String[] { _ID, JSON }, freshSelection,
+                                                    selectionArgs, null, null, _ID + " ASC",
+                                                    limit != null ? limit.toString() : null);
+      while (cursor.moveToNext()) {
+        experiments.add(mapper.readValue(cursor.getString(1), Experiment.class));
+        if (rowIds != null) {
+          rowIds.add(cursor.getLong(0));
+        }
+      }
+    } catch (IOException e) {
+      Log.e(PacoConstants.TAG, "Could not read public experiments from the cache", e);
+    } catch (RuntimeException e) {
+      Log.e(PacoConstants.TAG, "Could not read public experiments from the cache", e);
+    } finally {
+      if (cursor != null) {
+        cursor.close();
+      }
+    }
+    return experiments;
+  }
+
+  private static class DatabaseHelper extends SQLiteOpenHelper {
+
+    private Context context;
+
+    DatabaseHelper(Context context) {
+      super(context, DATABASE_NAME, null, DATABASE_VERSION);
+      this.context = context;
+    }
+
+    @Override
+    public void onCreate(SQLiteDatabase db) {
+      db.execSQL("CREATE TABLE " + TABLE_NAME + " ("
+              + _ID + " INTEGER PRIMARY KEY AUTOINCREMENT, "
+              + SERVER_ID + " INTEGER UNIQUE, "
+              + TITLE + " TEXT, "
+              + FETCHED_TIME + " INTEGER, "
+              + JSON + " TEXT"
+              + ");");
+      db.execSQL("CREATE INDEX " + TABLE_NAME + "_fetched_time_idx ON " + TABLE_NAME + " (" + FETCHED_TIME + ");");
+      // the json file this cache replaces
+      context.deleteFile(ExperimentProviderUtil.PUBLIC_EXPERIMENTS_FILENAME);
+    }
+
+    @Override
+    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+      db.execSQL("DROP TABLE IF EXISTS " + TABLE_NAME);
+      onCreate(db);
+    }
+  }
+}
@@ -1,9 +1,13 @@
 package com.pacoapp.paco.net;
 
 import java.io.IOException;
-import java.io.StringWriter;
 import java.util.List;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.codehaus.jackson.JsonGenerationException;
 import org.codehaus.jackson.JsonParseException;
@@ -12,9 +16,11 @@ import org.codehaus.jackson.map.ObjectMapper;
 import org.codehaus.jackson.type.TypeReference;
 
 import android.content.Context;
+import android.os.AsyncTask;
 import android.util.Log;
 
 import com.pacoapp.paco.PacoConstants;
+import com.pacoapp.paco.UserPreferences;
 import com.pacoapp.paco.model.Event;
 import com.pacoapp.paco.shared.comm.Outcome;
 import com.pacoapp.paco.shared.model2.EventStore;
@@ -24,6 +30,18 @@ public class EventUploader {
 
   private static final int UPLOAD_EVENT_GROUP_SIZE = 50;
 
+  private static final int MAX_UPLOADS_IN_FLIGHT = 3;
+  private static final int MAX_UPLOAD_ATTEMPTS = 4;
+  private static final long FIRST_RETRY_DELAY_MILLIS = 2000;
+  private static final long UPLOAD_TIMEOUT_MINUTES = 30;
+
+  /**
+   * Upper bound on the uncompressed json of one upload, so a few photo events
+   * go up on their own rather than in a group of 50. An event larger than this
+   * is still sent, alone.
+   */
+  static final int UPLOAD_GROUP_MAX_CHARS = 512 * 1024;
+
   private EventStore eventStore;
   private String serverAddress;
 
@@ -41,35 +59,124 @@ public class EventUploader {
       Log.d(PacoConstants.TAG, "Nothing to sync");
       return;
     }
-    boolean hasErrorOcurred = false;
+    final AtomicBoolean hasErrorOcurred = new AtomicBoolean(false);
     Log.d(PacoConstants.TAG, "Tasks found in db");
 
-    int uploadGroupSize = UPLOAD_EVENT_GROUP_SIZE;
-    int uploaded = 0;
-    while (uploaded < allEvents.size() && !hasErrorOcurred && NetworkUtil.isConnected(context)) {
-      int groupSize = Math.min(allEvents.size() - uploaded, uploadGroupSize);
-      int end = uploaded + groupSize;
-      List<Event> events = allEvents.subList(uploaded, end);
-      ResponsePair response = sendToPaco(events);
-      switch (response.overallCode) {
-      case 200:
-        final List<Outcome> outcomes = response.outcomes;
-        markEventsAccordingToOutcomes(events, outcomes);
+    String installationId = new UserPreferences(context).getInstallationId();
+    final Semaphore uploadSlots = new Semaphore(MAX_UPLOADS_IN_FLIGHT);
+    ExecutorService uploadPool = Executors.newFixedThreadPool(MAX_UPLOADS_IN_FLIGHT);
+    try {
+      int uploaded = 0;
+      String nextEventJson = null;
+      while (uploaded < allEvents.size() && !hasErrorOcurred.get() && NetworkUtil.isConnected(context)) {
+        // wait for a free slot before building the next group so at most
+        // MAX_UPLOADS_IN_FLIGHT groups of json are held in memory
+        uploadSlots.acquire();
+        if (hasErrorOcurred.get()) {
+          uploadSlots.release();
+          break;
+        }
+        StringBuilder json = new StringBuilder("[");
+        int end = uploaded;
+        while (end < allEvents.size() && end - uploaded < UPLOAD_EVENT_GROUP_SIZE) {
+          if (nextEventJson == null) {
+            Event event = allEvents.get(end);
+            event.setClientEventId(installationId + ":" + event.getId());
+            nextEventJson = toJson(event);
+            if (nextEventJson == null) {
+              hasErrorOcurred.set(true);
+              break;
+            }
+          }
+          if (end > uploaded && json.length() + nextEventJson.length() + 2 > UPLOAD_GROUP_MAX_CHARS) {
+            break;
+          }
+          if (end > uploaded) {
+            json.append(',');
+          }
+          json.append(nextEventJson);
+          nextEventJson = null;
+          end++;
+        }
+        if (hasErrorOcurred.get()) {
+          uploadSlots.release();
+          break;
+        }
+        json.append(']');
+        final List<Event> events = allEvents.subList(uploaded, end);
+        final String eventsJson = json.toString();
+        Log.d(PacoConstants.TAG, "uploading " + events.size() + " events, " + eventsJson.length() + " chars");
+        uploadPool.execute(new Runnable() {
+          @Override
+          public void run() {
+            try {
+              if (!uploadWithRetries(events, eventsJson)) {
+                hasErrorOcurred.set(true);
+              }
+            } finally {
+              uploadSlots.release();
+            }
+          }
+        });
         uploaded = end;
-        break;
-      default:
-        hasErrorOcurred = true;
-        break;
+      }
+    } catch (InterruptedException e) {
+      Log.e(PacoConstants.TAG, "interrupted uploading events", e);
+      hasErrorOcurred.set(true);
+    } finally {
+      uploadPool.shutdown();
+      try {
+        if (!uploadPool.awaitTermination(UPLOAD_TIMEOUT_MINUTES, TimeUnit.MINUTES)) {
+          Log.e(PacoConstants.TAG, "event uploads still running after " + UPLOAD_TIMEOUT_MINUTES + " minutes");
+          hasErrorOcurred.set(true);
+          uploadPool.shutdownNow();
+        }
+      } catch (InterruptedException e) {
+        Log.e(PacoConstants.TAG, "interrupted waiting for event uploads", e);
+        hasErrorOcurred.set(true);
+        uploadPool.shutdownNow();
       }
     }
 
-    if (!hasErrorOcurred) {
+    if (!hasErrorOcurred.get()) {
       Log.d(PacoConstants.TAG, "syncing complete");
     } else {
       Log.d(PacoConstants.TAG, "could not complete upload of events");
     }
   }
 
+  /**
+   * Posts one group, retrying with exponential backoff. The events carry client
+   * ids so a retry of a group the server already stored is harmless. This is
+   * the only retry layer for uploads; PacoBackgroundService does not retry them.
+   * Events are marked uploaded as soon as their group succeeds, so a later sync
+   * only sends what is left.
+   */
+  private boolean uploadWithRetries(List<Event> events, String json) {
+    long retryDelayMillis = FIRST_RETRY_DELAY_MILLIS;
+    for (int attempt = 1; attempt <= MAX_UPLOAD_ATTEMPTS; attempt++) {
+      ResponsePair response = sendToPaco(json);
+      if (response.overallCode == 200) {
+        markEventsAccordingToOutcomes(events, response.outcomes);
+        return true;
+      }
+      if (attempt == MAX_UPLOAD_ATTEMPTS || !NetworkUtil.isConnected(context)) {
+        break;
+      }
+      long jitterMillis = (long) (Math.random() * retryDelayMillis / 2);
+      Log.d(PacoConstants.TAG, "upload of " + events.size() + " events failed (" + response.overallCode
+                               + "), attempt " + attempt + ". Retrying in " + (retryDelayMillis + jitterMillis) + "ms");
+      try {
+        Thread.sleep(retryDelayMillis + jitterMillis);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return false;
+      }
+      retryDelayMillis *= 2;
+    }
+    return false;
+  }
+
   public void markEventsAccordingToOutcomes(List<Event> events, final List<Outcome> outcomes) {
     for (int i = 0; i < outcomes.size(); i++) {
       Outcome currentOutcome = outcomes.get(i);
@@ -86,14 +193,9 @@ public class EventUploader {
     List<Outcome> outcomes;
   }
 
-  private ResponsePair sendToPaco(List<Event> events) {
+  private ResponsePair sendToPaco(String json) {
     final ResponsePair responsePair = new ResponsePair();
 
-    String json = toJson(events, responsePair);
-    if (responsePair.overallCode == 500) {
-      return responsePair;
-    }
-
     final CountDownLatch latch = new CountDownLatch(1);
     NetworkClient networkClient = new NetworkClient.BackgroundNetworkClient(context) {
       @Override
@@ -101,10 +203,10 @@ public class EventUploader {
         if (msg != null) {
           responsePair.overallCode = 200;
           readOutcomesFromJson(responsePair, msg);
-          latch.countDown();
         } else {
           responsePair.overallCode = 500;
         }
+        latch.countDown();
       }
 
       @Override
@@ -125,7 +227,11 @@ public class EventUploader {
 
     Log.i("" + this, "Preparing to post.");
     final String completeServerUrl = ServerAddressBuilder.createServerUrl(serverAddress, "/events");
-    new PacoBackgroundService(networkClient, completeServerUrl, json).execute()  ;
+    PacoBackgroundService uploadService = new PacoBackgroundService(networkClient, completeServerUrl, json);
+    uploadService.setGzipBody(true);
+    uploadService.setRetryOnAuthError(false);
+    // the default serial executor would queue the groups behind each other
+    uploadService.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
 
     try {
       latch.await();
@@ -154,23 +260,18 @@ public class EventUploader {
     }
   }
 
-  private String toJson(List<Event> events, ResponsePair responsePair) {
+  private String toJson(Event event) {
     ObjectMapper mapper = JsonConverter.getObjectMapper();
-    StringWriter stringWriter = new StringWriter();
-    Log.d(PacoConstants.TAG, "syncing events");
     try {
-      mapper.writeValue(stringWriter, events);
+      return mapper.writeValueAsString(event);
     } catch (JsonGenerationException e) {
       Log.e(PacoConstants.TAG, e.getMessage(), e);
-      responsePair.overallCode = 500;
     } catch (JsonMappingException e) {
       Log.e(PacoConstants.TAG, e.getMessage(), e);
-      responsePair.overallCode = 500;
     } catch (IOException e) {
       Log.e(PacoConstants.TAG, e.getMessage(), e);
-      responsePair.overallCode = 500;
     }
-    return stringWriter.toString();
+    return null;
   }
 
 }
@@ -2,6 +2,7 @@ package com.pacoapp.paco.net;
 
 import java.io.UnsupportedEncodingException;
 import java.net.URLEncoder;
+import java.util.Map;
 
 import org.joda.time.DateTime;
 
@@ -41,6 +42,15 @@ public class ExperimentUrlBuilder {
     return createExperimentsUrl(userPreferences, null, null, "id=" + experimentIdSuffix);
   }
 
+  /**
+   * Asks only for the experiments whose version on the server differs from ours.
+   *
+   * @param knownVersions server id to the version we have
+   */
+  public static String buildUrlForJoinedExperimentsDelta(UserPreferences userPreferences, Map<Long, Integer> knownVersions) {
+    return createExperimentsUrl(userPreferences, null, null, "delta=" + Joiner.on(",").withKeyValueSeparator(":").useForNull("").join(knownVersions));
+  }
+
   private static String formatExperimentIdList(Long... experimentIds) {
     return Joiner.on(",").join(experimentIds);
   }
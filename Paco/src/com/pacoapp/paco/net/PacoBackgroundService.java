@@ -1,12 +1,16 @@
 package com.pacoapp.paco.net;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.net.ConnectException;
 import java.net.HttpURLConnection;
 import java.net.URL;
 import java.util.List;
+import java.util.zip.GZIPOutputStream;
 
 import org.json.JSONException;
 
@@ -24,10 +28,19 @@ public class PacoBackgroundService extends GetInBackground {
   public  static final String GET = "GET";
   private static final int MAX_ATTEMPTS = 2;
 
+  /**
+   * Handed to the client when a conditional GET comes back 304 Not Modified:
+   * an empty result list.
+   */
+  public static final String NOT_MODIFIED_RESULT = "{\"results\":[]}";
+
   private String url;
   private String httpMethod;
   private String body;
   private int attempts;
+  private List<Pair<String, String>> extraHeaders = Lists.newArrayList();
+  private boolean gzipBody;
+  private boolean retryOnAuthError = true;
 
   public PacoBackgroundService(NetworkClient client, String url, String body) {
     super(client);
@@ -42,6 +55,35 @@ public class PacoBackgroundService extends GetInBackground {
     this.httpMethod = GET;
   }
 
+  /**
+   * Make this a conditional GET. If the server answers 304 the client receives
+   * {@link #NOT_MODIFIED_RESULT}.
+   *
+   * @param eTag the etag from the last response, or null to fetch unconditionally
+   */
+  public void setIfNoneMatch(String eTag) {
+    if (eTag != null) {
+      extraHeaders.add(new Pair<String, String>("If-None-Match", eTag));
+    }
+  }
+
+  /**
+   * Gzip the POST body and mark it with Content-Encoding: gzip.
+   * Responses are already decompressed transparently by HttpURLConnection.
+   */
+  public void setGzipBody(boolean gzipBody) {
+    this.gzipBody = gzipBody;
+  }
+
+  /**
+   * Whether to repeat the request with a fresh token after a 401. Callers that
+   * retry failed requests themselves turn this off so the attempts don't
+   * multiply. The token is invalidated either way.
+   */
+  public void setRetryOnAuthError(boolean retryOnAuthError) {
+    this.retryOnAuthError = retryOnAuthError;
+  }
+
   @Override
   protected void doRequest() throws IOException, JSONException {
     String token = fetchToken();
@@ -50,10 +92,7 @@ public class PacoBackgroundService extends GetInBackground {
       return;
     }
     userPrefs.setAccessToken(token);
-    List<Pair<String,String>> headers = null; // TODO do we want to pass headers in?
-    if (headers == null) {
-      headers = Lists.newArrayList();
-    }
+    List<Pair<String,String>> headers = Lists.newArrayList(extraHeaders);
     addStandardHeaders(headers);
     addAccessTokenBearerHeader(fetchToken(), headers);
 
@@ -66,9 +105,18 @@ public class PacoBackgroundService extends GetInBackground {
     if (POST.equals(httpMethod)) {
       urlConnection.setDoOutput(true);
       urlConnection.setRequestMethod(POST);
-      OutputStreamWriter writer = new OutputStreamWriter(urlConnection.getOutputStream(), AbstractAuthTokenTask.UTF_8);
-      writer.write(body);
-      writer.flush();
+      if (gzipBody) {
+        byte[] compressedBody = gzip(body);
+        urlConnection.setRequestProperty("Content-Encoding", "gzip");
+        urlConnection.setFixedLengthStreamingMode(compressedBody.length);
+        OutputStream out = urlConnection.getOutputStream();
+        out.write(compressedBody);
+        out.flush();
+      } else {
+        OutputStreamWriter writer = new OutputStreamWriter(urlConnection.getOutputStream(), AbstractAuthTokenTask.UTF_8);
+        writer.write(body);
+        writer.flush();
+      }
     }
 
     int sc = 0;
@@ -84,11 +132,14 @@ public class PacoBackgroundService extends GetInBackground {
       is.close();
       networkClient.showAndFinish(result);
       return;
+    } else if (sc == 304) {
+      networkClient.showAndFinish(NOT_MODIFIED_RESULT);
+      return;
     } else if (sc == 401) {
         GoogleAuthUtil.invalidateToken(networkClient.getContext(), token);
         onError("Server auth error, please try again.", null);
         Log.i(PacoConstants.TAG, "Server auth error: " + readResponse(urlConnection.getErrorStream()));
-        if (attempts < MAX_ATTEMPTS) {
+        if (retryOnAuthError && attempts < MAX_ATTEMPTS) {
           attempts++;
           Log.i(PacoConstants.TAG, "Attempt: " + attempts + " for url:  " + url);
           doRequest();
@@ -101,6 +152,17 @@ public class PacoBackgroundService extends GetInBackground {
 
   }
 
+  private static byte[] gzip(String body) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    Writer writer = new OutputStreamWriter(new GZIPOutputStream(bytes), AbstractAuthTokenTask.UTF_8);
+    try {
+      writer.write(body);
+    } finally {
+      writer.close();
+    }
+    return bytes.toByteArray();
+  }
+
   public void addStandardHeaders(List<Pair<String, String>> headers) {
     headers.add(new Pair<String, String>("http.useragent", "Android"));
     headers.add(new Pair<String, String>("paco.version", AndroidUtils.getAppVersion(networkClient.getContext())));
@@ -19,7 +19,7 @@ package com.pacoapp.paco.net;
 import java.io.IOException;
 import java.nio.charset.UnsupportedCharsetException;
 import java.util.Date;
-import java.util.List;
+import java.util.Map;
 
 import org.codehaus.jackson.JsonParseException;
 import org.codehaus.jackson.map.JsonMappingException;
@@ -100,8 +100,8 @@ public class ServerCommunication {
 
   private void updateJoinedExperiments() {
     final ExperimentProviderUtil experimentProviderUtil = new ExperimentProviderUtil(context);
-    List<Long> joinedExperimentServerIds = experimentProviderUtil.getJoinedExperimentServerIds();
-    if (joinedExperimentServerIds != null && joinedExperimentServerIds.size() > 0) {
+    Map<Long, Integer> joinedExperimentVersions = experimentProviderUtil.getJoinedExperimentServerIdVersions();
+    if (joinedExperimentVersions.size() > 0) {
       NetworkClient networkClient = new NetworkClient.BackgroundNetworkClient(context) {
         @Override
         public void showAndFinish(String msg) {
@@ -111,8 +111,10 @@ public class ServerCommunication {
         }
 
       };
-      final Long[] arrayOfIds = joinedExperimentServerIds.toArray(new Long[joinedExperimentServerIds.size()]);
-      new PacoBackgroundService(networkClient, ExperimentUrlBuilder.buildUrlForFullExperiment(userPrefs, arrayOfIds));
+      PacoBackgroundService request = new PacoBackgroundService(networkClient,
+                                                                ExperimentUrlBuilder.buildUrlForJoinedExperimentsDelta(userPrefs, joinedExperimentVersions));
+      request.setIfNoneMatch(userPrefs.getJoinedExperimentsETag());
+      request.execute();
     }
     // Update even if we don't succeed to prevent endless retries when network is down.
     userPrefs.setJoinedExperimentListRefreshTime(new Date().getTime());
@@ -25,6 +25,7 @@ import com.google.common.collect.Lists;
 import com.pacoapp.paco.PacoConstants;
 import com.pacoapp.paco.model.Event;
 import com.pacoapp.paco.model.EventUtil;
+import com.pacoapp.paco.model.EventWriteBuffer;
 import com.pacoapp.paco.model.Experiment;
 import com.pacoapp.paco.model.ExperimentProviderUtil;
 import com.pacoapp.paco.model.Output;
@@ -102,6 +103,8 @@ public class BroadcastTriggerReceiver extends BroadcastReceiver {
           }
 
         } finally {
+          // written while the wake lock is held, the process may not run again for a while
+          EventWriteBuffer.getInstance(context).flush();
           wl.release();
         }
       }
@@ -113,9 +116,9 @@ public class BroadcastTriggerReceiver extends BroadcastReceiver {
     ExperimentProviderUtil experimentProviderUtil = new ExperimentProviderUtil(context);
     List<Experiment> experimentsNeedingEvent = getExperimentsLoggingShutdownEvent(experimentProviderUtil);
 
+    EventWriteBuffer eventWriteBuffer = EventWriteBuffer.getInstance(context);
     for (Experiment experiment : experimentsNeedingEvent) {
-      Event event = createPhoneShutdownPacoEvent(experiment);
-      experimentProviderUtil.insertEvent(event);
+      eventWriteBuffer.add(createPhoneShutdownPacoEvent(experiment));
     }
 
   }
@@ -320,9 +323,9 @@ public class BroadcastTriggerReceiver extends BroadcastReceiver {
     ExperimentProviderUtil experimentProviderUtil = new ExperimentProviderUtil(context);
     List<Experiment> experimentsNeedingEvent = initializeExperimentsWatchingAppUsage(experimentProviderUtil);
 
+    EventWriteBuffer eventWriteBuffer = EventWriteBuffer.getInstance(context);
     for (Experiment experiment : experimentsNeedingEvent) {
-      Event event = createScreenOnPacoEvent(experiment);
-      experimentProviderUtil.insertEvent(event);
+      eventWriteBuffer.add(createScreenOnPacoEvent(experiment));
     }
   }
 
@@ -387,9 +390,9 @@ public class BroadcastTriggerReceiver extends BroadcastReceiver {
     List<Experiment> experimentsNeedingEvent = initializeExperimentsWatchingAppUsage(experimentProviderUtil);
 
     String usedAppsString = Joiner.on(",").join(newSearchHistory);
+    EventWriteBuffer eventWriteBuffer = EventWriteBuffer.getInstance(context);
     for (Experiment experiment : experimentsNeedingEvent) {
-      Event event = EventUtil.createSitesVisitedPacoEvent(usedAppsString, experiment, sessionStartMillis);
-      experimentProviderUtil.insertEvent(event);
+      eventWriteBuffer.add(EventUtil.createSitesVisitedPacoEvent(usedAppsString, experiment, sessionStartMillis));
     }
 
   }
@@ -17,6 +17,7 @@ import com.pacoapp.paco.PacoConstants;
 import com.pacoapp.paco.UserPreferences;
 import com.pacoapp.paco.model.Event;
 import com.pacoapp.paco.model.EventUtil;
+import com.pacoapp.paco.model.EventWriteBuffer;
 import com.pacoapp.paco.model.Experiment;
 import com.pacoapp.paco.model.ExperimentProviderUtil;
 import com.pacoapp.paco.model.Output;
@@ -58,6 +59,7 @@ public class BroadcastTriggerService extends Service {
         try {
           propagateToExperimentsThatCare(extras);
         } finally {
+          EventWriteBuffer.getInstance(BroadcastTriggerService.this).flush();
           wl.release();
           stopSelf();
         }
@@ -97,7 +99,7 @@ public class BroadcastTriggerService extends Service {
       Log.i(PacoConstants.TAG, "We have an experiment that is running");
       List<ExperimentGroup> groupsListening = ExperimentHelper.isBackgroundListeningForSourceId(experiment.getExperimentDAO(),
                                                                                                 sourceIdentifier);
-      persistBroadcastData(eu, experiment, groupsListening, extras);
+      persistBroadcastData(experiment, groupsListening, extras);
 
       List<Trio<ExperimentGroup, InterruptTrigger, InterruptCue>> triggersThatMatch = ExperimentHelper.shouldTriggerBy(experiment.getExperimentDAO(),
                                                                                                          triggerEvent,
@@ -157,8 +159,8 @@ public class BroadcastTriggerService extends Service {
   /*
    * create and persist event containing any payload data sent along in original PACO_INTENT broadcast
    */
-  private void persistBroadcastData(ExperimentProviderUtil eu, Experiment experiment,
-                                    List<ExperimentGroup> groupsListening, Bundle extras) {
+  private void persistBroadcastData(Experiment experiment, List<ExperimentGroup> groupsListening,
+                                    Bundle extras) {
     long nowMillis = new DateTime().getMillis();
     for (ExperimentGroup experimentGroup : groupsListening) {
 
@@ -174,7 +176,7 @@ public class BroadcastTriggerService extends Service {
         output.setAnswer(payload.get(key).toString());
         event.addResponse(output);
       }
-      eu.insertEvent(event);
+      EventWriteBuffer.getInstance(this).add(event);
     }
     notifySyncService();
   }
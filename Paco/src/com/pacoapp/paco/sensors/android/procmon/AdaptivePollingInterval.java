@@ -0,0 +1,56 @@
+package com.pacoapp.paco.sensors.android.procmon;
+
+/**
+ * Decides how long the app usage poller should sleep between wakeups.
+ *
+ * While the user is switching apps we poll at the minimum interval so that
+ * triggers fire promptly. Each wakeup that finds nothing new doubles the
+ * interval, up to the maximum, so an idle screen costs only a few wakeups a
+ * minute.
+ *
+ * Kept free of Android dependencies so it can be unit tested.
+ */
+public class AdaptivePollingInterval {
+
+  public static final long DEFAULT_MIN_INTERVAL_MILLIS = 1000;
+  public static final long DEFAULT_MAX_INTERVAL_MILLIS = 8000;
+
+  private final long minIntervalMillis;
+  private final long maxIntervalMillis;
+  private long currentIntervalMillis;
+
+  public AdaptivePollingInterval() {
+    this(DEFAULT_MIN_INTERVAL_MILLIS, DEFAULT_MAX_INTERVAL_MILLIS);
+  }
+
+  public AdaptivePollingInterval(long minIntervalMillis, long maxIntervalMillis) {
+    if (minIntervalMillis <= 0 || maxIntervalMillis < minIntervalMillis) {
+      throw new IllegalArgumentException("Invalid polling bounds: " + minIntervalMillis + ", " + maxIntervalMillis);
+    }
+    this.minIntervalMillis = minIntervalMillis;
+    this.maxIntervalMillis = maxIntervalMillis;
+    this.currentIntervalMillis = minIntervalMillis;
+  }
+
+  /**
+   * @param changesSeen number of app changes found on the wakeup that just finished
+   * @return millis to sleep before the next wakeup
+   */
+  public long next(int changesSeen) {
+    if (changesSeen > 0) {
+      currentIntervalMillis = minIntervalMillis;
+    } else {
+      currentIntervalMillis = Math.min(currentIntervalMillis * 2, maxIntervalMillis);
+    }
+    return currentIntervalMillis;
+  }
+
+  public void reset() {
+    currentIntervalMillis = minIntervalMillis;
+  }
+
+  public long getCurrentIntervalMillis() {
+    return currentIntervalMillis;
+  }
+
+}
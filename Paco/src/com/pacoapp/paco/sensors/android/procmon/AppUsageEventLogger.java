@@ -1,6 +1,7 @@
 package com.pacoapp.paco.sensors.android.procmon;
 
 import java.util.List;
+import java.util.Map;
 
 import org.joda.time.DateTime;
 
@@ -10,10 +11,12 @@ import android.content.pm.PackageManager;
 import android.content.pm.PackageManager.NameNotFoundException;
 
 import com.google.common.base.Strings;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
 import com.pacoapp.paco.model.Event;
+import com.pacoapp.paco.model.EventWriteBuffer;
 import com.pacoapp.paco.model.Experiment;
 import com.pacoapp.paco.model.Output;
-import com.pacoapp.paco.shared.model2.EventStore;
 import com.pacoapp.paco.shared.model2.ExperimentGroup;
 
 /**
@@ -24,24 +27,54 @@ public class AppUsageEventLogger {
 
   private Context context;
   private List<Experiment> experimentsNeedingEvent;
-  private EventStore eventStore;
+  private List<Event> pendingEvents;
+  private Map<String, String> appNameCache;
 
-  public AppUsageEventLogger(Context context, List<Experiment> experimentsNeedingEvent, EventStore eu) {
+  public AppUsageEventLogger(Context context, List<Experiment> experimentsNeedingEvent) {
     this.context = context;
     this.experimentsNeedingEvent = experimentsNeedingEvent;
-    this.eventStore = eu;
+    this.pendingEvents = Lists.newArrayList();
+    this.appNameCache = Maps.newHashMap();
   }
 
+  /**
+   * Queue an apps_used event for each experiment. Nothing is written until
+   * {@link #flush()} is called so that one polling wakeup costs one burst of writes.
+   */
   public void logProcessesUsedSinceLastPolling(AppUsageEvent usageStats) {
+    if (experimentsNeedingEvent.isEmpty()) {
+      return;
+    }
     String prettyAppNames = getNamesForApps(usageStats);
     for (Experiment experiment : experimentsNeedingEvent) {
       Event event = createAppsUsedPacoEvent(prettyAppNames, usageStats.getAppIdentifier(), experiment);
-      eventStore.insertEvent(event);
+      pendingEvents.add(event);
     }
+  }
 
+  /**
+   * Hand the events queued since the last flush to the EventWriteBuffer.
+   *
+   * @return the number of events handed over
+   */
+  public int flush() {
+    int count = pendingEvents.size();
+    EventWriteBuffer.getInstance(context).addAll(pendingEvents);
+    pendingEvents.clear();
+    return count;
   }
 
   private String getNamesForApps(AppUsageEvent usageStats) {
+    String pkgName = usageStats.getPkgName();
+    String appName = appNameCache.get(pkgName);
+    if (appName == null) {
+      appName = lookupNameForApp(usageStats);
+      appNameCache.put(pkgName, appName);
+    }
+    return appName;
+  }
+
+  private String lookupNameForApp(AppUsageEvent usageStats) {
     PackageManager pm = context.getPackageManager();
       String activityName = usageStats.getPkgName();
       ApplicationInfo info = null;
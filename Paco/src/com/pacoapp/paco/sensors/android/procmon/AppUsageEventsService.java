@@ -30,8 +30,22 @@ public class AppUsageEventsService {
   }
 
   public List<AppUsageEvent> getUsageEvents() {
+    return getUsageEventsSince(0);
+  }
+
+  /**
+   * Query only the events that happened since the last one we saw, bounded by
+   * the lookback window so that a long pause does not replay old history.
+   *
+   * The start is inclusive so events sharing the last seen millisecond are not
+   * lost; callers are expected to dedupe them.
+   *
+   * @param lastSeenTimestamp timestamp of the newest event already processed, or 0
+   * @return events in chronological order
+   */
+  public List<AppUsageEvent> getUsageEventsSince(long lastSeenTimestamp) {
     long endTime = Calendar.getInstance().getTimeInMillis();
-    long startTime = endTime - (lookupBackFrequency * 1000);
+    long startTime = Math.max(lastSeenTimestamp, endTime - (lookupBackFrequency * 1000));
     UsageEvents ls = usageStatsManager.queryEvents(startTime, endTime);
     return convertToFriendlyEvents(ls);
   }
@@ -49,8 +63,8 @@ public class AppUsageEventsService {
 
   private List<AppUsageEvent> convertToFriendlyEvents(UsageEvents ls) {
     List<AppUsageEvent> usageEventsFriendly = Lists.newArrayList();
+    android.app.usage.UsageEvents.Event eventOut = new android.app.usage.UsageEvents.Event();
     while (ls.hasNextEvent()) {
-      android.app.usage.UsageEvents.Event eventOut = new android.app.usage.UsageEvents.Event();
       ls.getNextEvent(eventOut);
       usageEventsFriendly.add(new AppUsageEvent(eventOut.getPackageName(),
                                              eventOut.getClassName(),
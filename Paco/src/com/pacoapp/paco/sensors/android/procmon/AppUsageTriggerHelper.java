@@ -7,10 +7,6 @@ import org.joda.time.DateTime;
 import com.google.common.collect.Lists;
 import com.pacoapp.paco.model.Experiment;
 import com.pacoapp.paco.model.ExperimentProviderUtil;
-import com.pacoapp.paco.shared.model2.ActionTrigger;
-import com.pacoapp.paco.shared.model2.ExperimentGroup;
-import com.pacoapp.paco.shared.model2.InterruptCue;
-import com.pacoapp.paco.shared.model2.InterruptTrigger;
 import com.pacoapp.paco.shared.scheduling.ActionScheduleGenerator;
 import com.pacoapp.paco.shared.util.ExperimentHelper;
 
@@ -29,21 +25,7 @@ public class AppUsageTriggerHelper {
     List<Experiment> joined = eu.getJoinedExperiments();
     for (Experiment experiment : joined) {
       if (!ActionScheduleGenerator.isOver(now, experiment.getExperimentDAO())) {
-        List<ExperimentGroup> experimentGroups = experiment.getExperimentDAO().getGroups();
-        for (ExperimentGroup experimentGroup : experimentGroups) {
-          List<ActionTrigger> actionTriggers = experimentGroup.getActionTriggers();
-          for (ActionTrigger actionTrigger : actionTriggers) {
-            if (actionTrigger instanceof InterruptTrigger) {
-              InterruptTrigger interrupt = (InterruptTrigger) actionTrigger;
-              List<InterruptCue> cues = interrupt.getCues();
-              for (InterruptCue interruptCue : cues) {
-                if (interruptCue.getCueCode() == InterruptCue.APP_USAGE) {
-                  tasks.add(interruptCue.getCueSource());
-                }
-              }
-            }
-          }
-        }
+        tasks.addAll(ExperimentHelper.getCapabilities(experiment.getExperimentDAO()).getAppStartSources());
       }
     }
     return tasks;
@@ -56,21 +38,7 @@ public class AppUsageTriggerHelper {
     List<Experiment> joined = eu.getJoinedExperiments();
     for (Experiment experiment : joined) {
       if (!ActionScheduleGenerator.isOver(now, experiment.getExperimentDAO())) {
-        List<ExperimentGroup> experimentGroups = experiment.getExperimentDAO().getGroups();
-        for (ExperimentGroup experimentGroup : experimentGroups) {
-          List<ActionTrigger> actionTriggers = experimentGroup.getActionTriggers();
-          for (ActionTrigger actionTrigger : actionTriggers) {
-            if (actionTrigger instanceof InterruptTrigger) {
-              InterruptTrigger interrupt = (InterruptTrigger) actionTrigger;
-              List<InterruptCue> cues = interrupt.getCues();
-              for (InterruptCue interruptCue : cues) {
-                if (interruptCue.getCueCode() == InterruptCue.APP_CLOSED) {
-                  tasks.add(interruptCue.getCueSource());
-                }
-              }
-            }
-          }
-        }
+        tasks.addAll(ExperimentHelper.getCapabilities(experiment.getExperimentDAO()).getAppCloseSources());
       }
     }
     return tasks;
@@ -85,10 +85,18 @@ public class LollipopAppUsageMonitor {
     };
   }
 
-  public void detectUsageEvents() {
+  /**
+   * Query usage events since the last one seen, report app changes and hand
+   * any resulting log events to the EventWriteBuffer in one batch.
+   *
+   * @return the number of app changes detected on this wakeup
+   */
+  public int detectUsageEvents() {
     List<AppUsageEvent> usageEventsFriendly = getUsageEvents();
     //printEvents(usageEventsFriendly);
-    appUseChangeDetector.newEvents(usageEventsFriendly);
+    int changes = appUseChangeDetector.newEvents(usageEventsFriendly);
+    processUsageEventBuilder.flush();
+    return changes;
   }
 
   private boolean isBrowserTask(AppUsageEvent usageStats) {
@@ -99,7 +107,7 @@ public class LollipopAppUsageMonitor {
   }
 
   public List<AppUsageEvent> getUsageEvents() {
-    return usageStatsManager.getUsageEvents();
+    return usageStatsManager.getUsageEventsSince(appUseChangeDetector.getLastSeenTimestamp());
   }
 
   public void printEvents(List<AppUsageEvent> usageEventsFriendly) {
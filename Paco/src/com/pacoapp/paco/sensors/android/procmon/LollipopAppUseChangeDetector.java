@@ -1,76 +1,84 @@
 package com.pacoapp.paco.sensors.android.procmon;
 
-import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
-import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
 
 public class LollipopAppUseChangeDetector {
 
-  private List<String> tasksOfInterestForClosing;
-  private List<String> tasksOfInterestForOpening;
+  private Set<String> tasksOfInterestForClosing;
+  private Set<String> tasksOfInterestForOpening;
   private AppChangeListener listener;
-  private HashMap<String, AppUsageEvent> lastOpenedMap;
-  private HashMap<String, AppUsageEvent> lastClosedMap;
+  private Map<String, Long> lastOpenedMap;
+  private Map<String, Long> lastClosedMap;
+  private long lastSeenTimestamp;
 
   public LollipopAppUseChangeDetector(List<String> tasksOfInterestForOpening,
                                       List<String> tasksOfInterestForClosing,
                                       AppChangeListener listener) {
     this.tasksOfInterestForOpening = tasksOfInterestForOpening != null
-            ? tasksOfInterestForOpening
-            : Lists.<String>newArrayList();
+            ? Sets.newHashSet(tasksOfInterestForOpening)
+            : Sets.<String>newHashSet();
     this.tasksOfInterestForClosing = tasksOfInterestForClosing != null
-            ? tasksOfInterestForClosing
-            : Lists.<String>newArrayList();
+            ? Sets.newHashSet(tasksOfInterestForClosing)
+            : Sets.<String>newHashSet();
     this.listener = listener;
     this.lastOpenedMap = Maps.newHashMap();
     this.lastClosedMap = Maps.newHashMap();
   }
 
-  public void newEvents(List<AppUsageEvent> events) {
-    if (events.size() == 0) {
-      return;
-    }
-    List<AppUsageEvent> newApps = detectNewApps(events);
-    List<AppUsageEvent> closedApps = detectClosedApps(events);
-  }
-
-  private List<AppUsageEvent> detectClosedApps(List<AppUsageEvent> events) {
-    List<AppUsageEvent> results = Lists.newArrayList();
-    Lists.reverse(events);
+  /**
+   * Process a batch of usage events in a single chronological pass.
+   *
+   * Events that are not newer than the last event already reported for the same
+   * app are ignored, so callers can safely pass overlapping query windows.
+   *
+   * @param events usage events, oldest first, as returned by UsageStatsManager
+   * @return the number of new open/close changes reported to the listener
+   */
+  public int newEvents(List<AppUsageEvent> events) {
+    int changes = 0;
     for (AppUsageEvent appUsageEvent : events) {
-      if (appUsageEvent.getType() == AppUsageEvent.MOVE_TO_BACKGROUND_EVENT) {
-
-        AppUsageEvent lastClosedRecord = lastClosedMap.get(appUsageEvent.getAppIdentifier());
-        if (lastClosedRecord == null || lastClosedRecord.getTimestamp() < appUsageEvent.getTimestamp()) {
-          lastClosedMap.put(appUsageEvent.getAppIdentifier(), appUsageEvent);
-          results.add(appUsageEvent);
+      if (appUsageEvent.getTimestamp() > lastSeenTimestamp) {
+        lastSeenTimestamp = appUsageEvent.getTimestamp();
+      }
+      if (appUsageEvent.getType() == AppUsageEvent.MOVE_TO_FOREGROUND_EVENT) {
+        if (isNewerThanLastRecorded(lastOpenedMap, appUsageEvent)) {
+          changes++;
+          listener.appOpened(appUsageEvent, isAppOfInterestForOpening(appUsageEvent));
+        }
+      } else if (appUsageEvent.getType() == AppUsageEvent.MOVE_TO_BACKGROUND_EVENT) {
+        if (isNewerThanLastRecorded(lastClosedMap, appUsageEvent)) {
+          changes++;
           listener.appClosed(appUsageEvent, isAppOfInterestForClosing(appUsageEvent));
         }
       }
     }
-    return results;
+    return changes;
   }
 
-  private List<AppUsageEvent> detectNewApps(List<AppUsageEvent> events) {
-    List<AppUsageEvent> results = Lists.newArrayList();
-    Lists.reverse(events);
-    for (AppUsageEvent appUsageEvent : events) {
-      if (appUsageEvent.getType() == AppUsageEvent.MOVE_TO_FOREGROUND_EVENT) {
-
-        AppUsageEvent lastOpenedRecord = lastOpenedMap.get(appUsageEvent.getAppIdentifier());
-        if (lastOpenedRecord == null || lastOpenedRecord.getTimestamp() < appUsageEvent.getTimestamp()) {
-          lastOpenedMap.put(appUsageEvent.getAppIdentifier(), appUsageEvent);
-          results.add(appUsageEvent);
-          listener.appOpened(appUsageEvent, isAppOfInterestForOpening(appUsageEvent));
-        }
-
-      }
+  private boolean isNewerThanLastRecorded(Map<String, Long> highWaterMarks, AppUsageEvent appUsageEvent) {
+    String appIdentifier = appUsageEvent.getAppIdentifier();
+    Long lastRecorded = highWaterMarks.get(appIdentifier);
+    if (lastRecorded != null && lastRecorded >= appUsageEvent.getTimestamp()) {
+      return false;
     }
-    return results;
+    highWaterMarks.put(appIdentifier, appUsageEvent.getTimestamp());
+    return true;
   }
 
+  /**
+   * The timestamp of the newest event seen so far. The next usage query only
+   * needs to start from here.
+   *
+   * @return timestamp in millis, or 0 if no events have been seen yet
+   */
+  public long getLastSeenTimestamp() {
+    return lastSeenTimestamp;
+  }
 
   public boolean isAppOfInterestForClosing(AppUsageEvent appUsageEvent) {
     return tasksOfInterestForClosing.contains(appUsageEvent.getAppIdentifier());
@@ -16,6 +16,7 @@ import android.util.Log;
 import com.google.common.collect.Lists;
 import com.pacoapp.paco.PacoConstants;
 import com.pacoapp.paco.model.Event;
+import com.pacoapp.paco.model.EventWriteBuffer;
 import com.pacoapp.paco.model.Experiment;
 import com.pacoapp.paco.model.ExperimentProviderUtil;
 import com.pacoapp.paco.model.Output;
@@ -58,26 +59,30 @@ public class LollipopProcessMonitorService extends Service {
         public void run() {
           running = true;
           LollipopAppUsageMonitor lpcm = createAppUsageMonitor(usageEventsService);
+          AdaptivePollingInterval pollingInterval = new AdaptivePollingInterval();
+          int wakeups = 0;
+          int totalChanges = 0;
 
           try {
             while (pm.isScreenOn() && BroadcastTriggerReceiver.shouldWatchProcesses(getApplicationContext())) {
               synchronized (this) {
                 try {
-                  Log.i(PacoConstants.TAG, "polling on: runnable instance = " + this.toString());
-                  Log.i(PacoConstants.TAG, "==================================");
-                  lpcm.detectUsageEvents();
-                  int sleepTime = 1000; //BroadcastTriggerReceiver.getFrequency(LollipopProcessMonitorService.this) * 1000;
-                  Log.i(PacoConstants.TAG, "sleepTime = " + sleepTime);
+                  int changes = lpcm.detectUsageEvents();
+                  wakeups++;
+                  totalChanges += changes;
+                  long sleepTime = pollingInterval.next(changes);
                   wait(sleepTime);
                 } catch (Exception e) {
                 }
               }
             }
+            Log.i(PacoConstants.TAG, "polling wakeups = " + wakeups + ", app changes = " + totalChanges);
             if (!pm.isScreenOn() && BroadcastTriggerReceiver.shouldWatchProcesses(getApplicationContext())) {
               createScreenOffPacoEvents(getApplicationContext());
             }
             Log.i(PacoConstants.TAG, "polling stopping: instance = " + LollipopProcessMonitorService.this.toString());
           } finally {
+            EventWriteBuffer.getInstance(getApplicationContext()).flush();
             wl.release();
             stopSelf();
             running = false;
@@ -92,8 +97,7 @@ public class LollipopProcessMonitorService extends Service {
           List<Experiment> experimentsWatchingAppUsage = apmh.initializeExperimentsWatchingAppUsage();
 
           AppUsageEventLogger pueb = new AppUsageEventLogger(getApplicationContext(),
-                                                             experimentsWatchingAppUsage,
-                                                             experimentProviderUtil);
+                                                             experimentsWatchingAppUsage);
 
           LollipopAppUsageMonitor lpcm = new LollipopAppUsageMonitor(appOpenTasks,
                                                                                appCloseTasks,
@@ -114,9 +118,9 @@ public class LollipopProcessMonitorService extends Service {
     ExperimentProviderUtil experimentProviderUtil = new ExperimentProviderUtil(context);
     List<Experiment> experimentsNeedingEvent = initializeExperimentsWatchingAppUsage(experimentProviderUtil);
 
+    EventWriteBuffer eventWriteBuffer = EventWriteBuffer.getInstance(context);
     for (Experiment experiment : experimentsNeedingEvent) {
-      Event event = createScreenOffPacoEvent(experiment);
-      experimentProviderUtil.insertEvent(event);
+      eventWriteBuffer.add(createScreenOffPacoEvent(experiment));
     }
   }
 
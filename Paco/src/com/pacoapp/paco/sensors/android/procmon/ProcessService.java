@@ -22,6 +22,7 @@ import com.google.common.base.Strings;
 import com.google.common.collect.Lists;
 import com.pacoapp.paco.PacoConstants;
 import com.pacoapp.paco.model.Event;
+import com.pacoapp.paco.model.EventWriteBuffer;
 import com.pacoapp.paco.model.Experiment;
 import com.pacoapp.paco.model.ExperimentProviderUtil;
 import com.pacoapp.paco.model.Output;
@@ -116,6 +117,7 @@ public class ProcessService extends Service {
             //
             Log.i(PacoConstants.TAG, "polling stopping: instance = " + ProcessService.this.toString());
           } finally {
+            EventWriteBuffer.getInstance(getApplicationContext()).flush();
             previousTaskNames = null;
             wl.release();
             stopSelf();
@@ -283,9 +285,9 @@ public class ProcessService extends Service {
     List<String> prettyAppNames = getNamesForApps(newlyUsedTasks);
     String usedAppsPrettyNamesString = Joiner.on(",").join(prettyAppNames);
     String usedAppsNamesString = Joiner.on(",").join(newlyUsedTasks);
+    EventWriteBuffer eventWriteBuffer = EventWriteBuffer.getInstance(getApplicationContext());
     for (Experiment experiment : experimentsNeedingEvent) {
-      Event event = createAppsUsedPacoEvent(usedAppsPrettyNamesString, usedAppsNamesString, experiment);
-      experimentProviderUtil.insertEvent(event);
+      eventWriteBuffer.add(createAppsUsedPacoEvent(usedAppsPrettyNamesString, usedAppsNamesString, experiment));
     }
 
   }
@@ -378,9 +380,9 @@ public class ProcessService extends Service {
     ExperimentProviderUtil experimentProviderUtil = new ExperimentProviderUtil(context);
     List<Experiment> experimentsNeedingEvent = initializeExperimentsWatchingAppUsage(experimentProviderUtil);
 
+    EventWriteBuffer eventWriteBuffer = EventWriteBuffer.getInstance(context);
     for (Experiment experiment : experimentsNeedingEvent) {
-      Event event = createScreenOffPacoEvent(experiment);
-      experimentProviderUtil.insertEvent(event);
+      eventWriteBuffer.add(createScreenOffPacoEvent(experiment));
     }
   }
 
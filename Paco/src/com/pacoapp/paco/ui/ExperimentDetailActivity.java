@@ -16,7 +16,6 @@
 */
 package com.pacoapp.paco.ui;
 
-import java.util.Iterator;
 import java.util.List;
 
 import org.joda.time.DateTime;
@@ -358,13 +357,7 @@ public class ExperimentDetailActivity extends ActionBarActivity implements Exper
         if (msg != null) {
           // TODO this is a slow, roundabout way to do this. Just get back the experiment directly.
           experimentProviderUtil.addExperimentToExperimentsOnDisk(msg);
-          List<Experiment> experiments = experimentProviderUtil.loadExperimentsFromDisk(false);
-          for (Iterator iterator = experiments.iterator(); iterator.hasNext();) {
-            Experiment currentExperiment = (Experiment) iterator.next();
-            if (currentExperiment.getServerId().equals(receivedExperimentId)) {
-              experiment = currentExperiment;
-            }
-          }
+          experiment = experimentProviderUtil.getExperimentFromDisk(receivedExperimentId, false);
           if (experiment != null) {
             showExperiment();
           } else {
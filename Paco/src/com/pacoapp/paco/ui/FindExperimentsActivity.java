@@ -396,7 +396,7 @@ public class FindExperimentsActivity extends ActionBarActivity implements Networ
 
         });
         experimentCursor = newExperimentCursor;
-        saveExperimentsToDisk();
+        experimentProviderUtil.saveExperimentsToDisk(experiments);
       } else {
         experiments.addAll(newExperiments); // we are mid-pagination so just add the new batch to the existing.
 //        Map<Long, Experiment> existingAndNewExperimentsMap = Maps.newConcurrentMap();
@@ -417,7 +417,7 @@ public class FindExperimentsActivity extends ActionBarActivity implements Networ
 //        });
 
         experimentCursor = newExperimentCursor;
-        saveExperimentsToDisk();
+        experimentProviderUtil.addExperimentsToExperimentsOnDisk(newExperiments);
       }
       if (newExperimentCursor == null || newExperimentCursor.equals(oldCursor)) {
         experimentCursor = null; // we have hit the end. The next refresh starts over
@@ -437,21 +437,6 @@ public class FindExperimentsActivity extends ActionBarActivity implements Networ
     }
   }
 
-  private void saveExperimentsToDisk() {
-    try {
-      String contentAsString = experimentProviderUtil.getJson(experiments);
-      experimentProviderUtil.saveExperimentsToDisk(contentAsString);
-    } catch (JsonParseException e) {
-      showFailureDialog(NetworkUtil.CONTENT_ERROR);
-    } catch (JsonMappingException e) {
-      showFailureDialog(NetworkUtil.CONTENT_ERROR);
-    } catch (UnsupportedCharsetException e) {
-      showFailureDialog(NetworkUtil.CONTENT_ERROR);
-    } catch (IOException e) {
-      showFailureDialog(NetworkUtil.CONTENT_ERROR);
-    }
-  }
-
   // Visible for testing
   public void reloadAdapter() {
     if (experiments == null || experiments.isEmpty()) {
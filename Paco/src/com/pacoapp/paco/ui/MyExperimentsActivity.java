@@ -23,6 +23,7 @@ import java.util.Collections;
 import java.util.Comparator;
 import java.util.Date;
 import java.util.List;
+import java.util.Map;
 
 import org.codehaus.jackson.JsonParseException;
 import org.codehaus.jackson.map.JsonMappingException;
@@ -740,11 +741,12 @@ public class MyExperimentsActivity extends ActionBarActivity implements
   }
 
   private void refreshList() {
-    List<Long> joinedExperimentServerIds = experimentProviderUtil.getJoinedExperimentServerIds();
-    if (joinedExperimentServerIds != null && joinedExperimentServerIds.size() > 0) {
+    Map<Long, Integer> joinedExperimentVersions = experimentProviderUtil.getJoinedExperimentServerIdVersions();
+    if (joinedExperimentVersions.size() > 0) {
       progressBar.setVisibility(View.VISIBLE);
-      final Long[] arrayOfIds = joinedExperimentServerIds.toArray(new Long[joinedExperimentServerIds.size()]);
-      new PacoBackgroundService(this, ExperimentUrlBuilder.buildUrlForFullExperiment(userPrefs, arrayOfIds)).execute();
+      PacoBackgroundService request = new PacoBackgroundService(this, ExperimentUrlBuilder.buildUrlForJoinedExperimentsDelta(userPrefs, joinedExperimentVersions));
+      request.setIfNoneMatch(userPrefs.getJoinedExperimentsETag());
+      request.execute();
     }
   }
 
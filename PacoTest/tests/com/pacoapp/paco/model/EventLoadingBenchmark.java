@@ -0,0 +1,145 @@
+package com.pacoapp.paco.model;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteQueryBuilder;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+/**
+ * Times loading the events of an experiment with 50000 events of 3 outputs
+ * each, with a query for the outputs of each event and with the events joined
+ * to their outputs, with and without the event indexes.
+ */
+public class EventLoadingBenchmark extends AndroidTestCase {
+
+  private static final String TAG = "EventLoadingBenchmark";
+  private static final String DB_NAME = "event_loading_benchmark.db";
+
+  private static final int EVENT_COUNT = 50000;
+  private static final int OUTPUTS_PER_EVENT = 3;
+  private static final long EXPERIMENT_ID = 1;
+
+  private DatabaseHelper dbHelper;
+  private SQLiteDatabase db;
+  private ExperimentProviderUtil experimentProviderUtil;
+
+  protected void setUp() throws Exception {
+    super.setUp();
+    getContext().deleteDatabase(DB_NAME);
+    dbHelper = new DatabaseHelper(getContext(), DB_NAME, ExperimentProvider.DATABASE_VERSION);
+    db = dbHelper.getWritableDatabase();
+    experimentProviderUtil = new ExperimentProviderUtil(getContext());
+    insertEvents();
+  }
+
+  protected void tearDown() throws Exception {
+    dbHelper.close();
+    getContext().deleteDatabase(DB_NAME);
+    super.tearDown();
+  }
+
+  public void testLoadEvents() throws Exception {
+    long start = System.currentTimeMillis();
+    List<Event> joined = loadJoined();
+    long joinedMillis = System.currentTimeMillis() - start;
+
+    start = System.currentTimeMillis();
+    List<Event> perEvent = loadWithQueryPerEvent();
+    long perEventMillis = System.currentTimeMillis() - start;
+
+    assertEquals(EVENT_COUNT, joined.size());
+    assertEquals(EVENT_COUNT, perEvent.size());
+    for (int i = 0; i < EVENT_COUNT; i++) {
+      assertEquals(perEvent.get(i).getId(), joined.get(i).getId());
+      assertEquals(OUTPUTS_PER_EVENT, joined.get(i).getResponses().size());
+      assertEquals(perEvent.get(i).getResponses().get(0).getAnswer(),
+                   joined.get(i).getResponses().get(0).getAnswer());
+    }
+
+    db.execSQL("DROP INDEX events_experiment_id_idx;");
+    db.execSQL("DROP INDEX outputs_event_id_idx;");
+    start = System.currentTimeMillis();
+    loadJoined();
+    long joinedUnindexedMillis = System.currentTimeMillis() - start;
+
+    Log.i(TAG, EVENT_COUNT + " events: query per event " + perEventMillis + "ms, joined " + joinedMillis
+               + "ms, joined without indexes " + joinedUnindexedMillis + "ms");
+  }
+
+  private List<Event> loadJoined() {
+    SQLiteQueryBuilder qb = new SQLiteQueryBuilder();
+    qb.setTables(ExperimentProvider.EVENTS_WITH_OUTPUTS_TABLES);
+    Cursor cursor = qb.query(db, ExperimentProviderUtil.EVENT_WITH_OUTPUTS_PROJECTION,
+                             EventColumns.EXPERIMENT_ID + "=" + EXPERIMENT_ID, null, null, null,
+                             EventColumns._ID + " DESC, " + OutputColumns.INPUT_SERVER_ID + " ASC");
+    try {
+      return experimentProviderUtil.createEventsWithOutputs(cursor);
+    } finally {
+      cursor.close();
+    }
+  }
+
+  // as ExperimentProviderUtil loaded events before the join
+  private List<Event> loadWithQueryPerEvent() {
+    List<Event> events = new ArrayList<Event>();
+    Cursor cursor = db.query(ExperimentProvider.EVENTS_TABLE_NAME, null,
+                             EventColumns.EXPERIMENT_ID + "=" + EXPERIMENT_ID, null, null, null,
+                             EventColumns._ID + " DESC");
+    try {
+      int idIndex = cursor.getColumnIndexOrThrow(EventColumns._ID);
+      while (cursor.moveToNext()) {
+        Event event = new Event();
+        event.setId(cursor.getLong(idIndex));
+        Cursor outputCursor = db.query(ExperimentProvider.OUTPUTS_TABLE_NAME, null,
+                                       OutputColumns.EVENT_ID + "=" + event.getId(), null, null, null,
+                                       OutputColumns.INPUT_SERVER_ID + " ASC");
+        try {
+          int answerIndex = outputCursor.getColumnIndexOrThrow(OutputColumns.ANSWER);
+          while (outputCursor.moveToNext()) {
+            Output output = new Output();
+            output.setAnswer(outputCursor.getString(answerIndex));
+            event.getResponses().add(output);
+          }
+        } finally {
+          outputCursor.close();
+        }
+        events.add(event);
+      }
+    } finally {
+      cursor.close();
+    }
+    return events;
+  }
+
+  private void insertEvents() {
+    db.beginTransaction();
+    try {
+      for (int i = 0; i < EVENT_COUNT; i++) {
+        ContentValues event = new ContentValues();
+        event.put(EventColumns.EXPERIMENT_ID, EXPERIMENT_ID);
+        event.put(EventColumns.EXPERIMENT_SERVER_ID, 1000 + EXPERIMENT_ID);
+        event.put(EventColumns.EXPERIMENT_NAME, "benchmark");
+        event.put(EventColumns.SCHEDULE_TIME, 1400000000000L + i * 60000L);
+        event.put(EventColumns.RESPONSE_TIME, 1400000000000L + i * 60000L + 5000);
+        event.put(EventColumns.UPLOADED, i % 10 == 0 ? 0 : 1);
+        long eventId = db.insert(ExperimentProvider.EVENTS_TABLE_NAME, null, event);
+        for (int j = 0; j < OUTPUTS_PER_EVENT; j++) {
+          ContentValues output = new ContentValues();
+          output.put(OutputColumns.EVENT_ID, eventId);
+          output.put(OutputColumns.INPUT_SERVER_ID, j);
+          output.put(OutputColumns.NAME, "input" + j);
+          output.put(OutputColumns.ANSWER, "answer " + i + " " + j);
+          db.insert(ExperimentProvider.OUTPUTS_TABLE_NAME, null, output);
+        }
+      }
+      db.setTransactionSuccessful();
+    } finally {
+      db.endTransaction();
+    }
+  }
+}
@@ -0,0 +1,118 @@
+package com.pacoapp.paco.model;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.joda.time.DateTime;
+
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.pacoapp.paco.shared.model2.ActionTrigger;
+import com.pacoapp.paco.shared.model2.ExperimentDAO;
+import com.pacoapp.paco.shared.model2.ExperimentGroup;
+import com.pacoapp.paco.shared.model2.Input2;
+import com.pacoapp.paco.shared.model2.InterruptCue;
+import com.pacoapp.paco.shared.model2.InterruptTrigger;
+import com.pacoapp.paco.shared.util.ExperimentHelper;
+import com.pacoapp.paco.shared.util.TimeUtil;
+
+/**
+ * Times a cold process deciding whether a phone hangup triggers any of 20
+ * joined experiments, loading the experiments by parsing their json and by
+ * reading the snapshot.
+ */
+public class JoinedExperimentSnapshotBenchmark extends AndroidTestCase {
+
+  private static final String TAG = "JoinedExperimentSnapshotBenchmark";
+
+  private static final int EXPERIMENT_COUNT = 20;
+  private static final int GROUPS_PER_EXPERIMENT = 3;
+  private static final int INPUTS_PER_GROUP = 10;
+  private static final int ROUNDS = 5;
+
+  private ExperimentProviderUtil experimentProviderUtil;
+  private List<Long> insertedIds;
+
+  protected void setUp() throws Exception {
+    super.setUp();
+    experimentProviderUtil = new ExperimentProviderUtil(getContext());
+    insertedIds = new ArrayList<Long>();
+    for (int i = 0; i < EXPERIMENT_COUNT; i++) {
+      Experiment experiment = createExperiment(i);
+      experimentProviderUtil.insertFullJoinedExperiment(experiment);
+      insertedIds.add(experiment.getId());
+    }
+  }
+
+  protected void tearDown() throws Exception {
+    for (Long id : insertedIds) {
+      experimentProviderUtil.deleteExperiment(id);
+    }
+    super.tearDown();
+  }
+
+  public void testColdStartDecision() throws Exception {
+    JoinedExperimentSnapshot snapshot = new JoinedExperimentSnapshot(getContext());
+    long jsonMillis = 0;
+    long snapshotMillis = 0;
+    for (int round = 0; round < ROUNDS; round++) {
+      snapshot.invalidate();
+      // the first load after invalidate parses the json and writes the snapshot
+      jsonMillis += timeColdDecision();
+      snapshotMillis += timeColdDecision();
+    }
+    Log.i(TAG, EXPERIMENT_COUNT + " experiments, average wake to decision: json " + (jsonMillis / ROUNDS)
+               + "ms, snapshot " + (snapshotMillis / ROUNDS) + "ms");
+  }
+
+  private long timeColdDecision() {
+    // as in a process that has just been started
+    JoinedExperimentCache.getInstance().deleteAllExperiments();
+    long start = System.currentTimeMillis();
+    List<Experiment> experiments = experimentProviderUtil.getJoinedExperiments();
+    int triggered = 0;
+    for (Experiment experiment : experiments) {
+      if (!ExperimentHelper.shouldTriggerBy(experiment.getExperimentDAO(), InterruptCue.PHONE_HANGUP, null).isEmpty()) {
+        triggered++;
+      }
+    }
+    long millis = System.currentTimeMillis() - start;
+    assertTrue(experiments.size() >= EXPERIMENT_COUNT);
+    assertTrue(triggered >= EXPERIMENT_COUNT);
+    return millis;
+  }
+
+  private Experiment createExperiment(int index) {
+    ExperimentDAO dao = new ExperimentDAO();
+    dao.setId(9000000L + index);
+    dao.setVersion(1);
+    dao.setTitle("snapshot benchmark " + index);
+    List<ExperimentGroup> groups = new ArrayList<ExperimentGroup>();
+    for (int g = 0; g < GROUPS_PER_EXPERIMENT; g++) {
+      ExperimentGroup group = new ExperimentGroup("group " + g);
+      List<Input2> inputs = new ArrayList<Input2>();
+      for (int i = 0; i < INPUTS_PER_GROUP; i++) {
+        inputs.add(new Input2("input" + i, "How are things going, part " + i + "?"));
+      }
+      group.setInputs(inputs);
+      InterruptCue cue = new InterruptCue();
+      cue.setCueCode(g == 0 ? InterruptCue.PHONE_HANGUP : InterruptCue.USER_PRESENT);
+      List<InterruptCue> cues = new ArrayList<InterruptCue>();
+      cues.add(cue);
+      InterruptTrigger trigger = new InterruptTrigger();
+      trigger.setCues(cues);
+      List<ActionTrigger> triggers = new ArrayList<ActionTrigger>();
+      triggers.add(trigger);
+      group.setActionTriggers(triggers);
+      groups.add(group);
+    }
+    dao.setGroups(groups);
+
+    Experiment experiment = new Experiment();
+    experiment.setExperimentDAO(dao);
+    experiment.setServerId(dao.getId());
+    experiment.setJoinDate(TimeUtil.formatDateWithZone(new DateTime()));
+    return experiment;
+  }
+}
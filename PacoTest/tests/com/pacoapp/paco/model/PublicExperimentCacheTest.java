@@ -0,0 +1,88 @@
+package com.pacoapp.paco.model;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import android.test.AndroidTestCase;
+
+import com.pacoapp.paco.shared.model2.ExperimentDAO;
+
+public class PublicExperimentCacheTest extends AndroidTestCase {
+
+  private PublicExperimentCache cache;
+
+  protected void setUp() throws Exception {
+    super.setUp();
+    cache = PublicExperimentCache.getInstance(getContext());
+    cache.clear();
+  }
+
+  protected void tearDown() throws Exception {
+    cache.clear();
+    super.tearDown();
+  }
+
+  public void testUpsertAppendsPages() throws Exception {
+    cache.replaceAll(experiments(1, 2));
+    cache.upsert(experiments(3, 4));
+
+    assertServerIds(cache.getExperiments(), 1, 2, 3, 4);
+  }
+
+  public void testUpsertUpdatesInPlace() throws Exception {
+    cache.replaceAll(experiments(1, 2, 3));
+    List<Experiment> updated = experiments(2);
+    updated.get(0).getExperimentDAO().setTitle("renamed");
+    cache.upsert(updated);
+
+    assertServerIds(cache.getExperiments(), 1, 2, 3);
+    assertEquals("renamed", cache.getExperiment(2).getExperimentDAO().getTitle());
+  }
+
+  public void testReplaceAllStartsOver() throws Exception {
+    cache.replaceAll(experiments(1, 2));
+    cache.replaceAll(experiments(5));
+
+    assertServerIds(cache.getExperiments(), 5);
+    assertNull(cache.getExperiment(1));
+  }
+
+  public void testPages() throws Exception {
+    cache.replaceAll(experiments(1, 2, 3, 4, 5));
+
+    PublicExperimentCache.Page first = cache.getPage(null, 2);
+    assertServerIds(first.getExperiments(), 1, 2);
+    PublicExperimentCache.Page second = cache.getPage(first.getNextCursor(), 2);
+    assertServerIds(second.getExperiments(), 3, 4);
+    PublicExperimentCache.Page last = cache.getPage(second.getNextCursor(), 2);
+    assertServerIds(last.getExperiments(), 5);
+    assertNull(last.getNextCursor());
+  }
+
+  public void testEviction() throws Exception {
+    cache.replaceAll(experiments(1, 2));
+    cache.evictFetchedBefore(System.currentTimeMillis() + 1);
+
+    assertTrue(cache.getExperiments().isEmpty());
+  }
+
+  private List<Experiment> experiments(long... serverIds) {
+    List<Experiment> experiments = new ArrayList<Experiment>();
+    for (long serverId : serverIds) {
+      ExperimentDAO dao = new ExperimentDAO();
+      dao.setId(serverId);
+      dao.setTitle("experiment " + serverId);
+      Experiment experiment = new Experiment();
+      experiment.setExperimentDAO(dao);
+      experiments.add(experiment);
+    }
+    return experiments;
+  }
+
+  private void assertServerIds(List<Experiment> experiments, long... serverIds) {
+    assertEquals(serverIds.length, experiments.size());
+    for (int i = 0; i < serverIds.length; i++) {
+      assertEquals(Long.valueOf(serverIds[i]), experiments.get(i).getServerId());
+    }
+  }
+}
@@ -7,6 +7,7 @@ import java.util.List;
 import org.junit.Test;
 
 import com.google.common.collect.Lists;
+import com.pacoapp.paco.sensors.android.procmon.AdaptivePollingInterval;
 import com.pacoapp.paco.sensors.android.procmon.AppChangeListener;
 import com.pacoapp.paco.sensors.android.procmon.AppUsageEvent;
 import com.pacoapp.paco.sensors.android.procmon.AppUsageEventsService;
@@ -32,6 +33,11 @@ public class LollipopAppUsageMonitorTest {
       return seq;
     }
 
+    @Override
+    public List<AppUsageEvent> getUsageEventsSince(long lastSeenTimestamp) {
+      return getUsageEvents();
+    }
+
   }
 
 //  @Test
@@ -212,6 +218,73 @@ public class LollipopAppUsageMonitorTest {
     assertEquals(1, closedApps.size());
   }
 
+  @Test
+  public void testOverlappingWindowsOnlyReportNewChanges() throws Exception {
+    final List<AppUsageEvent> firstWindow = Lists.newArrayList();
+    addSession_OpenChrome(firstWindow);
+    addSession_closeChrome(firstWindow);
+
+    final List<AppUsageEvent> secondWindow = Lists.newArrayList();
+    addSession_closeChrome(secondWindow);
+    addSessionOpenContacts(secondWindow);
+
+    final List<AppUsageEvent> openedApps = Lists.newArrayList();
+    final List<AppUsageEvent> closedApps = Lists.newArrayList();
+    AppChangeListener listener = new AppChangeListener() {
+      public void appOpened(AppUsageEvent event, boolean shouldTrigger) {
+        openedApps.add(event);
+      }
+      public void appClosed(AppUsageEvent event, boolean shouldTrigger) {
+        closedApps.add(event);
+      }
+    };
+
+    LollipopAppUseChangeDetector changeDetector = new LollipopAppUseChangeDetector(null, null, listener);
+    assertEquals(firstWindow.size(), changeDetector.newEvents(firstWindow));
+    assertEquals(1437166085298l, changeDetector.getLastSeenTimestamp());
+
+    openedApps.clear();
+    closedApps.clear();
+    // the chrome close is a repeat, only the contacts sequence is new
+    assertEquals(2, changeDetector.newEvents(secondWindow));
+    assertEquals(1, openedApps.size());
+    assertEquals("com.google.android.dialer", openedApps.get(0).getPkgName());
+    assertEquals(1, closedApps.size());
+    assertEquals(AppUsageEvent.ANDROID_LOLLIPOP_HOME_APP_PKG, closedApps.get(0).getPkgName());
+    assertEquals(1437166088310l, changeDetector.getLastSeenTimestamp());
+  }
+
+  @Test
+  public void testEventsReportedInChronologicalOrder() throws Exception {
+    final List<AppUsageEvent> sequence = Lists.newArrayList();
+    addSession_closeChrome(sequence);
+
+    final List<String> order = Lists.newArrayList();
+    AppChangeListener listener = new AppChangeListener() {
+      public void appOpened(AppUsageEvent event, boolean shouldTrigger) {
+        order.add("open " + event.getPkgName());
+      }
+      public void appClosed(AppUsageEvent event, boolean shouldTrigger) {
+        order.add("close " + event.getPkgName());
+      }
+    };
+
+    new LollipopAppUseChangeDetector(null, null, listener).newEvents(sequence);
+    assertEquals(Lists.newArrayList("close " + AppUsageEvent.COM_ANDROID_CHROME_PKG_NAME,
+                                    "open " + AppUsageEvent.ANDROID_LOLLIPOP_HOME_APP_PKG),
+                 order);
+  }
+
+  @Test
+  public void testPollingIntervalBacksOffWhenIdle() throws Exception {
+    AdaptivePollingInterval interval = new AdaptivePollingInterval(1000, 8000);
+    assertEquals(2000, interval.next(0));
+    assertEquals(4000, interval.next(0));
+    assertEquals(8000, interval.next(0));
+    assertEquals(8000, interval.next(0));
+    assertEquals(1000, interval.next(3));
+  }
+
 //
 //  @Test
 //  public void testAppOpened() {
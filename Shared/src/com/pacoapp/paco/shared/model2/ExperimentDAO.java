@@ -49,6 +49,8 @@ public class ExperimentDAO extends ExperimentDAOCore implements Serializable {
   protected List<ExperimentGroup> groups;
   private String ringtoneUri;
   private String postInstallInstructions;
+  private Boolean indexResponses = false;
+  private Boolean keyedAnonymousIds = false;
 
   // Visible for testing
   public ExperimentDAO(Long id, String title, String description, String informedConsentForm,
@@ -216,4 +218,28 @@ public class ExperimentDAO extends ExperimentDAOCore implements Serializable {
     this.postInstallInstructions = instructions;
   }
 
+  /**
+   * @return true if the server should keep a query index of the responses
+   * to this experiment so that reports can filter on input values.
+   */
+  public Boolean getIndexResponses() {
+    return indexResponses;
+  }
+
+  public void setIndexResponses(Boolean indexResponses) {
+    this.indexResponses = indexResponses;
+  }
+
+  /**
+   * @return true if anonymized exports should identify participants with ids
+   * keyed with a secret of this experiment rather than a plain hash of their email.
+   */
+  public Boolean getKeyedAnonymousIds() {
+    return keyedAnonymousIds;
+  }
+
+  public void setKeyedAnonymousIds(Boolean keyedAnonymousIds) {
+    this.keyedAnonymousIds = keyedAnonymousIds;
+  }
+
 }
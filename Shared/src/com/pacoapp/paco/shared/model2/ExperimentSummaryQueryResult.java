@@ -0,0 +1,39 @@
+package com.pacoapp.paco.shared.model2;
+
+import java.io.Serializable;
+import java.util.List;
+
+
+
+public class ExperimentSummaryQueryResult implements Serializable {
+
+  String cursor;
+  List<ExperimentDAOCore> experiments;
+
+  public ExperimentSummaryQueryResult() {
+    super();
+  }
+
+  public ExperimentSummaryQueryResult(String newCursorString, List<ExperimentDAOCore> experiments) {
+    this.cursor = newCursorString;
+    this.experiments = experiments;
+  }
+
+  public String getCursor() {
+    return cursor;
+  }
+
+  public void setCursor(String cursor) {
+    this.cursor = cursor;
+  }
+
+  public List<ExperimentDAOCore> getExperiments() {
+    return experiments;
+  }
+
+  public void setExperiments(List<ExperimentDAOCore> experiments) {
+    this.experiments = experiments;
+  }
+
+
+}
@@ -0,0 +1,148 @@
+package com.pacoapp.paco.shared.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import com.pacoapp.paco.shared.model2.ActionTrigger;
+import com.pacoapp.paco.shared.model2.ExperimentDAO;
+import com.pacoapp.paco.shared.model2.ExperimentGroup;
+import com.pacoapp.paco.shared.model2.InterruptCue;
+import com.pacoapp.paco.shared.model2.InterruptTrigger;
+import com.pacoapp.paco.shared.model2.Schedule;
+import com.pacoapp.paco.shared.model2.ScheduleTrigger;
+
+/**
+ * What an experiment asks the client to watch and log, gathered in one walk
+ * of its groups, triggers, cues and schedules.
+ *
+ * Instances are immutable. ExperimentHelper keeps one per experiment version,
+ * so the checks the triggers, services and screens make for every joined
+ * experiment are bit tests instead of walks of the experiment.
+ */
+public class ExperimentCapabilities {
+
+  public static final int APP_USAGE_TRIGGER = 1 << 0;
+  public static final int APP_CLOSED_TRIGGER = 1 << 1;
+  public static final int LOG_SHUTDOWN = 1 << 2;
+  public static final int LOG_ACTIONS = 1 << 3;
+  public static final int USER_EDITABLE_SCHEDULE = 1 << 4;
+  public static final int ONGOING_DURATION_GROUP = 1 << 5;
+  public static final int BACKGROUND_LISTEN = 1 << 6;
+  public static final int DECLARES_APP_USAGE_BROWSER_HISTORY = 1 << 7;
+  public static final int DECLARES_INSTALLED_APPS = 1 << 8;
+
+  private final Long experimentId;
+  private final Integer version;
+  private final int flags;
+  // bit n is set if a cue has cue code n
+  private final long cueCodes;
+  private final List<String> appStartSources;
+  private final List<String> appCloseSources;
+
+  private ExperimentCapabilities(Long experimentId, Integer version, int flags, long cueCodes,
+                                 List<String> appStartSources, List<String> appCloseSources) {
+    this.experimentId = experimentId;
+    this.version = version;
+    this.flags = flags;
+    this.cueCodes = cueCodes;
+    this.appStartSources = Collections.unmodifiableList(appStartSources);
+    this.appCloseSources = Collections.unmodifiableList(appCloseSources);
+  }
+
+  public static ExperimentCapabilities of(ExperimentDAO experiment) {
+    int flags = 0;
+    long cueCodes = 0;
+    List<String> appStartSources = new ArrayList<String>();
+    List<String> appCloseSources = new ArrayList<String>();
+
+    List<Integer> declarations = experiment.getExtraDataCollectionDeclarations();
+    if (declarations != null) {
+      if (declarations.contains(ExperimentDAO.APP_USAGE_BROWSER_HISTORY_DATA_COLLECTION)) {
+        flags |= DECLARES_APP_USAGE_BROWSER_HISTORY;
+      }
+      if (declarations.contains(ExperimentDAO.APP_INSTALL_DATA_COLLECTION)) {
+        flags |= DECLARES_INSTALLED_APPS;
+      }
+    }
+
+    for (ExperimentGroup experimentGroup : experiment.getGroups()) {
+      if (experimentGroup.getLogShutdown()) {
+        flags |= LOG_SHUTDOWN;
+      }
+      if (Boolean.TRUE.equals(experimentGroup.getLogActions())) {
+        flags |= LOG_ACTIONS;
+      }
+      if (Boolean.FALSE.equals(experimentGroup.getFixedDuration())) {
+        flags |= ONGOING_DURATION_GROUP;
+      }
+      if (Boolean.TRUE.equals(experimentGroup.getBackgroundListen())) {
+        flags |= BACKGROUND_LISTEN;
+      }
+      for (ActionTrigger actionTrigger : experimentGroup.getActionTriggers()) {
+        if (actionTrigger instanceof InterruptTrigger) {
+          for (InterruptCue interruptCue : ((InterruptTrigger) actionTrigger).getCues()) {
+            int cueCode = interruptCue.getCueCode();
+            if (cueCode >= 0 && cueCode < Long.SIZE) {
+              cueCodes |= 1L << cueCode;
+            }
+            if (cueCode == InterruptCue.APP_USAGE) {
+              flags |= APP_USAGE_TRIGGER;
+              appStartSources.add(interruptCue.getCueSource());
+            } else if (cueCode == InterruptCue.APP_CLOSED) {
+              flags |= APP_USAGE_TRIGGER | APP_CLOSED_TRIGGER;
+              appCloseSources.add(interruptCue.getCueSource());
+            }
+          }
+        } else if (actionTrigger instanceof ScheduleTrigger) {
+          for (Schedule schedule : ((ScheduleTrigger) actionTrigger).getSchedules()) {
+            if (Boolean.TRUE.equals(schedule.getUserEditable())) {
+              flags |= USER_EDITABLE_SCHEDULE;
+            }
+          }
+        }
+      }
+    }
+    return new ExperimentCapabilities(experiment.getId(), experiment.getVersion(), flags, cueCodes,
+                                      appStartSources, appCloseSources);
+  }
+
+  /**
+   * @return whether these capabilities were gathered from this version of
+   * the experiment
+   */
+  boolean isFor(ExperimentDAO experiment) {
+    return experimentId != null && experimentId.equals(experiment.getId())
+           && version != null && version.equals(experiment.getVersion());
+  }
+
+  public boolean has(int capability) {
+    return (flags & capability) == capability;
+  }
+
+  /**
+   * @return whether any interrupt trigger of the experiment has a cue with
+   * this code
+   */
+  public boolean hasCueCode(int cueCode) {
+    if (cueCode < 0 || cueCode >= Long.SIZE) {
+      return false;
+    }
+    return (cueCodes & (1L << cueCode)) != 0;
+  }
+
+  /**
+   * @return the sources (package names) of the app started cues
+   */
+  public List<String> getAppStartSources() {
+    return appStartSources;
+  }
+
+  /**
+   * @return the sources (package names) of the app closed cues
+   */
+  public List<String> getAppCloseSources() {
+    return appCloseSources;
+  }
+
+}
@@ -1,7 +1,9 @@
 package com.pacoapp.paco.shared.util;
 
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 import com.pacoapp.paco.shared.model2.ActionTrigger;
 import com.pacoapp.paco.shared.model2.ExperimentDAO;
@@ -9,11 +11,20 @@ import com.pacoapp.paco.shared.model2.ExperimentGroup;
 import com.pacoapp.paco.shared.model2.Input2;
 import com.pacoapp.paco.shared.model2.InterruptCue;
 import com.pacoapp.paco.shared.model2.InterruptTrigger;
-import com.pacoapp.paco.shared.model2.Schedule;
-import com.pacoapp.paco.shared.model2.ScheduleTrigger;
 
 public class ExperimentHelper {
 
+  private static final int MAX_CACHED_CAPABILITIES = 256;
+
+  // by experiment id, least recently used first
+  private static final Map<Long, ExperimentCapabilities> capabilitiesCache =
+          new LinkedHashMap<Long, ExperimentCapabilities>(16, 0.75f, true) {
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<Long, ExperimentCapabilities> eldest) {
+      return size() > MAX_CACHED_CAPABILITIES;
+    }
+  };
+
   public static Input2 getInputWithName(ExperimentDAO experiment, String name, String groupName) {
     if (name == null || name.isEmpty()) {
       return null;
@@ -45,99 +56,62 @@ public class ExperimentHelper {
     return inputs;
   }
 
+  /**
+   * @return the capabilities of this version of the experiment, gathered the
+   * first time they are asked for. Experiments without an id or version, like
+   * ones still being edited, are walked every time.
+   */
+  public static ExperimentCapabilities getCapabilities(ExperimentDAO experiment) {
+    Long experimentId = experiment.getId();
+    if (experimentId == null || experiment.getVersion() == null) {
+      return ExperimentCapabilities.of(experiment);
+    }
+    ExperimentCapabilities capabilities;
+    synchronized (capabilitiesCache) {
+      capabilities = capabilitiesCache.get(experimentId);
+    }
+    if (capabilities == null || !capabilities.isFor(experiment)) {
+      capabilities = ExperimentCapabilities.of(experiment);
+      synchronized (capabilitiesCache) {
+        capabilitiesCache.put(experimentId, capabilities);
+      }
+    }
+    return capabilities;
+  }
+
   public static boolean declaresLogAppUsageAndBrowserCollection(ExperimentDAO experiment) {
-    return experiment.getExtraDataCollectionDeclarations() != null
-            && experiment.getExtraDataCollectionDeclarations().contains(ExperimentDAO.APP_USAGE_BROWSER_HISTORY_DATA_COLLECTION);
+    return getCapabilities(experiment).has(ExperimentCapabilities.DECLARES_APP_USAGE_BROWSER_HISTORY);
   }
 
   public static boolean declaresInstalledAppDataCollection(ExperimentDAO experiment) {
-    return experiment.getExtraDataCollectionDeclarations() != null
-            && experiment.getExtraDataCollectionDeclarations().contains(ExperimentDAO.APP_INSTALL_DATA_COLLECTION);
+    return getCapabilities(experiment).has(ExperimentCapabilities.DECLARES_INSTALLED_APPS);
   }
 
   public static boolean hasUserEditableSchedule(ExperimentDAO experiment) {
-    List<ExperimentGroup> experimentGroups = experiment.getGroups();
-    for (ExperimentGroup experimentGroup : experimentGroups) {
-      List<ActionTrigger> triggers = experimentGroup.getActionTriggers();
-      for (ActionTrigger actionTrigger : triggers) {
-        if (actionTrigger instanceof ScheduleTrigger) {
-          ScheduleTrigger scheduleTrigger = (ScheduleTrigger)actionTrigger;
-          List<Schedule> schedules = scheduleTrigger.getSchedules();
-          for (Schedule schedule : schedules) {
-            if (schedule.getUserEditable()) {
-              return true;
-            }
-          }
-        }
-      }
-    }
-    return false;
+    return getCapabilities(experiment).has(ExperimentCapabilities.USER_EDITABLE_SCHEDULE);
   }
 
   public static boolean hasAppUsageTrigger(ExperimentDAO experiment) {
-    List<ExperimentGroup> groups = experiment.getGroups();
-    for (ExperimentGroup experimentGroup : groups) {
-      List<ActionTrigger> triggers = experimentGroup.getActionTriggers();
-      for (ActionTrigger actionTrigger : triggers) {
-        if (actionTrigger instanceof InterruptTrigger) {
-          InterruptTrigger trigger = (InterruptTrigger)actionTrigger;
-          List<InterruptCue> cues = trigger.getCues();
-          for (InterruptCue interruptCue : cues) {
-            if (interruptCue.getCueCode() == InterruptCue.APP_USAGE ||
-                    interruptCue.getCueCode() == InterruptCue.APP_CLOSED) {
-              return true;
-            }
-          }
-
-        }
-      }
-    }
-    return false;
+    return getCapabilities(experiment).has(ExperimentCapabilities.APP_USAGE_TRIGGER);
   }
 
   public static boolean hasAppClosedTrigger(ExperimentDAO experiment) {
-    List<ExperimentGroup> groups = experiment.getGroups();
-    for (ExperimentGroup experimentGroup : groups) {
-      List<ActionTrigger> triggers = experimentGroup.getActionTriggers();
-      for (ActionTrigger actionTrigger : triggers) {
-        if (actionTrigger instanceof InterruptTrigger) {
-          InterruptTrigger trigger = (InterruptTrigger)actionTrigger;
-          List<InterruptCue> cues = trigger.getCues();
-          for (InterruptCue interruptCue : cues) {
-            if (interruptCue.getCueCode() == InterruptCue.APP_CLOSED) {
-              return true;
-            }
-          }
-
-        }
-      }
-    }
-    return false;
+    return getCapabilities(experiment).has(ExperimentCapabilities.APP_CLOSED_TRIGGER);
   }
 
   public static boolean isLogShutdown(ExperimentDAO experiment) {
-    List<ExperimentGroup> groups = experiment.getGroups();
-    for (ExperimentGroup experimentGroup : groups) {
-      if (experimentGroup.getLogShutdown()) {
-        return true;
-      }
-    }
-    return false;
+    return getCapabilities(experiment).has(ExperimentCapabilities.LOG_SHUTDOWN);
   }
 
 
   public static boolean isLogActions(ExperimentDAO experiment) {
-    List<ExperimentGroup> groups = experiment.getGroups();
-    for (ExperimentGroup experimentGroup : groups) {
-      if (experimentGroup.getLogActions()) {
-        return true;
-      }
-    }
-    return false;
+    return getCapabilities(experiment).has(ExperimentCapabilities.LOG_ACTIONS);
   }
 
   public static boolean shouldWatchProcesses(ExperimentDAO experiment) {
-    return hasAppUsageTrigger(experiment) || isLogActions(experiment);
+    ExperimentCapabilities capabilities = getCapabilities(experiment);
+    return capabilities.has(ExperimentCapabilities.APP_USAGE_TRIGGER)
+            || capabilities.has(ExperimentCapabilities.LOG_ACTIONS);
   }
 
   public static class Pair<S, T> {
@@ -168,6 +142,9 @@ public class ExperimentHelper {
   @SuppressWarnings("unchecked")
   public static List<Trio<ExperimentGroup, InterruptTrigger, InterruptCue>> shouldTriggerBy(ExperimentDAO experiment, int event, String sourceIdentifier) {
     List<Trio<ExperimentGroup, InterruptTrigger, InterruptCue>> groupsThatTrigger = new ArrayList();
+    if (!getCapabilities(experiment).hasCueCode(event)) {
+      return groupsThatTrigger;
+    }
     List<ExperimentGroup> groups = experiment.getGroups();
     for (ExperimentGroup experimentGroup : groups) {
       List<ActionTrigger> triggers = experimentGroup.getActionTriggers();
@@ -212,17 +189,14 @@ public class ExperimentHelper {
   }
 
   public static boolean isAnyGroupOngoingDuration(ExperimentDAO experiment) {
-    List<ExperimentGroup> groups = experiment.getGroups();
-    for (ExperimentGroup experimentGroup : groups) {
-      if (!experimentGroup.getFixedDuration()) {
-        return true;
-      }
-    }
-    return false;
+    return getCapabilities(experiment).has(ExperimentCapabilities.ONGOING_DURATION_GROUP);
   }
 
   public static List<ExperimentGroup> isBackgroundListeningForSourceId(ExperimentDAO experiment, String sourceIdentifier) {
     List<ExperimentGroup> listeningExperimentGroups  = new ArrayList();
+    if (!getCapabilities(experiment).has(ExperimentCapabilities.BACKGROUND_LISTEN)) {
+      return listeningExperimentGroups;
+    }
     List<ExperimentGroup> experimentGroups = experiment.getGroups();
     for (ExperimentGroup experimentGroup : experimentGroups) {
       if (experimentGroup.getBackgroundListen() && experimentGroup.getBackgroundListenSourceIdentifier().equals(sourceIdentifier)) {
@@ -9,6 +9,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.logging.Logger;
 
+import org.codehaus.jackson.JsonFactory;
 import org.codehaus.jackson.JsonGenerationException;
 import org.codehaus.jackson.JsonParseException;
 import org.codehaus.jackson.annotate.JsonSubTypes;
@@ -48,14 +49,7 @@ public class JsonConverter {
     try {
       ObjectMapper mapper = getObjectMapper();
 
-      Float pacoProtocolFloat = null;
-      if (pacoProtocol != null) {
-        try {
-          pacoProtocolFloat = Float.parseFloat(pacoProtocol);
-        } catch (NumberFormatException e) {
-          e.printStackTrace();
-        }
-      }
+      Float pacoProtocolFloat = getPacoProtocolVersion(pacoProtocol);
       if (pacoProtocolFloat == null) {
         if (experiments == null) {
           experiments = Collections.EMPTY_LIST;
@@ -79,6 +73,41 @@ public class JsonConverter {
     return null;
   }
 
+  /**
+   * @return the protocol version sent by the client, or null if it sent none
+   * or one that is not a number
+   */
+  public static Float getPacoProtocolVersion(String pacoProtocol) {
+    if (pacoProtocol != null) {
+      try {
+        return Float.parseFloat(pacoProtocol);
+      } catch (NumberFormatException e) {
+        e.printStackTrace();
+      }
+    }
+    return null;
+  }
+
+  /**
+   * The json of one experiment as it appears in the results of
+   * jsonify(experiments, limit, cursor, pacoProtocol) for a protocol version
+   * of 3.0 or up, or for no version.
+   *
+   * @return the json, or null if the experiment is left out of the results
+   * because it cannot be expressed in the version 3 model
+   */
+  public static String jsonifyForProtocol(ObjectMapper mapper, ExperimentDAOCore experiment,
+                                          Float pacoProtocolFloat) throws IOException {
+    if (pacoProtocolFloat != null && pacoProtocolFloat < 4.0) {
+      List<? extends com.pacoapp.paco.shared.model.ExperimentDAOCore> backwardCompatibleExperiments = createBackwardCompatibleExperiments(Collections.singletonList(experiment));
+      if (backwardCompatibleExperiments.isEmpty()) {
+        return null;
+      }
+      return mapper.writeValueAsString(backwardCompatibleExperiments.get(0));
+    }
+    return mapper.writeValueAsString(experiment);
+  }
+
   private static Map<String, Object> buildV3ProtocolJson(List<? extends ExperimentDAOCore> experiments, Integer limit,
                                                          String cursor) {
     if (experiments == null) {
@@ -448,7 +477,11 @@ public class JsonConverter {
 
   }
 
-  private static ExperimentDAOCore experimentDAOCoreFromExperimentDAO(ExperimentDAO experiment) {
+  /**
+   * @return the fields of the experiment shown in experiment lists, with its
+   * schedule reduced to the earliest start and latest end dates
+   */
+  public static ExperimentDAOCore experimentDAOCoreFromExperimentDAO(ExperimentDAO experiment) {
 
     Date earliestStartDate = null;
     DateMidnight earliestStartDate2 = ActionScheduleGenerator.getEarliestStartDate(experiment);
@@ -563,7 +596,15 @@ public class JsonConverter {
   }
 
   public static ObjectMapper getObjectMapper() {
-    ObjectMapper mapper = new ObjectMapper();
+    return getObjectMapper(null);
+  }
+
+  /**
+   * @param jsonFactory the factory of a binary json format, like smile, or
+   * null for text json
+   */
+  public static ObjectMapper getObjectMapper(JsonFactory jsonFactory) {
+    ObjectMapper mapper = new ObjectMapper(jsonFactory);
     mapper.configure(org.codehaus.jackson.map.DeserializationConfig.Feature.FAIL_ON_UNKNOWN_PROPERTIES, false);
     mapper.getSerializationConfig().setSerializationInclusion(Inclusion.NON_NULL);
     mapper.getDeserializationConfig().addMixInAnnotations(ActionTrigger.class, ActionTriggerMixIn.class);
@@ -0,0 +1,137 @@
+package com.google.paco.shared.util;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import com.pacoapp.paco.shared.model2.ActionTrigger;
+import com.pacoapp.paco.shared.model2.ExperimentDAO;
+import com.pacoapp.paco.shared.model2.ExperimentGroup;
+import com.pacoapp.paco.shared.model2.InterruptCue;
+import com.pacoapp.paco.shared.model2.InterruptTrigger;
+import com.pacoapp.paco.shared.model2.Schedule;
+import com.pacoapp.paco.shared.model2.ScheduleTrigger;
+import com.pacoapp.paco.shared.util.ExperimentCapabilities;
+import com.pacoapp.paco.shared.util.ExperimentHelper;
+
+public class ExperimentCapabilitiesTest extends TestCase {
+
+  private static long nextId = 1000;
+
+  public void testPlainExperimentHasNothing() throws Exception {
+    ExperimentDAO experiment = createExperiment(new ExperimentGroup("group"));
+    assertFalse(ExperimentHelper.hasAppUsageTrigger(experiment));
+    assertFalse(ExperimentHelper.hasAppClosedTrigger(experiment));
+    assertFalse(ExperimentHelper.hasUserEditableSchedule(experiment));
+    assertFalse(ExperimentHelper.isLogActions(experiment));
+    assertFalse(ExperimentHelper.isLogShutdown(experiment));
+    assertFalse(ExperimentHelper.shouldWatchProcesses(experiment));
+    assertFalse(ExperimentHelper.declaresInstalledAppDataCollection(experiment));
+    assertFalse(ExperimentHelper.declaresLogAppUsageAndBrowserCollection(experiment));
+    assertTrue(ExperimentHelper.getCapabilities(experiment).getAppStartSources().isEmpty());
+  }
+
+  public void testAppTriggers() throws Exception {
+    ExperimentGroup group = new ExperimentGroup("group");
+    group.getActionTriggers().add(createInterruptTrigger(createCue(InterruptCue.APP_USAGE, "com.example.start"),
+                                                         createCue(InterruptCue.APP_CLOSED, "com.example.close")));
+    ExperimentDAO experiment = createExperiment(group);
+
+    assertTrue(ExperimentHelper.hasAppUsageTrigger(experiment));
+    assertTrue(ExperimentHelper.hasAppClosedTrigger(experiment));
+    assertTrue(ExperimentHelper.shouldWatchProcesses(experiment));
+    ExperimentCapabilities capabilities = ExperimentHelper.getCapabilities(experiment);
+    assertEquals(1, capabilities.getAppStartSources().size());
+    assertEquals("com.example.start", capabilities.getAppStartSources().get(0));
+    assertEquals("com.example.close", capabilities.getAppCloseSources().get(0));
+    assertTrue(capabilities.hasCueCode(InterruptCue.APP_USAGE));
+    assertFalse(capabilities.hasCueCode(InterruptCue.PHONE_HANGUP));
+  }
+
+  public void testGroupSettingsAndSchedules() throws Exception {
+    ExperimentGroup group = new ExperimentGroup("group");
+    group.setLogActions(true);
+    group.setLogShutdown(true);
+    group.setFixedDuration(false);
+    Schedule schedule = new Schedule();
+    schedule.setUserEditable(true);
+    List<Schedule> schedules = new ArrayList<Schedule>();
+    schedules.add(schedule);
+    group.getActionTriggers().add(new ScheduleTrigger(schedules));
+    ExperimentDAO experiment = createExperiment(group);
+    List<Integer> declarations = new ArrayList<Integer>();
+    declarations.add(ExperimentDAO.APP_INSTALL_DATA_COLLECTION);
+    experiment.setExtraDataCollectionDeclarations(declarations);
+
+    assertTrue(ExperimentHelper.isLogActions(experiment));
+    assertTrue(ExperimentHelper.isLogShutdown(experiment));
+    assertTrue(ExperimentHelper.isAnyGroupOngoingDuration(experiment));
+    assertTrue(ExperimentHelper.hasUserEditableSchedule(experiment));
+    assertTrue(ExperimentHelper.shouldWatchProcesses(experiment));
+    assertTrue(ExperimentHelper.declaresInstalledAppDataCollection(experiment));
+    assertFalse(ExperimentHelper.declaresLogAppUsageAndBrowserCollection(experiment));
+  }
+
+  public void testShouldTriggerBy() throws Exception {
+    ExperimentGroup group = new ExperimentGroup("group");
+    group.getActionTriggers().add(createInterruptTrigger(createCue(InterruptCue.APP_USAGE, "com.example.start"),
+                                                         createCue(InterruptCue.PHONE_HANGUP, null)));
+    ExperimentDAO experiment = createExperiment(group);
+
+    assertEquals(1, ExperimentHelper.shouldTriggerBy(experiment, InterruptCue.APP_USAGE, "com.example.start").size());
+    assertEquals(0, ExperimentHelper.shouldTriggerBy(experiment, InterruptCue.APP_USAGE, "com.example.other").size());
+    assertEquals(1, ExperimentHelper.shouldTriggerBy(experiment, InterruptCue.PHONE_HANGUP, null).size());
+    assertEquals(0, ExperimentHelper.shouldTriggerBy(experiment, InterruptCue.APP_CLOSED, "com.example.start").size());
+  }
+
+  public void testCachedPerVersion() throws Exception {
+    ExperimentGroup group = new ExperimentGroup("group");
+    ExperimentDAO experiment = createExperiment(group);
+    ExperimentCapabilities capabilities = ExperimentHelper.getCapabilities(experiment);
+    assertSame(capabilities, ExperimentHelper.getCapabilities(experiment));
+
+    group.setLogActions(true);
+    assertFalse(ExperimentHelper.isLogActions(experiment));
+
+    experiment.setVersion(experiment.getVersion() + 1);
+    assertTrue(ExperimentHelper.isLogActions(experiment));
+  }
+
+  public void testNotCachedWithoutVersion() throws Exception {
+    ExperimentGroup group = new ExperimentGroup("group");
+    ExperimentDAO experiment = createExperiment(group);
+    experiment.setVersion(null);
+    assertFalse(ExperimentHelper.isLogActions(experiment));
+
+    group.setLogActions(true);
+    assertTrue(ExperimentHelper.isLogActions(experiment));
+  }
+
+  private ExperimentDAO createExperiment(ExperimentGroup group) {
+    ExperimentDAO experiment = new ExperimentDAO();
+    experiment.setId(nextId++);
+    experiment.setVersion(1);
+    List<ExperimentGroup> groups = new ArrayList<ExperimentGroup>();
+    groups.add(group);
+    experiment.setGroups(groups);
+    return experiment;
+  }
+
+  private InterruptTrigger createInterruptTrigger(InterruptCue... cues) {
+    InterruptTrigger trigger = new InterruptTrigger();
+    List<InterruptCue> cueList = new ArrayList<InterruptCue>();
+    for (InterruptCue cue : cues) {
+      cueList.add(cue);
+    }
+    trigger.setCues(cueList);
+    return trigger;
+  }
+
+  private InterruptCue createCue(int cueCode, String cueSource) {
+    InterruptCue cue = new InterruptCue();
+    cue.setCueCode(cueCode);
+    cue.setCueSource(cueSource);
+    return cue;
+  }
+}